@@ -0,0 +1,101 @@
+package com.fileencryptor.benchmarks;
+
+import com.fileencryptor.web.service.EncryptionMetrics;
+import com.fileencryptor.web.service.EncryptionService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the web path: {@link EncryptionService#encryptFile} and
+ * {@link EncryptionService#decryptFile} streaming between files, the way
+ * uploads are spooled to disk by the servlet container.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncryptionServiceBenchmark {
+
+    private static final String KEY = "benchmark-secret-key";
+
+    @Param({"1KB", "1MB", "64MB", "1GB"})
+    public String size;
+
+    /** Buffer of the stream wrapped around the upload, as a servlet container would supply it. */
+    @Param({"8192", "65536", "1048576"})
+    public int bufferSize;
+
+    /** "cold" derives the key with PBKDF2 on every call, "warm" hits the key cache. */
+    @Param({"cold", "warm"})
+    public String kdf;
+
+    private Path directory;
+    private Path plainFile;
+    private Path encryptedFile;
+    private Path outputFile;
+    private EncryptionService service;
+    private long length;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        length = BenchmarkFiles.parseSize(size);
+        directory = Files.createTempDirectory("file-encryptor-web-bench-");
+        plainFile = directory.resolve("plain.bin");
+        encryptedFile = directory.resolve("plain.bin.encrypted");
+        outputFile = directory.resolve("output.bin");
+
+        service = new EncryptionService("warm".equals(kdf), 16, Duration.ofHours(1), true, "AES-GCM",
+                new EncryptionMetrics(new SimpleMeterRegistry()));
+
+        BenchmarkFiles.writeRandomFile(plainFile, length);
+        try (InputStream in = Files.newInputStream(plainFile);
+             OutputStream out = Files.newOutputStream(encryptedFile)) {
+            service.encryptFile(in, out, KEY);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void encrypt(ByteCounter counter) throws Exception {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(plainFile), bufferSize);
+             OutputStream out = Files.newOutputStream(outputFile)) {
+            service.encryptFile(in, out, KEY);
+        }
+        counter.bytes += length;
+    }
+
+    @Benchmark
+    public void decrypt(ByteCounter counter) throws Exception {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(encryptedFile), bufferSize);
+             OutputStream out = Files.newOutputStream(outputFile)) {
+            service.decryptFile(in, out, KEY);
+        }
+        counter.bytes += length;
+    }
+}
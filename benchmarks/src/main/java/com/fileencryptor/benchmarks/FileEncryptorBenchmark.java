@@ -0,0 +1,108 @@
+package com.fileencryptor.benchmarks;
+
+import com.fileencryptor.CipherSuite;
+import com.fileencryptor.EncryptionOptions;
+import com.fileencryptor.FileEncryptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the desktop path: {@link FileEncryptor#encrypt} and
+ * {@link FileEncryptor#decrypt} on real files, including key derivation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileEncryptorBenchmark {
+
+    private static final String KEY = "benchmark-secret-key";
+
+    @Param({"1KB", "1MB", "64MB", "1GB"})
+    public String size;
+
+    /** Read buffer for legacy files and chunk size for the chunked format. */
+    @Param({"65536", "262144", "1048576"})
+    public int bufferSize;
+
+    /**
+     * "chunked" seals chunks with AES-GCM, "chunked-chacha20" with ChaCha20-Poly1305; "legacy" pipelines
+     * reading, the cipher and writing; "legacy-sequential" runs them on one thread.
+     */
+    @Param({"chunked", "chunked-chacha20", "legacy", "legacy-sequential"})
+    public String format;
+
+    /** "cold" derives the key with PBKDF2 on every call, "warm" hits the key cache. */
+    @Param({"cold", "warm"})
+    public String kdf;
+
+    private Path directory;
+    private String plainFile;
+    private String encryptedFile;
+    private String outputFile;
+    private EncryptionOptions options;
+    private long length;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        length = BenchmarkFiles.parseSize(size);
+        directory = Files.createTempDirectory("file-encryptor-bench-");
+        plainFile = directory.resolve("plain.bin").toString();
+        encryptedFile = directory.resolve("plain.bin.encrypted").toString();
+        outputFile = directory.resolve("output.bin").toString();
+
+        options = EncryptionOptions.defaults()
+                .bufferSize(bufferSize)
+                .chunkSize(bufferSize)
+                .legacyFormat(format.startsWith("legacy"))
+                .cipherSuite("chunked-chacha20".equals(format) ? CipherSuite.CHACHA20_POLY1305 : CipherSuite.AES_GCM);
+        if ("legacy-sequential".equals(format)) {
+            options.pipelineDepth(0);
+        }
+
+        if ("warm".equals(kdf)) {
+            FileEncryptor.enableKeyCache(16, Duration.ofHours(1));
+        } else {
+            FileEncryptor.disableKeyCache();
+        }
+
+        BenchmarkFiles.writeRandomFile(directory.resolve("plain.bin"), length);
+        FileEncryptor.encrypt(plainFile, encryptedFile, KEY, options);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        FileEncryptor.disableKeyCache();
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void encrypt(ByteCounter counter) throws Exception {
+        FileEncryptor.encrypt(plainFile, outputFile, KEY, options);
+        counter.bytes += length;
+    }
+
+    @Benchmark
+    public void decrypt(ByteCounter counter) throws Exception {
+        FileEncryptor.decrypt(encryptedFile, outputFile, KEY, options);
+        counter.bytes += length;
+    }
+}
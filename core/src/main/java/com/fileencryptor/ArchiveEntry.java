@@ -0,0 +1,52 @@
+package com.fileencryptor;
+
+/**
+ * One file stored in an encrypted archive, as listed by its index.
+ */
+public class ArchiveEntry {
+
+    private final String name;
+    private final long size;
+    private final long offset;
+    private final byte[] fileId;
+
+    ArchiveEntry(String name, long size, long offset, byte[] fileId) {
+        this.name = name;
+        this.size = size;
+        this.offset = offset;
+        this.fileId = fileId;
+    }
+
+    /**
+     * @return the path of the file relative to the archived folder, with / as separator
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the size of the original file
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return where the entry's container starts in the archive
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the file id the entry's container must carry
+     */
+    byte[] getFileId() {
+        return fileId.clone();
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + size + " bytes)";
+    }
+}
@@ -0,0 +1,214 @@
+package com.fileencryptor;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Encrypts, decrypts, verifies or rekeys every file below a directory.
+ *
+ * The key is derived once for the whole batch and files are spread over a
+ * bounded work-stealing pool. Large files split into chunk tasks on the same
+ * pool, so a few big files and many small ones keep all threads busy without
+ * oversubscribing the machine. A failing file is recorded and the rest of the
+ * batch carries on; cancelling stops the whole batch. Progress is reported
+ * over the combined size of all files.
+ */
+final class BatchEncryptor {
+
+    static final String ENCRYPTED_EXTENSION = ".encrypted";
+    static final String DECRYPTED_EXTENSION = ".decrypted";
+
+    private BatchEncryptor() {
+    }
+
+    /**
+     * Encrypts every file below a directory that is not already encrypted
+     * and is not an incremental encryption manifest or a resumable encryption checkpoint. Each output is
+     * written next to its input with the .encrypted extension.
+     *
+     * @param directory the root of the tree
+     * @param key the derived AES key
+     * @param options parallelism and per-file options
+     * @return counts, throughput and failures
+     * @throws IOException if the directory cannot be listed
+     */
+    static BatchResult encrypt(Path directory, SecretKey key, EncryptionOptions options) throws IOException {
+        List<Path> files = listFiles(directory, file -> !isEncryptedName(file)
+                && !file.getFileName().toString().endsWith(ChunkManifest.EXTENSION)
+                && !file.getFileName().toString().endsWith(EncryptionCheckpoint.EXTENSION));
+        return run(files, options, (file, tracker) -> {
+            FileEncryptor.encryptFile(file, encryptedPathFor(file), key, options, tracker);
+        });
+    }
+
+    /**
+     * Decrypts every .encrypted file below a directory, except those whose
+     * resumable encryption was interrupted.
+     *
+     * @param directory the root of the tree
+     * @param key the derived AES key
+     * @param options parallelism and per-file options
+     * @return counts, throughput and failures
+     * @throws IOException if the directory cannot be listed
+     */
+    static BatchResult decrypt(Path directory, SecretKey key, EncryptionOptions options) throws IOException {
+        List<Path> files = listFiles(directory, BatchEncryptor::isFinishedEncryptedFile);
+        return run(files, options, (file, tracker) -> {
+            FileEncryptor.decryptFile(file, decryptedPathFor(file), key, options, tracker);
+        });
+    }
+
+    /**
+     * Verifies every .encrypted file below a directory without writing
+     * anything, except those whose resumable encryption was interrupted.
+     *
+     * @param directory the root of the tree
+     * @param key the derived AES key
+     * @param options parallelism and per-file options
+     * @return counts, throughput and the files that failed to verify
+     * @throws IOException if the directory cannot be listed
+     */
+    static BatchResult verify(Path directory, SecretKey key, EncryptionOptions options) throws IOException {
+        List<Path> files = listFiles(directory, BatchEncryptor::isFinishedEncryptedFile);
+        return run(files, options, (file, tracker) -> {
+            FileEncryptor.verifyFile(file, key, options, tracker);
+        });
+    }
+
+    /**
+     * Changes the key of every .encrypted file below a directory by rewriting
+     * their headers in place, except those whose resumable encryption was
+     * interrupted.
+     *
+     * @param directory the root of the tree
+     * @param oldKey the key derived from the current password
+     * @param newKey the key derived from the new password
+     * @param options parallelism, progress and cancellation
+     * @return counts, throughput and the files whose key could not be changed
+     * @throws IOException if the directory cannot be listed
+     */
+    static BatchResult rekey(Path directory, SecretKey oldKey, SecretKey newKey, EncryptionOptions options)
+            throws IOException {
+        List<Path> files = listFiles(directory, BatchEncryptor::isFinishedEncryptedFile);
+        return run(files, options, (file, tracker) -> {
+            FileEncryptor.rekeyFile(file, oldKey, newKey, tracker);
+        });
+    }
+
+    static Path encryptedPathFor(Path file) {
+        return file.resolveSibling(file.getFileName() + ENCRYPTED_EXTENSION);
+    }
+
+    static Path decryptedPathFor(Path file) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(ENCRYPTED_EXTENSION)) {
+            return file.resolveSibling(name.substring(0, name.length() - ENCRYPTED_EXTENSION.length()));
+        }
+        return file.resolveSibling(name + DECRYPTED_EXTENSION);
+    }
+
+    private static boolean isEncryptedName(Path file) {
+        return file.getFileName().toString().endsWith(ENCRYPTED_EXTENSION);
+    }
+
+    // A file with a checkpoint next to it is only the start of an encryption that can still be resumed
+    private static boolean isFinishedEncryptedFile(Path file) {
+        return isEncryptedName(file) && !Files.exists(EncryptionCheckpoint.pathFor(file));
+    }
+
+    static List<Path> listFiles(Path directory, Predicate<Path> filter) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            throw new IllegalArgumentException("Not a directory: " + directory);
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(Files::isRegularFile).filter(filter).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static BatchResult run(List<Path> files, EncryptionOptions options, FileOperation operation)
+            throws IOException {
+        long totalBytes = 0;
+        for (Path file : files) {
+            totalBytes += Files.size(file);
+        }
+        ProgressTracker tracker = ProgressTracker.create(options, totalBytes);
+
+        AtomicInteger processed = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        Map<Path, Exception> failures = new ConcurrentHashMap<>();
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(options.getParallelism());
+        try {
+            pool.invoke(new FileRange(files, 0, files.size(), file -> {
+                try {
+                    long size = Files.size(file);
+                    operation.apply(file, tracker);
+                    processed.incrementAndGet();
+                    bytes.addAndGet(size);
+                } catch (CancellationException e) {
+                    throw e;
+                } catch (Exception e) {
+                    failures.put(file, e);
+                }
+            }));
+        } finally {
+            pool.shutdown();
+        }
+
+        return new BatchResult(processed.get(), bytes.get(), System.nanoTime() - start, failures);
+    }
+
+    /** Work done for a single file. */
+    private interface FileOperation {
+        void apply(Path file, ProgressTracker tracker) throws Exception;
+    }
+
+    /** Work done for a single file, with failures already recorded. */
+    private interface FileTask {
+        void apply(Path file);
+    }
+
+    /** Splits the file list in half until single files remain. */
+    private static final class FileRange extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> files;
+        private final int from;
+        private final int to;
+        private final FileTask task;
+
+        FileRange(List<Path> files, int from, int to, FileTask task) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (to > from) {
+                    task.apply(files.get(from));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new FileRange(files, from, middle, task), new FileRange(files, middle, to, task));
+        }
+    }
+}
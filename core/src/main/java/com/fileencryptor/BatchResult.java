@@ -0,0 +1,73 @@
+package com.fileencryptor;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Outcome of encrypting, decrypting, verifying or rekeying a directory tree.
+ */
+public class BatchResult {
+
+    private final int filesProcessed;
+    private final long bytesProcessed;
+    private final long elapsedNanos;
+    private final Map<Path, Exception> failures;
+
+    BatchResult(int filesProcessed, long bytesProcessed, long elapsedNanos, Map<Path, Exception> failures) {
+        this.filesProcessed = filesProcessed;
+        this.bytesProcessed = bytesProcessed;
+        this.elapsedNanos = elapsedNanos;
+        this.failures = Collections.unmodifiableMap(new TreeMap<>(failures));
+    }
+
+    /**
+     * @return the number of files that were processed successfully
+     */
+    public int getFilesProcessed() {
+        return filesProcessed;
+    }
+
+    /**
+     * @return the total input size of the files that were processed successfully
+     */
+    public long getBytesProcessed() {
+        return bytesProcessed;
+    }
+
+    /**
+     * @return wall-clock time of the whole batch in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return aggregate throughput in megabytes of input per second
+     */
+    public double getThroughputMBps() {
+        if (elapsedNanos == 0) {
+            return 0;
+        }
+        return (bytesProcessed / (1024.0 * 1024.0)) / (elapsedNanos / 1_000_000_000.0);
+    }
+
+    /**
+     * @return the files that failed, with the reason, sorted by path
+     */
+    public Map<Path, Exception> getFailures() {
+        return failures;
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files, %.1f MB in %.2f s (%.1f MB/s), %d failed",
+                filesProcessed, bytesProcessed / (1024.0 * 1024.0), elapsedNanos / 1_000_000_000.0,
+                getThroughputMBps(), failures.size());
+    }
+}
@@ -0,0 +1,36 @@
+package com.fileencryptor;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Lets another thread stop a running operation.
+ *
+ * Operations check the token between chunks and buffers, so a cancelled
+ * operation stops soon after {@link #cancel()} is called and throws a
+ * {@link CancellationException}. Output files of interrupted operations are
+ * removed.
+ */
+public class CancellationToken {
+
+    private volatile boolean cancelled;
+
+    /**
+     * Requests cancellation. Safe to call from any thread, more than once.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws CancellationException if cancellation was requested
+     */
+    public void throwIfCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Operation cancelled");
+        }
+    }
+}
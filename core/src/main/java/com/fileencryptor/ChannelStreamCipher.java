@@ -0,0 +1,98 @@
+package com.fileencryptor;
+
+import javax.crypto.Cipher;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * Runs a file through a stream cipher mode (the legacy AES/CBC format)
+ * using {@link FileChannel}s.
+ *
+ * By default reading, the cipher and writing run on separate threads through
+ * a {@link PipelinedCipher}. With pipelining turned off, input and output
+ * buffers are allocated once per call and reused for every update, and large
+ * inputs are memory-mapped so the cipher reads straight from the page cache.
+ * Heap buffers are the default because the JDK cipher
+ * works on their backing arrays directly; direct buffers save a copy on the
+ * I/O side instead.
+ */
+final class ChannelStreamCipher {
+
+    private ChannelStreamCipher() {
+    }
+
+    /**
+     * Processes everything from {@code position} to the end of the input and
+     * appends the result, including the final block, to the output.
+     *
+     * @param cipher an initialized cipher
+     * @param in the input file
+     * @param position where to start reading
+     * @param out the output file, positioned where writing should start
+     * @param options buffer size, direct buffers, pipeline depth and mapping threshold
+     * @param tracker receives processed input bytes and checks for cancellation
+     * @throws IOException if reading or writing fails
+     * @throws GeneralSecurityException if the cipher fails, for example on bad padding
+     */
+    static void transfer(Cipher cipher, FileChannel in, long position, FileChannel out,
+            EncryptionOptions options, ProgressTracker tracker) throws IOException, GeneralSecurityException {
+        if (options.getPipelineDepth() > 0) {
+            in.position(position);
+            PipelinedCipher.transfer(cipher, in::read, PipelinedCipher.output(out),
+                    capacity -> allocate(capacity, options), options, tracker);
+            return;
+        }
+
+        int bufferSize = options.getBufferSize();
+        // Leave room for a block held back by the cipher plus padding
+        ByteBuffer output = allocate(cipher.getOutputSize(bufferSize) + 2 * cipher.getBlockSize(), options);
+
+        MappedInput mapped = MappedInput.mapIfLarge(in, position, bufferSize, options);
+        if (mapped != null) {
+            for (int i = 0; i < mapped.windowCount(); i++) {
+                ByteBuffer window = mapped.window(i);
+                int end = window.limit();
+                while (window.position() < end) {
+                    window.limit(Math.min(end, window.position() + bufferSize));
+                    int length = window.remaining();
+                    update(cipher, window, output, out);
+                    tracker.advance(length);
+                }
+            }
+        } else {
+            ByteBuffer input = allocate(bufferSize, options);
+            in.position(position);
+            while (in.read(input) != -1) {
+                input.flip();
+                int length = input.remaining();
+                update(cipher, input, output, out);
+                tracker.advance(length);
+                input.clear();
+            }
+        }
+
+        output.clear();
+        cipher.doFinal(ByteBuffer.allocate(0), output);
+        drain(output, out);
+    }
+
+    private static void update(Cipher cipher, ByteBuffer input, ByteBuffer output, FileChannel out)
+            throws IOException, GeneralSecurityException {
+        output.clear();
+        cipher.update(input, output);
+        drain(output, out);
+    }
+
+    private static void drain(ByteBuffer output, FileChannel out) throws IOException {
+        output.flip();
+        while (output.hasRemaining()) {
+            out.write(output);
+        }
+    }
+
+    static ByteBuffer allocate(int capacity, EncryptionOptions options) {
+        return options.isDirectBuffers() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
@@ -0,0 +1,301 @@
+package com.fileencryptor;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Seals and opens single chunks of the container format, with the cipher
+ * suite named in each container's header. An instance owns one cipher per
+ * suite and its buffers and must only be used by one thread.
+ */
+final class ChunkCodec {
+
+    private final Map<CipherSuite, Cipher> ciphers = new EnumMap<>(CipherSuite.class);
+    private final byte[] nonce = new byte[ContainerHeader.NONCE_LENGTH];
+    private boolean directBuffers;
+    private ByteBuffer plain = ByteBuffer.allocate(0);
+    private ByteBuffer record = ByteBuffer.allocate(0);
+
+    /**
+     * Switches between heap and direct buffers. The buffers are replaced on the
+     * next use if the setting changed.
+     *
+     * @param directBuffers true to allocate direct buffers
+     * @return this codec
+     */
+    ChunkCodec useDirectBuffers(boolean directBuffers) {
+        if (this.directBuffers != directBuffers) {
+            this.directBuffers = directBuffers;
+            plain = ByteBuffer.allocate(0);
+            record = ByteBuffer.allocate(0);
+        }
+        return this;
+    }
+
+    /**
+     * Reads one chunk of plaintext, encrypts it under a fresh nonce and writes its record.
+     *
+     * @param in the plaintext file
+     * @param out the encrypted file
+     * @param header the header of the encrypted file
+     * @param key the AES key
+     * @param index the chunk index
+     * @param plaintextLength the size of the plaintext file
+     * @throws IOException if reading or writing fails
+     * @throws GeneralSecurityException if the cipher fails
+     */
+    void encryptChunk(FileChannel in, FileChannel out, ContainerHeader header, SecretKey key,
+            long index, long plaintextLength) throws IOException, GeneralSecurityException {
+        encryptChunk(readChunk(in, header, index, plaintextLength), out, header, key, index, plaintextLength);
+    }
+
+    /**
+     * Reads one chunk of plaintext.
+     *
+     * @param in the plaintext file
+     * @param header the header of the encrypted file
+     * @param index the chunk index
+     * @param plaintextLength the size of the plaintext file
+     * @return the chunk, valid until the next call on this codec
+     * @throws IOException if reading fails
+     */
+    ByteBuffer readChunk(FileChannel in, ContainerHeader header, long index, long plaintextLength)
+            throws IOException {
+        int chunkSize = header.getChunkSize();
+        long plainOffset = index * chunkSize;
+
+        ByteBuffer source = plainBuffer(chunkSize);
+        source.limit((int) Math.min(chunkSize, plaintextLength - plainOffset));
+        readFully(in, source, plainOffset);
+        source.flip();
+        return source;
+    }
+
+    /**
+     * Encrypts one chunk of plaintext that is already in memory, for example
+     * a slice of a memory-mapped file, and writes its record.
+     *
+     * @param source the chunk plaintext
+     * @param out the encrypted file
+     * @param header the header of the encrypted file
+     * @param key the AES key
+     * @param index the chunk index
+     * @param plaintextLength the size of the plaintext file
+     * @throws IOException if writing fails
+     * @throws GeneralSecurityException if the cipher fails
+     */
+    void encryptChunk(ByteBuffer source, FileChannel out, ContainerHeader header, SecretKey key,
+            long index, long plaintextLength) throws IOException, GeneralSecurityException {
+        encryptChunk(source, out, 0, header, key, index, plaintextLength);
+    }
+
+    /**
+     * Encrypts one chunk of plaintext that is already in memory and writes its
+     * record into a container that starts at the given offset of the output,
+     * such as an entry of an {@link EncryptedArchive}.
+     *
+     * @param source the chunk plaintext
+     * @param out the file holding the container
+     * @param base the offset of the container's header in the file
+     * @param header the header of the container
+     * @param key the AES key
+     * @param index the chunk index
+     * @param plaintextLength the size of the plaintext
+     * @throws IOException if writing fails
+     * @throws GeneralSecurityException if the cipher fails
+     */
+    void encryptChunk(ByteBuffer source, FileChannel out, long base, ContainerHeader header, SecretKey key,
+            long index, long plaintextLength) throws IOException, GeneralSecurityException {
+        boolean last = index == header.chunkCount(plaintextLength) - 1;
+
+        ByteBuffer target = recordBuffer(header.getChunkSize());
+        seal(source, target, header, key, index, last);
+        target.flip();
+
+        writeFully(out, target, base + header.recordOffset(index));
+    }
+
+    /**
+     * Encrypts one chunk under a fresh nonce into a caller-owned buffer. Used
+     * when the chunk count is not known up front, as when reading a stream.
+     *
+     * @param source the chunk plaintext
+     * @param target receives the record, nonce first; needs room for the chunk plus overhead
+     * @param header the header of the encrypted file
+     * @param key the AES key
+     * @param index the chunk index
+     * @param last whether this is the final chunk
+     * @throws GeneralSecurityException if the cipher fails
+     */
+    void seal(ByteBuffer source, ByteBuffer target, ContainerHeader header, SecretKey key,
+            long index, boolean last) throws GeneralSecurityException {
+        CryptoPool.random().nextBytes(nonce);
+        target.put(nonce);
+
+        Cipher cipher = init(Cipher.ENCRYPT_MODE, header.getCipherSuite(), key);
+        cipher.updateAAD(header.associatedData(index, last));
+        cipher.doFinal(source, target);
+    }
+
+    /**
+     * Reads one chunk record and authenticates and decrypts it.
+     *
+     * @param in the encrypted file
+     * @param header the header of the encrypted file
+     * @param key the AES key
+     * @param index the chunk index
+     * @param encryptedLength the size of the encrypted file
+     * @return the plaintext, valid until the next call on this codec
+     * @throws IOException if reading fails
+     * @throws GeneralSecurityException if the chunk fails authentication
+     */
+    ByteBuffer decryptChunk(FileChannel in, ContainerHeader header, SecretKey key,
+            long index, long encryptedLength) throws IOException, GeneralSecurityException {
+        return decryptChunk(in, 0, header, key, index, encryptedLength);
+    }
+
+    /**
+     * Reads one chunk record of a container that starts at the given offset of
+     * the input, and authenticates and decrypts it.
+     *
+     * @param in the file holding the container
+     * @param base the offset of the container's header in the file
+     * @param header the header of the container
+     * @param key the AES key
+     * @param index the chunk index
+     * @param encryptedLength the size of the container
+     * @return the plaintext, valid until the next call on this codec
+     * @throws IOException if reading fails
+     * @throws GeneralSecurityException if the chunk fails authentication
+     */
+    ByteBuffer decryptChunk(FileChannel in, long base, ContainerHeader header, SecretKey key,
+            long index, long encryptedLength) throws IOException, GeneralSecurityException {
+        long recordOffset = base + header.recordOffset(index);
+
+        ByteBuffer source = recordBuffer(header.getChunkSize());
+        source.limit(recordLength(header, index, encryptedLength));
+        readFully(in, source, recordOffset);
+        source.flip();
+
+        return decryptChunk(source, header, key, index, encryptedLength);
+    }
+
+    /**
+     * Authenticates and decrypts one chunk record that is already in memory.
+     *
+     * @param source the whole chunk record, nonce first
+     * @param header the header of the encrypted file
+     * @param key the AES key
+     * @param index the chunk index
+     * @param encryptedLength the size of the encrypted file
+     * @return the plaintext, valid until the next call on this codec
+     * @throws GeneralSecurityException if the chunk fails authentication
+     */
+    ByteBuffer decryptChunk(ByteBuffer source, ContainerHeader header, SecretKey key,
+            long index, long encryptedLength) throws GeneralSecurityException {
+        boolean last = index == header.chunkCountFromEncrypted(encryptedLength) - 1;
+
+        ByteBuffer target = plainBuffer(header.getChunkSize());
+        open(source, target, header, key, index, last);
+        target.flip();
+        return target;
+    }
+
+    /**
+     * Authenticates and decrypts one chunk record into a caller-owned buffer.
+     *
+     * @param source the whole chunk record, nonce first
+     * @param target receives the plaintext; needs room for a full chunk
+     * @param header the header of the encrypted file
+     * @param key the AES key
+     * @param index the chunk index
+     * @param last whether this is the final chunk
+     * @throws GeneralSecurityException if the chunk fails authentication
+     */
+    void open(ByteBuffer source, ByteBuffer target, ContainerHeader header, SecretKey key,
+            long index, boolean last) throws GeneralSecurityException {
+        source.get(nonce);
+
+        Cipher cipher = init(Cipher.DECRYPT_MODE, header.getCipherSuite(), key);
+        cipher.updateAAD(header.associatedData(index, last));
+        try {
+            cipher.doFinal(source, target);
+        } catch (AEADBadTagException e) {
+            throw new AEADBadTagException("Chunk " + index + " failed authentication");
+        }
+    }
+
+    /**
+     * Initialises this codec's cipher for a suite with the current nonce.
+     */
+    private Cipher init(int mode, CipherSuite suite, SecretKey key) throws GeneralSecurityException {
+        Cipher cipher = ciphers.get(suite);
+        if (cipher == null) {
+            cipher = suite.newCipher();
+            ciphers.put(suite, cipher);
+        }
+        try {
+            cipher.init(mode, key, suite.parameters(nonce));
+        } catch (InvalidKeyException e) {
+            // ChaCha20-Poly1305 refuses the key and nonce it was last initialised with, in
+            // either mode, which happens when a thread opens a chunk it just sealed or opened
+            cipher = suite.newCipher();
+            ciphers.put(suite, cipher);
+            cipher.init(mode, key, suite.parameters(nonce));
+        }
+        return cipher;
+    }
+
+    /**
+     * @return the size of the record of the given chunk; only the last one may be short
+     */
+    static int recordLength(ContainerHeader header, long index, long encryptedLength) {
+        return (int) Math.min(header.getChunkSize() + ContainerHeader.CHUNK_OVERHEAD,
+                encryptedLength - header.recordOffset(index));
+    }
+
+    private ByteBuffer plainBuffer(int chunkSize) {
+        if (plain.capacity() < chunkSize) {
+            plain = allocate(chunkSize);
+        }
+        plain.clear();
+        return plain;
+    }
+
+    private ByteBuffer recordBuffer(int chunkSize) {
+        if (record.capacity() < chunkSize + ContainerHeader.CHUNK_OVERHEAD) {
+            record = allocate(chunkSize + ContainerHeader.CHUNK_OVERHEAD);
+        }
+        record.clear();
+        return record;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return directBuffers ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead == -1) {
+                throw new EOFException("Unexpected end of file at offset " + position);
+            }
+            position += bytesRead;
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.fileencryptor;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Per-chunk fingerprints of the plaintext behind an encrypted file, kept next
+ * to it so that the next incremental run only re-encrypts chunks that changed.
+ *
+ * <pre>
+ * offset  size  field
+ *      0     8  magic "FENCMNFT"
+ *      8     1  manifest version
+ *      9    16  file id of the encrypted file
+ *     25     4  chunk size, big-endian
+ *     29     8  plaintext length, big-endian
+ *     37  32*n  one fingerprint per chunk
+ * </pre>
+ *
+ * A fingerprint is an HMAC-SHA256 of the file id, chunk index and chunk
+ * plaintext under a key derived from the file's data key. Without the key the
+ * manifest reveals nothing about the plaintext, not even which chunks are equal.
+ */
+final class ChunkManifest {
+
+    static final String EXTENSION = ".manifest";
+
+    private static final byte[] MAGIC = "FENCMNFT".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int FILE_ID_LENGTH = 16;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int FINGERPRINT_LENGTH = 32;
+    private static final byte[] MAC_KEY_LABEL = "FENCRYPT chunk manifest".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] fileId;
+    private final int chunkSize;
+    private final long plaintextLength;
+    private final byte[] fingerprints;
+
+    /**
+     * Creates an empty manifest for a file; fill it with {@link #record}.
+     *
+     * @param header the header of the encrypted file
+     * @param plaintextLength the size of the plaintext
+     * @throws IllegalArgumentException if the file has too many chunks to keep a manifest for
+     */
+    ChunkManifest(ContainerHeader header, long plaintextLength) {
+        this(header.getFileId(), header.getChunkSize(), plaintextLength,
+                new byte[fingerprintsLength(header.chunkCount(plaintextLength))]);
+    }
+
+    private ChunkManifest(byte[] fileId, int chunkSize, long plaintextLength, byte[] fingerprints) {
+        this.fileId = fileId;
+        this.chunkSize = chunkSize;
+        this.plaintextLength = plaintextLength;
+        this.fingerprints = fingerprints;
+    }
+
+    private static int fingerprintsLength(long chunkCount) {
+        if (chunkCount > Integer.MAX_VALUE / FINGERPRINT_LENGTH) {
+            throw new IllegalArgumentException("Too many chunks for incremental encryption; use a larger chunk size");
+        }
+        return (int) chunkCount * FINGERPRINT_LENGTH;
+    }
+
+    /**
+     * @param encryptedFile the encrypted file
+     * @return where the manifest of that file is kept
+     */
+    static Path pathFor(Path encryptedFile) {
+        return encryptedFile.resolveSibling(encryptedFile.getFileName() + EXTENSION);
+    }
+
+    /**
+     * Reads a manifest.
+     *
+     * @param file the manifest file
+     * @return the manifest, or null if there is none or it cannot be used
+     * @throws IOException if the file exists but cannot be read
+     */
+    static ChunkManifest read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readUnsignedByte() != VERSION) {
+                return null;
+            }
+
+            byte[] fileId = new byte[FILE_ID_LENGTH];
+            in.readFully(fileId);
+            int chunkSize = in.readInt();
+            long plaintextLength = in.readLong();
+            if (chunkSize <= 0 || plaintextLength < 0) {
+                return null;
+            }
+            long count = Math.max(1, (plaintextLength + chunkSize - 1) / chunkSize);
+            if (count * FINGERPRINT_LENGTH > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            byte[] fingerprints = new byte[(int) count * FINGERPRINT_LENGTH];
+            in.readFully(fingerprints);
+            if (in.read() != -1) {
+                return null;
+            }
+            return new ChunkManifest(fileId, chunkSize, plaintextLength, fingerprints);
+        } catch (NoSuchFileException | EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the manifest to a temporary file and moves it into place, so a
+     * crash never leaves a half-written manifest behind.
+     *
+     * @param file the manifest file
+     * @throws IOException if writing fails
+     */
+    void write(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.write(fileId);
+            out.writeInt(chunkSize);
+            out.writeLong(plaintextLength);
+            out.write(fingerprints);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param header the header of the encrypted file
+     * @return true if this manifest was written for that file
+     */
+    boolean describes(ContainerHeader header) {
+        return chunkSize == header.getChunkSize() && MessageDigest.isEqual(fileId, header.getFileId());
+    }
+
+    long getPlaintextLength() {
+        return plaintextLength;
+    }
+
+    /**
+     * @param index the chunk index
+     * @param fingerprint a fingerprint from {@link #fingerprint}
+     * @return true if the chunk had that fingerprint when the manifest was written
+     */
+    boolean matches(long index, byte[] fingerprint) {
+        int offset = (int) index * FINGERPRINT_LENGTH;
+        if (offset + FINGERPRINT_LENGTH > fingerprints.length) {
+            return false;
+        }
+        return MessageDigest.isEqual(fingerprint,
+                Arrays.copyOfRange(fingerprints, offset, offset + FINGERPRINT_LENGTH));
+    }
+
+    /**
+     * Records a chunk's fingerprint. Chunks are distinct regions, so different
+     * threads may record different chunks at the same time.
+     *
+     * @param index the chunk index
+     * @param fingerprint the chunk's fingerprint
+     */
+    void record(long index, byte[] fingerprint) {
+        System.arraycopy(fingerprint, 0, fingerprints, (int) index * FINGERPRINT_LENGTH, FINGERPRINT_LENGTH);
+    }
+
+    /**
+     * Derives the fingerprint key from the file's data key, so the two are never used for the same purpose.
+     *
+     * @param key the data key the file's chunks are encrypted with
+     * @return the fingerprint key
+     * @throws GeneralSecurityException if HMAC-SHA256 is not available
+     */
+    static SecretKey fingerprintKey(SecretKey key) throws GeneralSecurityException {
+        Mac mac = CryptoPool.mac(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(key.getEncoded(), MAC_ALGORITHM));
+        return new SecretKeySpec(mac.doFinal(MAC_KEY_LABEL), MAC_ALGORITHM);
+    }
+
+    /**
+     * @param fingerprintKey the key from {@link #fingerprintKey}
+     * @param header the header of the encrypted file
+     * @param index the chunk index
+     * @param chunk the chunk plaintext; its position is left unchanged
+     * @return the chunk's fingerprint
+     * @throws GeneralSecurityException if HMAC-SHA256 is not available
+     */
+    static byte[] fingerprint(SecretKey fingerprintKey, ContainerHeader header, long index, ByteBuffer chunk)
+            throws GeneralSecurityException {
+        Mac mac = CryptoPool.mac(MAC_ALGORITHM);
+        mac.init(fingerprintKey);
+        mac.update(header.getFileId());
+        mac.update(ByteBuffer.allocate(Long.BYTES).putLong(0, index));
+        mac.update(chunk.duplicate());
+        return mac.doFinal();
+    }
+}
@@ -0,0 +1,211 @@
+package com.fileencryptor;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Measures every available {@link CipherSuite} with every provider that
+ * implements it on the local JVM and picks the fastest for new files.
+ *
+ * Each candidate seals a chunk-sized buffer over and over under fresh nonces,
+ * first for a warm-up period so the JIT compiles the cipher and any CPU
+ * intrinsics are in use, then in several short measured rounds. The rounds of
+ * all candidates are interleaved and each candidate is rated by its best
+ * round, so a pause or a late compilation does not decide the outcome. A run
+ * takes about half a second per candidate.
+ *
+ * The winner becomes the suite of new files for the rest of the process unless
+ * {@link EncryptionOptions#cipherSuite} says otherwise; until a run has
+ * finished, new files use AES-GCM. The suite is recorded in every file, so
+ * files written with either suite decrypt anywhere.
+ */
+public final class CipherCalibration {
+
+    private static final int SAMPLE_SIZE = 1024 * 1024;
+    private static final long WARM_UP_NANOS = 200_000_000L;
+    private static final long ROUND_NANOS = 60_000_000L;
+    private static final int ROUNDS = 5;
+
+    // The fastest candidate of the last run, null until a run has finished
+    private static volatile Measurement selected;
+
+    private final List<Measurement> measurements;
+
+    private CipherCalibration(List<Measurement> measurements) {
+        this.measurements = measurements;
+    }
+
+    /**
+     * Measures all candidates and makes the fastest the suite of new files.
+     *
+     * @return the measurements, fastest first
+     * @throws IllegalStateException if no suite can be used at all
+     */
+    public static synchronized CipherCalibration run() {
+        SecureRandom random = CryptoPool.random();
+        SecretKey key = ContainerHeader.newDataKey(random);
+        ByteBuffer plain = ByteBuffer.allocate(SAMPLE_SIZE);
+        ByteBuffer sealed = ByteBuffer.allocate(SAMPLE_SIZE + ContainerHeader.TAG_LENGTH);
+        byte[] nonce = new byte[ContainerHeader.NONCE_LENGTH];
+
+        List<Measurement> candidates = new ArrayList<>();
+        for (CipherSuite suite : CipherSuite.values()) {
+            for (Provider provider : suite.providers()) {
+                try {
+                    Cipher cipher = Cipher.getInstance(suite.transformation(), provider);
+                    seal(cipher, suite, key, nonce, random, plain, sealed, WARM_UP_NANOS);
+                    candidates.add(new Measurement(suite, provider, cipher));
+                } catch (GeneralSecurityException | RuntimeException e) {
+                    // The provider claims the suite but cannot run it, so it is not a candidate
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            throw new IllegalStateException("No authenticated cipher suite is available");
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            for (Measurement candidate : candidates) {
+                try {
+                    long start = System.nanoTime();
+                    long bytes = seal(candidate.cipher, candidate.suite, key, nonce, random, plain, sealed,
+                            ROUND_NANOS);
+                    candidate.record(bytes, System.nanoTime() - start);
+                } catch (GeneralSecurityException e) {
+                    // The same calls succeeded during the warm-up; a failing round is not counted
+                }
+            }
+        }
+
+        candidates.sort(Comparator.comparingDouble(Measurement::getMegabytesPerSecond).reversed());
+        selected = candidates.get(0);
+        return new CipherCalibration(Collections.unmodifiableList(candidates));
+    }
+
+    /**
+     * Runs {@link #run} on a daemon thread, for applications that calibrate at
+     * startup without delaying it. Files encrypted before it finishes use AES-GCM.
+     */
+    public static void runInBackground() {
+        Thread thread = new Thread(() -> {
+            try {
+                run();
+            } catch (IllegalStateException e) {
+                // New files keep using AES-GCM, which then fails with a clearer error
+            }
+        }, "cipher-calibration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the suite new files are encrypted with when no suite is set in the options
+     */
+    public static CipherSuite selectedSuite() {
+        Measurement fastest = selected;
+        return fastest != null ? fastest.suite : CipherSuite.AES_GCM;
+    }
+
+    /**
+     * @param suite a suite
+     * @return the provider calibration picked for the suite, or null to use the first one that implements it
+     */
+    static Provider selectedProvider(CipherSuite suite) {
+        Measurement fastest = selected;
+        return fastest != null && fastest.suite == suite ? fastest.provider : null;
+    }
+
+    private static long seal(Cipher cipher, CipherSuite suite, SecretKey key, byte[] nonce, SecureRandom random,
+            ByteBuffer plain, ByteBuffer sealed, long durationNanos) throws GeneralSecurityException {
+        long bytes = 0;
+        long end = System.nanoTime() + durationNanos;
+        do {
+            random.nextBytes(nonce);
+            cipher.init(Cipher.ENCRYPT_MODE, key, suite.parameters(nonce));
+            plain.clear();
+            sealed.clear();
+            cipher.doFinal(plain, sealed);
+            bytes += SAMPLE_SIZE;
+        } while (System.nanoTime() < end);
+        return bytes;
+    }
+
+    /**
+     * @return one measurement per suite and provider, fastest first
+     */
+    public List<Measurement> getMeasurements() {
+        return measurements;
+    }
+
+    /**
+     * @return the measurement that was picked for new files
+     */
+    public Measurement getFastest() {
+        return measurements.get(0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Measurement measurement : measurements) {
+            text.append(measurement).append(System.lineSeparator());
+        }
+        return text.toString();
+    }
+
+    /**
+     * Throughput of one suite with one provider.
+     */
+    public static final class Measurement {
+
+        private final CipherSuite suite;
+        private final Provider provider;
+        private final Cipher cipher;
+        private double megabytesPerSecond;
+
+        Measurement(CipherSuite suite, Provider provider, Cipher cipher) {
+            this.suite = suite;
+            this.provider = provider;
+            this.cipher = cipher;
+        }
+
+        /**
+         * Keeps the fastest round.
+         */
+        void record(long bytes, long elapsedNanos) {
+            megabytesPerSecond = Math.max(megabytesPerSecond,
+                    bytes / (1024.0 * 1024.0) / (elapsedNanos / 1_000_000_000.0));
+        }
+
+        public CipherSuite getSuite() {
+            return suite;
+        }
+
+        /**
+         * @return the name of the security provider, such as "SunJCE"
+         */
+        public String getProviderName() {
+            return provider.getName();
+        }
+
+        /**
+         * @return how fast one thread encrypted in its best round, in MB per second
+         */
+        public double getMegabytesPerSecond() {
+            return megabytesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-18s %-10s %8.1f MB/s", suite, provider.getName(), getMegabytesPerSecond());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.fileencryptor;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Authenticated ciphers the chunks of the container format can be encrypted
+ * with. Every suite takes a 256-bit key, a 12-byte nonce and produces a
+ * 16-byte tag, so the layout of a file does not depend on its suite. The id is
+ * stored in the file header, and decryption picks the suite from there.
+ *
+ * Which suite is fastest depends on the machine: AES-GCM is quickest on CPUs
+ * with AES and carry-less multiply instructions, ChaCha20-Poly1305 on CPUs
+ * without them. {@link CipherCalibration} measures both on the local JVM.
+ */
+public enum CipherSuite {
+
+    /** AES-256 in Galois/Counter Mode; the suite of all files written before suites could be chosen. */
+    AES_GCM(0, "AES/GCM/NoPadding", "AES-GCM"),
+
+    /** ChaCha20 stream cipher with a Poly1305 authenticator (RFC 8439). */
+    CHACHA20_POLY1305(1, "ChaCha20-Poly1305", "ChaCha20-Poly1305");
+
+    private final int id;
+    private final String transformation;
+    private final String displayName;
+
+    CipherSuite(int id, String transformation, String displayName) {
+        this.id = id;
+        this.transformation = transformation;
+        this.displayName = displayName;
+    }
+
+    /**
+     * @param id a suite id from a file header
+     * @return the suite
+     * @throws IllegalArgumentException if the id is unknown
+     */
+    static CipherSuite fromId(int id) {
+        for (CipherSuite suite : values()) {
+            if (suite.id == id) {
+                return suite;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported cipher suite: " + id
+                + ". The file was probably written by a newer version of this application.");
+    }
+
+    /**
+     * @param name a display name such as "AES-GCM", ignoring case
+     * @return the suite
+     * @throws IllegalArgumentException if no suite has that name
+     */
+    public static CipherSuite fromName(String name) {
+        for (CipherSuite suite : values()) {
+            if (suite.displayName.equalsIgnoreCase(name)) {
+                return suite;
+            }
+        }
+        throw new IllegalArgumentException("Unknown cipher suite: " + name);
+    }
+
+    int id() {
+        return id;
+    }
+
+    String transformation() {
+        return transformation;
+    }
+
+    /**
+     * @return the installed security providers that implement this suite, in preference order
+     */
+    List<Provider> providers() {
+        Provider[] providers = Security.getProviders("Cipher." + transformation);
+        return providers == null ? Collections.emptyList() : Arrays.asList(providers);
+    }
+
+    /**
+     * @return true if this JVM can encrypt and decrypt with this suite
+     */
+    public boolean isAvailable() {
+        return !providers().isEmpty();
+    }
+
+    /**
+     * Creates a cipher for this suite from the provider chosen by calibration,
+     * or from the first provider that implements it.
+     *
+     * @return a new, uninitialised cipher
+     * @throws NoSuchAlgorithmException if no provider implements this suite
+     * @throws NoSuchPaddingException never for the suites defined here
+     */
+    Cipher newCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Provider provider = CipherCalibration.selectedProvider(this);
+        return provider != null ? Cipher.getInstance(transformation, provider) : Cipher.getInstance(transformation);
+    }
+
+    /**
+     * @param nonce the 12-byte nonce
+     * @return the parameters to initialise a cipher of this suite with
+     */
+    AlgorithmParameterSpec parameters(byte[] nonce) {
+        if (this == AES_GCM) {
+            return new GCMParameterSpec(ContainerHeader.TAG_LENGTH * 8, nonce);
+        }
+        return new IvParameterSpec(nonce);
+    }
+
+    @Override
+    public String toString() {
+        return displayName;
+    }
+}
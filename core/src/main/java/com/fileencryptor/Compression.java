@@ -0,0 +1,99 @@
+package com.fileencryptor;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Optional Deflate stage in front of the cipher.
+ *
+ * Encrypted data cannot be compressed, so compression has to happen before
+ * encryption. Whether it is worth doing is decided from a sample: the first
+ * chunk is compressed at the fastest level and compression is only used when
+ * that saves a meaningful share of it. Inputs that are already compressed,
+ * such as archives, images and video, are encrypted as they are.
+ */
+final class Compression {
+
+    /** Fastest level; text still shrinks several times while the cipher stays the bottleneck. */
+    static final int LEVEL = Deflater.BEST_SPEED;
+
+    /** Compression is used when the sample shrinks to at most this share of its size. */
+    private static final double MAX_RATIO = 0.9;
+
+    private Compression() {
+    }
+
+    /**
+     * Compresses a sample and checks whether it shrank enough.
+     *
+     * @param sample the first bytes of the input
+     * @param length how many bytes of sample are valid
+     * @return true if the input looks compressible
+     */
+    static boolean isWorthwhile(byte[] sample, int length) {
+        if (length == 0) {
+            return false;
+        }
+
+        Deflater deflater = new Deflater(LEVEL);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[8 * 1024];
+            long limit = (long) (length * MAX_RATIO);
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(buffer);
+                if (compressed > limit) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Wraps plaintext in a compressing stream. Plaintext bytes are reported to
+     * the tracker as they are consumed, since the compressed size is unknown up front.
+     *
+     * @param in the plaintext
+     * @param deflater the deflater to use; the caller ends it
+     * @param bufferSize size of the compressed output buffer
+     * @param tracker receives the plaintext bytes read
+     * @return the compressed stream
+     */
+    static InputStream deflate(InputStream in, Deflater deflater, int bufferSize, ProgressTracker tracker) {
+        InputStream counted = new FilterInputStream(in) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    tracker.advance(n);
+                }
+                return n;
+            }
+        };
+        return new DeflaterInputStream(counted, deflater, bufferSize);
+    }
+
+    /**
+     * Wraps the plaintext output in a decompressing stream. Call
+     * {@link InflaterOutputStream#finish()} once all data has been written.
+     *
+     * @param out receives the plaintext; not closed
+     * @param inflater the inflater to use; the caller ends it
+     * @param bufferSize size of the plaintext output buffer
+     * @return the decompressing stream
+     */
+    static InflaterOutputStream inflate(OutputStream out, Inflater inflater, int bufferSize) {
+        return new InflaterOutputStream(out, inflater, bufferSize);
+    }
+}
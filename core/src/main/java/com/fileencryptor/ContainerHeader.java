@@ -0,0 +1,465 @@
+package com.fileencryptor;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Header of the chunked container format.
+ *
+ * <pre>
+ * offset  size  field
+ *      0     8  magic "FENCRYPT"
+ *      8     1  format version
+ *      9     1  flags in the low four bits, see {@link #FLAG_DEFLATE};
+ *               cipher suite id in the high four bits, see {@link CipherSuite}
+ *     10     4  plaintext chunk size, big-endian
+ *     14    16  random file id
+ *     30    12  key wrap nonce (version 3)
+ *     42    32  data key, encrypted under the password key (version 3)
+ *     74    16  key wrap tag (version 3)
+ * </pre>
+ *
+ * The chunks are encrypted under a random data key generated for each file.
+ * The header holds that key encrypted with AES-GCM under the key derived from
+ * the password, with the first 30 header bytes as associated data. Decryption
+ * unwraps it before touching any chunk, so a wrong password is rejected after
+ * reading the header, before any output has been written, and the header
+ * fields are authenticated along the way. Because the wrapped key has a fixed
+ * size, changing the password only rewrites those 60 bytes in place; see
+ * {@link #rewrap}.
+ *
+ * Older files encrypt their chunks under the password key itself. Version 2
+ * files carry a key check instead of a wrapped key: a 12-byte nonce and a
+ * GCM tag over the first 30 header bytes with no ciphertext. Version 1 files
+ * have neither; for them a wrong key shows up as the first chunk failing
+ * authentication. Both still decrypt, but their password cannot be changed
+ * without encrypting them again.
+ *
+ * The header is followed by one record per chunk: a 12-byte nonce, the
+ * ciphertext and a 16-byte authentication tag, sealed with the file's cipher
+ * suite. AES-GCM has id 0, so files written before the suite could be chosen
+ * read as AES-GCM files, and AES-GCM files are still readable by them. Older
+ * versions reject any other suite as an unknown flag. Every chunk except the last
+ * holds exactly {@code chunkSize} plaintext bytes, so the position of any
+ * chunk can be computed without reading the ones before it. The file id,
+ * the chunk index and a last-chunk marker are authenticated with each chunk,
+ * which stops chunks from being reordered, truncated or moved between files.
+ * A non-zero flags byte is authenticated with each chunk as well, so neither
+ * the flags nor the suite can be changed without the file failing to decrypt.
+ * The data key is always wrapped with AES-GCM.
+ *
+ * When {@link #FLAG_DEFLATE} is set, the chunks hold the Deflate-compressed
+ * plaintext rather than the plaintext itself. Chunk boundaries then no longer
+ * line up with plaintext offsets, so such files are only read in order.
+ */
+final class ContainerHeader {
+
+    static final byte[] MAGIC = "FENCRYPT".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 3;
+    private static final int VERSION_WITH_KEY_CHECK = 2;
+    private static final int VERSION_WITHOUT_KEY_CHECK = 1;
+    private static final int FIELDS_LENGTH = 30;
+
+    /** The chunks hold a zlib stream of the plaintext. */
+    static final int FLAG_DEFLATE = 0x01;
+    private static final int KNOWN_FLAGS = FLAG_DEFLATE;
+    private static final int SUITE_SHIFT = 4;
+
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024; // 1MB chunks
+    static final int MIN_CHUNK_SIZE = 4 * 1024;
+    static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    static final int NONCE_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+    static final int CHUNK_OVERHEAD = NONCE_LENGTH + TAG_LENGTH;
+    private static final int KEY_CHECK_LENGTH = NONCE_LENGTH + TAG_LENGTH;
+    private static final int DATA_KEY_LENGTH = 32;
+    static final int WRAPPED_KEY_LENGTH = NONCE_LENGTH + DATA_KEY_LENGTH + TAG_LENGTH;
+    /** Length of a header written by this version. */
+    static final int CURRENT_LENGTH = FIELDS_LENGTH + WRAPPED_KEY_LENGTH;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    static final int FILE_ID_LENGTH = 16;
+    private static final int AAD_LENGTH = FILE_ID_LENGTH + 8 + 1;
+    private static final int AAD_FLAGS_LENGTH = 1;
+
+    private final int version;
+    private final int flags;
+    private final CipherSuite suite;
+    private final int chunkSize;
+    private final byte[] fileId;
+    private final byte[] keyBlock;
+
+    private ContainerHeader(int version, int flags, CipherSuite suite, int chunkSize, byte[] fileId,
+            byte[] keyBlock) {
+        this.version = version;
+        this.flags = flags;
+        this.suite = suite;
+        this.chunkSize = chunkSize;
+        this.fileId = fileId;
+        this.keyBlock = keyBlock;
+    }
+
+    /**
+     * Generates a random key to encrypt the chunks of a new file with.
+     *
+     * @param random the source of randomness
+     * @return the data key
+     */
+    static SecretKey newDataKey(SecureRandom random) {
+        byte[] bytes = new byte[DATA_KEY_LENGTH];
+        random.nextBytes(bytes);
+        return new SecretKeySpec(bytes, "AES");
+    }
+
+    /**
+     * Creates a header for a new AES-GCM file with a fresh random file id.
+     *
+     * @param chunkSize the plaintext chunk size
+     * @param dataKey the key the chunks are encrypted with, from {@link #newDataKey}
+     * @param key the key derived from the password, which the data key is wrapped with
+     * @param random the source of randomness for the file id and key wrap nonce
+     * @return the new header
+     * @throws GeneralSecurityException if the data key cannot be wrapped
+     */
+    static ContainerHeader create(int chunkSize, SecretKey dataKey, SecretKey key, SecureRandom random)
+            throws GeneralSecurityException {
+        return create(chunkSize, 0, CipherSuite.AES_GCM, dataKey, key, random);
+    }
+
+    /**
+     * Creates a header with flags and a cipher suite for a new file with a fresh random file id.
+     *
+     * @param chunkSize the plaintext chunk size
+     * @param flags a combination of the FLAG_ constants
+     * @param suite the cipher suite the chunks are sealed with
+     * @param dataKey the key the chunks are encrypted with, from {@link #newDataKey}
+     * @param key the key derived from the password, which the data key is wrapped with
+     * @param random the source of randomness for the file id and key wrap nonce
+     * @return the new header
+     * @throws GeneralSecurityException if the data key cannot be wrapped
+     */
+    static ContainerHeader create(int chunkSize, int flags, CipherSuite suite, SecretKey dataKey, SecretKey key,
+            SecureRandom random) throws GeneralSecurityException {
+        checkChunkSize(chunkSize);
+        byte[] fileId = new byte[FILE_ID_LENGTH];
+        random.nextBytes(fileId);
+        return wrap(flags, suite, chunkSize, fileId, dataKey, key, random);
+    }
+
+    private static ContainerHeader wrap(int flags, CipherSuite suite, int chunkSize, byte[] fileId,
+            SecretKey dataKey, SecretKey key, SecureRandom random) throws GeneralSecurityException {
+        byte[] fields = new ContainerHeader(VERSION, flags, suite, chunkSize, fileId, null).fields();
+        return new ContainerHeader(VERSION, flags, suite, chunkSize, fileId,
+                wrapDataKey(dataKey, key, fields, random));
+    }
+
+    /**
+     * Encrypts a data key under another key with AES-GCM.
+     *
+     * @param dataKey the key to wrap, from {@link #newDataKey}
+     * @param key the key to wrap it with
+     * @param associatedData bytes that are authenticated along with the key, usually the fields in front of it
+     * @param random the source of randomness for the nonce
+     * @return the nonce, the encrypted key and the tag, {@link #WRAPPED_KEY_LENGTH} bytes in all
+     * @throws GeneralSecurityException if the cipher fails
+     */
+    static byte[] wrapDataKey(SecretKey dataKey, SecretKey key, byte[] associatedData, SecureRandom random)
+            throws GeneralSecurityException {
+        byte[] wrapped = new byte[WRAPPED_KEY_LENGTH];
+        random.nextBytes(wrapped);
+
+        Cipher cipher = CryptoPool.cipher(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key,
+                new GCMParameterSpec(TAG_LENGTH * 8, wrapped, 0, NONCE_LENGTH));
+        cipher.updateAAD(associatedData);
+        cipher.doFinal(dataKey.getEncoded(), 0, DATA_KEY_LENGTH, wrapped, NONCE_LENGTH);
+        return wrapped;
+    }
+
+    /**
+     * Decrypts a data key wrapped by {@link #wrapDataKey}.
+     *
+     * @param wrapped the nonce, encrypted key and tag
+     * @param key the key it was wrapped with
+     * @param associatedData the bytes that were authenticated along with it
+     * @return the data key
+     * @throws AEADBadTagException if the key is wrong or the wrapped key or associated data has been altered
+     * @throws GeneralSecurityException if the cipher fails
+     */
+    static SecretKey unwrapDataKey(byte[] wrapped, SecretKey key, byte[] associatedData)
+            throws GeneralSecurityException {
+        return new SecretKeySpec(openKeyBlock(wrapped, key, associatedData), "AES");
+    }
+
+    /**
+     * Authenticates a key block, a wrapped key or a key check, and returns what it encrypts.
+     */
+    private static byte[] openKeyBlock(byte[] block, SecretKey key, byte[] associatedData)
+            throws GeneralSecurityException {
+        Cipher cipher = CryptoPool.cipher(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, block, 0, NONCE_LENGTH));
+        cipher.updateAAD(associatedData);
+        try {
+            return cipher.doFinal(block, NONCE_LENGTH, block.length - NONCE_LENGTH);
+        } catch (AEADBadTagException e) {
+            throw new AEADBadTagException("Incorrect key or corrupted header");
+        }
+    }
+
+    /**
+     * Checks whether the given leading bytes of a file carry the container magic.
+     * Legacy CBC files start with a random IV instead.
+     *
+     * @param head the first bytes of the file
+     * @param length how many bytes of head are valid
+     * @return true if the file uses the chunked format
+     */
+    static boolean hasMagic(byte[] head, int length) {
+        return length >= MAGIC.length
+                && Arrays.equals(Arrays.copyOf(head, MAGIC.length), MAGIC);
+    }
+
+    /**
+     * Reads and validates a header.
+     *
+     * @param in the input, positioned at the start of the file
+     * @return the parsed header
+     * @throws IOException if reading fails
+     * @throws IllegalArgumentException if the header is not valid
+     */
+    static ContainerHeader read(DataInput in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IllegalArgumentException("Input file is not in the chunked encryption format.");
+        }
+
+        int version = in.readUnsignedByte();
+        if (version != VERSION && version != VERSION_WITH_KEY_CHECK && version != VERSION_WITHOUT_KEY_CHECK) {
+            throw new IllegalArgumentException("Unsupported encrypted file version: " + version
+                    + ". It was probably written by a newer version of this application.");
+        }
+
+        int flagsByte = in.readUnsignedByte();
+        CipherSuite suite = CipherSuite.fromId(flagsByte >>> SUITE_SHIFT);
+        int flags = flagsByte & ((1 << SUITE_SHIFT) - 1);
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            throw new IllegalArgumentException("Unsupported encrypted file flags: " + flags
+                    + ". It was probably written by a newer version of this application.");
+        }
+        int chunkSize = in.readInt();
+        checkChunkSize(chunkSize);
+
+        byte[] fileId = new byte[FILE_ID_LENGTH];
+        in.readFully(fileId);
+
+        byte[] keyBlock = null;
+        if (version == VERSION) {
+            keyBlock = new byte[WRAPPED_KEY_LENGTH];
+        } else if (version == VERSION_WITH_KEY_CHECK) {
+            keyBlock = new byte[KEY_CHECK_LENGTH];
+        }
+        if (keyBlock != null) {
+            in.readFully(keyBlock);
+        }
+        return new ContainerHeader(version, flags, suite, chunkSize, fileId, keyBlock);
+    }
+
+    /**
+     * Finds the key the chunks are encrypted with, checking the password key
+     * without decrypting any chunk. The tag comparison takes the same time
+     * however many bytes match. For files without a wrapped data key the
+     * chunks use the password key itself, which is returned after the key
+     * check if the file has one.
+     *
+     * @param key the key derived from the password
+     * @return the key to encrypt and decrypt this file's chunks with
+     * @throws AEADBadTagException if the key is wrong or the header has been altered
+     * @throws GeneralSecurityException if the cipher fails
+     */
+    SecretKey unwrapKey(SecretKey key) throws GeneralSecurityException {
+        if (keyBlock == null) {
+            return key;
+        }
+        byte[] dataKey = openKeyBlock(keyBlock, key, fields());
+        return hasWrappedKey() ? new SecretKeySpec(dataKey, "AES") : key;
+    }
+
+    /**
+     * Wraps this file's data key under a new password key. The result has the
+     * same length as this header, so it can be written over it in place.
+     *
+     * @param oldKey the key derived from the current password
+     * @param newKey the key derived from the new password
+     * @param random the source of randomness for the key wrap nonce
+     * @return the header to write instead of this one
+     * @throws AEADBadTagException if the old key is wrong or the header has been altered
+     * @throws GeneralSecurityException if the cipher fails
+     * @throws IllegalArgumentException if the file has no wrapped data key
+     */
+    ContainerHeader rewrap(SecretKey oldKey, SecretKey newKey, SecureRandom random)
+            throws GeneralSecurityException {
+        if (!hasWrappedKey()) {
+            throw new IllegalArgumentException("File uses encrypted file version " + version
+                    + ", which has no wrapped data key. Decrypt it and encrypt it again to change its key.");
+        }
+        return wrap(flags, suite, chunkSize, fileId, unwrapKey(oldKey), newKey, random);
+    }
+
+    /**
+     * @return true if the chunks are encrypted under a data key stored in this header,
+     *         so the password can be changed by rewriting the header alone
+     */
+    boolean hasWrappedKey() {
+        return version == VERSION;
+    }
+
+    /**
+     * Writes this header.
+     *
+     * @param out the output, positioned at the start of the file
+     * @throws IOException if writing fails
+     */
+    void write(DataOutput out) throws IOException {
+        out.write(fields());
+        if (keyBlock != null) {
+            out.write(keyBlock);
+        }
+    }
+
+    /**
+     * @return the header fields before the key block, which the key block authenticates
+     */
+    private byte[] fields() {
+        return ByteBuffer.allocate(FIELDS_LENGTH)
+                .put(MAGIC)
+                .put((byte) version)
+                .put((byte) flagsByte())
+                .putInt(chunkSize)
+                .put(fileId)
+                .array();
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return the random id that ties every chunk to this file
+     */
+    byte[] getFileId() {
+        return fileId.clone();
+    }
+
+    /**
+     * @return the cipher suite the chunks are sealed with
+     */
+    CipherSuite getCipherSuite() {
+        return suite;
+    }
+
+    /**
+     * @return true if the chunks hold compressed plaintext
+     */
+    boolean isCompressed() {
+        return (flags & FLAG_DEFLATE) != 0;
+    }
+
+    /**
+     * @return the number of bytes taken by the header, where the first chunk record starts
+     */
+    int length() {
+        return keyBlock != null ? FIELDS_LENGTH + keyBlock.length : FIELDS_LENGTH;
+    }
+
+    /**
+     * @param plaintextLength the size of the original file
+     * @return how many chunks the file is split into; an empty file still has one chunk
+     */
+    long chunkCount(long plaintextLength) {
+        return Math.max(1, (plaintextLength + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * @param encryptedLength the size of the encrypted file
+     * @return how many chunks are stored in the file
+     * @throws IllegalArgumentException if the size cannot belong to a valid file
+     */
+    long chunkCountFromEncrypted(long encryptedLength) {
+        long payload = encryptedLength - length();
+        long recordLength = (long) chunkSize + CHUNK_OVERHEAD;
+        long count = (payload + recordLength - 1) / recordLength;
+        if (count < 1 || payload - (count - 1) * recordLength < CHUNK_OVERHEAD) {
+            throw new IllegalArgumentException("Encrypted file is truncated or corrupted.");
+        }
+        return count;
+    }
+
+    /**
+     * @param encryptedLength the size of the encrypted file
+     * @return the size of the original file
+     */
+    long plaintextLength(long encryptedLength) {
+        return encryptedLength - length() - chunkCountFromEncrypted(encryptedLength) * CHUNK_OVERHEAD;
+    }
+
+    /**
+     * @param plaintextLength the size of the original file
+     * @return the size of the encrypted file
+     */
+    long encryptedLength(long plaintextLength) {
+        return length() + plaintextLength + chunkCount(plaintextLength) * CHUNK_OVERHEAD;
+    }
+
+    /**
+     * @param index the chunk index
+     * @return the file offset of the chunk's record
+     */
+    long recordOffset(long index) {
+        return length() + index * ((long) chunkSize + CHUNK_OVERHEAD);
+    }
+
+    /**
+     * Builds the additional authenticated data for one chunk. The flags byte is
+     * only appended when non-zero, which keeps files without flags readable.
+     *
+     * @param index the chunk index
+     * @param last whether this is the final chunk of the file
+     * @return the AAD bytes
+     */
+    byte[] associatedData(long index, boolean last) {
+        int flagsByte = flagsByte();
+        ByteBuffer aad = ByteBuffer.allocate(flagsByte != 0 ? AAD_LENGTH + AAD_FLAGS_LENGTH : AAD_LENGTH)
+                .put(fileId)
+                .putLong(index)
+                .put((byte) (last ? 1 : 0));
+        if (flagsByte != 0) {
+            aad.put((byte) flagsByte);
+        }
+        return aad.array();
+    }
+
+    private int flagsByte() {
+        return suite.id() << SUITE_SHIFT | flags;
+    }
+
+    private static void checkChunkSize(int chunkSize) {
+        if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between " + MIN_CHUNK_SIZE
+                    + " and " + MAX_CHUNK_SIZE + " bytes, got " + chunkSize);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.fileencryptor;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-thread instances of the JCA objects used on every operation.
+ *
+ * Looking up a provider and building a {@link Cipher} or
+ * {@link SecretKeyFactory} costs more than encrypting a small file, and a
+ * shared {@link SecureRandom} is a point of contention between threads. Each
+ * thread therefore keeps one instance of each and reinitialises it per use.
+ * An instance must not be held across calls that may run other work on the
+ * same thread, such as joining a fork/join task.
+ */
+final class CryptoPool {
+
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+    private static final ThreadLocal<Map<String, Cipher>> CIPHERS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, SecretKeyFactory>> KEY_FACTORIES = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, Mac>> MACS = ThreadLocal.withInitial(HashMap::new);
+
+    private CryptoPool() {
+    }
+
+    /**
+     * @return this thread's random generator
+     */
+    static SecureRandom random() {
+        return RANDOM.get();
+    }
+
+    /**
+     * @param transformation the cipher transformation, such as "AES/CBC/PKCS5Padding"
+     * @return this thread's cipher for the transformation; callers must initialise it
+     * @throws NoSuchAlgorithmException if the transformation is not available
+     * @throws NoSuchPaddingException if the padding is not available
+     */
+    static Cipher cipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Map<String, Cipher> ciphers = CIPHERS.get();
+        Cipher cipher = ciphers.get(transformation);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            ciphers.put(transformation, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * @param algorithm the MAC algorithm, such as "HmacSHA256"
+     * @return this thread's MAC for the algorithm; callers must initialise it
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     */
+    static Mac mac(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, Mac> macs = MACS.get();
+        Mac mac = macs.get(algorithm);
+        if (mac == null) {
+            mac = Mac.getInstance(algorithm);
+            macs.put(algorithm, mac);
+        }
+        return mac;
+    }
+
+    /**
+     * @param algorithm the key derivation algorithm, such as "PBKDF2WithHmacSHA256"
+     * @return this thread's key factory for the algorithm
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     */
+    static SecretKeyFactory keyFactory(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, SecretKeyFactory> factories = KEY_FACTORIES.get();
+        SecretKeyFactory factory = factories.get(algorithm);
+        if (factory == null) {
+            factory = SecretKeyFactory.getInstance(algorithm);
+            factories.put(algorithm, factory);
+        }
+        return factory;
+    }
+}
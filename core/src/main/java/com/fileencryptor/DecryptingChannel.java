@@ -0,0 +1,156 @@
+package com.fileencryptor;
+
+import javax.crypto.SecretKey;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+
+/**
+ * Read-only view of the plaintext of a chunked file.
+ *
+ * Positions refer to the decrypted content. A read only decrypts the chunks
+ * that overlap the requested bytes, and the most recently decrypted chunk is
+ * kept so sequential reads within it are free. Every chunk is authenticated
+ * before any of its bytes are returned.
+ */
+final class DecryptingChannel implements SeekableByteChannel {
+
+    private final FileChannel in;
+    private final ContainerHeader header;
+    private final SecretKey key;
+    private final long encryptedLength;
+    private final long size;
+    private final ChunkCodec codec = new ChunkCodec();
+
+    private long position;
+    private long cachedIndex = -1;
+    private ByteBuffer cachedChunk;
+
+    private DecryptingChannel(FileChannel in, ContainerHeader header, SecretKey key) throws IOException {
+        this.in = in;
+        this.header = header;
+        this.key = key;
+        this.encryptedLength = in.size();
+        this.size = header.plaintextLength(encryptedLength);
+    }
+
+    /**
+     * Opens an encrypted file for random-access reading.
+     *
+     * @param file the encrypted file
+     * @param key the AES key
+     * @return the channel, positioned at the start of the plaintext
+     * @throws IOException if the file cannot be opened
+     * @throws IllegalArgumentException if the file is not in the chunked format or is compressed
+     * @throws GeneralSecurityException if the key is wrong
+     */
+    static DecryptingChannel open(Path file, SecretKey key) throws IOException, GeneralSecurityException {
+        FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ContainerHeader header = ContainerHeader.read(new DataInputStream(Channels.newInputStream(in)));
+            if (header.isCompressed()) {
+                throw new IllegalArgumentException("Random access is not supported for compressed files. "
+                        + "Decrypt the whole file instead.");
+            }
+            return new DecryptingChannel(in, header, header.unwrapKey(key));
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            long index = position / header.getChunkSize();
+            ByteBuffer chunk = chunk(index);
+
+            int offsetInChunk = (int) (position - index * header.getChunkSize());
+            int count = Math.min(dst.remaining(), chunk.limit() - offsetInChunk);
+
+            ByteBuffer slice = chunk.duplicate();
+            slice.position(offsetInChunk).limit(offsetInChunk + count);
+            dst.put(slice);
+
+            position += count;
+            total += count;
+        }
+        return total;
+    }
+
+    private ByteBuffer chunk(long index) throws IOException {
+        if (index != cachedIndex) {
+            try {
+                cachedChunk = codec.decryptChunk(in, header, key, index, encryptedLength);
+            } catch (GeneralSecurityException e) {
+                cachedIndex = -1;
+                throw new IOException("Decryption failed: " + e.getMessage()
+                        + ". Make sure the file is properly encrypted and you are using the correct key.", e);
+            }
+            cachedIndex = index;
+        }
+        return cachedChunk;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Position must not be negative");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return in.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!in.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
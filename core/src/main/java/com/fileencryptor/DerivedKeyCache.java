@@ -0,0 +1,188 @@
+package com.fileencryptor;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of password-derived keys, so repeated operations with the
+ * same password skip the expensive key derivation.
+ *
+ * Entries are looked up by an HMAC-SHA256 of (password, salt, iterations)
+ * under a random per-cache key, so the map never holds the password itself.
+ * The cache keeps at most {@code maxEntries} keys, least recently used
+ * first out, and forgets each key after {@code ttl}. Key material of
+ * evicted or expired entries is overwritten with zeros.
+ */
+public final class DerivedKeyCache {
+
+    private static final String ALGORITHM = "AES";
+    private static final String DIGEST_ALGORITHM = "HmacSHA256";
+
+    /** Produces raw key bytes on a cache miss. */
+    public interface KeyDerivation {
+        byte[] derive() throws GeneralSecurityException;
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final Mac digest;
+    private final Map<ByteBuffer, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxEntries the most keys kept at any time
+     * @param ttl how long a derived key may be reused
+     */
+    public DerivedKeyCache(int maxEntries, Duration ttl) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Key cache must hold at least one entry");
+        }
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("Key cache TTL must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttl.toNanos();
+
+        byte[] digestKey = new byte[32];
+        new SecureRandom().nextBytes(digestKey);
+        try {
+            digest = Mac.getInstance(DIGEST_ALGORITHM);
+            digest.init(new SecretKeySpec(digestKey, DIGEST_ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available: " + e.getMessage(), e);
+        } finally {
+            Arrays.fill(digestKey, (byte) 0);
+        }
+
+        entries = new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+                if (size() > DerivedKeyCache.this.maxEntries) {
+                    eldest.getValue().destroy();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached key for these inputs, deriving and caching it on a miss.
+     *
+     * @param password the password
+     * @param salt the KDF salt
+     * @param iterations the KDF iteration count
+     * @param derivation computes the key bytes if they are not cached
+     * @return the AES key
+     * @throws GeneralSecurityException if the derivation fails
+     */
+    public SecretKey get(String password, byte[] salt, int iterations, KeyDerivation derivation)
+            throws GeneralSecurityException {
+        ByteBuffer lookupKey = lookupKey(password, salt, iterations);
+
+        synchronized (this) {
+            Entry entry = entries.get(lookupKey);
+            if (entry != null && !entry.isExpired()) {
+                hits.incrementAndGet();
+                return new SecretKeySpec(entry.keyBytes, ALGORITHM);
+            }
+            if (entry != null) {
+                entries.remove(lookupKey).destroy();
+            }
+        }
+
+        // Derive outside the lock so other passwords are not held up
+        misses.incrementAndGet();
+        byte[] keyBytes = derivation.derive();
+        try {
+            synchronized (this) {
+                removeExpired();
+                Entry previous = entries.put(lookupKey, new Entry(keyBytes.clone()));
+                if (previous != null) {
+                    previous.destroy();
+                }
+            }
+            return new SecretKeySpec(keyBytes, ALGORITHM);
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Drops every cached key and zeroes its key material.
+     */
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            entry.destroy();
+        }
+        entries.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private synchronized ByteBuffer lookupKey(String password, byte[] salt, int iterations) {
+        ByteBuffer passwordBytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+        try {
+            digest.update(ByteBuffer.allocate(8).putInt(salt.length).putInt(iterations).array());
+            digest.update(salt);
+            digest.update(passwordBytes.duplicate());
+            return ByteBuffer.wrap(digest.doFinal());
+        } finally {
+            if (passwordBytes.hasArray()) {
+                Arrays.fill(passwordBytes.array(), (byte) 0);
+            }
+        }
+    }
+
+    private void removeExpired() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.isExpired()) {
+                entry.destroy();
+                iterator.remove();
+            }
+        }
+    }
+
+    private final class Entry {
+
+        final byte[] keyBytes;
+        final long createdAt = System.nanoTime();
+
+        Entry(byte[] keyBytes) {
+            this.keyBytes = keyBytes;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - createdAt > ttlNanos;
+        }
+
+        void destroy() {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+}
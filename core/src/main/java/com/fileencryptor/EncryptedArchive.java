@@ -0,0 +1,421 @@
+package com.fileencryptor;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Packs many files into one encrypted archive with an encrypted index.
+ *
+ * <pre>
+ * offset  size  field
+ *      0     8  magic "FENCARCH"
+ *      8     1  archive format version
+ *      9     8  index offset, big-endian
+ *     17     8  index length, big-endian
+ *     25    16  file id of the index container
+ *     41    60  archive key, wrapped under the password key (nonce, encrypted key, tag)
+ *    101        entries, then the index
+ * </pre>
+ *
+ * Every entry and the index are stored as a chunked container (see
+ * {@link ContainerHeader}) whose data key is wrapped under the random archive
+ * key rather than the password key, so the password is derived once per
+ * archive and every entry still has its own data key. The index lists each
+ * entry's name, size, offset and file id and is compressed before it is
+ * encrypted. The first 41 bytes are authenticated when the archive key is
+ * unwrapped, and each entry's file id is checked against the index, so entries
+ * cannot be swapped, moved or cut off without the archive failing to open.
+ *
+ * Listing reads the header and the index only. Extracting an entry then seeks
+ * straight to its container and decrypts its chunks in parallel. The size of
+ * every entry is known before packing starts, so each one gets a fixed place in
+ * the archive and entries are packed in parallel, each with its chunks spread
+ * over the same pool.
+ */
+final class EncryptedArchive {
+
+    static final String EXTENSION = ".archive";
+
+    private static final byte[] MAGIC = "FENCARCH".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int FIELDS_LENGTH = MAGIC.length + 1 + 8 + 8 + ContainerHeader.FILE_ID_LENGTH;
+    private static final int HEADER_LENGTH = FIELDS_LENGTH + ContainerHeader.WRAPPED_KEY_LENGTH;
+
+    private final FileChannel channel;
+    private final SecretKey archiveKey;
+    private final List<ArchiveEntry> entries;
+
+    private EncryptedArchive(FileChannel channel, SecretKey archiveKey, List<ArchiveEntry> entries) {
+        this.channel = channel;
+        this.archiveKey = archiveKey;
+        this.entries = entries;
+    }
+
+    /**
+     * Packs every file below a directory into a new archive. A file that
+     * cannot be read fails the whole archive, which is then deleted.
+     *
+     * @param directory the folder to pack
+     * @param archiveFile the archive to create; skipped if it lies inside the folder
+     * @param key the derived AES key
+     * @param options chunk size, parallelism, progress and cancellation
+     * @return the number and total size of the packed files
+     * @throws Exception if a file cannot be read or the archive cannot be written
+     */
+    static BatchResult create(Path directory, Path archiveFile, SecretKey key, EncryptionOptions options)
+            throws Exception {
+        long start = System.nanoTime();
+        Path archive = archiveFile.toAbsolutePath().normalize();
+        List<Path> files = BatchEncryptor.listFiles(directory,
+                file -> !file.toAbsolutePath().normalize().equals(archive));
+
+        SecretKey archiveKey = ContainerHeader.newDataKey(CryptoPool.random());
+        List<ArchiveEntry> entries = new ArrayList<>(files.size());
+        List<ContainerHeader> headers = new ArrayList<>(files.size());
+        List<SecretKey> dataKeys = new ArrayList<>(files.size());
+        long offset = HEADER_LENGTH;
+        long totalBytes = 0;
+        for (Path file : files) {
+            long size = Files.size(file);
+            SecretKey dataKey = ContainerHeader.newDataKey(CryptoPool.random());
+            ContainerHeader header = ContainerHeader.create(options.getChunkSize(), 0, options.getCipherSuite(),
+                    dataKey, archiveKey, CryptoPool.random());
+            entries.add(new ArchiveEntry(entryName(directory, file), size, offset, header.getFileId()));
+            headers.add(header);
+            dataKeys.add(dataKey);
+            offset += header.encryptedLength(size);
+            totalBytes += size;
+        }
+
+        ProgressTracker tracker = ProgressTracker.create(options, totalBytes);
+        try (FileChannel out = FileChannel.open(archiveFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (!entries.isEmpty()) {
+                ParallelChunkCipher.run(new ParallelChunkCipher.ChunkRange(0, entries.size(), index -> {
+                    int i = (int) index;
+                    packEntry(files.get(i), out, entries.get(i), headers.get(i), dataKeys.get(i), options, tracker);
+                }), options.getParallelism());
+            }
+
+            long indexOffset = offset;
+            out.position(indexOffset);
+            StreamChunkCipher.encrypt(new ByteArrayInputStream(writeIndex(entries)), Channels.newOutputStream(out),
+                    archiveKey, options, ProgressTracker.create(EncryptionOptions.defaults(), -1), true);
+            long indexLength = out.size() - indexOffset;
+            out.position(indexOffset);
+            ContainerHeader indexHeader = ContainerHeader.read(new DataInputStream(Channels.newInputStream(out)));
+
+            byte[] fields = fields(indexOffset, indexLength, indexHeader.getFileId());
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH)
+                    .put(fields)
+                    .put(ContainerHeader.wrapDataKey(archiveKey, key, fields, CryptoPool.random()));
+            header.flip();
+            ChunkCodec.writeFully(out, header, 0);
+        } catch (Exception e) {
+            Files.deleteIfExists(archiveFile);
+            throw e;
+        }
+        return new BatchResult(entries.size(), totalBytes, System.nanoTime() - start, Collections.emptyMap());
+    }
+
+    private static void packEntry(Path file, FileChannel out, ArchiveEntry entry, ContainerHeader header,
+            SecretKey dataKey, EncryptionOptions options, ProgressTracker tracker) throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(header.length());
+        header.write(new DataOutputStream(headerBytes));
+        ChunkCodec.writeFully(out, ByteBuffer.wrap(headerBytes.toByteArray()), entry.getOffset());
+
+        long size = entry.getSize();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            // Runs on the pool that packs the entries, so the chunks of a large file are spread out too
+            new ParallelChunkCipher.ChunkRange(0, header.chunkCount(size), index -> {
+                tracker.checkCancelled();
+                ChunkCodec codec = ParallelChunkCipher.codec(options);
+                ByteBuffer chunk = codec.readChunk(in, header, index, size);
+                int length = chunk.remaining();
+                codec.encryptChunk(chunk, out, entry.getOffset(), header, dataKey, index, size);
+                tracker.advance(length);
+            }).invoke();
+
+            if (in.size() != size) {
+                throw new IOException(file + " changed while it was being archived");
+            }
+        }
+    }
+
+    /**
+     * Opens an archive and reads its index.
+     *
+     * @param archiveFile the archive
+     * @param key the derived AES key
+     * @return the open archive; close it when done
+     * @throws IOException if the file cannot be read
+     * @throws GeneralSecurityException if the key is wrong or the header has been altered
+     * @throws IllegalArgumentException if the file is not an archive or is corrupted
+     */
+    static EncryptedArchive open(Path archiveFile, SecretKey key) throws Exception {
+        FileChannel in = FileChannel.open(archiveFile, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            try {
+                ChunkCodec.readFully(in, header, 0);
+            } catch (EOFException e) {
+                throw new IllegalArgumentException("Input file is not an encrypted archive.");
+            }
+            byte[] fields = Arrays.copyOf(header.array(), FIELDS_LENGTH);
+            header.flip();
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IllegalArgumentException("Input file is not an encrypted archive.");
+            }
+            int version = header.get() & 0xFF;
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported encrypted archive version: " + version
+                        + ". It was probably written by a newer version of this application.");
+            }
+            long indexOffset = header.getLong();
+            long indexLength = header.getLong();
+            byte[] indexFileId = new byte[ContainerHeader.FILE_ID_LENGTH];
+            header.get(indexFileId);
+            byte[] wrapped = new byte[ContainerHeader.WRAPPED_KEY_LENGTH];
+            header.get(wrapped);
+
+            SecretKey archiveKey = ContainerHeader.unwrapDataKey(wrapped, key, fields);
+            if (indexOffset < HEADER_LENGTH || indexOffset + indexLength != in.size()) {
+                throw new IllegalArgumentException("Encrypted archive is truncated or corrupted.");
+            }
+
+            in.position(indexOffset);
+            DataInputStream indexIn = new DataInputStream(Channels.newInputStream(in));
+            ContainerHeader indexHeader = ContainerHeader.read(indexIn);
+            if (!MessageDigest.isEqual(indexHeader.getFileId(), indexFileId)) {
+                throw new IllegalArgumentException("Encrypted archive index has been replaced.");
+            }
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            StreamChunkCipher.decrypt(indexHeader, indexIn, index, indexHeader.unwrapKey(archiveKey),
+                    EncryptionOptions.defaults(), ProgressTracker.create(EncryptionOptions.defaults(), -1));
+
+            return new EncryptedArchive(in, archiveKey, readIndex(index.toByteArray(), indexOffset));
+        } catch (Exception e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the entries in the order they were packed
+     */
+    List<ArchiveEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @param name the entry name
+     * @return the entry, or null if the archive has none by that name
+     */
+    ArchiveEntry find(String name) {
+        for (ArchiveEntry entry : entries) {
+            if (entry.getName().equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decrypts one entry into a file, reading only that entry's chunks.
+     *
+     * @param entry an entry of this archive
+     * @param outputFile the file to create
+     * @param options parallelism
+     * @param tracker receives processed plaintext bytes and checks for cancellation
+     * @throws Exception if the entry is corrupted or the output cannot be written; the output is deleted
+     */
+    void extract(ArchiveEntry entry, Path outputFile, EncryptionOptions options, ProgressTracker tracker)
+            throws Exception {
+        ByteBuffer headerBytes = ByteBuffer.allocate(ContainerHeader.CURRENT_LENGTH);
+        ChunkCodec.readFully(channel, headerBytes, entry.getOffset());
+        ContainerHeader header = ContainerHeader.read(
+                new DataInputStream(new ByteArrayInputStream(headerBytes.array())));
+        if (!MessageDigest.isEqual(header.getFileId(), entry.getFileId()) || header.isCompressed()) {
+            throw new IllegalArgumentException("Archive entry " + entry.getName() + " is corrupted.");
+        }
+        SecretKey dataKey = header.unwrapKey(archiveKey);
+        long encryptedLength = header.encryptedLength(entry.getSize());
+
+        try (FileChannel out = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ParallelChunkCipher.run(new ParallelChunkCipher.ChunkRange(0, header.chunkCount(entry.getSize()), index -> {
+                tracker.checkCancelled();
+                ByteBuffer plain = ParallelChunkCipher.codec(options)
+                        .decryptChunk(channel, entry.getOffset(), header, dataKey, index, encryptedLength);
+                int length = plain.remaining();
+                ChunkCodec.writeFully(out, plain, index * header.getChunkSize());
+                tracker.advance(length);
+            }), options.getParallelism());
+        } catch (Exception e) {
+            Files.deleteIfExists(outputFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Extracts every entry below a directory, entries in parallel. A failing
+     * entry is recorded and the others carry on.
+     *
+     * @param directory where to recreate the archived folder
+     * @param options parallelism, progress and cancellation
+     * @return counts, throughput and failures by output file
+     * @throws IOException if the directory cannot be created
+     */
+    BatchResult extractAll(Path directory, EncryptionOptions options) throws Exception {
+        return extractAll(entries, directory, options);
+    }
+
+    /**
+     * Extracts some entries below a directory, entries in parallel. A failing
+     * entry is recorded and the others carry on.
+     *
+     * @param entries entries of this archive
+     * @param directory where to recreate the archived folder
+     * @param options parallelism, progress and cancellation
+     * @return counts, throughput and failures by output file
+     * @throws IOException if the directory cannot be created
+     */
+    BatchResult extractAll(List<ArchiveEntry> entries, Path directory, EncryptionOptions options) throws Exception {
+        long start = System.nanoTime();
+        long totalBytes = entries.stream().mapToLong(ArchiveEntry::getSize).sum();
+        ProgressTracker tracker = ProgressTracker.create(options, totalBytes);
+        AtomicInteger processed = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        Map<Path, Exception> failures = new ConcurrentHashMap<>();
+
+        if (!entries.isEmpty()) {
+            ParallelChunkCipher.run(new ParallelChunkCipher.ChunkRange(0, entries.size(), index -> {
+                ArchiveEntry entry = entries.get((int) index);
+                Path output = outputPath(directory, entry);
+                try {
+                    Files.createDirectories(output.getParent());
+                    extract(entry, output, options, tracker);
+                    processed.incrementAndGet();
+                    bytes.addAndGet(entry.getSize());
+                } catch (CancellationException e) {
+                    throw e;
+                } catch (Exception e) {
+                    failures.put(output, e);
+                }
+            }), options.getParallelism());
+        }
+        return new BatchResult(processed.get(), bytes.get(), System.nanoTime() - start, failures);
+    }
+
+    /**
+     * @param directory the extraction directory
+     * @param entry an entry of this archive
+     * @return where the entry is extracted to
+     */
+    static Path outputPath(Path directory, ArchiveEntry entry) {
+        return directory.resolve(entry.getName().replace('/', directory.getFileSystem().getSeparator().charAt(0)));
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    private static String entryName(Path directory, Path file) {
+        List<String> parts = new ArrayList<>();
+        for (Path part : directory.relativize(file)) {
+            parts.add(part.toString());
+        }
+        return String.join("/", parts);
+    }
+
+    private static byte[] fields(long indexOffset, long indexLength, byte[] indexFileId) {
+        return ByteBuffer.allocate(FIELDS_LENGTH)
+                .put(MAGIC)
+                .put((byte) VERSION)
+                .putLong(indexOffset)
+                .putLong(indexLength)
+                .put(indexFileId)
+                .array();
+    }
+
+    private static byte[] writeIndex(List<ArchiveEntry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(entries.size());
+        for (ArchiveEntry entry : entries) {
+            out.writeUTF(entry.getName());
+            out.writeLong(entry.getSize());
+            out.writeLong(entry.getOffset());
+            out.write(entry.getFileId());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Parses the decrypted index. The index is authenticated, so a failure here
+     * means it was written by a broken or hostile program; names that would be
+     * extracted outside the target directory are rejected all the same.
+     */
+    private static List<ArchiveEntry> readIndex(byte[] index, long indexOffset) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IllegalArgumentException("Encrypted archive index is corrupted.");
+        }
+        List<ArchiveEntry> entries = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            long size = in.readLong();
+            long offset = in.readLong();
+            byte[] fileId = new byte[ContainerHeader.FILE_ID_LENGTH];
+            in.readFully(fileId);
+            if (!isSafeName(name) || !names.add(name) || size < 0 || offset < HEADER_LENGTH
+                    || offset >= indexOffset) {
+                throw new IllegalArgumentException("Encrypted archive index is corrupted.");
+            }
+            entries.add(new ArchiveEntry(name, size, offset, fileId));
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    private static boolean isSafeName(String name) {
+        if (name.isEmpty() || name.startsWith("/") || name.contains("\\") || name.contains(":")) {
+            return false;
+        }
+        for (String part : name.split("/", -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
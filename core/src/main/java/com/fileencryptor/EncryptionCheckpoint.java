@@ -0,0 +1,202 @@
+package com.fileencryptor;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Progress of a resumable encryption, kept next to the output so that an
+ * interrupted run can continue where it stopped.
+ *
+ * <pre>
+ * offset  size  field
+ *      0     8  magic "FENCCKPT"
+ *      8     1  checkpoint version
+ *      9    16  file id of the encrypted file
+ *     25     4  chunk size, big-endian
+ *     29     8  plaintext length, big-endian
+ *     37     8  last-modified time of the plaintext, milliseconds since the epoch
+ *     45     8  number of chunks committed, big-endian
+ * </pre>
+ *
+ * A checkpoint is only written after the chunks it counts have been forced to
+ * disk, so the committed chunks survive a crash of the application or of the
+ * host. The chunks hold no state beyond the header, which is in the output
+ * itself, so nothing secret is kept here.
+ */
+final class EncryptionCheckpoint {
+
+    static final String EXTENSION = ".checkpoint";
+
+    private static final byte[] MAGIC = "FENCCKPT".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int LENGTH = MAGIC.length + 1 + ContainerHeader.FILE_ID_LENGTH + Integer.BYTES
+            + 3 * Long.BYTES;
+
+    private final byte[] fileId;
+    private final int chunkSize;
+    private final long plaintextLength;
+    private final long plaintextModified;
+    private final long committedChunks;
+
+    /**
+     * @param header the header of the encrypted file
+     * @param plaintextLength the size of the plaintext
+     * @param plaintextModified the last-modified time of the plaintext in milliseconds
+     * @param committedChunks how many chunks from the start of the file are on disk
+     */
+    EncryptionCheckpoint(ContainerHeader header, long plaintextLength, long plaintextModified,
+            long committedChunks) {
+        this(header.getFileId(), header.getChunkSize(), plaintextLength, plaintextModified, committedChunks);
+    }
+
+    private EncryptionCheckpoint(byte[] fileId, int chunkSize, long plaintextLength, long plaintextModified,
+            long committedChunks) {
+        this.fileId = fileId;
+        this.chunkSize = chunkSize;
+        this.plaintextLength = plaintextLength;
+        this.plaintextModified = plaintextModified;
+        this.committedChunks = committedChunks;
+    }
+
+    /**
+     * @param encryptedFile the encrypted file
+     * @return where the checkpoint of that file is kept
+     */
+    static Path pathFor(Path encryptedFile) {
+        return encryptedFile.resolveSibling(encryptedFile.getFileName() + EXTENSION);
+    }
+
+    /**
+     * Looks for an interrupted encryption of a file that can be continued. Only
+     * the checkpoint and the output's header are read; the committed chunks are
+     * not checked, and the key is not needed.
+     *
+     * @param inputFile the plaintext file
+     * @param outputFile the encrypted file
+     * @return the checkpoint, or null if there is none, or the input changed
+     *         or the output was replaced since it was written
+     * @throws IOException if a file exists but cannot be read
+     */
+    static EncryptionCheckpoint find(Path inputFile, Path outputFile) throws IOException {
+        EncryptionCheckpoint checkpoint = read(pathFor(outputFile));
+        if (checkpoint == null || !Files.isRegularFile(inputFile) || !Files.isRegularFile(outputFile)
+                || checkpoint.plaintextLength != Files.size(inputFile)
+                || checkpoint.plaintextModified != Files.getLastModifiedTime(inputFile).toMillis()) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.READ)) {
+            ContainerHeader header = ContainerHeader.read(new DataInputStream(Channels.newInputStream(channel)));
+            boolean matches = header.hasWrappedKey()
+                    && !header.isCompressed()
+                    && header.getChunkSize() == checkpoint.chunkSize
+                    && MessageDigest.isEqual(header.getFileId(), checkpoint.fileId)
+                    && checkpoint.committedChunks <= header.chunkCount(checkpoint.plaintextLength)
+                    && channel.size() >= header.recordOffset(checkpoint.committedChunks);
+            return matches ? checkpoint : null;
+        } catch (EOFException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a checkpoint.
+     *
+     * @param file the checkpoint file
+     * @return the checkpoint, or null if there is none or it cannot be used
+     * @throws IOException if the file exists but cannot be read
+     */
+    static EncryptionCheckpoint read(Path file) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (bytes.length != LENGTH) {
+            return null;
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        byte[] magic = new byte[MAGIC.length];
+        in.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || Byte.toUnsignedInt(in.get()) != VERSION) {
+            return null;
+        }
+        byte[] fileId = new byte[ContainerHeader.FILE_ID_LENGTH];
+        in.get(fileId);
+        int chunkSize = in.getInt();
+        long plaintextLength = in.getLong();
+        long plaintextModified = in.getLong();
+        long committedChunks = in.getLong();
+        if (chunkSize <= 0 || plaintextLength < 0 || committedChunks < 1) {
+            return null;
+        }
+        return new EncryptionCheckpoint(fileId, chunkSize, plaintextLength, plaintextModified, committedChunks);
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file, forces it to disk and moves it
+     * into place, so a crash leaves either the previous checkpoint or this one.
+     *
+     * @param file the checkpoint file
+     * @throws IOException if writing fails
+     */
+    void write(Path file) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(LENGTH)
+                .put(MAGIC)
+                .put((byte) VERSION)
+                .put(fileId)
+                .putInt(chunkSize)
+                .putLong(plaintextLength)
+                .putLong(plaintextModified)
+                .putLong(committedChunks);
+        bytes.flip();
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ChunkCodec.writeFully(out, bytes, 0);
+            out.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param committedChunks the new number of committed chunks
+     * @return a copy of this checkpoint with more chunks committed
+     */
+    EncryptionCheckpoint commit(long committedChunks) {
+        return new EncryptionCheckpoint(fileId, chunkSize, plaintextLength, plaintextModified, committedChunks);
+    }
+
+    long getPlaintextLength() {
+        return plaintextLength;
+    }
+
+    long getCommittedChunks() {
+        return committedChunks;
+    }
+
+    /**
+     * @return the plaintext size of the committed chunks
+     */
+    long getCommittedBytes() {
+        return Math.min(committedChunks * chunkSize, plaintextLength);
+    }
+}
@@ -0,0 +1,277 @@
+package com.fileencryptor;
+
+/**
+ * Tuning options for {@link FileEncryptor}.
+ * The setters return this object so options can be chained.
+ */
+public class EncryptionOptions {
+
+    static final int DEFAULT_BUFFER_SIZE = 256 * 1024; // 256KB per read
+    static final long DEFAULT_MAPPED_INPUT_THRESHOLD = 256L * 1024 * 1024; // map inputs of 256MB and up
+    static final int DEFAULT_PIPELINE_DEPTH = 4; // buffers in flight between stages
+    static final long DEFAULT_CHECKPOINT_INTERVAL = 256L * 1024 * 1024; // commit resumable runs every 256MB
+    private static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+    private int chunkSize = ContainerHeader.DEFAULT_CHUNK_SIZE;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private boolean legacyFormat = false;
+    private CipherSuite cipherSuite;
+    private boolean compression = false;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private boolean directBuffers = false;
+    private long mappedInputThreshold = DEFAULT_MAPPED_INPUT_THRESHOLD;
+    private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+    private boolean resumable = false;
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private ProgressListener progressListener;
+    private CancellationToken cancellationToken;
+
+    /**
+     * @return a new set of options with default values
+     */
+    public static EncryptionOptions defaults() {
+        return new EncryptionOptions();
+    }
+
+    /**
+     * Sets the plaintext size of each independently encrypted chunk.
+     *
+     * @param chunkSize chunk size in bytes
+     * @return this object
+     */
+    public EncryptionOptions chunkSize(int chunkSize) {
+        if (chunkSize < ContainerHeader.MIN_CHUNK_SIZE || chunkSize > ContainerHeader.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between " + ContainerHeader.MIN_CHUNK_SIZE
+                    + " and " + ContainerHeader.MAX_CHUNK_SIZE + " bytes");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Sets how many threads may work on one file at the same time.
+     *
+     * @param parallelism number of threads, 1 to run on the calling thread only
+     * @return this object
+     */
+    public EncryptionOptions parallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Writes the original single-stream AES/CBC format instead of the chunked
+     * AES-GCM format. Only useful for files that must be read by older versions.
+     *
+     * @param legacyFormat true to write the legacy format
+     * @return this object
+     */
+    public EncryptionOptions legacyFormat(boolean legacyFormat) {
+        this.legacyFormat = legacyFormat;
+        return this;
+    }
+
+    /**
+     * Sets the cipher suite new files in the chunked format are encrypted
+     * with. Decryption always uses the suite recorded in the file.
+     *
+     * @param cipherSuite the suite, or null for the fastest one found by
+     *        {@link CipherCalibration}, which is AES-GCM until calibration has run
+     * @return this object
+     * @throws IllegalArgumentException if this JVM does not support the suite
+     */
+    public EncryptionOptions cipherSuite(CipherSuite cipherSuite) {
+        if (cipherSuite != null && !cipherSuite.isAvailable()) {
+            throw new IllegalArgumentException(cipherSuite + " is not available in this JVM");
+        }
+        this.cipherSuite = cipherSuite;
+        return this;
+    }
+
+    /**
+     * Compresses the data before encrypting it when the first chunk shows that
+     * this pays off. Already compressed inputs are encrypted as they are.
+     * Compressed files are processed in order, with only the cipher work
+     * spread over threads, and cannot be read with random access. Ignored
+     * for the legacy format.
+     *
+     * @param compression true to compress compressible inputs
+     * @return this object
+     */
+    public EncryptionOptions compression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Sets the size of each read and cipher update when a file is processed as
+     * a single stream (the legacy format) and of the compression buffers.
+     *
+     * @param bufferSize buffer size in bytes
+     * @return this object
+     */
+    public EncryptionOptions bufferSize(int bufferSize) {
+        if (bufferSize < MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be at least " + MIN_BUFFER_SIZE + " bytes");
+        }
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * Uses direct (off-heap) buffers for file I/O instead of heap buffers.
+     *
+     * @param directBuffers true to allocate direct buffers
+     * @return this object
+     */
+    public EncryptionOptions directBuffers(boolean directBuffers) {
+        this.directBuffers = directBuffers;
+        return this;
+    }
+
+    /**
+     * Sets the input size from which files are memory-mapped instead of read.
+     *
+     * @param mappedInputThreshold size in bytes, or {@link Long#MAX_VALUE} to never map
+     * @return this object
+     */
+    public EncryptionOptions mappedInputThreshold(long mappedInputThreshold) {
+        if (mappedInputThreshold < 0) {
+            throw new IllegalArgumentException("Mapping threshold must not be negative");
+        }
+        this.mappedInputThreshold = mappedInputThreshold;
+        return this;
+    }
+
+    /**
+     * Sets how many buffers may be in flight between the read, cipher and write
+     * stages when a file or stream is processed as a single stream (the legacy
+     * format). The stages run on separate threads, so disk and cipher work
+     * overlap. Pipelined files are read rather than memory-mapped, since the
+     * reader thread already keeps the cipher from waiting on the disk.
+     *
+     * @param pipelineDepth number of buffers, or 0 to read, encrypt and write one after another on the calling thread
+     * @return this object
+     */
+    public EncryptionOptions pipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 0) {
+            throw new IllegalArgumentException("Pipeline depth must not be negative");
+        }
+        this.pipelineDepth = pipelineDepth;
+        return this;
+    }
+
+    /**
+     * Makes encryption resumable. The chunks are committed to disk in segments
+     * and a checkpoint file (the output path plus ".checkpoint") records how
+     * far the run got. If the run fails or the process dies, the output is
+     * kept, and encrypting the same unchanged input to the same output again
+     * checks the committed chunks and continues after them. A run cancelled
+     * through the cancellation token removes its output and checkpoint.
+     * Compression does not apply. Ignored for the legacy format and for
+     * decryption.
+     *
+     * @param resumable true to write checkpoints and continue interrupted runs
+     * @return this object
+     */
+    public EncryptionOptions resumable(boolean resumable) {
+        this.resumable = resumable;
+        return this;
+    }
+
+    /**
+     * Sets how much plaintext a resumable run encrypts between checkpoints.
+     * Each checkpoint forces the output to disk, so a shorter interval loses
+     * less work to a crash but waits on the disk more often.
+     *
+     * @param checkpointInterval bytes between checkpoints, rounded down to whole chunks
+     * @return this object
+     */
+    public EncryptionOptions checkpointInterval(long checkpointInterval) {
+        if (checkpointInterval < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive");
+        }
+        this.checkpointInterval = checkpointInterval;
+        return this;
+    }
+
+    /**
+     * Sets a listener for byte-accurate progress updates.
+     *
+     * @param progressListener the listener, or null for none
+     * @return this object
+     */
+    public EncryptionOptions progressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * Sets a token that can stop the operation from another thread.
+     *
+     * @param cancellationToken the token, or null for none
+     * @return this object
+     */
+    public EncryptionOptions cancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+        return this;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public boolean isLegacyFormat() {
+        return legacyFormat;
+    }
+
+    /**
+     * @return the suite set with {@link #cipherSuite}, or the one picked by calibration
+     */
+    public CipherSuite getCipherSuite() {
+        return cipherSuite != null ? cipherSuite : CipherCalibration.selectedSuite();
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public boolean isDirectBuffers() {
+        return directBuffers;
+    }
+
+    public long getMappedInputThreshold() {
+        return mappedInputThreshold;
+    }
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+}
@@ -0,0 +1,1123 @@
+package com.fileencryptor;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Utility class for file encryption and decryption using AES.
+ *
+ * New files are written in the chunked format (see {@link ContainerHeader}),
+ * which is encrypted and decrypted on all cores with AES-GCM or
+ * ChaCha20-Poly1305, whichever {@link CipherCalibration} found faster. Files in the original
+ * single-stream AES/CBC format are detected automatically and can still be decrypted.
+ * Compressible data can optionally be compressed before it is encrypted
+ * (see {@link EncryptionOptions#compression}); decryption detects this itself.
+ */
+public class FileEncryptor {
+
+    /** Extension of the archives written by {@link #createArchive}. */
+    public static final String ARCHIVE_EXTENSION = EncryptedArchive.EXTENSION;
+
+    private static final String ALGORITHM = "AES";
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding"; // Changed to CBC mode with padding
+    private static final byte[] SALT = {
+        (byte)0x43, (byte)0x76, (byte)0x95, (byte)0xc7,
+        (byte)0x5b, (byte)0xd7, (byte)0x45, (byte)0x17 
+    };
+    private static final int KDF_ITERATIONS = 65536;
+    private static final int KEY_LENGTH = 256;
+
+    // Derived-key cache, null while caching is disabled
+    private static volatile DerivedKeyCache keyCache;
+
+    /**
+     * Turns on caching of password-derived keys, so repeated operations with the
+     * same password skip PBKDF2. Replaces any cache that was already enabled.
+     *
+     * @param maxEntries the most keys kept at any time
+     * @param ttl how long a derived key may be reused
+     */
+    public static void enableKeyCache(int maxEntries, Duration ttl) {
+        DerivedKeyCache previous = keyCache;
+        keyCache = new DerivedKeyCache(maxEntries, ttl);
+        if (previous != null) {
+            previous.clear();
+        }
+    }
+
+    /**
+     * Turns off key caching and zeroes every cached key.
+     */
+    public static void disableKeyCache() {
+        DerivedKeyCache previous = keyCache;
+        keyCache = null;
+        if (previous != null) {
+            previous.clear();
+        }
+    }
+
+    /**
+     * @return the active key cache with its hit and miss counters, or null if caching is disabled
+     */
+    public static DerivedKeyCache getKeyCache() {
+        return keyCache;
+    }
+
+    /**
+     * Encrypts a file using AES encryption.
+     *
+     * @param inputFilePath path to the input file to encrypt
+     * @param outputFilePath path to save the encrypted file
+     * @param secretKey the secret key for encryption
+     * @throws Exception if encryption fails
+     */
+    public static void encrypt(String inputFilePath, String outputFilePath, String secretKey) throws Exception {
+        encrypt(inputFilePath, outputFilePath, secretKey, EncryptionOptions.defaults());
+    }
+
+    /**
+     * Encrypts a file using AES encryption with the given options.
+     *
+     * @param inputFilePath path to the input file to encrypt
+     * @param outputFilePath path to save the encrypted file
+     * @param secretKey the secret key for encryption
+     * @param options chunk size, parallelism, output format, compression, resumability, progress listener and
+     *        cancellation token
+     * @throws Exception if encryption fails
+     * @throws java.util.concurrent.CancellationException if cancelled through the options' token
+     */
+    public static void encrypt(String inputFilePath, String outputFilePath, String secretKey,
+            EncryptionOptions options) throws Exception {
+        encryptFile(Paths.get(inputFilePath), Paths.get(outputFilePath), generateKey(secretKey), options);
+    }
+
+    /**
+     * Encrypts a file with an already derived key. Partial output is removed on
+     * failure, unless a resumable run has committed part of it and was not
+     * cancelled on purpose.
+     *
+     * @param inputFile the file to encrypt
+     * @param outputFile the file to create
+     * @param key the derived AES key
+     * @param options chunk size, parallelism and output format
+     * @throws Exception if encryption fails
+     */
+    public static void encryptFile(Path inputFile, Path outputFile, SecretKey key, EncryptionOptions options)
+            throws Exception {
+        encryptFile(inputFile, outputFile, key, options, ProgressTracker.create(options, Files.size(inputFile)));
+    }
+
+    /**
+     * Encrypts a file with an already derived key, reporting to a tracker that
+     * may be shared with other files of the same batch.
+     *
+     * @param inputFile the file to encrypt
+     * @param outputFile the file to create
+     * @param key the derived AES key
+     * @param options chunk size, parallelism and output format
+     * @param tracker receives processed bytes and checks for cancellation
+     * @throws Exception if encryption fails or is cancelled
+     */
+    static void encryptFile(Path inputFile, Path outputFile, SecretKey key, EncryptionOptions options,
+            ProgressTracker tracker) throws Exception {
+        try {
+            if (options.isLegacyFormat()) {
+                doEncryptionDecryption(Cipher.ENCRYPT_MODE, inputFile, outputFile, key, options, tracker);
+            } else {
+                ParallelChunkCipher.encrypt(inputFile, outputFile, key, options, tracker);
+            }
+        } catch (Exception e) {
+            // A resumable run that crashed or hit an I/O error keeps the chunks it
+            // committed for the next run; a cancelled one is cleaned up like any other
+            boolean resumable = options.isResumable() && !options.isLegacyFormat();
+            if (resumable && e instanceof CancellationException) {
+                discardResumable(outputFile.toString());
+            }
+            if (!resumable || !Files.exists(EncryptionCheckpoint.pathFor(outputFile))) {
+                Files.deleteIfExists(outputFile);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Checks whether an interrupted resumable encryption (see
+     * {@link EncryptionOptions#resumable}) of a file can be continued. The
+     * input must be unchanged since the run started. The key is not needed,
+     * so whether it matches is only found out when the run is continued.
+     *
+     * @param inputFilePath path to the file that was being encrypted
+     * @param outputFilePath path of the encrypted file that was being written
+     * @return the number of plaintext bytes already committed, or -1 if there is nothing to resume
+     * @throws IOException if the checkpoint or output exists but cannot be read
+     */
+    public static long resumablePosition(String inputFilePath, String outputFilePath) throws IOException {
+        EncryptionCheckpoint checkpoint = EncryptionCheckpoint.find(Paths.get(inputFilePath),
+                Paths.get(outputFilePath));
+        return checkpoint != null ? checkpoint.getCommittedBytes() : -1;
+    }
+
+    /**
+     * Discards an interrupted resumable encryption, so that the next run starts
+     * over. The partial output is only deleted if a checkpoint says it is one;
+     * a finished encrypted file is left alone.
+     *
+     * @param outputFilePath path of the encrypted file that was being written
+     * @return true if there was an interrupted run to discard
+     * @throws IOException if the files cannot be deleted
+     */
+    public static boolean discardResumable(String outputFilePath) throws IOException {
+        Path outputFile = Paths.get(outputFilePath);
+        if (!Files.deleteIfExists(EncryptionCheckpoint.pathFor(outputFile))) {
+            return false;
+        }
+        Files.deleteIfExists(outputFile);
+        return true;
+    }
+
+    /**
+     * Encrypts a file that was encrypted before, only re-encrypting the parts
+     * that changed since. A manifest with a keyed fingerprint of every chunk is
+     * kept next to the output (the output path plus ".manifest"); the plaintext
+     * is hashed in parallel and only chunks whose fingerprint differs are
+     * encrypted again, under fresh nonces, and written over their old records.
+     * The first run, or a run whose output or manifest is missing, no longer
+     * matches, or was made with a different key or chunk size, encrypts the whole
+     * file. Compression does not apply. If the run fails or is cancelled, the
+     * output and manifest are removed and the next run starts over.
+     *
+     * @param inputFilePath path to the input file to encrypt
+     * @param outputFilePath path of the encrypted file to create or update
+     * @param secretKey the secret key for encryption
+     * @param options chunk size, parallelism, progress listener and cancellation token
+     * @return how many chunks changed and were written
+     * @throws Exception if encryption fails
+     * @throws java.util.concurrent.CancellationException if cancelled through the options' token
+     */
+    public static IncrementalResult encryptIncremental(String inputFilePath, String outputFilePath,
+            String secretKey, EncryptionOptions options) throws Exception {
+        return encryptIncremental(Paths.get(inputFilePath), Paths.get(outputFilePath), generateKey(secretKey),
+                options);
+    }
+
+    /**
+     * Encrypts a file incrementally with an already derived key, see
+     * {@link #encryptIncremental(String, String, String, EncryptionOptions)}.
+     *
+     * @param inputFile the file to encrypt
+     * @param outputFile the encrypted file to create or update
+     * @param key the derived AES key
+     * @param options chunk size and parallelism
+     * @return how many chunks changed and were written
+     * @throws Exception if encryption fails
+     */
+    public static IncrementalResult encryptIncremental(Path inputFile, Path outputFile, SecretKey key,
+            EncryptionOptions options) throws Exception {
+        try {
+            return ParallelChunkCipher.encryptIncremental(inputFile, outputFile, key, options,
+                    ProgressTracker.create(options, Files.size(inputFile)));
+        } catch (Exception e) {
+            Files.deleteIfExists(outputFile);
+            Files.deleteIfExists(ChunkManifest.pathFor(outputFile));
+            throw e;
+        }
+    }
+
+    /**
+     * Decrypts a file using AES encryption.
+     *
+     * @param inputFilePath path to the encrypted file
+     * @param outputFilePath path to save the decrypted file
+     * @param secretKey the secret key for decryption
+     * @throws Exception if decryption fails
+     */
+    public static void decrypt(String inputFilePath, String outputFilePath, String secretKey) throws Exception {
+        decrypt(inputFilePath, outputFilePath, secretKey, EncryptionOptions.defaults());
+    }
+
+    /**
+     * Decrypts a file using AES encryption with the given options.
+     * The file format is detected from the file itself.
+     *
+     * @param inputFilePath path to the encrypted file
+     * @param outputFilePath path to save the decrypted file
+     * @param secretKey the secret key for decryption
+     * @param options parallelism, progress listener and cancellation token
+     * @throws Exception if decryption fails
+     * @throws java.util.concurrent.CancellationException if cancelled through the options' token
+     */
+    public static void decrypt(String inputFilePath, String outputFilePath, String secretKey,
+            EncryptionOptions options) throws Exception {
+        decryptFile(Paths.get(inputFilePath), Paths.get(outputFilePath), generateKey(secretKey), options);
+    }
+
+    /**
+     * Decrypts a file with an already derived key. Partial output is removed on failure.
+     *
+     * @param inputFile the encrypted file
+     * @param outputFile the file to create
+     * @param key the derived AES key
+     * @param options parallelism and I/O settings
+     * @throws Exception if decryption fails
+     */
+    public static void decryptFile(Path inputFile, Path outputFile, SecretKey key, EncryptionOptions options)
+            throws Exception {
+        decryptFile(inputFile, outputFile, key, options, ProgressTracker.create(options, Files.size(inputFile)));
+    }
+
+    /**
+     * Decrypts a file with an already derived key, reporting to a tracker that
+     * may be shared with other files of the same batch.
+     *
+     * @param inputFile the encrypted file
+     * @param outputFile the file to create
+     * @param key the derived AES key
+     * @param options parallelism and I/O settings
+     * @param tracker receives processed bytes and checks for cancellation
+     * @throws Exception if decryption fails or is cancelled
+     */
+    static void decryptFile(Path inputFile, Path outputFile, SecretKey key, EncryptionOptions options,
+            ProgressTracker tracker) throws Exception {
+        try {
+            if (!isChunkedFormat(inputFile)) {
+                doEncryptionDecryption(Cipher.DECRYPT_MODE, inputFile, outputFile, key, options, tracker);
+                return;
+            }
+
+            try {
+                ParallelChunkCipher.decrypt(inputFile, outputFile, key, options, tracker);
+            } catch (IllegalArgumentException | CancellationException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new Exception("Decryption failed: " + e.getMessage() + ". Make sure the file is properly encrypted and you are using the correct key.", e);
+            }
+        } catch (Exception e) {
+            Files.deleteIfExists(outputFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Checks that an encrypted file is intact and decrypts with the given key,
+     * without writing any output. Every chunk is authenticated, in parallel.
+     *
+     * @param inputFilePath path to the encrypted file
+     * @param secretKey the secret key for decryption
+     * @throws Exception if the file is corrupted, truncated or the key is wrong
+     */
+    public static void verify(String inputFilePath, String secretKey) throws Exception {
+        verify(inputFilePath, secretKey, EncryptionOptions.defaults());
+    }
+
+    /**
+     * Checks that an encrypted file is intact and decrypts with the given key,
+     * without writing any output. Files in the legacy CBC format carry no
+     * authentication tag, so for them only the key and padding can be checked.
+     *
+     * @param inputFilePath path to the encrypted file
+     * @param secretKey the secret key for decryption
+     * @param options parallelism, progress listener and cancellation token
+     * @throws Exception if the file is corrupted, truncated or the key is wrong
+     * @throws java.util.concurrent.CancellationException if cancelled through the options' token
+     */
+    public static void verify(String inputFilePath, String secretKey, EncryptionOptions options) throws Exception {
+        verifyFile(Paths.get(inputFilePath), generateKey(secretKey), options);
+    }
+
+    /**
+     * Verifies a file with an already derived key.
+     *
+     * @param inputFile the encrypted file
+     * @param key the derived AES key
+     * @param options parallelism and I/O settings
+     * @throws Exception if the file does not verify
+     */
+    public static void verifyFile(Path inputFile, SecretKey key, EncryptionOptions options) throws Exception {
+        verifyFile(inputFile, key, options, ProgressTracker.create(options, Files.size(inputFile)));
+    }
+
+    /**
+     * Verifies a file with an already derived key, reporting to a tracker that
+     * may be shared with other files of the same batch.
+     *
+     * @param inputFile the encrypted file
+     * @param key the derived AES key
+     * @param options parallelism and I/O settings
+     * @param tracker receives processed bytes and checks for cancellation
+     * @throws Exception if the file does not verify or verification is cancelled
+     */
+    static void verifyFile(Path inputFile, SecretKey key, EncryptionOptions options, ProgressTracker tracker)
+            throws Exception {
+        if (!isChunkedFormat(inputFile)) {
+            try (InputStream in = Files.newInputStream(inputFile)) {
+                doStreamEncryptionDecryption(Cipher.DECRYPT_MODE, in, OutputStream.nullOutputStream(),
+                        key, options, tracker);
+            }
+            return;
+        }
+
+        try {
+            ParallelChunkCipher.verify(inputFile, key, options, tracker);
+        } catch (IllegalArgumentException | CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new Exception("Verification failed: " + e.getMessage() + ". The file is damaged or the key is wrong.", e);
+        }
+    }
+
+    /**
+     * Changes the key of an encrypted file by rewriting its header in place.
+     * The chunks are encrypted under a random data key that the header holds
+     * wrapped under the password key, so only that wrapped key changes and the
+     * cost does not depend on the size of the file. The old key stops working
+     * for this file; copies or backups made earlier still open with it.
+     *
+     * @param filePath path to the encrypted file
+     * @param oldSecretKey the current secret key
+     * @param newSecretKey the secret key to change to
+     * @throws Exception if the old key is wrong or the header cannot be rewritten
+     * @throws IllegalArgumentException if the file was written by a version of this
+     *         application that had no wrapped data key; decrypt it and encrypt it again instead
+     */
+    public static void rekey(String filePath, String oldSecretKey, String newSecretKey) throws Exception {
+        rekeyFile(Paths.get(filePath), generateKey(oldSecretKey), generateKey(newSecretKey),
+                EncryptionOptions.defaults());
+    }
+
+    /**
+     * Changes the key of a file with already derived keys, see
+     * {@link #rekey(String, String, String)}.
+     *
+     * @param file the encrypted file
+     * @param oldKey the key derived from the current password
+     * @param newKey the key derived from the new password
+     * @param options cancellation token
+     * @throws Exception if the old key is wrong or the header cannot be rewritten
+     */
+    public static void rekeyFile(Path file, SecretKey oldKey, SecretKey newKey, EncryptionOptions options)
+            throws Exception {
+        rekeyFile(file, oldKey, newKey, ProgressTracker.create(options, -1));
+    }
+
+    /**
+     * Changes the key of a file with already derived keys, reporting the whole
+     * file as processed to a tracker that may be shared with other files.
+     *
+     * @param file the encrypted file
+     * @param oldKey the key derived from the current password
+     * @param newKey the key derived from the new password
+     * @param tracker receives the file's size once it is done and checks for cancellation
+     * @throws Exception if the old key is wrong or the header cannot be rewritten
+     */
+    static void rekeyFile(Path file, SecretKey oldKey, SecretKey newKey, ProgressTracker tracker) throws Exception {
+        tracker.checkCancelled();
+        if (!isChunkedFormat(file)) {
+            throw new IllegalArgumentException("File is in the legacy CBC format, which has no wrapped data key. "
+                    + "Decrypt it and encrypt it again to change its key.");
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ContainerHeader header = ContainerHeader.read(new DataInputStream(Channels.newInputStream(channel)));
+            ContainerHeader rewrapped;
+            try {
+                rewrapped = header.rewrap(oldKey, newKey, CryptoPool.random());
+            } catch (GeneralSecurityException e) {
+                throw new Exception("Rekey failed: " + e.getMessage() + ". The file is damaged or the key is wrong.", e);
+            }
+
+            // The header is a few dozen bytes at the start of the file, so it is
+            // written with a single call and flushed before this returns
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(header.length());
+            rewrapped.write(new DataOutputStream(bytes));
+            ChunkCodec.writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()), 0);
+            channel.force(false);
+            tracker.advance(channel.size());
+        }
+    }
+
+    /**
+     * Encrypts every file below a directory, deriving the key only once.
+     * Each file is written next to the original with the .encrypted extension;
+     * files that already have that extension are skipped.
+     *
+     * @param directoryPath path to the directory
+     * @param secretKey the secret key for encryption
+     * @param options parallelism and per-file options
+     * @return file count, throughput and any per-file failures
+     * @throws Exception if the directory cannot be read or the key cannot be derived
+     */
+    public static BatchResult encryptDirectory(String directoryPath, String secretKey,
+            EncryptionOptions options) throws Exception {
+        return encryptDirectory(Paths.get(directoryPath), generateKey(secretKey), options);
+    }
+
+    /**
+     * Encrypts every file below a directory with an already derived key, see
+     * {@link #encryptDirectory(String, String, EncryptionOptions)}.
+     *
+     * @param directory the directory
+     * @param key the derived AES key
+     * @param options parallelism and per-file options
+     * @return file count, throughput and any per-file failures
+     * @throws Exception if the directory cannot be read
+     */
+    public static BatchResult encryptDirectory(Path directory, SecretKey key, EncryptionOptions options)
+            throws Exception {
+        return BatchEncryptor.encrypt(directory, key, options);
+    }
+
+    /**
+     * Decrypts every .encrypted file below a directory, deriving the key only once.
+     *
+     * @param directoryPath path to the directory
+     * @param secretKey the secret key for decryption
+     * @param options parallelism and per-file options
+     * @return file count, throughput and any per-file failures
+     * @throws Exception if the directory cannot be read or the key cannot be derived
+     */
+    public static BatchResult decryptDirectory(String directoryPath, String secretKey,
+            EncryptionOptions options) throws Exception {
+        return decryptDirectory(Paths.get(directoryPath), generateKey(secretKey), options);
+    }
+
+    /**
+     * Decrypts every .encrypted file below a directory with an already derived key.
+     *
+     * @param directory the directory
+     * @param key the derived AES key
+     * @param options parallelism and per-file options
+     * @return file count, throughput and any per-file failures
+     * @throws Exception if the directory cannot be read
+     */
+    public static BatchResult decryptDirectory(Path directory, SecretKey key, EncryptionOptions options)
+            throws Exception {
+        return BatchEncryptor.decrypt(directory, key, options);
+    }
+
+    /**
+     * Verifies every .encrypted file below a directory, deriving the key only once.
+     * Nothing is written.
+     *
+     * @param directoryPath path to the directory
+     * @param secretKey the secret key for decryption
+     * @param options parallelism and per-file options
+     * @return file count, throughput and the files that failed to verify
+     * @throws Exception if the directory cannot be read or the key cannot be derived
+     */
+    public static BatchResult verifyDirectory(String directoryPath, String secretKey,
+            EncryptionOptions options) throws Exception {
+        return verifyDirectory(Paths.get(directoryPath), generateKey(secretKey), options);
+    }
+
+    /**
+     * Verifies every .encrypted file below a directory with an already derived key.
+     *
+     * @param directory the directory
+     * @param key the derived AES key
+     * @param options parallelism and per-file options
+     * @return file count, throughput and the files that failed to verify
+     * @throws Exception if the directory cannot be read
+     */
+    public static BatchResult verifyDirectory(Path directory, SecretKey key, EncryptionOptions options)
+            throws Exception {
+        return BatchEncryptor.verify(directory, key, options);
+    }
+
+    /**
+     * Changes the key of every .encrypted file below a directory, deriving
+     * both keys only once. Only the headers are rewritten.
+     *
+     * @param directoryPath path to the directory
+     * @param oldSecretKey the current secret key
+     * @param newSecretKey the secret key to change to
+     * @param options parallelism, progress listener and cancellation token
+     * @return file count, throughput and the files whose key could not be changed
+     * @throws Exception if the directory cannot be read or the keys cannot be derived
+     */
+    public static BatchResult rekeyDirectory(String directoryPath, String oldSecretKey, String newSecretKey,
+            EncryptionOptions options) throws Exception {
+        return rekeyDirectory(Paths.get(directoryPath), generateKey(oldSecretKey), generateKey(newSecretKey),
+                options);
+    }
+
+    /**
+     * Changes the key of every .encrypted file below a directory with already derived keys.
+     *
+     * @param directory the directory
+     * @param oldKey the key derived from the current password
+     * @param newKey the key derived from the new password
+     * @param options parallelism, progress listener and cancellation token
+     * @return file count, throughput and the files whose key could not be changed
+     * @throws Exception if the directory cannot be read
+     */
+    public static BatchResult rekeyDirectory(Path directory, SecretKey oldKey, SecretKey newKey,
+            EncryptionOptions options) throws Exception {
+        return BatchEncryptor.rekey(directory, oldKey, newKey, options);
+    }
+
+    /**
+     * @param file a file to encrypt
+     * @return where it is encrypted to: the same path with the .encrypted extension
+     */
+    public static Path encryptedPathFor(Path file) {
+        return BatchEncryptor.encryptedPathFor(file);
+    }
+
+    /**
+     * @param file an encrypted file
+     * @return where it is decrypted to: the path without the .encrypted
+     *         extension, or with .decrypted added if it has none
+     */
+    public static Path decryptedPathFor(Path file) {
+        return BatchEncryptor.decryptedPathFor(file);
+    }
+
+    /**
+     * Packs every file below a directory into a single encrypted archive with
+     * an encrypted index, so that single entries can be listed and extracted
+     * without decrypting the rest. Files are packed in parallel.
+     *
+     * @param directoryPath path to the directory
+     * @param archivePath path of the archive to create
+     * @param secretKey the secret key for encryption
+     * @param options chunk size, parallelism, progress listener and cancellation token
+     * @return file count and throughput
+     * @throws Exception if any file cannot be read or the archive cannot be written; no archive is left behind
+     */
+    public static BatchResult createArchive(String directoryPath, String archivePath, String secretKey,
+            EncryptionOptions options) throws Exception {
+        return createArchive(Paths.get(directoryPath), Paths.get(archivePath), generateKey(secretKey), options);
+    }
+
+    /**
+     * Packs every file below a directory into an archive with an already derived key.
+     *
+     * @param directory the directory
+     * @param archiveFile the archive to create
+     * @param key the derived AES key
+     * @param options chunk size, parallelism, progress listener and cancellation token
+     * @return file count and throughput
+     * @throws Exception if any file cannot be read or the archive cannot be written; no archive is left behind
+     */
+    public static BatchResult createArchive(Path directory, Path archiveFile, SecretKey key,
+            EncryptionOptions options) throws Exception {
+        return EncryptedArchive.create(directory, archiveFile, key, options);
+    }
+
+    /**
+     * Lists the entries of an archive. Only the header and the index are read and decrypted.
+     *
+     * @param archivePath path to the archive
+     * @param secretKey the secret key for decryption
+     * @return the entries in the order they were packed
+     * @throws Exception if the key is wrong or the archive is damaged
+     */
+    public static List<ArchiveEntry> listArchive(String archivePath, String secretKey) throws Exception {
+        return listArchive(Paths.get(archivePath), generateKey(secretKey));
+    }
+
+    /**
+     * Lists the entries of an archive with an already derived key.
+     *
+     * @param archiveFile the archive
+     * @param key the derived AES key
+     * @return the entries in the order they were packed
+     * @throws Exception if the key is wrong or the archive is damaged
+     */
+    public static List<ArchiveEntry> listArchive(Path archiveFile, SecretKey key) throws Exception {
+        EncryptedArchive archive = openArchive(archiveFile, key);
+        try {
+            return archive.getEntries();
+        } finally {
+            archive.close();
+        }
+    }
+
+    /**
+     * Extracts every entry of an archive below a directory, entries in parallel.
+     *
+     * @param archivePath path to the archive
+     * @param directoryPath where to recreate the archived folder
+     * @param secretKey the secret key for decryption
+     * @param options parallelism, progress listener and cancellation token
+     * @return entry count, throughput and the entries that could not be extracted
+     * @throws Exception if the key is wrong or the archive index is damaged
+     */
+    public static BatchResult extractArchive(String archivePath, String directoryPath, String secretKey,
+            EncryptionOptions options) throws Exception {
+        return extractArchive(Paths.get(archivePath), Paths.get(directoryPath), generateKey(secretKey), options);
+    }
+
+    /**
+     * Extracts every entry of an archive below a directory with an already derived key.
+     *
+     * @param archiveFile the archive
+     * @param directory where to recreate the archived folder
+     * @param key the derived AES key
+     * @param options parallelism, progress listener and cancellation token
+     * @return entry count, throughput and the entries that could not be extracted
+     * @throws Exception if the key is wrong or the archive index is damaged
+     */
+    public static BatchResult extractArchive(Path archiveFile, Path directory, SecretKey key,
+            EncryptionOptions options) throws Exception {
+        EncryptedArchive archive = openArchive(archiveFile, key);
+        try {
+            return archive.extractAll(directory, options);
+        } finally {
+            archive.close();
+        }
+    }
+
+    /**
+     * Extracts some entries of an archive below a directory, each to the same
+     * place {@link #extractArchive(Path, Path, SecretKey, EncryptionOptions)}
+     * would put it. Only the index and those entries' chunks are read.
+     *
+     * @param archiveFile the archive
+     * @param entryNames entry names as listed by {@link #listArchive}
+     * @param directory where to recreate the archived folder
+     * @param key the derived AES key
+     * @param options parallelism, progress listener and cancellation token
+     * @return entry count, throughput and the entries that could not be extracted
+     * @throws Exception if the key is wrong or the archive index is damaged
+     * @throws IllegalArgumentException if the archive has no entry by one of the names; nothing is extracted
+     */
+    public static BatchResult extractArchiveEntries(Path archiveFile, List<String> entryNames, Path directory,
+            SecretKey key, EncryptionOptions options) throws Exception {
+        EncryptedArchive archive = openArchive(archiveFile, key);
+        try {
+            List<ArchiveEntry> entries = new ArrayList<>(entryNames.size());
+            for (String name : entryNames) {
+                entries.add(findEntry(archive, name));
+            }
+            return archive.extractAll(entries, directory, options);
+        } finally {
+            archive.close();
+        }
+    }
+
+    /**
+     * Extracts one entry of an archive. Only the index and that entry's chunks are read.
+     *
+     * @param archivePath path to the archive
+     * @param entryName the entry name as listed by {@link #listArchive}
+     * @param outputFilePath path of the file to create
+     * @param secretKey the secret key for decryption
+     * @param options parallelism, progress listener and cancellation token
+     * @throws Exception if the key is wrong, the entry is damaged or the output cannot be written
+     * @throws IllegalArgumentException if the archive has no entry by that name
+     */
+    public static void extractArchiveEntry(String archivePath, String entryName, String outputFilePath,
+            String secretKey, EncryptionOptions options) throws Exception {
+        EncryptedArchive archive = openArchive(Paths.get(archivePath), generateKey(secretKey));
+        try {
+            ArchiveEntry entry = findEntry(archive, entryName);
+            try {
+                archive.extract(entry, Paths.get(outputFilePath), options,
+                        ProgressTracker.create(options, entry.getSize()));
+            } catch (GeneralSecurityException e) {
+                throw new Exception("Extraction failed: " + e.getMessage() + ". The archive is damaged.", e);
+            }
+        } finally {
+            archive.close();
+        }
+    }
+
+    /**
+     * @param archiveFile an archive
+     * @return the folder {@link #extractArchive} recreates it in by default:
+     *         the archive's path without the archive extension
+     * @throws IllegalArgumentException if the archive's name does not end with the extension
+     */
+    public static Path extractedPathFor(Path archiveFile) {
+        String name = archiveFile.getFileName().toString();
+        if (!name.endsWith(ARCHIVE_EXTENSION) || name.length() == ARCHIVE_EXTENSION.length()) {
+            throw new IllegalArgumentException("Cannot name the folder for " + archiveFile);
+        }
+        return archiveFile.resolveSibling(name.substring(0, name.length() - ARCHIVE_EXTENSION.length()));
+    }
+
+    /**
+     * @param directory a folder to pack
+     * @return where it is packed to by default: the same path with the archive extension
+     */
+    public static Path archivePathFor(Path directory) {
+        return directory.resolveSibling(directory.getFileName() + ARCHIVE_EXTENSION);
+    }
+
+    private static ArchiveEntry findEntry(EncryptedArchive archive, String entryName) {
+        ArchiveEntry entry = archive.find(entryName);
+        if (entry == null) {
+            throw new IllegalArgumentException("Archive has no entry named " + entryName);
+        }
+        return entry;
+    }
+
+    private static EncryptedArchive openArchive(Path archive, SecretKey key) throws Exception {
+        try {
+            return EncryptedArchive.open(archive, key);
+        } catch (GeneralSecurityException e) {
+            throw new Exception("Archive could not be opened: " + e.getMessage()
+                    + ". The archive is damaged or the key is wrong.", e);
+        }
+    }
+
+    /**
+     * Encrypts a stream, such as standard input, without needing its length.
+     * Memory use depends only on the chunk size and parallelism. Neither stream is closed.
+     *
+     * @param in the plaintext
+     * @param out receives the encrypted data
+     * @param secretKey the secret key for encryption
+     * @param options chunk size, parallelism, compression, progress and cancellation
+     * @throws Exception if encryption fails
+     */
+    public static void encryptStream(InputStream in, OutputStream out, String secretKey,
+            EncryptionOptions options) throws Exception {
+        encryptStream(in, out, generateKey(secretKey), options);
+    }
+
+    /**
+     * Encrypts a stream with a key from {@link #generateKey}.
+     *
+     * @param in the plaintext
+     * @param out receives the encrypted data
+     * @param key the derived AES key
+     * @param options chunk size, parallelism, compression, progress and cancellation
+     * @throws Exception if encryption fails
+     */
+    public static void encryptStream(InputStream in, OutputStream out, SecretKey key, EncryptionOptions options)
+            throws Exception {
+        ProgressTracker tracker = ProgressTracker.create(options, -1);
+        if (options.isLegacyFormat()) {
+            doStreamEncryptionDecryption(Cipher.ENCRYPT_MODE, in, out, key, options, tracker);
+        } else {
+            StreamChunkCipher.encrypt(in, out, key, options, tracker);
+        }
+    }
+
+    /**
+     * Decrypts a stream, such as standard input, in either format. Chunks are
+     * written as soon as they authenticate, so if decryption fails part way
+     * through, the output already holds the verified beginning of the data.
+     * Neither stream is closed.
+     *
+     * @param in the encrypted data
+     * @param out receives the plaintext
+     * @param secretKey the secret key for decryption
+     * @param options parallelism, progress and cancellation
+     * @throws Exception if decryption fails
+     */
+    public static void decryptStream(InputStream in, OutputStream out, String secretKey,
+            EncryptionOptions options) throws Exception {
+        decryptStream(in, out, generateKey(secretKey), options);
+    }
+
+    /**
+     * Decrypts a stream with a key from {@link #generateKey}.
+     *
+     * @param in the encrypted data
+     * @param out receives the plaintext
+     * @param key the derived AES key
+     * @param options parallelism, progress and cancellation
+     * @throws Exception if decryption fails
+     */
+    public static void decryptStream(InputStream in, OutputStream out, SecretKey key, EncryptionOptions options)
+            throws Exception {
+        ProgressTracker tracker = ProgressTracker.create(options, -1);
+
+        // Peek at the magic to pick the format, then hand over the unread stream
+        PushbackInputStream input = new PushbackInputStream(in, ContainerHeader.MAGIC.length);
+        byte[] head = new byte[ContainerHeader.MAGIC.length];
+        int length = input.readNBytes(head, 0, head.length);
+        input.unread(head, 0, length);
+
+        if (!ContainerHeader.hasMagic(head, length)) {
+            doStreamEncryptionDecryption(Cipher.DECRYPT_MODE, input, out, key, options, tracker);
+            return;
+        }
+
+        try {
+            StreamChunkCipher.decrypt(input, out, key, options, tracker);
+        } catch (IllegalArgumentException | CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new Exception("Decryption failed: " + e.getMessage() + ". Make sure the data is properly encrypted and you are using the correct key.", e);
+        }
+    }
+
+    /**
+     * Opens an encrypted file for random-access reading of its plaintext.
+     * Only the chunks covering the bytes that are actually read get decrypted.
+     *
+     * @param inputFilePath path to the encrypted file
+     * @param secretKey the secret key for decryption
+     * @return a read-only channel over the decrypted content
+     * @throws Exception if the file cannot be opened, is not in the chunked format or is compressed
+     */
+    public static SeekableByteChannel openDecrypted(String inputFilePath, String secretKey) throws Exception {
+        if (!isChunkedFormat(Paths.get(inputFilePath))) {
+            throw new IllegalArgumentException("Random access is only supported for files in the chunked format. "
+                    + "Decrypt and re-encrypt legacy files first.");
+        }
+        return DecryptingChannel.open(Paths.get(inputFilePath), generateKey(secretKey));
+    }
+
+    /**
+     * Decrypts a byte range of an encrypted file without decrypting the rest of it.
+     *
+     * @param inputFilePath path to the encrypted file
+     * @param secretKey the secret key for decryption
+     * @param offset position of the first plaintext byte to return
+     * @param length number of bytes to return
+     * @return the decrypted bytes; shorter than length if the range runs past the end of the file
+     * @throws Exception if the file cannot be read or fails authentication
+     */
+    public static byte[] decryptRange(String inputFilePath, String secretKey, long offset, int length) throws Exception {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Offset and length must not be negative");
+        }
+
+        try (SeekableByteChannel channel = openDecrypted(inputFilePath, secretKey)) {
+            long available = Math.max(0, channel.size() - offset);
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, available));
+            channel.position(offset);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // keep reading until the range is filled
+            }
+            return buffer.array();
+        }
+    }
+
+    /**
+     * Checks whether data starts like the chunked AES-GCM format, for callers
+     * that only have the beginning of a stream. Anything else is treated as
+     * the legacy CBC format when decrypting.
+     *
+     * @param head the first bytes of the data
+     * @param length how many bytes of head are valid
+     * @return true for chunked data
+     */
+    public static boolean isChunkedFormat(byte[] head, int length) {
+        return ContainerHeader.hasMagic(head, length);
+    }
+
+    /**
+     * Checks whether a file was written in the chunked AES-GCM format.
+     *
+     * @param file the encrypted file
+     * @return true for chunked files, false for legacy CBC files
+     * @throws IOException if the file cannot be read
+     */
+    private static boolean isChunkedFormat(Path file) throws IOException {
+        byte[] head = new byte[ContainerHeader.MAGIC.length];
+        int length;
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            length = inputStream.readNBytes(head, 0, head.length);
+        }
+        return ContainerHeader.hasMagic(head, length);
+    }
+
+    /**
+     * Performs the encryption or decryption operation in the legacy AES/CBC format.
+     * Data moves through {@link FileChannel}s with buffers that are reused for the
+     * whole file; large inputs are memory-mapped.
+     *
+     * @param cipherMode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param inputFile the input file
+     * @param outputFile the output file
+     * @param key the derived AES key
+     * @param options buffer size, direct buffers and mapping threshold
+     * @param tracker receives processed bytes and checks for cancellation
+     * @throws Exception if operation fails
+     */
+    private static void doEncryptionDecryption(int cipherMode, Path inputFile, 
+            Path outputFile, SecretKey key, EncryptionOptions options, ProgressTracker tracker) throws Exception {
+        
+        Cipher cipher = CryptoPool.cipher(TRANSFORMATION);
+        
+        if (cipherMode == Cipher.ENCRYPT_MODE) {
+            // For encryption: generate a random IV
+            byte[] iv = new byte[16]; // 16 bytes for AES
+            CryptoPool.random().nextBytes(iv);
+            IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
+            
+            // Initialize cipher with IV for encryption
+            cipher.init(Cipher.ENCRYPT_MODE, key, ivParameterSpec);
+            
+            try (FileChannel inputChannel = FileChannel.open(inputFile, StandardOpenOption.READ);
+                 FileChannel outputChannel = openForWriting(outputFile)) {
+                
+                // Write the IV to the beginning of the output file
+                outputChannel.write(ByteBuffer.wrap(iv));
+                
+                ChannelStreamCipher.transfer(cipher, inputChannel, 0, outputChannel, options, tracker);
+            }
+        } else {
+            // For decryption: read the IV from the beginning of the file
+            try (FileChannel inputChannel = FileChannel.open(inputFile, StandardOpenOption.READ);
+                 FileChannel outputChannel = openForWriting(outputFile)) {
+                
+                // Read the 16-byte IV from the beginning of the file
+                ByteBuffer iv = ByteBuffer.allocate(16);
+                while (iv.hasRemaining() && inputChannel.read(iv) != -1) {
+                    // keep reading until the IV is complete
+                }
+                
+                if (iv.hasRemaining()) {
+                    throw new IllegalArgumentException("Input file does not contain a valid IV. It might not be encrypted properly or is corrupted.");
+                }
+                
+                IvParameterSpec ivParameterSpec = new IvParameterSpec(iv.array());
+                
+                // Initialize cipher with IV for decryption
+                cipher.init(Cipher.DECRYPT_MODE, key, ivParameterSpec);
+                tracker.advance(iv.capacity());
+                
+                try {
+                    ChannelStreamCipher.transfer(cipher, inputChannel, iv.capacity(), outputChannel, options, tracker);
+                } catch (CancellationException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new Exception("Decryption failed: " + e.getMessage() + ". Make sure the file is properly encrypted and you are using the correct key.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs the encryption or decryption operation in the legacy AES/CBC format
+     * between two streams, pipelined unless the options turn that off, in which
+     * case one pair of buffers is reused.
+     *
+     * @param cipherMode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param in the input stream
+     * @param out the output stream
+     * @param key the derived AES key
+     * @param options buffer size and pipeline depth
+     * @param tracker receives processed bytes and checks for cancellation
+     * @throws Exception if operation fails
+     */
+    private static void doStreamEncryptionDecryption(int cipherMode, InputStream in, OutputStream out,
+            SecretKey key, EncryptionOptions options, ProgressTracker tracker) throws Exception {
+        Cipher cipher = CryptoPool.cipher(TRANSFORMATION);
+        byte[] iv = new byte[16];
+
+        if (cipherMode == Cipher.ENCRYPT_MODE) {
+            CryptoPool.random().nextBytes(iv);
+            out.write(iv);
+        } else if (in.readNBytes(iv, 0, iv.length) < iv.length) {
+            throw new IllegalArgumentException("Input does not contain a valid IV. It might not be encrypted properly or is corrupted.");
+        }
+        cipher.init(cipherMode, key, new IvParameterSpec(iv));
+
+        try {
+            if (options.getPipelineDepth() > 0) {
+                PipelinedCipher.transfer(cipher, PipelinedCipher.input(in), PipelinedCipher.output(out),
+                        ByteBuffer::allocate, options, tracker);
+            } else {
+                byte[] inputBuffer = new byte[options.getBufferSize()];
+                byte[] outputBuffer = new byte[cipher.getOutputSize(inputBuffer.length) + 2 * cipher.getBlockSize()];
+                int bytesRead;
+                while ((bytesRead = in.read(inputBuffer)) != -1) {
+                    out.write(outputBuffer, 0, cipher.update(inputBuffer, 0, bytesRead, outputBuffer));
+                    tracker.advance(bytesRead);
+                }
+                out.write(outputBuffer, 0, cipher.doFinal(outputBuffer, 0));
+            }
+        } catch (GeneralSecurityException e) {
+            if (cipherMode == Cipher.ENCRYPT_MODE) {
+                throw e;
+            }
+            throw new Exception("Decryption failed: " + e.getMessage() + ". Make sure the data is properly encrypted and you are using the correct key.", e);
+        }
+        out.flush();
+    }
+
+    private static FileChannel openForWriting(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Generates an AES key from the provided secret key string.
+     * Uses PBKDF2 for secure key derivation, through the key cache when it is enabled.
+     * Callers that handle several streams with one secret key can derive it once.
+     *
+     * @param secretKey the secret key as a string
+     * @return the generated SecretKey
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     * @throws InvalidKeySpecException if the key specification is invalid
+     */
+    public static SecretKey generateKey(String secretKey) 
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        
+        try {
+            DerivedKeyCache cache = keyCache;
+            if (cache != null) {
+                return cache.get(secretKey, SALT, KDF_ITERATIONS, () -> deriveKeyBytes(secretKey));
+            }
+            byte[] keyBytes = deriveKeyBytes(secretKey);
+            try {
+                return new SecretKeySpec(keyBytes, ALGORITHM);
+            } finally {
+                Arrays.fill(keyBytes, (byte) 0);
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new NoSuchAlgorithmException("The encryption algorithm is not available: " + e.getMessage());
+        } catch (InvalidKeySpecException e) {
+            throw new InvalidKeySpecException("Invalid key specification: " + e.getMessage());
+        } catch (GeneralSecurityException e) {
+            throw new InvalidKeySpecException("Key derivation failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs PBKDF2 over the secret key.
+     *
+     * @param secretKey the secret key as a string
+     * @return the raw AES key bytes
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     * @throws InvalidKeySpecException if the key specification is invalid
+     */
+    private static byte[] deriveKeyBytes(String secretKey)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        // PBKDF2 (Password-Based Key Derivation Function 2) to generate a secure key
+        SecretKeyFactory factory = CryptoPool.keyFactory("PBKDF2WithHmacSHA256");
+        // Using 65536 iterations and 256-bit key length for AES-256
+        PBEKeySpec spec = new PBEKeySpec(secretKey.toCharArray(), SALT, KDF_ITERATIONS, KEY_LENGTH);
+        try {
+            return factory.generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,190 @@
+package com.fileencryptor;
+
+import javax.crypto.SecretKey;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.BitSet;
+
+/**
+ * Builds a chunked encrypted file from plaintext chunks that arrive one at a
+ * time, such as the parts of a resumable upload.
+ *
+ * The plaintext length is fixed up front, so every chunk's position in the
+ * output is known and chunks may arrive in any order, more than once, or
+ * after an interruption. Each chunk is encrypted and written as soon as it
+ * is received; the plaintext is never stored. The instance keeps track of
+ * which chunks have been written, so a client can ask where to resume.
+ */
+public final class IncrementalEncryptor implements Closeable {
+
+    private final FileChannel out;
+    private final ContainerHeader header;
+    private final SecretKey key;
+    private final long plaintextLength;
+    private final int chunkCount;
+    private final EncryptionOptions options = EncryptionOptions.defaults();
+    private final BitSet received;
+    private int receivedCount;
+
+    private IncrementalEncryptor(FileChannel out, ContainerHeader header, SecretKey key, long plaintextLength) {
+        this.out = out;
+        this.header = header;
+        this.key = key;
+        this.plaintextLength = plaintextLength;
+        this.chunkCount = (int) header.chunkCount(plaintextLength);
+        this.received = new BitSet(chunkCount);
+    }
+
+    /**
+     * Creates the output file and writes its header, using the cipher suite
+     * picked by {@link CipherCalibration}.
+     *
+     * @param outputFile the file to create; replaced if it exists
+     * @param key the derived AES key, see {@link FileEncryptor#generateKey}
+     * @param plaintextLength the total size of the plaintext
+     * @param chunkSize the plaintext size of every chunk except the last
+     * @return the encryptor, with no chunks written yet
+     * @throws IOException if the file cannot be created
+     * @throws GeneralSecurityException if the data key cannot be wrapped
+     * @throws IllegalArgumentException if the size or chunk size is out of range
+     */
+    public static IncrementalEncryptor create(Path outputFile, SecretKey key, long plaintextLength, int chunkSize)
+            throws IOException, GeneralSecurityException {
+        return create(outputFile, key, plaintextLength, chunkSize, CipherCalibration.selectedSuite());
+    }
+
+    /**
+     * Creates the output file and writes its header.
+     *
+     * @param outputFile the file to create; replaced if it exists
+     * @param key the derived AES key, see {@link FileEncryptor#generateKey}
+     * @param plaintextLength the total size of the plaintext
+     * @param chunkSize the plaintext size of every chunk except the last
+     * @param suite the cipher suite to seal the chunks with
+     * @return the encryptor, with no chunks written yet
+     * @throws IOException if the file cannot be created
+     * @throws GeneralSecurityException if the data key cannot be wrapped
+     * @throws IllegalArgumentException if the size or chunk size is out of range
+     */
+    public static IncrementalEncryptor create(Path outputFile, SecretKey key, long plaintextLength, int chunkSize,
+            CipherSuite suite) throws IOException, GeneralSecurityException {
+        if (plaintextLength < 0) {
+            throw new IllegalArgumentException("Plaintext length must not be negative");
+        }
+        SecretKey dataKey = ContainerHeader.newDataKey(CryptoPool.random());
+        ContainerHeader header = ContainerHeader.create(chunkSize, 0, suite, dataKey, key, CryptoPool.random());
+        if (header.chunkCount(plaintextLength) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many chunks; use a larger chunk size");
+        }
+
+        FileChannel out = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            DataOutputStream headerOut = new DataOutputStream(Channels.newOutputStream(out));
+            header.write(headerOut);
+            headerOut.flush();
+            return new IncrementalEncryptor(out, header, dataKey, plaintextLength);
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Encrypts one chunk and writes it at its place in the file. Writing a
+     * chunk again replaces the earlier copy.
+     *
+     * @param index the chunk index, from 0
+     * @param data holds the chunk's plaintext
+     * @param length how many bytes of data belong to the chunk; must equal {@link #chunkLength}
+     * @throws IOException if writing fails
+     * @throws GeneralSecurityException if the cipher fails
+     * @throws IllegalArgumentException if the index or length is wrong
+     */
+    public synchronized void writeChunk(long index, byte[] data, int length)
+            throws IOException, GeneralSecurityException {
+        int expected = chunkLength(index);
+        if (length != expected) {
+            throw new IllegalArgumentException("Chunk " + index + " must be " + expected + " bytes, got " + length);
+        }
+
+        ParallelChunkCipher.codec(options)
+                .encryptChunk(ByteBuffer.wrap(data, 0, length), out, header, key, index, plaintextLength);
+        if (!received.get((int) index)) {
+            received.set((int) index);
+            receivedCount++;
+        }
+    }
+
+    /**
+     * @param index the chunk index, from 0
+     * @return the plaintext size of that chunk; only the last one may be short
+     * @throws IllegalArgumentException if there is no such chunk
+     */
+    public int chunkLength(long index) {
+        if (index < 0 || index >= chunkCount) {
+            throw new IllegalArgumentException("Chunk index must be between 0 and " + (chunkCount - 1)
+                    + ", got " + index);
+        }
+        return (int) Math.min(header.getChunkSize(), plaintextLength - index * header.getChunkSize());
+    }
+
+    /**
+     * @param index the chunk index, from 0
+     * @return how many bytes that chunk takes up in the file: its plaintext
+     *         size plus the nonce and tag stored with it
+     * @throws IllegalArgumentException if there is no such chunk
+     */
+    public int encryptedChunkLength(long index) {
+        return chunkLength(index) + ContainerHeader.CHUNK_OVERHEAD;
+    }
+
+    /**
+     * @return the lowest chunk index not written yet, or -1 when every chunk has been written
+     */
+    public synchronized long nextMissingChunk() {
+        int next = received.nextClearBit(0);
+        return next < chunkCount ? next : -1;
+    }
+
+    /**
+     * @return how many different chunks have been written
+     */
+    public synchronized int getReceivedCount() {
+        return receivedCount;
+    }
+
+    /**
+     * @return true once every chunk has been written
+     */
+    public synchronized boolean isComplete() {
+        return receivedCount == chunkCount;
+    }
+
+    public int getChunkSize() {
+        return header.getChunkSize();
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public long getPlaintextLength() {
+        return plaintextLength;
+    }
+
+    /**
+     * Closes the output file. It is only a valid encrypted file if {@link #isComplete()}.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
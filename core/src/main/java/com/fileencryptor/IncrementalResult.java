@@ -0,0 +1,65 @@
+package com.fileencryptor;
+
+/**
+ * Outcome of an incremental encryption run.
+ */
+public class IncrementalResult {
+
+    private final long chunkCount;
+    private final long chunksWritten;
+    private final long bytesWritten;
+    private final boolean fullRewrite;
+    private final long elapsedNanos;
+
+    IncrementalResult(long chunkCount, long chunksWritten, long bytesWritten, boolean fullRewrite,
+            long elapsedNanos) {
+        this.chunkCount = chunkCount;
+        this.chunksWritten = chunksWritten;
+        this.bytesWritten = bytesWritten;
+        this.fullRewrite = fullRewrite;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return the number of chunks in the encrypted file
+     */
+    public long getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return the number of chunks that changed and were encrypted again
+     */
+    public long getChunksWritten() {
+        return chunksWritten;
+    }
+
+    /**
+     * @return the plaintext size of the chunks that were encrypted again
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return true if the whole file was encrypted, because there was no
+     *         usable output and manifest from an earlier run
+     */
+    public boolean isFullRewrite() {
+        return fullRewrite;
+    }
+
+    /**
+     * @return wall-clock time of the run in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s%d of %d chunks written (%.1f MB) in %.2f s",
+                fullRewrite ? "full rewrite, " : "", chunksWritten, chunkCount,
+                bytesWritten / (1024.0 * 1024.0), elapsedNanos / 1_000_000_000.0);
+    }
+}
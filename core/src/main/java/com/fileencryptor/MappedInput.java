@@ -0,0 +1,84 @@
+package com.fileencryptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only memory mapping of a large input file.
+ *
+ * A single mapping cannot exceed 2GB, so the file is mapped as a series of
+ * windows. Each window is a whole number of {@code unit}-sized blocks, which
+ * guarantees that any block-aligned slice of at most one unit lies inside a
+ * single window and can be handed to the cipher without copying.
+ */
+final class MappedInput {
+
+    private static final long MAX_WINDOW = 1L << 30; // 1GB per mapping
+
+    private final MappedByteBuffer[] windows;
+    private final long windowSize;
+
+    private MappedInput(FileChannel channel, long base, long unit) throws IOException {
+        long length = channel.size() - base;
+        this.windowSize = Math.max(1, MAX_WINDOW / unit) * unit;
+        int count = (int) ((length + windowSize - 1) / windowSize);
+
+        windows = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long offset = i * windowSize;
+            windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, base + offset,
+                    Math.min(windowSize, length - offset));
+        }
+    }
+
+    /**
+     * Maps a file if it is at least as large as the configured threshold.
+     *
+     * @param channel the input file
+     * @param base offset of the first byte to map
+     * @param unit block size that slices will be aligned to
+     * @param options holds the mapping threshold
+     * @return the mapping, or null if the file should be read with ordinary I/O
+     * @throws IOException if mapping fails
+     */
+    static MappedInput mapIfLarge(FileChannel channel, long base, long unit, EncryptionOptions options)
+            throws IOException {
+        long length = channel.size() - base;
+        if (length <= 0 || length < options.getMappedInputThreshold()) {
+            return null;
+        }
+        return new MappedInput(channel, base, unit);
+    }
+
+    /**
+     * Returns a view of mapped bytes. The offset must be a multiple of the unit
+     * and the length at most one unit.
+     *
+     * @param offset offset relative to the mapping base
+     * @param length number of bytes
+     * @return a buffer positioned on the requested bytes
+     */
+    ByteBuffer slice(long offset, int length) {
+        int pos = (int) (offset % windowSize);
+        ByteBuffer view = windows[(int) (offset / windowSize)].duplicate();
+        view.limit(pos + length).position(pos);
+        return view;
+    }
+
+    /**
+     * @return the number of windows the file was mapped as
+     */
+    int windowCount() {
+        return windows.length;
+    }
+
+    /**
+     * @param index the window index
+     * @return a fresh view of the whole window
+     */
+    ByteBuffer window(int index) {
+        return windows[index].duplicate();
+    }
+}
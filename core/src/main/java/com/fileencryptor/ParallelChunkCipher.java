@@ -0,0 +1,497 @@
+package com.fileencryptor;
+
+import javax.crypto.SecretKey;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encrypts and decrypts files in the chunked format described in
+ * {@link ContainerHeader}.
+ *
+ * Chunks are independent of each other, so they are processed by a
+ * fork/join pool. Each chunk is read and written at its own offset, which
+ * keeps the output in order no matter which thread finishes first. Each
+ * thread reuses one cipher and one pair of buffers for all of its chunks,
+ * and inputs above the mapping threshold are memory-mapped so chunks are
+ * encrypted straight from the page cache.
+ *
+ * Compressed files are handed to {@link StreamChunkCipher}, because their
+ * chunks no longer map to fixed plaintext offsets.
+ *
+ * Fixed offsets also allow incremental encryption: with a {@link ChunkManifest}
+ * from the previous run, only the chunks whose plaintext changed are
+ * encrypted again and written over their old records.
+ *
+ * They also allow resuming: a resumable run commits the chunks in segments
+ * and records each committed segment in an {@link EncryptionCheckpoint}, so an
+ * interrupted run only has to check and redo the chunks after the last one.
+ */
+final class ParallelChunkCipher {
+
+    /** Per-thread cipher and buffers, reused across chunks and files. */
+    private static final ThreadLocal<ChunkCodec> CODECS = ThreadLocal.withInitial(ChunkCodec::new);
+
+    private ParallelChunkCipher() {
+    }
+
+    /**
+     * Encrypts a file into the chunked format.
+     *
+     * @param inputFile the plaintext file
+     * @param outputFile the file to create
+     * @param key the AES key
+     * @param options chunk size, parallelism and compression
+     * @param tracker receives processed plaintext bytes and checks for cancellation
+     * @throws Exception if encryption fails
+     */
+    static void encrypt(Path inputFile, Path outputFile, SecretKey key, EncryptionOptions options,
+            ProgressTracker tracker) throws Exception {
+        if (options.isResumable()) {
+            encryptResumable(inputFile, outputFile, key, options, tracker);
+            return;
+        }
+        if (options.isCompression() && isCompressible(inputFile, options.getChunkSize())) {
+            try (InputStream in = Files.newInputStream(inputFile);
+                 OutputStream out = Files.newOutputStream(outputFile)) {
+                StreamChunkCipher.encrypt(in, out, key, options, tracker, true);
+            }
+            return;
+        }
+
+        SecretKey dataKey = ContainerHeader.newDataKey(CryptoPool.random());
+        ContainerHeader header = ContainerHeader.create(options.getChunkSize(), 0, options.getCipherSuite(),
+                dataKey, key, CryptoPool.random());
+
+        try (FileChannel in = FileChannel.open(inputFile, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            long plaintextLength = in.size();
+            DataOutputStream headerOut = new DataOutputStream(Channels.newOutputStream(out));
+            header.write(headerOut);
+            headerOut.flush();
+
+            int chunkSize = header.getChunkSize();
+            long chunks = header.chunkCount(plaintextLength);
+            MappedInput mapped = MappedInput.mapIfLarge(in, 0, chunkSize, options);
+
+            run(new ChunkRange(0, chunks, index -> {
+                tracker.checkCancelled();
+                ChunkCodec codec = codec(options);
+                long offset = index * chunkSize;
+                int length = (int) Math.min(chunkSize, plaintextLength - offset);
+                if (mapped != null) {
+                    codec.encryptChunk(mapped.slice(offset, length), out, header, dataKey, index, plaintextLength);
+                } else {
+                    codec.encryptChunk(in, out, header, dataKey, index, plaintextLength);
+                }
+                tracker.advance(length);
+            }), options.getParallelism());
+        }
+    }
+
+    /**
+     * Encrypts a file into the chunked format in segments of whole chunks,
+     * forcing each segment to disk and then recording it in a checkpoint next
+     * to the output. If a checkpoint from an interrupted run of the same input
+     * is found, its committed chunks are authenticated and the run continues
+     * after them; otherwise, or if they fail to authenticate, the whole file
+     * is encrypted. A wrong key fails the run rather than starting over, so
+     * the interrupted run is not lost to a typo. The checkpoint is removed once the file is
+     * complete. Compression is never used, because compressed chunks do not
+     * stay at fixed offsets.
+     *
+     * @param inputFile the plaintext file
+     * @param outputFile the encrypted file to create or continue
+     * @param key the AES key
+     * @param options chunk size, cipher suite and parallelism for a new file, and the checkpoint interval
+     * @param tracker receives processed plaintext bytes and checks for cancellation
+     * @throws Exception if encryption fails or the key does not match an interrupted run;
+     *         what was committed is kept for the next run
+     */
+    static void encryptResumable(Path inputFile, Path outputFile, SecretKey key, EncryptionOptions options,
+            ProgressTracker tracker) throws Exception {
+        Path checkpointFile = EncryptionCheckpoint.pathFor(outputFile);
+        EncryptionCheckpoint checkpoint = EncryptionCheckpoint.find(inputFile, outputFile);
+        ContainerHeader header = checkpoint != null ? verifiedHeader(outputFile, checkpoint, key, options) : null;
+        if (header == null) {
+            // A checkpoint that cannot be continued would no longer describe the output
+            Files.deleteIfExists(checkpointFile);
+        }
+
+        boolean resume = header != null;
+        SecretKey dataKey = resume ? header.unwrapKey(key) : ContainerHeader.newDataKey(CryptoPool.random());
+        if (!resume) {
+            header = ContainerHeader.create(options.getChunkSize(), 0, options.getCipherSuite(), dataKey, key,
+                    CryptoPool.random());
+        }
+        ContainerHeader fileHeader = header;
+
+        try (FileChannel in = FileChannel.open(inputFile, StandardOpenOption.READ);
+             FileChannel out = resume
+                     ? FileChannel.open(outputFile, StandardOpenOption.WRITE)
+                     : FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                             StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            long plaintextLength = in.size();
+            if (resume) {
+                tracker.advance(checkpoint.getCommittedBytes());
+            } else {
+                DataOutputStream headerOut = new DataOutputStream(Channels.newOutputStream(out));
+                header.write(headerOut);
+                headerOut.flush();
+                checkpoint = new EncryptionCheckpoint(header, plaintextLength,
+                        Files.getLastModifiedTime(inputFile).toMillis(), 0);
+            }
+
+            int chunkSize = header.getChunkSize();
+            long chunks = header.chunkCount(plaintextLength);
+            long segment = Math.max(1, options.getCheckpointInterval() / chunkSize);
+            MappedInput mapped = MappedInput.mapIfLarge(in, 0, chunkSize, options);
+
+            for (long from = checkpoint.getCommittedChunks(); from < chunks; from += segment) {
+                long to = Math.min(chunks, from + segment);
+                run(new ChunkRange(from, to, index -> {
+                    tracker.checkCancelled();
+                    ChunkCodec codec = codec(options);
+                    long offset = index * chunkSize;
+                    int length = (int) Math.min(chunkSize, plaintextLength - offset);
+                    ByteBuffer chunk = mapped != null
+                            ? mapped.slice(offset, length)
+                            : codec.readChunk(in, fileHeader, index, plaintextLength);
+                    codec.encryptChunk(chunk, out, fileHeader, dataKey, index, plaintextLength);
+                    tracker.advance(length);
+                }), options.getParallelism());
+
+                // The last segment completes the file, which needs no checkpoint
+                if (to < chunks) {
+                    out.force(false);
+                    checkpoint = checkpoint.commit(to);
+                    checkpoint.write(checkpointFile);
+                }
+            }
+
+            out.truncate(header.encryptedLength(plaintextLength));
+        }
+        Files.deleteIfExists(checkpointFile);
+    }
+
+    /**
+     * Authenticates the chunks an interrupted run committed, in parallel and
+     * without writing anything.
+     *
+     * @return the output's header, or null if a committed chunk does not authenticate
+     * @throws javax.crypto.AEADBadTagException if the key is wrong; the interrupted run is kept
+     */
+    private static ContainerHeader verifiedHeader(Path outputFile, EncryptionCheckpoint checkpoint, SecretKey key,
+            EncryptionOptions options) throws Exception {
+        try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.READ)) {
+            ContainerHeader header = ContainerHeader.read(new DataInputStream(Channels.newInputStream(channel)));
+            SecretKey dataKey = header.unwrapKey(key);
+            long encryptedLength = header.encryptedLength(checkpoint.getPlaintextLength());
+            try {
+                run(new ChunkRange(0, checkpoint.getCommittedChunks(), index ->
+                        codec(options).decryptChunk(channel, header, dataKey, index, encryptedLength)),
+                        options.getParallelism());
+            } catch (IOException | GeneralSecurityException e) {
+                return null;
+            }
+            return header;
+        }
+    }
+
+    /**
+     * Decrypts a file written by {@link #encrypt}.
+     *
+     * @param inputFile the encrypted file
+     * @param outputFile the file to create
+     * @param key the AES key
+     * @param options parallelism
+     * @param tracker receives processed encrypted bytes and checks for cancellation
+     * @throws Exception if the file is corrupted, the key is wrong or I/O fails
+     */
+    static void decrypt(Path inputFile, Path outputFile, SecretKey key, EncryptionOptions options,
+            ProgressTracker tracker) throws Exception {
+        try (FileChannel in = FileChannel.open(inputFile, StandardOpenOption.READ)) {
+            // Reject a wrong key before the output file is created
+            ContainerHeader header = ContainerHeader.read(new DataInputStream(Channels.newInputStream(in)));
+            SecretKey dataKey = header.unwrapKey(key);
+
+            try (FileChannel out = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                decrypt(header, in, out, dataKey, options, tracker);
+            }
+        }
+    }
+
+    /**
+     * Authenticates every chunk of a file written by {@link #encrypt} without
+     * writing the plaintext anywhere. Chunks are checked in parallel, so this
+     * runs at the speed the file can be read. Compressed files are also
+     * decompressed, to the void, to make sure the compressed data is complete.
+     *
+     * @param inputFile the encrypted file
+     * @param key the AES key
+     * @param options parallelism
+     * @param tracker receives processed encrypted bytes and checks for cancellation
+     * @throws Exception if the file is corrupted, the key is wrong or I/O fails
+     */
+    static void verify(Path inputFile, SecretKey key, EncryptionOptions options, ProgressTracker tracker)
+            throws Exception {
+        try (FileChannel in = FileChannel.open(inputFile, StandardOpenOption.READ)) {
+            ContainerHeader header = ContainerHeader.read(new DataInputStream(Channels.newInputStream(in)));
+            decrypt(header, in, null, header.unwrapKey(key), options, tracker);
+        }
+    }
+
+    /**
+     * Encrypts a file into the chunked format, reusing the unchanged chunks of
+     * an earlier encryption of it. The previous output is updated in place when
+     * its manifest is present, matches it and was written with the same key
+     * and chunk size, in the current format; otherwise the whole file is
+     * encrypted. Since the fingerprints are keyed by the file's data key, a
+     * file whose password was changed with {@link FileEncryptor#rekey} keeps
+     * its manifest. Either way a new
+     * manifest is written next to the output. Compression is never used,
+     * because compressed chunks do not stay at fixed offsets.
+     *
+     * @param inputFile the plaintext file
+     * @param outputFile the encrypted file to create or update
+     * @param key the AES key
+     * @param options chunk size for a full rewrite, and parallelism
+     * @param tracker receives processed plaintext bytes and checks for cancellation
+     * @return how many chunks were written
+     * @throws Exception if encryption fails; the manifest is gone and the next run starts over
+     */
+    static IncrementalResult encryptIncremental(Path inputFile, Path outputFile, SecretKey key,
+            EncryptionOptions options, ProgressTracker tracker) throws Exception {
+        long start = System.nanoTime();
+        Path manifestFile = ChunkManifest.pathFor(outputFile);
+        ChunkManifest previous = ChunkManifest.read(manifestFile);
+        ContainerHeader existing = previous != null ? reusableHeader(outputFile, previous, key, options) : null;
+
+        // The old manifest no longer describes the output once it starts changing
+        Files.deleteIfExists(manifestFile);
+
+        boolean fullRewrite = existing == null;
+        SecretKey dataKey = fullRewrite ? ContainerHeader.newDataKey(CryptoPool.random()) : existing.unwrapKey(key);
+        ContainerHeader header = fullRewrite
+                ? ContainerHeader.create(options.getChunkSize(), 0, options.getCipherSuite(), dataKey, key,
+                        CryptoPool.random())
+                : existing;
+        long previousLast = fullRewrite ? -1 : header.chunkCount(previous.getPlaintextLength()) - 1;
+        SecretKey fingerprintKey = ChunkManifest.fingerprintKey(dataKey);
+
+        try (FileChannel in = FileChannel.open(inputFile, StandardOpenOption.READ);
+             FileChannel out = fullRewrite
+                     ? FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                             StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)
+                     : FileChannel.open(outputFile, StandardOpenOption.WRITE)) {
+
+            if (fullRewrite) {
+                DataOutputStream headerOut = new DataOutputStream(Channels.newOutputStream(out));
+                header.write(headerOut);
+                headerOut.flush();
+            }
+
+            long plaintextLength = in.size();
+            int chunkSize = header.getChunkSize();
+            long chunks = header.chunkCount(plaintextLength);
+            ChunkManifest manifest = new ChunkManifest(header, plaintextLength);
+            MappedInput mapped = MappedInput.mapIfLarge(in, 0, chunkSize, options);
+            AtomicLong chunksWritten = new AtomicLong();
+            AtomicLong bytesWritten = new AtomicLong();
+
+            run(new ChunkRange(0, chunks, index -> {
+                tracker.checkCancelled();
+                ChunkCodec codec = codec(options);
+                long offset = index * chunkSize;
+                int length = (int) Math.min(chunkSize, plaintextLength - offset);
+                ByteBuffer chunk = mapped != null
+                        ? mapped.slice(offset, length)
+                        : codec.readChunk(in, header, index, plaintextLength);
+
+                byte[] fingerprint = ChunkManifest.fingerprint(fingerprintKey, header, index, chunk);
+                manifest.record(index, fingerprint);
+
+                // The last-chunk marker is authenticated, so a chunk that gains or
+                // loses it has to be encrypted again even if its bytes are the same
+                boolean unchanged = !fullRewrite && previous.matches(index, fingerprint)
+                        && (index == chunks - 1) == (index == previousLast);
+                if (!unchanged) {
+                    codec.encryptChunk(chunk, out, header, dataKey, index, plaintextLength);
+                    chunksWritten.incrementAndGet();
+                    bytesWritten.addAndGet(length);
+                }
+                tracker.advance(length);
+            }), options.getParallelism());
+
+            out.truncate(header.encryptedLength(plaintextLength));
+            manifest.write(manifestFile);
+            return new IncrementalResult(chunks, chunksWritten.get(), bytesWritten.get(), fullRewrite,
+                    System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Checks whether an earlier output can be updated in place.
+     *
+     * @return the output's header, or null if the output is missing, compressed, in an
+     *         older format, written with another key or chunk size, or does not match the manifest
+     */
+    private static ContainerHeader reusableHeader(Path outputFile, ChunkManifest previous, SecretKey key,
+            EncryptionOptions options) throws IOException {
+        if (!Files.isRegularFile(outputFile)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.READ)) {
+            ContainerHeader header = ContainerHeader.read(new DataInputStream(Channels.newInputStream(channel)));
+            header.unwrapKey(key);
+            boolean reusable = header.hasWrappedKey()
+                    && !header.isCompressed()
+                    && header.getChunkSize() == options.getChunkSize()
+                    && previous.describes(header)
+                    && channel.size() == header.encryptedLength(previous.getPlaintextLength());
+            return reusable ? header : null;
+        } catch (EOFException | IllegalArgumentException | GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decrypts the chunks after a header that has already been read and checked.
+     * With no output the chunks are only authenticated.
+     */
+    private static void decrypt(ContainerHeader header, FileChannel in, FileChannel out, SecretKey key,
+            EncryptionOptions options, ProgressTracker tracker) throws Exception {
+        if (header.isCompressed()) {
+            tracker.advance(header.length());
+            StreamChunkCipher.decrypt(header, Channels.newInputStream(in),
+                    out != null ? Channels.newOutputStream(out) : OutputStream.nullOutputStream(),
+                    key, options, tracker);
+            return;
+        }
+
+        long encryptedLength = in.size();
+        long chunks = header.chunkCountFromEncrypted(encryptedLength);
+        long recordSize = header.getChunkSize() + ContainerHeader.CHUNK_OVERHEAD;
+        MappedInput mapped = MappedInput.mapIfLarge(in, header.length(), recordSize, options);
+        tracker.advance(header.length());
+
+        run(new ChunkRange(0, chunks, index -> {
+            tracker.checkCancelled();
+            ChunkCodec codec = codec(options);
+            int recordLength = ChunkCodec.recordLength(header, index, encryptedLength);
+            ByteBuffer plain;
+            if (mapped != null) {
+                ByteBuffer source = mapped.slice(index * recordSize, recordLength);
+                plain = codec.decryptChunk(source, header, key, index, encryptedLength);
+            } else {
+                plain = codec.decryptChunk(in, header, key, index, encryptedLength);
+            }
+            if (out != null) {
+                ChunkCodec.writeFully(out, plain, index * header.getChunkSize());
+            }
+            tracker.advance(recordLength);
+        }), options.getParallelism());
+    }
+
+    /**
+     * Samples the first chunk of a file to decide whether to compress it.
+     */
+    private static boolean isCompressible(Path file, int chunkSize) throws IOException {
+        byte[] sample;
+        try (InputStream in = Files.newInputStream(file)) {
+            sample = in.readNBytes(chunkSize);
+        }
+        return Compression.isWorthwhile(sample, sample.length);
+    }
+
+    static ChunkCodec codec(EncryptionOptions options) {
+        return CODECS.get().useDirectBuffers(options.isDirectBuffers());
+    }
+
+    /**
+     * Runs a task on a fork/join pool. When already inside a pool (for example
+     * during a batch run) the task joins that pool instead of starting another.
+     */
+    static void run(ChunkRange task, int parallelism) throws Exception {
+        try {
+            if (parallelism == 1 || ForkJoinTask.inForkJoinPool()) {
+                task.invoke();
+            } else {
+                ForkJoinPool pool = new ForkJoinPool(parallelism);
+                try {
+                    pool.invoke(task);
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        } catch (ChunkFailure e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    /** Work done for a single chunk. */
+    interface ChunkOperation {
+        void apply(long index) throws IOException, GeneralSecurityException;
+    }
+
+    /** Splits a range of chunk indices in half until single chunks remain. */
+    static final class ChunkRange extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long from;
+        private final long to;
+        private final ChunkOperation operation;
+
+        ChunkRange(long from, long to, ChunkOperation operation) {
+            this.from = from;
+            this.to = to;
+            this.operation = operation;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (to > from) {
+                    try {
+                        operation.apply(from);
+                    } catch (IOException | GeneralSecurityException | CancellationException e) {
+                        throw new ChunkFailure(e);
+                    }
+                }
+                return;
+            }
+            long middle = (from + to) >>> 1;
+            invokeAll(new ChunkRange(from, middle, operation), new ChunkRange(middle, to, operation));
+        }
+    }
+
+    /** Carries a checked exception out of a fork/join task. */
+    private static final class ChunkFailure extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        ChunkFailure(Exception cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.fileencryptor;
+
+import javax.crypto.Cipher;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntFunction;
+
+/**
+ * Runs data through a sequential cipher mode with reading, the cipher and
+ * writing overlapped.
+ *
+ * A reader thread fills input buffers and a writer thread drains output
+ * buffers while the calling thread runs the cipher, so the cipher never waits
+ * for the disk and the disk never waits for the cipher. The stages are joined
+ * by bounded queues of recycled buffers: a fixed number of buffers circulate
+ * between them, so memory use depends only on the pipeline depth and buffer
+ * size, and a slow stage holds the others back instead of letting data pile up.
+ * Throughput approaches that of the slowest stage instead of the sum of all three.
+ *
+ * A failure in any stage stops the other two and is rethrown by
+ * {@link #transfer}. The reader and writer threads are finished before it
+ * returns, so the caller can close the input and output right away.
+ */
+final class PipelinedCipher {
+
+    /** Marks the end of the data in the queues. */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    /** How often a stage waiting on a queue checks whether another stage failed. */
+    private static final long POLL_MILLIS = 50;
+
+    private static final ExecutorService STAGES = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cipher-pipeline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Fills part of a buffer from the input. */
+    interface Input {
+        /**
+         * @return the number of bytes read, or -1 at the end of the input
+         */
+        int read(ByteBuffer buffer) throws IOException;
+    }
+
+    /** Writes all remaining bytes of a buffer to the output. */
+    interface Output {
+        void write(ByteBuffer buffer) throws IOException;
+    }
+
+    private final BlockingQueue<ByteBuffer> freeInputs;
+    private final BlockingQueue<ByteBuffer> readInputs;
+    private final BlockingQueue<ByteBuffer> freeOutputs;
+    private final BlockingQueue<ByteBuffer> cipheredOutputs;
+    private volatile Throwable failure;
+    private volatile boolean stopped;
+
+    private PipelinedCipher(int depth) {
+        // One extra place for the end marker
+        this.freeInputs = new ArrayBlockingQueue<>(depth);
+        this.readInputs = new ArrayBlockingQueue<>(depth + 1);
+        this.freeOutputs = new ArrayBlockingQueue<>(depth);
+        this.cipheredOutputs = new ArrayBlockingQueue<>(depth + 1);
+    }
+
+    /**
+     * Processes the whole input and writes the result, including the final
+     * block, to the output.
+     *
+     * @param cipher an initialized cipher; only the calling thread uses it
+     * @param in the input
+     * @param out the output
+     * @param allocator creates the recycled buffers
+     * @param options buffer size and pipeline depth
+     * @param tracker receives processed input bytes and checks for cancellation
+     * @throws IOException if reading or writing fails
+     * @throws GeneralSecurityException if the cipher fails, for example on bad padding
+     */
+    static void transfer(Cipher cipher, Input in, Output out, IntFunction<ByteBuffer> allocator,
+            EncryptionOptions options, ProgressTracker tracker) throws IOException, GeneralSecurityException {
+        int depth = options.getPipelineDepth();
+        int bufferSize = options.getBufferSize();
+        // Leave room for a block held back by the cipher plus padding
+        int outputSize = cipher.getOutputSize(bufferSize) + 2 * cipher.getBlockSize();
+
+        PipelinedCipher pipeline = new PipelinedCipher(depth);
+        for (int i = 0; i < depth; i++) {
+            pipeline.freeInputs.add(allocator.apply(bufferSize));
+            pipeline.freeOutputs.add(allocator.apply(outputSize));
+        }
+
+        Future<?> reader = STAGES.submit(() -> pipeline.runStage(() -> pipeline.read(in)));
+        Future<?> writer = STAGES.submit(() -> pipeline.runStage(() -> pipeline.write(out)));
+        try {
+            pipeline.encipher(cipher, tracker);
+            pipeline.await(writer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the pipeline");
+        } finally {
+            pipeline.stopped = true;
+            awaitQuietly(reader);
+            awaitQuietly(writer);
+        }
+    }
+
+    /**
+     * @return the input stream as a pipeline input; only works with heap buffers
+     */
+    static Input input(InputStream in) {
+        return buffer -> {
+            int n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (n > 0) {
+                buffer.position(buffer.position() + n);
+            }
+            return n;
+        };
+    }
+
+    /**
+     * @return the output stream as a pipeline output; only works with heap buffers
+     */
+    static Output output(OutputStream out) {
+        return buffer -> {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        };
+    }
+
+    /**
+     * @return the file as a pipeline output, written at its current position
+     */
+    static Output output(FileChannel out) {
+        return buffer -> {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        };
+    }
+
+    private void encipher(Cipher cipher, ProgressTracker tracker)
+            throws IOException, GeneralSecurityException, InterruptedException {
+        while (true) {
+            ByteBuffer input = take(readInputs);
+            ByteBuffer output = take(freeOutputs);
+            output.clear();
+            if (input == END) {
+                cipher.doFinal(ByteBuffer.allocate(0), output);
+                output.flip();
+                put(cipheredOutputs, output);
+                put(cipheredOutputs, END);
+                return;
+            }
+
+            int length = input.remaining();
+            cipher.update(input, output);
+            put(freeInputs, input);
+            output.flip();
+            put(cipheredOutputs, output);
+            tracker.advance(length);
+        }
+    }
+
+    /**
+     * Fills each buffer completely, so the cipher gets full buffers from short reads.
+     */
+    private void read(Input in) throws IOException, InterruptedException {
+        while (true) {
+            ByteBuffer buffer = take(freeInputs);
+            buffer.clear();
+            boolean end = false;
+            while (buffer.hasRemaining() && !end) {
+                end = in.read(buffer) < 0;
+            }
+            buffer.flip();
+            if (buffer.hasRemaining()) {
+                put(readInputs, buffer);
+            }
+            if (end) {
+                put(readInputs, END);
+                return;
+            }
+        }
+    }
+
+    private void write(Output out) throws IOException, InterruptedException {
+        while (true) {
+            ByteBuffer buffer = take(cipheredOutputs);
+            if (buffer == END) {
+                return;
+            }
+            out.write(buffer);
+            put(freeOutputs, buffer);
+        }
+    }
+
+    /**
+     * Waits for a buffer, giving up once another stage has failed or the pipeline has stopped.
+     */
+    private ByteBuffer take(BlockingQueue<ByteBuffer> queue) throws IOException, InterruptedException {
+        while (true) {
+            checkRunning();
+            ByteBuffer buffer = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+    }
+
+    /**
+     * Hands a buffer on. Every queue has room for all the buffers that can
+     * reach it plus the end marker, so this never blocks.
+     */
+    private void put(BlockingQueue<ByteBuffer> queue, ByteBuffer buffer) {
+        queue.add(buffer);
+    }
+
+    /**
+     * Waits for a stage to finish, giving up if another stage fails first.
+     */
+    private void await(Future<?> stage) throws IOException, InterruptedException {
+        while (true) {
+            checkRunning();
+            try {
+                stage.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                checkRunning();
+                return;
+            } catch (TimeoutException e) {
+                // check for failures again
+            } catch (ExecutionException e) {
+                // stage failures are recorded by runStage
+            }
+        }
+    }
+
+    private void checkRunning() throws IOException {
+        Throwable cause = failure;
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else if (cause != null) {
+            throw new IOException(cause);
+        }
+        if (stopped) {
+            throw new StoppedException();
+        }
+    }
+
+    private void runStage(Stage stage) {
+        try {
+            stage.run();
+        } catch (StoppedException e) {
+            // The calling thread has already given up
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Pipeline stage was interrupted");
+        } catch (Throwable e) {
+            failure = e;
+        }
+    }
+
+    private static void awaitQuietly(Future<?> stage) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                stage.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (Exception e) {
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Work done by the reader or writer thread. */
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    /** Thrown in a stage thread once the calling thread has finished or failed. */
+    private static final class StoppedException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        StoppedException() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.fileencryptor;
+
+/**
+ * Receives progress updates from long-running operations.
+ *
+ * Updates are throttled to a few per second, and they may arrive on any of the
+ * threads working on the operation, so implementations must be thread-safe and
+ * should return quickly.
+ */
+public interface ProgressListener {
+
+    /**
+     * @param bytesProcessed input bytes handled so far
+     * @param totalBytes input bytes in the whole operation, or -1 when reading
+     *                   a stream of unknown length
+     */
+    void onProgress(long bytesProcessed, long totalBytes);
+}
@@ -0,0 +1,65 @@
+package com.fileencryptor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts processed bytes for one operation, forwards throttled updates to a
+ * {@link ProgressListener} and checks the {@link CancellationToken}.
+ * Shared by all threads working on the operation.
+ */
+final class ProgressTracker {
+
+    private static final long REPORT_INTERVAL_NANOS = 100_000_000L; // at most 10 updates per second
+
+    private final ProgressListener listener;
+    private final CancellationToken cancellationToken;
+    private final long totalBytes;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong lastReport = new AtomicLong(System.nanoTime());
+
+    private ProgressTracker(ProgressListener listener, CancellationToken cancellationToken, long totalBytes) {
+        this.listener = listener;
+        this.cancellationToken = cancellationToken;
+        this.totalBytes = totalBytes;
+    }
+
+    /**
+     * @param options holds the listener and cancellation token, either may be absent
+     * @param totalBytes input bytes in the whole operation, or -1 if unknown
+     * @return a tracker for a new operation
+     */
+    static ProgressTracker create(EncryptionOptions options, long totalBytes) {
+        return new ProgressTracker(options.getProgressListener(), options.getCancellationToken(), totalBytes);
+    }
+
+    /**
+     * Records processed bytes and reports them if enough time has passed.
+     *
+     * @param bytes input bytes handled since the last call
+     * @throws java.util.concurrent.CancellationException if the operation was cancelled
+     */
+    void advance(long bytes) {
+        checkCancelled();
+        long done = processed.addAndGet(bytes);
+        if (listener == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        long last = lastReport.get();
+        if (totalBytes >= 0 && done >= totalBytes) {
+            listener.onProgress(done, totalBytes);
+        } else if (now - last >= REPORT_INTERVAL_NANOS && lastReport.compareAndSet(last, now)) {
+            listener.onProgress(done, totalBytes);
+        }
+    }
+
+    /**
+     * @throws java.util.concurrent.CancellationException if the operation was cancelled
+     */
+    void checkCancelled() {
+        if (cancellationToken != null) {
+            cancellationToken.throwIfCancelled();
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.fileencryptor;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Encrypts and decrypts streams in the chunked format described in
+ * {@link ContainerHeader}, for pipes where neither the length nor random
+ * access is available.
+ *
+ * Chunks are read one after another and sealed or opened on a pool, while
+ * an ordered window of at most two chunks per thread is in flight. The
+ * oldest chunk is written before a new one is read, so output stays in
+ * order and memory use depends only on the chunk size and thread count,
+ * never on the length of the stream.
+ *
+ * When decrypting, each chunk is written as soon as it authenticates, so a
+ * stream that fails part way through leaves its verified prefix in the output.
+ *
+ * Compressed files are always written and read by this engine, since their
+ * chunks depend on the compressed data that came before them.
+ */
+final class StreamChunkCipher {
+
+    private StreamChunkCipher() {
+    }
+
+    /**
+     * Encrypts a stream into the chunked format. Neither stream is closed.
+     * With compression enabled, the first chunk is sampled to decide whether
+     * the stream is compressed.
+     *
+     * @param in the plaintext
+     * @param out receives the encrypted stream
+     * @param key the AES key
+     * @param options chunk size, parallelism and compression
+     * @param tracker receives processed plaintext bytes and checks for cancellation
+     * @throws Exception if encryption fails
+     */
+    static void encrypt(InputStream in, OutputStream out, SecretKey key, EncryptionOptions options,
+            ProgressTracker tracker) throws Exception {
+        if (!options.isCompression()) {
+            encrypt(in, out, key, options, tracker, false);
+            return;
+        }
+
+        // FileInputStream.readNBytes(int) seeks, which fails on pipes, so fill an array instead
+        byte[] sample = new byte[options.getChunkSize()];
+        int length = in.readNBytes(sample, 0, sample.length);
+        boolean compress = Compression.isWorthwhile(sample, length);
+        encrypt(new SequenceInputStream(new ByteArrayInputStream(sample, 0, length), in), out, key, options, tracker,
+                compress);
+    }
+
+    /**
+     * Encrypts a stream into the chunked format, compressing it first if asked to.
+     * Neither stream is closed.
+     *
+     * @param in the plaintext
+     * @param out receives the encrypted stream
+     * @param key the AES key
+     * @param options chunk size, parallelism and buffer size
+     * @param tracker receives processed plaintext bytes and checks for cancellation
+     * @param compress true to compress the plaintext and flag the header
+     * @throws Exception if encryption fails
+     */
+    static void encrypt(InputStream in, OutputStream out, SecretKey key, EncryptionOptions options,
+            ProgressTracker tracker, boolean compress) throws Exception {
+        SecretKey dataKey = ContainerHeader.newDataKey(CryptoPool.random());
+        int flags = compress ? ContainerHeader.FLAG_DEFLATE : 0;
+        ContainerHeader header = ContainerHeader.create(options.getChunkSize(), flags, options.getCipherSuite(),
+                dataKey, key, CryptoPool.random());
+        if (!compress) {
+            encryptChunks(in, out, header, dataKey, options, tracker, true);
+            return;
+        }
+
+        Deflater deflater = new Deflater(Compression.LEVEL);
+        try {
+            // The compressing stream reports plaintext progress, the chunks only check for cancellation
+            InputStream compressed = Compression.deflate(in, deflater, options.getBufferSize(), tracker);
+            encryptChunks(compressed, out, header, dataKey, options, tracker, false);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void encryptChunks(InputStream in, OutputStream out, ContainerHeader header, SecretKey key,
+            EncryptionOptions options, ProgressTracker tracker, boolean reportChunks) throws Exception {
+        DataOutputStream headerOut = new DataOutputStream(out);
+        header.write(headerOut);
+        headerOut.flush();
+
+        int chunkSize = header.getChunkSize();
+        PushbackInputStream input = new PushbackInputStream(in, 1);
+
+        try (Window window = new Window(out, options, chunkSize + ContainerHeader.CHUNK_OVERHEAD)) {
+            boolean last;
+            long index = 0;
+            do {
+                tracker.checkCancelled();
+                Slot slot = window.nextSlot();
+                int length = readChunk(input, slot.source, chunkSize);
+                last = length < chunkSize || atEnd(input);
+
+                long chunkIndex = index++;
+                boolean lastChunk = last;
+                window.submit(slot, () -> {
+                    ParallelChunkCipher.codec(options)
+                            .seal(slot.source, slot.target, header, key, chunkIndex, lastChunk);
+                    tracker.advance(reportChunks ? length : 0);
+                    return null;
+                });
+            } while (!last);
+            window.finish();
+        }
+        out.flush();
+    }
+
+    /**
+     * Decrypts a stream written by {@link #encrypt} or by the file engine.
+     * Neither stream is closed.
+     *
+     * @param in the encrypted stream
+     * @param out receives the plaintext
+     * @param key the AES key
+     * @param options parallelism
+     * @param tracker receives processed encrypted bytes and checks for cancellation
+     * @throws Exception if the stream is corrupted or truncated, the key is wrong or I/O fails
+     */
+    static void decrypt(InputStream in, OutputStream out, SecretKey key, EncryptionOptions options,
+            ProgressTracker tracker) throws Exception {
+        ContainerHeader header = ContainerHeader.read(new DataInputStream(in));
+        SecretKey dataKey = header.unwrapKey(key);
+        tracker.advance(header.length());
+        decrypt(header, in, out, dataKey, options, tracker);
+    }
+
+    /**
+     * Decrypts the chunks that follow an already read header, decompressing
+     * them if the header says so. Neither stream is closed.
+     *
+     * @param header the header of the stream
+     * @param in the encrypted stream, positioned after the header
+     * @param out receives the plaintext
+     * @param key the key the chunks are encrypted with, see {@link ContainerHeader#unwrapKey}
+     * @param options parallelism and buffer size
+     * @param tracker receives processed encrypted bytes and checks for cancellation
+     * @throws Exception if the stream is corrupted or truncated, the key is wrong or I/O fails
+     */
+    static void decrypt(ContainerHeader header, InputStream in, OutputStream out, SecretKey key,
+            EncryptionOptions options, ProgressTracker tracker) throws Exception {
+        if (!header.isCompressed()) {
+            decryptChunks(header, in, out, key, options, tracker);
+            return;
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            InflaterOutputStream plaintext = Compression.inflate(out, inflater, options.getBufferSize());
+            decryptChunks(header, in, plaintext, key, options, tracker);
+            plaintext.finish();
+            if (!inflater.finished()) {
+                throw new IllegalArgumentException("Compressed data in the encrypted stream is incomplete.");
+            }
+            out.flush();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void decryptChunks(ContainerHeader header, InputStream in, OutputStream out, SecretKey key,
+            EncryptionOptions options, ProgressTracker tracker) throws Exception {
+        PushbackInputStream input = new PushbackInputStream(in, 1);
+        int recordSize = header.getChunkSize() + ContainerHeader.CHUNK_OVERHEAD;
+
+        try (Window window = new Window(out, options, recordSize)) {
+            boolean last;
+            long index = 0;
+            do {
+                tracker.checkCancelled();
+                Slot slot = window.nextSlot();
+                int length = readChunk(input, slot.source, recordSize);
+                if (length < ContainerHeader.CHUNK_OVERHEAD) {
+                    throw new IllegalArgumentException("Encrypted stream is truncated or corrupted.");
+                }
+                last = length < recordSize || atEnd(input);
+
+                long chunkIndex = index++;
+                boolean lastChunk = last;
+                window.submit(slot, () -> {
+                    ParallelChunkCipher.codec(options)
+                            .open(slot.source, slot.target, header, key, chunkIndex, lastChunk);
+                    tracker.advance(length);
+                    return null;
+                });
+            } while (!last);
+            window.finish();
+        }
+        out.flush();
+    }
+
+    /**
+     * Fills a buffer with up to length bytes, stopping early only at the end of the stream.
+     *
+     * @return the number of bytes read; the buffer is left ready to be consumed
+     */
+    private static int readChunk(InputStream in, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear();
+        int bytesRead = in.readNBytes(buffer.array(), buffer.arrayOffset(), length);
+        buffer.limit(bytesRead);
+        return bytesRead;
+    }
+
+    /**
+     * Looks one byte ahead to tell whether a full chunk was the last one.
+     */
+    private static boolean atEnd(PushbackInputStream in) throws IOException {
+        int next = in.read();
+        if (next == -1) {
+            return true;
+        }
+        in.unread(next);
+        return false;
+    }
+
+    /** Input and output buffers for one chunk in flight. */
+    private static final class Slot {
+        final ByteBuffer source;
+        final ByteBuffer target;
+
+        Slot(int capacity) {
+            source = ByteBuffer.allocate(capacity);
+            target = ByteBuffer.allocate(capacity);
+        }
+    }
+
+    /**
+     * Bounded, ordered set of chunks in flight. Chunks run on a pool of the
+     * configured parallelism, or on the calling thread when that is one or
+     * when the caller already runs on a pool, as in a batch.
+     */
+    private static final class Window implements AutoCloseable {
+
+        private final OutputStream out;
+        private final ForkJoinPool pool;
+        private final ArrayDeque<Slot> free = new ArrayDeque<>();
+        private final ArrayDeque<Slot> slots = new ArrayDeque<>();
+        private final ArrayDeque<Future<Void>> pending = new ArrayDeque<>();
+
+        Window(OutputStream out, EncryptionOptions options, int capacity) {
+            this.out = out;
+            int parallelism = options.getParallelism();
+            this.pool = parallelism > 1 && !ForkJoinTask.inForkJoinPool() ? new ForkJoinPool(parallelism) : null;
+            // Inline work finishes before the next chunk is read, so one slot is enough
+            int slots = pool != null ? parallelism * 2 : 1;
+            for (int i = 0; i < slots; i++) {
+                free.add(new Slot(capacity));
+            }
+        }
+
+        /**
+         * @return buffers for the next chunk, after writing the oldest one if the window is full
+         */
+        Slot nextSlot() throws Exception {
+            if (free.isEmpty()) {
+                writeOldest();
+            }
+            return free.poll();
+        }
+
+        void submit(Slot slot, Callable<Void> work) {
+            slot.target.clear();
+            slots.add(slot);
+            if (pool != null) {
+                pending.add(pool.submit(work));
+            } else {
+                FutureTask<Void> task = new FutureTask<>(work);
+                task.run();
+                pending.add(task);
+            }
+        }
+
+        /**
+         * Waits for and writes every chunk still in flight.
+         */
+        void finish() throws Exception {
+            while (!pending.isEmpty()) {
+                writeOldest();
+            }
+        }
+
+        private void writeOldest() throws Exception {
+            Future<Void> future = pending.poll();
+            Slot slot = slots.poll();
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw (Error) cause;
+            }
+            slot.target.flip();
+            out.write(slot.target.array(), slot.target.arrayOffset(), slot.target.limit());
+            free.add(slot);
+        }
+
+        @Override
+        public void close() {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+}
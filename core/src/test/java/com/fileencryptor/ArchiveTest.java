@@ -0,0 +1,275 @@
+package com.fileencryptor;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Encrypted archives: a packed folder lists and extracts to the original
+ * files, single entries can be extracted on their own, and an altered header,
+ * index or entry is detected. An index naming an entry outside the extraction
+ * folder is refused even when it is properly encrypted.
+ */
+class ArchiveTest {
+
+    private static final int CHUNK_SIZE = ContainerHeader.MIN_CHUNK_SIZE;
+    /** Magic, version, index offset, index length and index file id. */
+    private static final int FIELDS_LENGTH = 8 + 1 + 8 + 8 + ContainerHeader.FILE_ID_LENGTH;
+
+    private static SecretKey key;
+    private static SecretKey newKey;
+
+    @TempDir
+    Path directory;
+
+    private Path folder;
+    private Path archive;
+    private Path extracted;
+    private final Map<String, byte[]> files = new LinkedHashMap<>();
+
+    @BeforeAll
+    static void deriveKeys() throws Exception {
+        key = FileEncryptor.generateKey("correct horse");
+        newKey = FileEncryptor.generateKey("battery staple");
+    }
+
+    @BeforeEach
+    void createFolder() throws Exception {
+        folder = directory.resolve("folder");
+        archive = directory.resolve("folder" + FileEncryptor.ARCHIVE_EXTENSION);
+        extracted = directory.resolve("extracted");
+        Files.createDirectories(folder.resolve("a/b"));
+        files.put("top", FileEncryptorTest.randomBytes(3 * CHUNK_SIZE + 7));
+        files.put("empty", new byte[0]);
+        files.put("a/middle", FileEncryptorTest.randomBytes(CHUNK_SIZE));
+        files.put("a/b/deep", FileEncryptorTest.randomBytes(100));
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            Files.write(folder.resolve(file.getKey()), file.getValue());
+        }
+    }
+
+    @Test
+    void folderRoundTrips() throws Exception {
+        BatchResult packed = FileEncryptor.createArchive(folder, archive, key, options());
+        assertEquals(files.size(), packed.getFilesProcessed());
+
+        Map<String, Long> listed = new TreeMap<>();
+        for (ArchiveEntry entry : FileEncryptor.listArchive(archive, key)) {
+            listed.put(entry.getName(), entry.getSize());
+        }
+        Map<String, Long> expected = new TreeMap<>();
+        files.forEach((name, data) -> expected.put(name, (long) data.length));
+        assertEquals(expected, listed);
+
+        BatchResult unpacked = FileEncryptor.extractArchive(archive, extracted, key, options());
+        assertEquals(files.size(), unpacked.getFilesProcessed());
+        assertFalse(unpacked.hasFailures());
+        assertExtracted(files.keySet());
+    }
+
+    @Test
+    void emptyFolderRoundTrips() throws Exception {
+        Path empty = Files.createDirectory(directory.resolve("nothing"));
+
+        FileEncryptor.createArchive(empty, archive, key, options());
+
+        assertTrue(FileEncryptor.listArchive(archive, key).isEmpty());
+        assertEquals(0, FileEncryptor.extractArchive(archive, extracted, key, options()).getFilesProcessed());
+    }
+
+    @Test
+    void archiveInsideTheFolderIsNotPacked() throws Exception {
+        Path inside = folder.resolve("self" + FileEncryptor.ARCHIVE_EXTENSION);
+
+        FileEncryptor.createArchive(folder, inside, key, options());
+
+        assertEquals(files.size(), FileEncryptor.listArchive(inside, key).size());
+    }
+
+    @Test
+    void singleEntriesCanBeExtracted() throws Exception {
+        FileEncryptor.createArchive(folder, archive, key, options());
+
+        BatchResult unpacked = FileEncryptor.extractArchiveEntries(archive, Arrays.asList("a/b/deep", "top"),
+                extracted, key, options());
+
+        assertEquals(2, unpacked.getFilesProcessed());
+        assertExtracted(Arrays.asList("a/b/deep", "top"));
+        assertFalse(Files.exists(extracted.resolve("a/middle")));
+        assertFalse(Files.exists(extracted.resolve("empty")));
+    }
+
+    @Test
+    void unknownEntryNameExtractsNothing() throws Exception {
+        FileEncryptor.createArchive(folder, archive, key, options());
+
+        assertThrows(IllegalArgumentException.class, () -> FileEncryptor.extractArchiveEntries(archive,
+                Arrays.asList("top", "missing"), extracted, key, options()));
+        assertFalse(Files.exists(extracted));
+    }
+
+    @Test
+    void wrongKeyCannotOpenTheArchive() throws Exception {
+        FileEncryptor.createArchive(folder, archive, key, options());
+
+        assertThrows(Exception.class, () -> FileEncryptor.listArchive(archive, newKey));
+        assertThrows(Exception.class, () -> FileEncryptor.extractArchive(archive, extracted, newKey, options()));
+        assertFalse(Files.exists(extracted));
+    }
+
+    @Test
+    void tamperedHeaderCannotOpenTheArchive() throws Exception {
+        FileEncryptor.createArchive(folder, archive, key, options());
+        FileEncryptorTest.flipByte(archive, 20); // index length
+
+        assertThrows(Exception.class, () -> FileEncryptor.listArchive(archive, key));
+    }
+
+    @Test
+    void tamperedIndexCannotOpenTheArchive() throws Exception {
+        FileEncryptor.createArchive(folder, archive, key, options());
+        FileEncryptorTest.flipByte(archive, Files.size(archive) - 5);
+
+        assertThrows(Exception.class, () -> FileEncryptor.listArchive(archive, key));
+    }
+
+    @Test
+    void truncatedArchiveCannotOpen() throws Exception {
+        FileEncryptor.createArchive(folder, archive, key, options());
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> FileEncryptor.listArchive(archive, key));
+    }
+
+    @Test
+    void otherFilesAreNotArchives() throws Exception {
+        Files.write(archive, FileEncryptorTest.randomBytes(CHUNK_SIZE));
+
+        assertThrows(IllegalArgumentException.class, () -> FileEncryptor.listArchive(archive, key));
+    }
+
+    @Test
+    void tamperedEntryFailsOnlyThatEntry() throws Exception {
+        FileEncryptor.createArchive(folder, archive, key, options());
+        ArchiveEntry top = entry("top");
+        FileEncryptorTest.flipByte(archive, top.getOffset() + ContainerHeader.CURRENT_LENGTH + CHUNK_SIZE + 10);
+
+        BatchResult unpacked = FileEncryptor.extractArchive(archive, extracted, key, options());
+
+        assertEquals(files.size() - 1, unpacked.getFilesProcessed());
+        assertEquals(Collections.singleton(extracted.resolve("top")), unpacked.getFailures().keySet());
+        assertFalse(Files.exists(extracted.resolve("top")));
+        assertExtracted(Arrays.asList("empty", "a/middle", "a/b/deep"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"../escape", "a/../../escape", "/tmp/escape", "a\\..\\escape", "C:escape", "./a", "a//b",
+            "a/", ""})
+    void indexWithUnsafeNameIsRefused(String name) throws Exception {
+        FileEncryptor.createArchive(folder, archive, key, options());
+        replaceIndex(name);
+
+        assertThrows(IllegalArgumentException.class, () -> FileEncryptor.listArchive(archive, key));
+        assertThrows(IllegalArgumentException.class,
+                () -> FileEncryptor.extractArchive(archive, extracted, key, options()));
+        assertFalse(Files.exists(directory.resolve("escape")));
+        assertFalse(Files.exists(extracted));
+    }
+
+    @Test
+    void indexWithASafeNameIsAccepted() throws Exception {
+        FileEncryptor.createArchive(folder, archive, key, options());
+        replaceIndex("renamed/top");
+
+        FileEncryptor.extractArchive(archive, extracted, key, options());
+
+        assertArrayEquals(files.get("top"), Files.readAllBytes(extracted.resolve("renamed/top")));
+    }
+
+    /**
+     * Rewrites the archive the way a hostile program holding the password
+     * could: its index lists only the entry "top", under another name, and is
+     * encrypted and authenticated like a real one.
+     */
+    private void replaceIndex(String name) throws Exception {
+        ArchiveEntry top = entry("top");
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(FIELDS_LENGTH + ContainerHeader.WRAPPED_KEY_LENGTH);
+            ChunkCodec.readFully(channel, header, 0);
+            byte[] fields = Arrays.copyOf(header.array(), FIELDS_LENGTH);
+            byte[] wrapped = Arrays.copyOfRange(header.array(), FIELDS_LENGTH, header.capacity());
+            SecretKey archiveKey = ContainerHeader.unwrapDataKey(wrapped, key, fields);
+            long indexOffset = ByteBuffer.wrap(fields).getLong(9);
+
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(index);
+            out.writeInt(1);
+            out.writeUTF(name);
+            out.writeLong(top.getSize());
+            out.writeLong(top.getOffset());
+            out.write(top.getFileId());
+            out.flush();
+            ByteArrayOutputStream encryptedIndex = new ByteArrayOutputStream();
+            StreamChunkCipher.encrypt(new ByteArrayInputStream(index.toByteArray()), encryptedIndex, archiveKey,
+                    options(), ProgressTracker.create(EncryptionOptions.defaults(), -1), false);
+            ContainerHeader indexHeader = ContainerHeader.read(
+                    new DataInputStream(new ByteArrayInputStream(encryptedIndex.toByteArray())));
+
+            channel.truncate(indexOffset);
+            ChunkCodec.writeFully(channel, ByteBuffer.wrap(encryptedIndex.toByteArray()), indexOffset);
+            ByteBuffer newFields = ByteBuffer.wrap(fields);
+            newFields.putLong(17, encryptedIndex.size());
+            newFields.position(25);
+            newFields.put(indexHeader.getFileId());
+            byte[] newWrapped = ContainerHeader.wrapDataKey(archiveKey, key, fields, CryptoPool.random());
+            ChunkCodec.writeFully(channel, ByteBuffer.wrap(fields), 0);
+            ChunkCodec.writeFully(channel, ByteBuffer.wrap(newWrapped), FIELDS_LENGTH);
+        }
+    }
+
+    private ArchiveEntry entry(String name) throws Exception {
+        for (ArchiveEntry entry : FileEncryptor.listArchive(archive, key)) {
+            if (entry.getName().equals(name)) {
+                return entry;
+            }
+        }
+        throw new AssertionError("No entry " + name);
+    }
+
+    private void assertExtracted(Iterable<String> names) throws Exception {
+        for (String name : names) {
+            assertArrayEquals(files.get(name), Files.readAllBytes(extracted.resolve(name)), name);
+        }
+    }
+
+    private static EncryptionOptions options() {
+        return EncryptionOptions.defaults().chunkSize(CHUNK_SIZE).parallelism(3);
+    }
+}
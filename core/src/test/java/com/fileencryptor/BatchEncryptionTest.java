@@ -0,0 +1,167 @@
+package com.fileencryptor;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Folder operations: every file below the folder is processed, a file that
+ * fails does not stop the others, and cancelling stops the whole batch.
+ */
+class BatchEncryptionTest {
+
+    private static final int CHUNK_SIZE = ContainerHeader.MIN_CHUNK_SIZE;
+
+    private static SecretKey key;
+    private static SecretKey newKey;
+
+    @TempDir
+    Path directory;
+
+    private final Map<Path, byte[]> files = new LinkedHashMap<>();
+
+    @BeforeAll
+    static void deriveKeys() throws Exception {
+        key = FileEncryptor.generateKey("correct horse");
+        newKey = FileEncryptor.generateKey("battery staple");
+    }
+
+    @BeforeEach
+    void createTree() throws Exception {
+        Files.createDirectories(directory.resolve("a/b"));
+        files.put(directory.resolve("top"), FileEncryptorTest.randomBytes(3 * CHUNK_SIZE + 7));
+        files.put(directory.resolve("empty"), new byte[0]);
+        files.put(directory.resolve("a/middle"), FileEncryptorTest.randomBytes(CHUNK_SIZE));
+        files.put(directory.resolve("a/b/deep"), FileEncryptorTest.randomBytes(100));
+        for (Map.Entry<Path, byte[]> file : files.entrySet()) {
+            Files.write(file.getKey(), file.getValue());
+        }
+    }
+
+    @Test
+    void wholeTreeRoundTrips() throws Exception {
+        BatchResult encrypted = FileEncryptor.encryptDirectory(directory, key, options());
+        assertEquals(files.size(), encrypted.getFilesProcessed());
+        assertFalse(encrypted.hasFailures());
+
+        for (Path file : files.keySet()) {
+            Files.delete(file);
+        }
+        BatchResult decrypted = FileEncryptor.decryptDirectory(directory, key, options());
+        assertEquals(files.size(), decrypted.getFilesProcessed());
+        assertFalse(decrypted.hasFailures());
+        assertOriginalsRestored();
+    }
+
+    @Test
+    void encryptedFilesAreNotEncryptedAgain() throws Exception {
+        FileEncryptor.encryptDirectory(directory, key, options());
+
+        BatchResult again = FileEncryptor.encryptDirectory(directory, key, options());
+
+        assertEquals(files.size(), again.getFilesProcessed());
+        for (Path file : files.keySet()) {
+            assertFalse(Files.exists(FileEncryptor.encryptedPathFor(FileEncryptor.encryptedPathFor(file))));
+        }
+    }
+
+    @Test
+    void failingFileDoesNotStopTheOthers() throws Exception {
+        FileEncryptor.encryptDirectory(directory, key, options());
+        Path damaged = FileEncryptor.encryptedPathFor(directory.resolve("a/middle"));
+        FileEncryptorTest.flipByte(damaged, ContainerHeader.CURRENT_LENGTH + 10);
+
+        BatchResult verified = FileEncryptor.verifyDirectory(directory, key, options());
+        assertEquals(files.size() - 1, verified.getFilesProcessed());
+        assertEquals(1, verified.getFailures().size());
+        assertTrue(verified.getFailures().containsKey(damaged));
+
+        for (Path file : files.keySet()) {
+            Files.delete(file);
+        }
+        BatchResult decrypted = FileEncryptor.decryptDirectory(directory, key, options());
+        assertEquals(files.size() - 1, decrypted.getFilesProcessed());
+        assertTrue(decrypted.getFailures().containsKey(damaged));
+        assertFalse(Files.exists(directory.resolve("a/middle")));
+        assertArrayEquals(files.get(directory.resolve("a/b/deep")), Files.readAllBytes(directory.resolve("a/b/deep")));
+    }
+
+    @Test
+    void wrongKeyFailsEveryFile() throws Exception {
+        FileEncryptor.encryptDirectory(directory, key, options());
+
+        BatchResult verified = FileEncryptor.verifyDirectory(directory, newKey, options());
+
+        assertEquals(0, verified.getFilesProcessed());
+        assertEquals(files.size(), verified.getFailures().size());
+    }
+
+    @Test
+    void rekeyedTreeOpensWithTheNewKeyOnly() throws Exception {
+        FileEncryptor.encryptDirectory(directory, key, options());
+
+        BatchResult rekeyed = FileEncryptor.rekeyDirectory(directory, key, newKey, options());
+        assertEquals(files.size(), rekeyed.getFilesProcessed());
+
+        assertFalse(FileEncryptor.verifyDirectory(directory, newKey, options()).hasFailures());
+        assertEquals(files.size(), FileEncryptor.verifyDirectory(directory, key, options()).getFailures().size());
+    }
+
+    @Test
+    void progressCoversTheWholeBatch() throws Exception {
+        long total = files.values().stream().mapToLong(data -> data.length).sum();
+        AtomicLong lastDone = new AtomicLong();
+        AtomicLong lastTotal = new AtomicLong();
+
+        FileEncryptor.encryptDirectory(directory, key, options().progressListener((done, all) -> {
+            lastDone.accumulateAndGet(done, Math::max);
+            lastTotal.set(all);
+        }));
+
+        assertEquals(total, lastTotal.get());
+        assertEquals(total, lastDone.get());
+    }
+
+    @Test
+    void cancellingStopsTheBatch() {
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+
+        assertThrows(CancellationException.class,
+                () -> FileEncryptor.encryptDirectory(directory, key, options().cancellationToken(token)));
+        for (Path file : files.keySet()) {
+            assertFalse(Files.exists(FileEncryptor.encryptedPathFor(file)));
+        }
+    }
+
+    @Test
+    void fileIsNotADirectory() {
+        assertThrows(IllegalArgumentException.class,
+                () -> FileEncryptor.encryptDirectory(directory.resolve("top"), key, options()));
+    }
+
+    private void assertOriginalsRestored() throws Exception {
+        for (Map.Entry<Path, byte[]> file : files.entrySet()) {
+            assertArrayEquals(file.getValue(), Files.readAllBytes(file.getKey()), file.getKey().toString());
+        }
+    }
+
+    private static EncryptionOptions options() {
+        return EncryptionOptions.defaults().chunkSize(CHUNK_SIZE).parallelism(3);
+    }
+}
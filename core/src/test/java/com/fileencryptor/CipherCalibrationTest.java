@@ -0,0 +1,133 @@
+package com.fileencryptor;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import javax.crypto.SecretKey;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Cipher suites and their calibration: every suite round trips and is
+ * recorded in the header, calibration ranks the candidates and its winner
+ * becomes the suite of new files unless the options name one.
+ */
+class CipherCalibrationTest {
+
+    private static final int CHUNK_SIZE = ContainerHeader.MIN_CHUNK_SIZE;
+
+    private static SecretKey key;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void deriveKey() throws Exception {
+        key = FileEncryptor.generateKey("correct horse");
+    }
+
+    @Test
+    void calibrationRanksEveryAvailableSuite() {
+        CipherCalibration calibration = CipherCalibration.run();
+
+        List<CipherCalibration.Measurement> measurements = calibration.getMeasurements();
+        assertSame(measurements.get(0), calibration.getFastest());
+        for (CipherSuite suite : CipherSuite.values()) {
+            assertEquals(suite.isAvailable(), measurements.stream().anyMatch(m -> m.getSuite() == suite),
+                    suite.toString());
+        }
+        for (int i = 0; i < measurements.size(); i++) {
+            CipherCalibration.Measurement measurement = measurements.get(i);
+            assertTrue(measurement.getMegabytesPerSecond() > 0, measurement.toString());
+            assertFalse(measurement.getProviderName().isEmpty());
+            if (i > 0) {
+                assertTrue(measurements.get(i - 1).getMegabytesPerSecond() >= measurement.getMegabytesPerSecond());
+            }
+        }
+        assertEquals(calibration.getFastest().getSuite(), CipherCalibration.selectedSuite());
+    }
+
+    @Test
+    void newFilesUseTheCalibratedSuite() throws Exception {
+        CipherSuite fastest = CipherCalibration.run().getFastest().getSuite();
+
+        assertEquals(fastest, options().getCipherSuite());
+        assertEquals(fastest, options().cipherSuite(null).getCipherSuite());
+        assertEquals(fastest, header(encrypt(FileEncryptorTest.randomBytes(CHUNK_SIZE), options())).getCipherSuite());
+    }
+
+    @ParameterizedTest
+    @EnumSource(CipherSuite.class)
+    void suiteInTheOptionsWinsOverCalibration(CipherSuite suite) throws Exception {
+        assumeTrue(suite.isAvailable(), suite + " is not available in this JVM");
+        byte[] data = FileEncryptorTest.randomBytes(3 * CHUNK_SIZE + 1);
+
+        Path encrypted = encrypt(data, options().cipherSuite(suite));
+
+        assertEquals(suite, header(encrypted).getCipherSuite());
+        Path decrypted = directory.resolve("plain.out");
+        FileEncryptor.decryptFile(encrypted, decrypted, key, options());
+        assertArrayEquals(data, Files.readAllBytes(decrypted));
+    }
+
+    @ParameterizedTest
+    @EnumSource(CipherSuite.class)
+    void tamperedFileFailsWithEverySuite(CipherSuite suite) throws Exception {
+        assumeTrue(suite.isAvailable(), suite + " is not available in this JVM");
+        Path encrypted = encrypt(FileEncryptorTest.randomBytes(2 * CHUNK_SIZE), options().cipherSuite(suite));
+        FileEncryptorTest.flipByte(encrypted, ContainerHeader.CURRENT_LENGTH + CHUNK_SIZE + 3);
+
+        assertThrows(Exception.class, () -> FileEncryptor.verifyFile(encrypted, key, options()));
+    }
+
+    @Test
+    void suitesAreFoundByName() {
+        assertEquals(CipherSuite.AES_GCM, CipherSuite.fromName("AES-GCM"));
+        assertEquals(CipherSuite.AES_GCM, CipherSuite.fromName("aes-gcm"));
+        assertEquals(CipherSuite.CHACHA20_POLY1305, CipherSuite.fromName("chacha20-poly1305"));
+        for (CipherSuite suite : CipherSuite.values()) {
+            assertEquals(suite, CipherSuite.fromName(suite.toString()));
+        }
+        assertThrows(IllegalArgumentException.class, () -> CipherSuite.fromName("AES-CBC"));
+    }
+
+    @Test
+    void unknownSuiteIdIsRejected() {
+        for (CipherSuite suite : CipherSuite.values()) {
+            assertEquals(suite, CipherSuite.fromId(suite.id()));
+        }
+        assertThrows(IllegalArgumentException.class, () -> CipherSuite.fromId(99));
+    }
+
+    private Path encrypt(byte[] data, EncryptionOptions options) throws Exception {
+        Path plain = directory.resolve("plain");
+        Files.write(plain, data);
+        Path encrypted = directory.resolve("plain.encrypted");
+        FileEncryptor.encryptFile(plain, encrypted, key, options);
+        return encrypted;
+    }
+
+    private static ContainerHeader header(Path encrypted) throws Exception {
+        try (InputStream in = Files.newInputStream(encrypted)) {
+            return ContainerHeader.read(new DataInputStream(in));
+        }
+    }
+
+    private static EncryptionOptions options() {
+        return EncryptionOptions.defaults().chunkSize(CHUNK_SIZE).parallelism(2);
+    }
+}
@@ -0,0 +1,164 @@
+package com.fileencryptor;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compress-then-encrypt: the first chunk decides whether a file is
+ * compressed, and either way it decrypts to the original plaintext.
+ */
+class CompressionTest {
+
+    private static final int CHUNK_SIZE = ContainerHeader.MIN_CHUNK_SIZE;
+
+    private static SecretKey key;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void deriveKey() throws Exception {
+        key = FileEncryptor.generateKey("correct horse");
+    }
+
+    @Test
+    void sampleDecidesWhetherCompressionIsWorthwhile() {
+        byte[] text = text(CHUNK_SIZE);
+        assertTrue(Compression.isWorthwhile(text, text.length));
+
+        byte[] random = FileEncryptorTest.randomBytes(CHUNK_SIZE);
+        assertFalse(Compression.isWorthwhile(random, random.length));
+        assertFalse(Compression.isWorthwhile(text, 0));
+    }
+
+    @Test
+    void compressibleFileIsCompressed() throws Exception {
+        byte[] data = text(20 * CHUNK_SIZE + 3);
+        Path encrypted = encrypt(data);
+
+        assertTrue(header(encrypted).isCompressed());
+        assertTrue(Files.size(encrypted) < data.length / 2, "size " + Files.size(encrypted));
+        assertDecryptsTo(data, encrypted);
+    }
+
+    @Test
+    void incompressibleFileIsEncryptedAsItIs() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(5 * CHUNK_SIZE + 3);
+        Path encrypted = encrypt(data);
+
+        ContainerHeader header = header(encrypted);
+        assertFalse(header.isCompressed());
+        assertEquals(header.encryptedLength(data.length), Files.size(encrypted));
+        assertDecryptsTo(data, encrypted);
+    }
+
+    @Test
+    void onlyTheFirstChunkIsSampled() throws Exception {
+        byte[] data = new byte[6 * CHUNK_SIZE];
+        System.arraycopy(FileEncryptorTest.randomBytes(CHUNK_SIZE), 0, data, 0, CHUNK_SIZE);
+        Path encrypted = encrypt(data);
+
+        assertFalse(header(encrypted).isCompressed());
+        assertDecryptsTo(data, encrypted);
+    }
+
+    @Test
+    void emptyFileRoundTrips() throws Exception {
+        Path encrypted = encrypt(new byte[0]);
+
+        assertDecryptsTo(new byte[0], encrypted);
+    }
+
+    @Test
+    void streamsAreSampledTheSameWay() throws Exception {
+        byte[] text = text(7 * CHUNK_SIZE + 11);
+        byte[] compressed = encryptStream(text);
+        assertTrue(header(new ByteArrayInputStream(compressed)).isCompressed());
+        assertArrayEquals(text, decryptStream(compressed));
+
+        byte[] random = FileEncryptorTest.randomBytes(3 * CHUNK_SIZE + 11);
+        byte[] stored = encryptStream(random);
+        assertFalse(header(new ByteArrayInputStream(stored)).isCompressed());
+        assertArrayEquals(random, decryptStream(stored));
+    }
+
+    @Test
+    void tamperedCompressedFileFails() throws Exception {
+        Path encrypted = encrypt(text(8 * CHUNK_SIZE));
+        FileEncryptorTest.flipByte(encrypted, Files.size(encrypted) - 20);
+
+        Path decrypted = directory.resolve("plain.out");
+        assertThrows(Exception.class, () -> FileEncryptor.decryptFile(encrypted, decrypted, key, options()));
+        assertFalse(Files.exists(decrypted));
+        assertThrows(Exception.class, () -> FileEncryptor.verifyFile(encrypted, key, options()));
+    }
+
+    /**
+     * @return lines of text, which Deflate shrinks several times
+     */
+    private static byte[] text(int size) {
+        StringBuilder text = new StringBuilder(size + 64);
+        for (int line = 0; text.length() < size; line++) {
+            text.append("Line ").append(line).append(": the quick brown fox jumps over the lazy dog\n");
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private Path encrypt(byte[] data) throws Exception {
+        Path plain = directory.resolve("plain");
+        Files.write(plain, data);
+        Path encrypted = directory.resolve("plain.encrypted");
+        FileEncryptor.encryptFile(plain, encrypted, key, options());
+        return encrypted;
+    }
+
+    private void assertDecryptsTo(byte[] data, Path encrypted) throws Exception {
+        Path decrypted = directory.resolve("plain.out");
+        FileEncryptor.decryptFile(encrypted, decrypted, key, options());
+        assertArrayEquals(data, Files.readAllBytes(decrypted));
+        FileEncryptor.verifyFile(encrypted, key, options());
+        assertArrayEquals(data, decryptStream(Files.readAllBytes(encrypted)));
+    }
+
+    private static byte[] encryptStream(byte[] data) throws Exception {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        FileEncryptor.encryptStream(new ByteArrayInputStream(data), encrypted, key, options());
+        return encrypted.toByteArray();
+    }
+
+    private static byte[] decryptStream(byte[] encrypted) throws Exception {
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        FileEncryptor.decryptStream(new ByteArrayInputStream(encrypted), decrypted, key, options());
+        return decrypted.toByteArray();
+    }
+
+    private static ContainerHeader header(Path encrypted) throws Exception {
+        try (InputStream in = Files.newInputStream(encrypted)) {
+            return header(in);
+        }
+    }
+
+    private static ContainerHeader header(InputStream in) throws Exception {
+        return ContainerHeader.read(new DataInputStream(in));
+    }
+
+    private static EncryptionOptions options() {
+        return EncryptionOptions.defaults().chunkSize(CHUNK_SIZE).parallelism(2).compression(true);
+    }
+}
@@ -0,0 +1,148 @@
+package com.fileencryptor;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import java.lang.reflect.Field;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The derived-key cache: hits skip the derivation, entries are evicted least
+ * recently used first or when they expire, and dropped key material is zeroed.
+ */
+class DerivedKeyCacheTest {
+
+    private static final byte[] SALT = {1, 2, 3, 4, 5, 6, 7, 8};
+    private static final int ITERATIONS = 1000;
+
+    private final AtomicInteger derivations = new AtomicInteger();
+
+    @Test
+    void hitSkipsTheDerivation() throws Exception {
+        DerivedKeyCache cache = new DerivedKeyCache(4, Duration.ofMinutes(1));
+
+        SecretKey first = get(cache, "password");
+        SecretKey second = get(cache, "password");
+
+        assertArrayEquals(first.getEncoded(), second.getEncoded());
+        assertEquals(1, derivations.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void saltAndIterationsArePartOfTheLookup() throws Exception {
+        DerivedKeyCache cache = new DerivedKeyCache(4, Duration.ofMinutes(1));
+
+        get(cache, "password");
+        cache.get("password", new byte[8], ITERATIONS, this::derive);
+        cache.get("password", SALT, ITERATIONS + 1, this::derive);
+
+        assertEquals(3, derivations.get());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    void leastRecentlyUsedKeyIsEvicted() throws Exception {
+        DerivedKeyCache cache = new DerivedKeyCache(2, Duration.ofMinutes(1));
+        get(cache, "first");
+        get(cache, "second");
+        get(cache, "first");
+
+        get(cache, "third");
+        assertEquals(2, cache.size());
+        assertEquals(3, derivations.get());
+
+        get(cache, "first");
+        assertEquals(3, derivations.get());
+        get(cache, "second");
+        assertEquals(4, derivations.get());
+    }
+
+    @Test
+    void expiredKeyIsDerivedAgain() throws Exception {
+        DerivedKeyCache cache = new DerivedKeyCache(4, Duration.ofMillis(1));
+        get(cache, "password");
+
+        Thread.sleep(10);
+        get(cache, "password");
+
+        assertEquals(2, derivations.get());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void evictedAndClearedKeysAreZeroed() throws Exception {
+        DerivedKeyCache cache = new DerivedKeyCache(1, Duration.ofMinutes(1));
+        get(cache, "first");
+        List<byte[]> evicted = cachedKeyBytes(cache);
+
+        get(cache, "second");
+        List<byte[]> cleared = cachedKeyBytes(cache);
+        cache.clear();
+
+        assertZeroed(evicted);
+        assertZeroed(cleared);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void derivedBytesAreZeroedOnceCached() throws Exception {
+        DerivedKeyCache cache = new DerivedKeyCache(4, Duration.ofMinutes(1));
+        byte[] derived = derive();
+
+        SecretKey key = cache.get("password", SALT, ITERATIONS, () -> derived);
+
+        assertZeroed(List.of(derived));
+        assertArrayEquals(derive(), key.getEncoded());
+    }
+
+    @Test
+    void invalidLimitsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new DerivedKeyCache(0, Duration.ofMinutes(1)));
+        assertThrows(IllegalArgumentException.class, () -> new DerivedKeyCache(1, Duration.ZERO));
+    }
+
+    private SecretKey get(DerivedKeyCache cache, String password) throws Exception {
+        return cache.get(password, SALT, ITERATIONS, this::derive);
+    }
+
+    private byte[] derive() {
+        derivations.incrementAndGet();
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte) 0x5a);
+        return key;
+    }
+
+    /**
+     * Reaches into the cache for the key material it holds, which is not
+     * otherwise visible, so the test can see it being overwritten.
+     */
+    private static List<byte[]> cachedKeyBytes(DerivedKeyCache cache) throws Exception {
+        Field entriesField = DerivedKeyCache.class.getDeclaredField("entries");
+        entriesField.setAccessible(true);
+        List<byte[]> keys = new ArrayList<>();
+        for (Object entry : ((Map<?, ?>) entriesField.get(cache)).values()) {
+            Field keyBytes = entry.getClass().getDeclaredField("keyBytes");
+            keyBytes.setAccessible(true);
+            keys.add((byte[]) keyBytes.get(entry));
+        }
+        assertEquals(1, keys.size());
+        return keys;
+    }
+
+    private static void assertZeroed(List<byte[]> keys) {
+        for (byte[] key : keys) {
+            assertArrayEquals(new byte[key.length], key);
+        }
+    }
+}
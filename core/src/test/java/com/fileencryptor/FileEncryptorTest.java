@@ -0,0 +1,221 @@
+package com.fileencryptor;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Round trips and authentication failures of the chunked format, and
+ * decryption of files in the original CBC format.
+ */
+class FileEncryptorTest {
+
+    private static final int CHUNK_SIZE = ContainerHeader.MIN_CHUNK_SIZE;
+    private static final String PASSWORD = "correct horse";
+    private static final String WRONG_PASSWORD = "battery staple";
+
+    private static SecretKey key;
+    private static SecretKey wrongKey;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void deriveKeys() throws Exception {
+        key = FileEncryptor.generateKey(PASSWORD);
+        wrongKey = FileEncryptor.generateKey(WRONG_PASSWORD);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 3 * CHUNK_SIZE + 17})
+    void roundTripsAtChunkBoundaries(int size) throws Exception {
+        byte[] data = randomBytes(size);
+        Path encrypted = encrypt(data, options());
+
+        Path decrypted = directory.resolve("plain.out");
+        FileEncryptor.decryptFile(encrypted, decrypted, key, options());
+        assertArrayEquals(data, Files.readAllBytes(decrypted));
+        FileEncryptor.verifyFile(encrypted, key, options());
+    }
+
+    @ParameterizedTest
+    @EnumSource(CipherSuite.class)
+    void roundTripsWithEverySuite(CipherSuite suite) throws Exception {
+        byte[] data = randomBytes(2 * CHUNK_SIZE + 5);
+        Path encrypted = encrypt(data, options().cipherSuite(suite));
+
+        Path decrypted = directory.resolve("plain.out");
+        FileEncryptor.decryptFile(encrypted, decrypted, key, options());
+        assertArrayEquals(data, Files.readAllBytes(decrypted));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1})
+    void streamsRoundTripAtChunkBoundaries(int size) throws Exception {
+        byte[] data = randomBytes(size);
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        FileEncryptor.encryptStream(new ByteArrayInputStream(data), encrypted, key, options());
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        FileEncryptor.decryptStream(new ByteArrayInputStream(encrypted.toByteArray()), decrypted, key, options());
+        assertArrayEquals(data, decrypted.toByteArray());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 2, 7})
+    void chunkRangesVisitEveryChunkOnce(int chunks) {
+        AtomicIntegerArray visits = new AtomicIntegerArray(chunks);
+        ForkJoinPool.commonPool().invoke(new ParallelChunkCipher.ChunkRange(0, chunks,
+                index -> visits.incrementAndGet((int) index)));
+
+        for (int i = 0; i < chunks; i++) {
+            assertEquals(1, visits.get(i), "chunk " + i);
+        }
+    }
+
+    @Test
+    void wrongKeyFailsAndLeavesNoOutput() throws Exception {
+        Path encrypted = encrypt(randomBytes(2 * CHUNK_SIZE), options());
+
+        Path decrypted = directory.resolve("plain.out");
+        assertThrows(Exception.class, () -> FileEncryptor.decryptFile(encrypted, decrypted, wrongKey, options()));
+        assertFalse(Files.exists(decrypted));
+        assertThrows(Exception.class, () -> FileEncryptor.verifyFile(encrypted, wrongKey, options()));
+    }
+
+    @Test
+    void tamperedChunkFailsAndLeavesNoOutput() throws Exception {
+        Path encrypted = encrypt(randomBytes(3 * CHUNK_SIZE), options());
+        flipByte(encrypted, Files.size(encrypted) - CHUNK_SIZE - 40);
+
+        Path decrypted = directory.resolve("plain.out");
+        assertThrows(Exception.class, () -> FileEncryptor.decryptFile(encrypted, decrypted, key, options()));
+        assertFalse(Files.exists(decrypted));
+        assertThrows(Exception.class, () -> FileEncryptor.verifyFile(encrypted, key, options()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {9, 13, 20, 40, 60, 80})
+    void tamperedHeaderFails(int offset) throws Exception {
+        Path encrypted = encrypt(randomBytes(CHUNK_SIZE), options());
+        flipByte(encrypted, offset);
+
+        assertThrows(Exception.class, () -> FileEncryptor.verifyFile(encrypted, key, options()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 16, CHUNK_SIZE + 28})
+    void truncatedFileFails(int removed) throws Exception {
+        Path encrypted = encrypt(randomBytes(3 * CHUNK_SIZE), options());
+        try (FileChannel channel = FileChannel.open(encrypted, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - removed);
+        }
+
+        Path decrypted = directory.resolve("plain.out");
+        assertThrows(Exception.class, () -> FileEncryptor.decryptFile(encrypted, decrypted, key, options()));
+        assertFalse(Files.exists(decrypted));
+        assertThrows(Exception.class, () -> FileEncryptor.verifyFile(encrypted, key, options()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 15, 16, 100_000})
+    void decryptsFilesInTheOriginalCbcFormat(int size) throws Exception {
+        byte[] data = randomBytes(size);
+        Path encrypted = directory.resolve("legacy.encrypted");
+        Files.write(encrypted, encryptLikeTheOriginalVersion(data, PASSWORD));
+
+        Path decrypted = directory.resolve("plain.out");
+        FileEncryptor.decrypt(encrypted.toString(), decrypted.toString(), PASSWORD);
+        assertArrayEquals(data, Files.readAllBytes(decrypted));
+        FileEncryptor.verify(encrypted.toString(), PASSWORD);
+
+        assertThrows(Exception.class, () -> FileEncryptor.verify(encrypted.toString(), WRONG_PASSWORD));
+    }
+
+    @Test
+    void legacyFormatOptionStillWritesCbc() throws Exception {
+        byte[] data = randomBytes(CHUNK_SIZE + 1);
+        Path encrypted = encrypt(data, options().legacyFormat(true));
+        assertEquals(16 + (data.length / 16 + 1) * 16, Files.size(encrypted));
+
+        Path decrypted = directory.resolve("plain.out");
+        FileEncryptor.decryptFile(encrypted, decrypted, key, options());
+        assertArrayEquals(data, Files.readAllBytes(decrypted));
+    }
+
+    /**
+     * Writes a file the way the first release did: a random IV followed by
+     * AES/CBC/PKCS5Padding under a PBKDF2 key with the fixed salt, written out
+     * here rather than through FileEncryptor so a change to either side shows.
+     */
+    private static byte[] encryptLikeTheOriginalVersion(byte[] data, String password) throws Exception {
+        byte[] salt = {(byte) 0x43, (byte) 0x76, (byte) 0x95, (byte) 0xc7,
+                (byte) 0x5b, (byte) 0xd7, (byte) 0x45, (byte) 0x17};
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        byte[] keyBytes = factory.generateSecret(new PBEKeySpec(password.toCharArray(), salt, 65536, 256))
+                .getEncoded();
+
+        byte[] iv = new byte[16];
+        new Random(1).nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes, "AES"), new IvParameterSpec(iv));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(iv);
+        out.write(cipher.doFinal(data));
+        return out.toByteArray();
+    }
+
+    private Path encrypt(byte[] data, EncryptionOptions options) throws Exception {
+        Path plain = directory.resolve("plain");
+        Files.write(plain, data);
+        Path encrypted = directory.resolve("plain.encrypted");
+        FileEncryptor.encryptFile(plain, encrypted, key, options);
+        return encrypted;
+    }
+
+    private static EncryptionOptions options() {
+        return EncryptionOptions.defaults().chunkSize(CHUNK_SIZE).parallelism(2);
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    static void flipByte(Path file, long position) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            channel.read(one, position);
+            one.put(0, (byte) (one.get(0) ^ 0x01));
+            one.rewind();
+            channel.write(one, position);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.fileencryptor;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Incremental encryption: only changed chunks are rewritten, files that grow
+ * or shrink still decrypt to the new plaintext, and anything that makes the
+ * previous output unusable starts over.
+ */
+class IncrementalEncryptionTest {
+
+    private static final int CHUNK_SIZE = ContainerHeader.MIN_CHUNK_SIZE;
+
+    private static SecretKey key;
+    private static SecretKey otherKey;
+
+    @TempDir
+    Path directory;
+
+    private Path plain;
+    private Path encrypted;
+
+    @BeforeAll
+    static void deriveKeys() throws Exception {
+        key = FileEncryptor.generateKey("correct horse");
+        otherKey = FileEncryptor.generateKey("battery staple");
+    }
+
+    @BeforeEach
+    void setUp() {
+        plain = directory.resolve("plain");
+        encrypted = directory.resolve("plain.encrypted");
+    }
+
+    @Test
+    void firstRunEncryptsEverything() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(4 * CHUNK_SIZE);
+
+        IncrementalResult result = update(data);
+
+        assertTrue(result.isFullRewrite());
+        assertEquals(4, result.getChunksWritten());
+        assertDecryptsTo(data);
+    }
+
+    @Test
+    void onlyChangedChunksAreWritten() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(4 * CHUNK_SIZE + 10);
+        update(data);
+
+        data[2 * CHUNK_SIZE + 5] ^= 0x01;
+        IncrementalResult result = update(data);
+
+        assertFalse(result.isFullRewrite());
+        assertEquals(1, result.getChunksWritten());
+        assertDecryptsTo(data);
+    }
+
+    @Test
+    void unchangedFileWritesNothing() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(3 * CHUNK_SIZE);
+        update(data);
+
+        assertEquals(0, update(data).getChunksWritten());
+        assertDecryptsTo(data);
+    }
+
+    @Test
+    void shrinkingFileIsTruncated() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(4 * CHUNK_SIZE + 10);
+        update(data);
+        long before = Files.size(encrypted);
+
+        byte[] shorter = Arrays.copyOf(data, 2 * CHUNK_SIZE - 7);
+        IncrementalResult result = update(shorter);
+
+        assertFalse(result.isFullRewrite());
+        assertEquals(1, result.getChunksWritten());
+        assertTrue(Files.size(encrypted) < before);
+        assertDecryptsTo(shorter);
+    }
+
+    @Test
+    void shrinkingToAChunkBoundaryRewritesTheNewLastChunk() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(3 * CHUNK_SIZE + 1);
+        update(data);
+
+        // The last chunk's marker is authenticated, so the old second chunk must be sealed again
+        byte[] shorter = Arrays.copyOf(data, 2 * CHUNK_SIZE);
+        update(shorter);
+
+        assertDecryptsTo(shorter);
+    }
+
+    @Test
+    void shrinkingToEmptyStillDecrypts() throws Exception {
+        update(FileEncryptorTest.randomBytes(2 * CHUNK_SIZE));
+
+        update(new byte[0]);
+
+        assertDecryptsTo(new byte[0]);
+    }
+
+    @Test
+    void growingFileAppendsChunks() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(CHUNK_SIZE + 3);
+        update(data);
+
+        byte[] longer = FileEncryptorTest.randomBytes(3 * CHUNK_SIZE);
+        System.arraycopy(data, 0, longer, 0, CHUNK_SIZE);
+        IncrementalResult result = update(longer);
+
+        assertFalse(result.isFullRewrite());
+        assertEquals(2, result.getChunksWritten());
+        assertDecryptsTo(longer);
+    }
+
+    @Test
+    void missingManifestEncryptsEverything() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(2 * CHUNK_SIZE);
+        update(data);
+        Files.delete(ChunkManifest.pathFor(encrypted));
+
+        assertTrue(update(data).isFullRewrite());
+        assertDecryptsTo(data);
+    }
+
+    @Test
+    void missingOutputEncryptsEverything() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(2 * CHUNK_SIZE);
+        update(data);
+        Files.delete(encrypted);
+
+        assertTrue(update(data).isFullRewrite());
+        assertDecryptsTo(data);
+    }
+
+    @Test
+    void differentKeyEncryptsEverything() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(3 * CHUNK_SIZE);
+        update(data);
+
+        IncrementalResult result = FileEncryptor.encryptIncremental(plain, encrypted, otherKey, options());
+
+        assertTrue(result.isFullRewrite());
+        assertDecryptsTo(data, otherKey);
+    }
+
+    @Test
+    void differentChunkSizeEncryptsEverything() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(4 * CHUNK_SIZE);
+        update(data);
+
+        IncrementalResult result = FileEncryptor.encryptIncremental(plain, encrypted, key,
+                options().chunkSize(2 * CHUNK_SIZE));
+
+        assertTrue(result.isFullRewrite());
+        assertEquals(2, result.getChunksWritten());
+        assertDecryptsTo(data);
+    }
+
+    @Test
+    void cancelledRunRemovesOutputAndManifest() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(2 * CHUNK_SIZE);
+        update(data);
+        data[0] ^= 0x01;
+        Files.write(plain, data);
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+
+        assertThrows(CancellationException.class,
+                () -> FileEncryptor.encryptIncremental(plain, encrypted, key, options().cancellationToken(token)));
+
+        assertFalse(Files.exists(encrypted));
+        assertFalse(Files.exists(ChunkManifest.pathFor(encrypted)));
+        assertTrue(update(data).isFullRewrite());
+    }
+
+    private IncrementalResult update(byte[] data) throws Exception {
+        Files.write(plain, data);
+        return FileEncryptor.encryptIncremental(plain, encrypted, key, options());
+    }
+
+    private static EncryptionOptions options() {
+        return EncryptionOptions.defaults().chunkSize(CHUNK_SIZE).parallelism(2);
+    }
+
+    private void assertDecryptsTo(byte[] data) throws Exception {
+        assertDecryptsTo(data, key);
+    }
+
+    private void assertDecryptsTo(byte[] data, SecretKey decryptionKey) throws Exception {
+        Path decrypted = directory.resolve("plain.out");
+        FileEncryptor.decryptFile(encrypted, decrypted, decryptionKey, EncryptionOptions.defaults());
+        assertArrayEquals(data, Files.readAllBytes(decrypted));
+    }
+}
@@ -0,0 +1,181 @@
+package com.fileencryptor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The overlapped read, cipher and write pipeline: its output matches the
+ * cipher run on its own, and a failure in any stage is rethrown by
+ * {@link PipelinedCipher#transfer} after the other stages have stopped.
+ */
+class PipelinedCipherTest {
+
+    private static final int BUFFER_SIZE = 4 * 1024;
+    private static final int DEPTH = 2;
+    private static final SecretKeySpec KEY = new SecretKeySpec(new byte[32], "AES");
+    private static final IvParameterSpec IV = new IvParameterSpec(new byte[16]);
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, BUFFER_SIZE - 1, BUFFER_SIZE, 10 * BUFFER_SIZE + 5})
+    void outputMatchesTheCipherAlone(int size) throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(size);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        PipelinedCipher.transfer(cipher(Cipher.ENCRYPT_MODE), PipelinedCipher.input(new ByteArrayInputStream(data)),
+                PipelinedCipher.output(out), ByteBuffer::allocate, options(), tracker(options()));
+
+        assertArrayEquals(cipher(Cipher.ENCRYPT_MODE).doFinal(data), out.toByteArray());
+    }
+
+    @Test
+    void readFailureIsRethrownAndStopsTheWriter() {
+        IOException failure = new IOException("disk gone");
+        AtomicInteger reads = new AtomicInteger();
+        AtomicInteger writes = new AtomicInteger();
+
+        IOException thrown = assertThrows(IOException.class, () -> PipelinedCipher.transfer(
+                cipher(Cipher.ENCRYPT_MODE),
+                buffer -> {
+                    if (reads.incrementAndGet() > 5) {
+                        throw failure;
+                    }
+                    return fill(buffer);
+                },
+                buffer -> {
+                    writes.incrementAndGet();
+                    buffer.position(buffer.limit());
+                },
+                ByteBuffer::allocate, options(), tracker(options())));
+
+        assertSame(failure, thrown);
+        assertStopped(reads, writes);
+    }
+
+    @Test
+    void writeFailureIsRethrownAndStopsTheReader() {
+        IOException failure = new IOException("disk full");
+        AtomicInteger reads = new AtomicInteger();
+        AtomicInteger writes = new AtomicInteger();
+
+        IOException thrown = assertThrows(IOException.class, () -> PipelinedCipher.transfer(
+                cipher(Cipher.ENCRYPT_MODE),
+                buffer -> {
+                    reads.incrementAndGet();
+                    return fill(buffer); // never ends
+                },
+                buffer -> {
+                    if (writes.incrementAndGet() > 3) {
+                        throw failure;
+                    }
+                    buffer.position(buffer.limit());
+                },
+                ByteBuffer::allocate, options(), tracker(options())));
+
+        assertSame(failure, thrown);
+        assertStopped(reads, writes);
+    }
+
+    @Test
+    void runtimeFailureInAStageIsRethrownAsItIs() {
+        IllegalStateException failure = new IllegalStateException("broken input");
+
+        IllegalStateException thrown = assertThrows(IllegalStateException.class, () -> PipelinedCipher.transfer(
+                cipher(Cipher.ENCRYPT_MODE),
+                buffer -> {
+                    throw failure;
+                },
+                buffer -> buffer.position(buffer.limit()),
+                ByteBuffer::allocate, options(), tracker(options())));
+
+        assertSame(failure, thrown);
+    }
+
+    @Test
+    void cipherFailureIsRethrown() throws Exception {
+        byte[] notPadded = cipher(Cipher.ENCRYPT_MODE).doFinal(FileEncryptorTest.randomBytes(3 * BUFFER_SIZE));
+        notPadded[notPadded.length - 1] ^= 0x01;
+
+        assertThrows(BadPaddingException.class, () -> PipelinedCipher.transfer(cipher(Cipher.DECRYPT_MODE),
+                PipelinedCipher.input(new ByteArrayInputStream(notPadded)),
+                PipelinedCipher.output(new ByteArrayOutputStream()), ByteBuffer::allocate, options(),
+                tracker(options())));
+    }
+
+    @Test
+    void cancellationStopsEveryStage() {
+        CancellationToken token = new CancellationToken();
+        EncryptionOptions options = options().cancellationToken(token);
+        AtomicInteger reads = new AtomicInteger();
+        AtomicInteger writes = new AtomicInteger();
+
+        assertThrows(CancellationException.class, () -> PipelinedCipher.transfer(
+                cipher(Cipher.ENCRYPT_MODE),
+                buffer -> {
+                    if (reads.incrementAndGet() == 10) {
+                        token.cancel();
+                    }
+                    return fill(buffer);
+                },
+                buffer -> {
+                    writes.incrementAndGet();
+                    buffer.position(buffer.limit());
+                },
+                ByteBuffer::allocate, options, tracker(options)));
+
+        assertStopped(reads, writes);
+    }
+
+    /**
+     * Checks that neither stage runs on after transfer has returned.
+     */
+    private static void assertStopped(AtomicInteger reads, AtomicInteger writes) {
+        int readsAfter = reads.get();
+        int writesAfter = writes.get();
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        assertEquals(readsAfter, reads.get());
+        assertEquals(writesAfter, writes.get());
+        assertTrue(readsAfter < 100, "reads " + readsAfter);
+    }
+
+    private static int fill(ByteBuffer buffer) {
+        int n = buffer.remaining();
+        buffer.position(buffer.limit());
+        return n;
+    }
+
+    private static Cipher cipher(int mode) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(mode, KEY, IV);
+        return cipher;
+    }
+
+    private static EncryptionOptions options() {
+        return EncryptionOptions.defaults().bufferSize(BUFFER_SIZE).pipelineDepth(DEPTH);
+    }
+
+    private static ProgressTracker tracker(EncryptionOptions options) {
+        return ProgressTracker.create(options, -1);
+    }
+}
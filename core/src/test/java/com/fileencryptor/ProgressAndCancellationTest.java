@@ -0,0 +1,146 @@
+package com.fileencryptor;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Progress reports and cancellation of ordinary, non-resumable runs: the last
+ * report covers every input byte, and a cancelled run throws and leaves no
+ * output behind.
+ */
+class ProgressAndCancellationTest {
+
+    private static final int CHUNK_SIZE = ContainerHeader.MIN_CHUNK_SIZE;
+    private static final int SIZE = 10 * CHUNK_SIZE + 5;
+
+    private static SecretKey key;
+
+    @TempDir
+    Path directory;
+
+    private Path plain;
+    private Path encrypted;
+    private Path decrypted;
+    private final AtomicLong lastDone = new AtomicLong();
+    private final AtomicLong lastTotal = new AtomicLong();
+
+    @BeforeAll
+    static void deriveKey() throws Exception {
+        key = FileEncryptor.generateKey("correct horse");
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        plain = directory.resolve("plain");
+        encrypted = directory.resolve("plain.encrypted");
+        decrypted = directory.resolve("plain.out");
+        Files.write(plain, FileEncryptorTest.randomBytes(SIZE));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void encryptionReportsEveryInputByte(boolean legacyFormat) throws Exception {
+        FileEncryptor.encryptFile(plain, encrypted, key,
+                options().legacyFormat(legacyFormat).progressListener(this::record));
+
+        assertEquals(SIZE, lastTotal.get());
+        assertEquals(SIZE, lastDone.get());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void decryptionReportsEveryInputByte(boolean legacyFormat) throws Exception {
+        FileEncryptor.encryptFile(plain, encrypted, key, options().legacyFormat(legacyFormat));
+
+        FileEncryptor.decryptFile(encrypted, decrypted, key, options().progressListener(this::record));
+
+        assertEquals(Files.size(encrypted), lastTotal.get());
+        assertEquals(Files.size(encrypted), lastDone.get());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void cancelledEncryptionLeavesNoOutput(boolean legacyFormat) {
+        assertThrows(CancellationException.class, () -> FileEncryptor.encryptFile(plain, encrypted, key,
+                options().legacyFormat(legacyFormat).cancellationToken(cancelled())));
+
+        assertFalse(Files.exists(encrypted));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void cancelledDecryptionLeavesNoOutput(boolean legacyFormat) throws Exception {
+        FileEncryptor.encryptFile(plain, encrypted, key, options().legacyFormat(legacyFormat));
+
+        assertThrows(CancellationException.class, () -> FileEncryptor.decryptFile(encrypted, decrypted, key,
+                options().cancellationToken(cancelled())));
+
+        assertFalse(Files.exists(decrypted));
+    }
+
+    @Test
+    void cancelledVerifyThrows() throws Exception {
+        FileEncryptor.encryptFile(plain, encrypted, key, options());
+
+        assertThrows(CancellationException.class,
+                () -> FileEncryptor.verifyFile(encrypted, key, options().cancellationToken(cancelled())));
+    }
+
+    @Test
+    void cancellingPartWayStopsAStream() {
+        CancellationToken token = new CancellationToken();
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(FileEncryptorTest.randomBytes(SIZE))) {
+            private long read;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                read += Math.max(n, 0);
+                if (read > SIZE / 2) {
+                    token.cancel();
+                }
+                return n;
+            }
+        };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertThrows(CancellationException.class,
+                () -> FileEncryptor.encryptStream(in, out, key, options().cancellationToken(token)));
+        assertTrue(out.size() < SIZE);
+    }
+
+    private void record(long done, long total) {
+        lastDone.accumulateAndGet(done, Math::max);
+        lastTotal.set(total);
+    }
+
+    private static CancellationToken cancelled() {
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        return token;
+    }
+
+    private static EncryptionOptions options() {
+        return EncryptionOptions.defaults().chunkSize(CHUNK_SIZE).bufferSize(CHUNK_SIZE).parallelism(2);
+    }
+}
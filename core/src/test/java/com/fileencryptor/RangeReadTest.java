@@ -0,0 +1,120 @@
+package com.fileencryptor;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Random access into the chunked format: only the chunks a read touches are
+ * decrypted and authenticated.
+ */
+class RangeReadTest {
+
+    private static final int CHUNK_SIZE = ContainerHeader.MIN_CHUNK_SIZE;
+    private static final String PASSWORD = "correct horse";
+
+    private static SecretKey key;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void deriveKey() throws Exception {
+        key = FileEncryptor.generateKey(PASSWORD);
+    }
+
+    @Test
+    void rangeReadsCrossChunkBoundaries() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(3 * CHUNK_SIZE + 100);
+        String path = encrypt(data, options()).toString();
+
+        assertArrayEquals(Arrays.copyOfRange(data, CHUNK_SIZE - 10, CHUNK_SIZE + 10),
+                FileEncryptor.decryptRange(path, PASSWORD, CHUNK_SIZE - 10, 20));
+        assertArrayEquals(Arrays.copyOfRange(data, 0, 2 * CHUNK_SIZE + 1),
+                FileEncryptor.decryptRange(path, PASSWORD, 0, 2 * CHUNK_SIZE + 1));
+        assertArrayEquals(Arrays.copyOfRange(data, data.length - 50, data.length),
+                FileEncryptor.decryptRange(path, PASSWORD, data.length - 50, 1000));
+        assertEquals(0, FileEncryptor.decryptRange(path, PASSWORD, data.length + 5, 10).length);
+    }
+
+    @Test
+    void decryptedChannelSeeks() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(2 * CHUNK_SIZE + 3);
+        Path encrypted = encrypt(data, options());
+
+        try (SeekableByteChannel channel = FileEncryptor.openDecrypted(encrypted.toString(), PASSWORD)) {
+            assertEquals(data.length, channel.size());
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            channel.position(CHUNK_SIZE * 2 - 4);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // read across the boundary
+            }
+            assertArrayEquals(Arrays.copyOfRange(data, CHUNK_SIZE * 2 - 4, CHUNK_SIZE * 2 + 3),
+                    Arrays.copyOf(buffer.array(), 7));
+            assertEquals(data.length, channel.position());
+            assertThrows(NonWritableChannelException.class, () -> channel.write(ByteBuffer.allocate(1)));
+        }
+    }
+
+    @Test
+    void tamperedChunkOnlyFailsTheReadsThatTouchIt() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(3 * CHUNK_SIZE);
+        Path encrypted = encrypt(data, options());
+        FileEncryptorTest.flipByte(encrypted, ContainerHeader.CURRENT_LENGTH + CHUNK_SIZE + 100);
+        String path = encrypted.toString();
+
+        assertArrayEquals(Arrays.copyOfRange(data, 2 * CHUNK_SIZE, 2 * CHUNK_SIZE + 10),
+                FileEncryptor.decryptRange(path, PASSWORD, 2 * CHUNK_SIZE, 10));
+        assertThrows(IOException.class, () -> FileEncryptor.decryptRange(path, PASSWORD, CHUNK_SIZE - 1, 2));
+    }
+
+    @Test
+    void wrongPasswordIsRejected() throws Exception {
+        String path = encrypt(FileEncryptorTest.randomBytes(CHUNK_SIZE), options()).toString();
+
+        assertThrows(Exception.class, () -> FileEncryptor.decryptRange(path, "battery staple", 0, 10));
+    }
+
+    @Test
+    void filesWithoutRandomAccessAreRejected() throws Exception {
+        byte[] data = new byte[4 * CHUNK_SIZE]; // zeros always compress
+        String legacy = encrypt(data, options().legacyFormat(true)).toString();
+        assertThrows(IllegalArgumentException.class, () -> FileEncryptor.decryptRange(legacy, PASSWORD, 0, 10));
+
+        String compressed = encrypt(data, options().compression(true)).toString();
+        assertThrows(IllegalArgumentException.class, () -> FileEncryptor.decryptRange(compressed, PASSWORD, 0, 10));
+    }
+
+    @Test
+    void negativeRangesAreRejected() throws Exception {
+        String path = encrypt(FileEncryptorTest.randomBytes(10), options()).toString();
+
+        assertThrows(IllegalArgumentException.class, () -> FileEncryptor.decryptRange(path, PASSWORD, -1, 10));
+        assertThrows(IllegalArgumentException.class, () -> FileEncryptor.decryptRange(path, PASSWORD, 0, -1));
+    }
+
+    private Path encrypt(byte[] data, EncryptionOptions options) throws Exception {
+        Path plain = directory.resolve("plain");
+        Files.write(plain, data);
+        Path encrypted = directory.resolve("plain.encrypted");
+        FileEncryptor.encryptFile(plain, encrypted, key, options);
+        return encrypted;
+    }
+
+    private static EncryptionOptions options() {
+        return EncryptionOptions.defaults().chunkSize(CHUNK_SIZE).parallelism(2);
+    }
+}
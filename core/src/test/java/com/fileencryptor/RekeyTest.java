@@ -0,0 +1,111 @@
+package com.fileencryptor;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Envelope rekeying: a new password rewrites only the wrapped data key in the
+ * header, after which only the new password opens the file.
+ */
+class RekeyTest {
+
+    private static final int CHUNK_SIZE = ContainerHeader.MIN_CHUNK_SIZE;
+    private static final String PASSWORD = "correct horse";
+    private static final String NEW_PASSWORD = "battery staple";
+
+    private static SecretKey key;
+    private static SecretKey newKey;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void deriveKeys() throws Exception {
+        key = FileEncryptor.generateKey(PASSWORD);
+        newKey = FileEncryptor.generateKey(NEW_PASSWORD);
+    }
+
+    @Test
+    void rekeyOnlyOpensWithTheNewKey() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(2 * CHUNK_SIZE + 1);
+        Path encrypted = encrypt(data, options());
+        byte[] before = Files.readAllBytes(encrypted);
+
+        FileEncryptor.rekeyFile(encrypted, key, newKey, options());
+
+        byte[] after = Files.readAllBytes(encrypted);
+        assertEquals(before.length, after.length);
+        assertArrayEquals(Arrays.copyOfRange(before, ContainerHeader.CURRENT_LENGTH, before.length),
+                Arrays.copyOfRange(after, ContainerHeader.CURRENT_LENGTH, after.length));
+        assertThrows(Exception.class, () -> FileEncryptor.verifyFile(encrypted, key, options()));
+        assertDecryptsTo(data, encrypted, newKey);
+    }
+
+    @Test
+    void rekeyWithWrongKeyLeavesTheFileAlone() throws Exception {
+        Path encrypted = encrypt(FileEncryptorTest.randomBytes(CHUNK_SIZE), options());
+        byte[] before = Files.readAllBytes(encrypted);
+
+        assertThrows(Exception.class, () -> FileEncryptor.rekeyFile(encrypted, newKey, key, options()));
+        assertArrayEquals(before, Files.readAllBytes(encrypted));
+    }
+
+    @Test
+    void passwordsCanBeChangedBack() throws Exception {
+        byte[] data = FileEncryptorTest.randomBytes(CHUNK_SIZE + 9);
+        Path encrypted = encrypt(data, options());
+
+        FileEncryptor.rekey(encrypted.toString(), PASSWORD, NEW_PASSWORD);
+        FileEncryptor.rekey(encrypted.toString(), NEW_PASSWORD, PASSWORD);
+
+        assertThrows(Exception.class, () -> FileEncryptor.verifyFile(encrypted, newKey, options()));
+        assertDecryptsTo(data, encrypted, key);
+    }
+
+    @Test
+    void compressedFileStaysCompressed() throws Exception {
+        byte[] data = new byte[4 * CHUNK_SIZE]; // zeros always compress
+        Path encrypted = encrypt(data, options().compression(true));
+
+        FileEncryptor.rekeyFile(encrypted, key, newKey, options());
+
+        assertDecryptsTo(data, encrypted, newKey);
+    }
+
+    @Test
+    void fileWithoutAWrappedKeyIsRejected() throws Exception {
+        Path encrypted = encrypt(FileEncryptorTest.randomBytes(CHUNK_SIZE), options().legacyFormat(true));
+        byte[] before = Files.readAllBytes(encrypted);
+
+        assertThrows(IllegalArgumentException.class, () -> FileEncryptor.rekeyFile(encrypted, key, newKey, options()));
+        assertArrayEquals(before, Files.readAllBytes(encrypted));
+    }
+
+    private Path encrypt(byte[] data, EncryptionOptions options) throws Exception {
+        Path plain = directory.resolve("plain");
+        Files.write(plain, data);
+        Path encrypted = directory.resolve("plain.encrypted");
+        FileEncryptor.encryptFile(plain, encrypted, key, options);
+        return encrypted;
+    }
+
+    private void assertDecryptsTo(byte[] data, Path encrypted, SecretKey decryptionKey) throws Exception {
+        Path decrypted = directory.resolve("plain.out");
+        FileEncryptor.decryptFile(encrypted, decrypted, decryptionKey, options());
+        assertArrayEquals(data, Files.readAllBytes(decrypted));
+    }
+
+    private static EncryptionOptions options() {
+        return EncryptionOptions.defaults().chunkSize(CHUNK_SIZE).parallelism(2);
+    }
+}
@@ -0,0 +1,303 @@
+package com.fileencryptor;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Resumable encryption: a run that fails keeps its committed chunks and the
+ * next run continues after them in the format of the first run, while a
+ * cancelled run, or one that fails before its first checkpoint, cleans up.
+ */
+class ResumableEncryptionTest {
+
+    private static final int CHUNK_SIZE = ContainerHeader.MIN_CHUNK_SIZE;
+    private static final int CHUNKS_PER_CHECKPOINT = 4;
+    private static final int SIZE = 20 * CHUNK_SIZE + 99;
+
+    private static SecretKey key;
+    private static SecretKey wrongKey;
+
+    @TempDir
+    Path directory;
+
+    private Path plain;
+    private Path encrypted;
+    private byte[] data;
+
+    @BeforeAll
+    static void deriveKeys() throws Exception {
+        key = FileEncryptor.generateKey("correct horse");
+        wrongKey = FileEncryptor.generateKey("battery staple");
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        plain = directory.resolve("plain");
+        encrypted = directory.resolve("plain.encrypted");
+        data = FileEncryptorTest.randomBytes(SIZE);
+        Files.write(plain, data);
+    }
+
+    @Test
+    void completedRunLeavesNoCheckpoint() throws Exception {
+        FileEncryptor.encryptFile(plain, encrypted, key, options());
+
+        assertFalse(Files.exists(EncryptionCheckpoint.pathFor(encrypted)));
+        assertEquals(-1, resumablePosition());
+        assertDecrypts();
+    }
+
+    @Test
+    void failedRunResumesAfterTheCommittedChunks() throws Exception {
+        interrupt();
+        long position = resumablePosition();
+        assertTrue(position > 0 && position < SIZE, "position " + position);
+        assertEquals(0, position % ((long) CHUNKS_PER_CHECKPOINT * CHUNK_SIZE));
+
+        byte[] committed = committedPrefix(position);
+        FileEncryptor.encryptFile(plain, encrypted, key, options());
+
+        // Chunks are sealed under fresh nonces, so only a resumed run leaves the prefix as it was
+        assertArrayEquals(committed, committedPrefix(position));
+        assertFalse(Files.exists(EncryptionCheckpoint.pathFor(encrypted)));
+        assertDecrypts();
+    }
+
+    @Test
+    void cancelledRunRemovesOutputAndCheckpoint() throws Exception {
+        interrupt();
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+
+        assertThrows(CancellationException.class, () -> FileEncryptor.encryptFile(plain, encrypted, key, options()
+                .cancellationToken(token)));
+
+        assertFalse(Files.exists(encrypted));
+        assertFalse(Files.exists(EncryptionCheckpoint.pathFor(encrypted)));
+    }
+
+    @Test
+    void wrongKeyKeepsTheCommittedChunks() throws Exception {
+        interrupt();
+        long position = resumablePosition();
+
+        assertThrows(Exception.class, () -> FileEncryptor.encryptFile(plain, encrypted, wrongKey, options()));
+
+        assertEquals(position, resumablePosition());
+        FileEncryptor.encryptFile(plain, encrypted, key, options());
+        assertDecrypts();
+    }
+
+    @Test
+    void tamperedPrefixStartsOver() throws Exception {
+        interrupt();
+        FileEncryptorTest.flipByte(encrypted, ContainerHeader.CURRENT_LENGTH + 100);
+        byte[] header = committedPrefix(0);
+
+        FileEncryptor.encryptFile(plain, encrypted, key, options());
+
+        // Starting over generates a new file id and data key
+        assertFalse(Arrays.equals(header, committedPrefix(0)));
+        assertDecrypts();
+    }
+
+    @Test
+    void changedInputStartsOver() throws Exception {
+        interrupt();
+        data[0] ^= 0x01;
+        Files.write(plain, data);
+        Files.setLastModifiedTime(plain, FileTime.fromMillis(0));
+
+        assertEquals(-1, resumablePosition());
+        FileEncryptor.encryptFile(plain, encrypted, key, options());
+        assertDecrypts();
+    }
+
+    @Test
+    void discardRemovesAnInterruptedRunOnly() throws Exception {
+        interrupt();
+        assertTrue(FileEncryptor.discardResumable(encrypted.toString()));
+        assertFalse(Files.exists(encrypted));
+        assertFalse(Files.exists(EncryptionCheckpoint.pathFor(encrypted)));
+
+        FileEncryptor.encryptFile(plain, encrypted, key, options());
+        assertFalse(FileEncryptor.discardResumable(encrypted.toString()));
+        assertDecrypts();
+    }
+
+    @Test
+    void failureBeforeTheFirstCheckpointLeavesNothing() {
+        EncryptionOptions options = options().checkpointInterval(2L * SIZE);
+
+        assertThrows(IllegalStateException.class, () -> FileEncryptor.encryptFile(plain, encrypted, key,
+                failingPartWay(options)));
+
+        assertFalse(Files.exists(encrypted));
+        assertFalse(Files.exists(EncryptionCheckpoint.pathFor(encrypted)));
+    }
+
+    @Test
+    void shortIntervalCommitsEveryChunk() throws Exception {
+        assertThrows(IllegalArgumentException.class, () -> options().checkpointInterval(0));
+
+        interrupt(options().checkpointInterval(1));
+
+        long position = resumablePosition();
+        assertTrue(position > CHUNKS_PER_CHECKPOINT * CHUNK_SIZE && position < SIZE, "position " + position);
+        assertEquals(0, position % CHUNK_SIZE);
+        FileEncryptor.encryptFile(plain, encrypted, key, options());
+        assertDecrypts();
+    }
+
+    @Test
+    void resumedRunKeepsTheFormatOfTheFirst() throws Exception {
+        interrupt();
+        long position = resumablePosition();
+        byte[] committed = committedPrefix(position);
+
+        FileEncryptor.encryptFile(plain, encrypted, key, options().chunkSize(2 * CHUNK_SIZE).compression(true));
+
+        assertArrayEquals(committed, committedPrefix(position));
+        assertEquals(uncompressedLength(CHUNK_SIZE), Files.size(encrypted));
+        assertDecrypts();
+    }
+
+    @Test
+    void resumableRunsAreNeverCompressed() throws Exception {
+        Arrays.fill(data, (byte) 'a');
+        Files.write(plain, data);
+
+        interrupt(options().compression(true));
+        assertTrue(resumablePosition() > 0);
+        FileEncryptor.encryptFile(plain, encrypted, key, options().compression(true));
+
+        assertEquals(uncompressedLength(CHUNK_SIZE), Files.size(encrypted));
+        assertDecrypts();
+    }
+
+    @Test
+    void resumedRunReportsTheWholeFile() throws Exception {
+        interrupt();
+        AtomicLong lastDone = new AtomicLong();
+        AtomicLong lastTotal = new AtomicLong();
+
+        FileEncryptor.encryptFile(plain, encrypted, key, options().progressListener((done, total) -> {
+            lastDone.accumulateAndGet(done, Math::max);
+            lastTotal.set(total);
+        }));
+
+        assertEquals(SIZE, lastDone.get());
+        assertEquals(SIZE, lastTotal.get());
+    }
+
+    @Test
+    void damagedCheckpointStartsOver() throws Exception {
+        interrupt();
+        Files.write(EncryptionCheckpoint.pathFor(encrypted), FileEncryptorTest.randomBytes(53));
+        byte[] header = committedPrefix(0);
+
+        assertEquals(-1, resumablePosition());
+        FileEncryptor.encryptFile(plain, encrypted, key, options());
+
+        assertFalse(Arrays.equals(header, committedPrefix(0)));
+        assertFalse(Files.exists(EncryptionCheckpoint.pathFor(encrypted)));
+        assertDecrypts();
+    }
+
+    @Test
+    void truncatedOutputStartsOver() throws Exception {
+        interrupt();
+        try (FileChannel channel = FileChannel.open(encrypted, StandardOpenOption.WRITE)) {
+            channel.truncate(ContainerHeader.CURRENT_LENGTH + CHUNK_SIZE);
+        }
+
+        assertEquals(-1, resumablePosition());
+        FileEncryptor.encryptFile(plain, encrypted, key, options());
+        assertDecrypts();
+    }
+
+    @Test
+    void folderOperationsSkipAnInterruptedRun() throws Exception {
+        interrupt();
+
+        BatchResult result = FileEncryptor.verifyDirectory(directory, key, EncryptionOptions.defaults());
+
+        assertEquals(0, result.getFilesProcessed());
+        assertFalse(result.hasFailures());
+    }
+
+    /**
+     * Starts a resumable run and makes it fail part way, the way a full disk would.
+     */
+    private void interrupt() {
+        interrupt(options());
+    }
+
+    private void interrupt(EncryptionOptions options) {
+        assertThrows(IllegalStateException.class, () -> FileEncryptor.encryptFile(plain, encrypted, key,
+                failingPartWay(options)));
+        assertTrue(Files.exists(EncryptionCheckpoint.pathFor(encrypted)));
+    }
+
+    private static EncryptionOptions failingPartWay(EncryptionOptions options) {
+        return options.progressListener((done, total) -> {
+            if (done > total * 6 / 10) {
+                throw new IllegalStateException("disk full");
+            }
+        });
+    }
+
+    /**
+     * @param position a committed plaintext position, a multiple of the chunk size
+     * @return the header and the chunk records before that position
+     */
+    private byte[] committedPrefix(long position) throws Exception {
+        long chunks = position / CHUNK_SIZE;
+        int length = (int) (ContainerHeader.CURRENT_LENGTH + chunks * (CHUNK_SIZE + ContainerHeader.CHUNK_OVERHEAD));
+        return Arrays.copyOf(Files.readAllBytes(encrypted), length);
+    }
+
+    /**
+     * @return the size of the whole file encrypted in chunks of a given size without compression
+     */
+    private static long uncompressedLength(int chunkSize) {
+        long chunks = (SIZE + chunkSize - 1) / chunkSize;
+        return ContainerHeader.CURRENT_LENGTH + chunks * ContainerHeader.CHUNK_OVERHEAD + SIZE;
+    }
+
+    private long resumablePosition() throws Exception {
+        return FileEncryptor.resumablePosition(plain.toString(), encrypted.toString());
+    }
+
+    private EncryptionOptions options() {
+        return EncryptionOptions.defaults()
+                .chunkSize(CHUNK_SIZE)
+                .parallelism(2)
+                .resumable(true)
+                .checkpointInterval((long) CHUNKS_PER_CHECKPOINT * CHUNK_SIZE);
+    }
+
+    private void assertDecrypts() throws Exception {
+        Path decrypted = directory.resolve("plain.out");
+        FileEncryptor.decryptFile(encrypted, decrypted, key, EncryptionOptions.defaults());
+        assertArrayEquals(data, Files.readAllBytes(decrypted));
+    }
+}
@@ -16,6 +16,9 @@ public class FileEncryptorApp extends Application {
 
     @Override
     public void start(Stage primaryStage) {
+        // Pick the fastest cipher suite for new files while the window opens
+        CipherCalibration.runInBackground();
+
         try {
             // Load the FXML file
             FXMLLoader loader = new FXMLLoader(getClass().getResource("/com/fileencryptor/FileEncryptorView.fxml"));
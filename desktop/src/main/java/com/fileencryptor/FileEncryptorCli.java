@@ -0,0 +1,561 @@
+package com.fileencryptor;
+
+import javax.crypto.SecretKey;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Headless command line entry point. Uses the same engine as the desktop UI
+ * but never loads JavaFX, so it starts quickly and runs without a display.
+ *
+ * With no input files it reads standard input and writes standard output,
+ * which lets it sit in a shell pipeline:
+ * <pre>
+ * tar c photos | java -cp file-encryptor.jar com.fileencryptor.FileEncryptorCli encrypt --key-file key.txt &gt; photos.tar.encrypted
+ * </pre>
+ *
+ * The verify command authenticates encrypted files without writing any
+ * plaintext, for checking archives. The rekey command changes the key of
+ * encrypted files by rewriting only their headers, so rotating the key of a
+ * large archive takes time per file rather than per byte.
+ *
+ * The pack, list and unpack commands work on indexed archives that hold a
+ * whole folder in one encrypted file (see {@link FileEncryptor#createArchive}).
+ * The calibrate command measures the available cipher suites on this machine.
+ */
+public final class FileEncryptorCli {
+
+    /** Environment variable read when neither --key nor --key-file is given. */
+    static final String KEY_ENVIRONMENT_VARIABLE = "FILE_ENCRYPTOR_KEY";
+
+    /** Environment variable read for rekey when neither --new-key nor --new-key-file is given. */
+    static final String NEW_KEY_ENVIRONMENT_VARIABLE = "FILE_ENCRYPTOR_NEW_KEY";
+
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_FAILURE = 1;
+    private static final int EXIT_USAGE = 2;
+
+    private static final String STANDARD_STREAM = "-";
+
+    /** Value of --cipher that measures the suites first and uses the fastest. */
+    private static final String CALIBRATED_SUITE = "auto";
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java -cp file-encryptor.jar com.fileencryptor.FileEncryptorCli <encrypt|decrypt|verify|rekey> [options] [file|folder...]",
+            "       java -cp file-encryptor.jar com.fileencryptor.FileEncryptorCli pack [options] <folder>",
+            "       java -cp file-encryptor.jar com.fileencryptor.FileEncryptorCli list [options] <archive>",
+            "       java -cp file-encryptor.jar com.fileencryptor.FileEncryptorCli unpack [options] <archive> [entry...]",
+            "       java -cp file-encryptor.jar com.fileencryptor.FileEncryptorCli calibrate",
+            "",
+            "Without files, reads standard input and writes standard output.",
+            "Each file is written next to the original: encrypt adds .encrypted and decrypt removes it.",
+            "verify checks that encrypted files are intact and match the key, and writes nothing.",
+            "rekey changes the key of encrypted files in place by rewriting only their headers.",
+            "Folders are processed recursively.",
+            "pack puts a whole folder into one encrypted archive (.archive) with an encrypted index;",
+            "list shows its entries and unpack extracts all of them or only the named ones.",
+            "calibrate measures the cipher suites on this machine and shows which one auto would pick.",
+            "",
+            "Options:",
+            "  -k, --key <key>           secret key (visible to other users in the process list)",
+            "      --key-file <path>     read the secret key from the first line of a file",
+            "      --new-key <key>       rekey: the secret key to change to",
+            "      --new-key-file <path> rekey: read the new secret key from the first line of a file",
+            "      --threads <n>         worker threads (default: number of processors)",
+            "      --chunk-size <bytes>  chunk size for newly encrypted data (default: 1048576)",
+            "      --cipher <suite>      cipher suite for new files: AES-GCM (default), ChaCha20-Poly1305,",
+            "                            or auto to measure both first and use the faster one",
+            "  -z, --compress            compress before encrypting, unless the data is already compressed",
+            "  -i, --incremental         encrypt files again, rewriting only the chunks that changed since the last",
+            "                            incremental run (keeps a .manifest file next to each output)",
+            "  -r, --resume              encrypt resumably: commit a .checkpoint next to each output every 256 MB,",
+            "                            so running the same command again after an interruption continues it",
+            "  -o, --output <path>       output path for a single input, '-' for standard output;",
+            "                            for unpack, the folder to extract into",
+            "  -h, --help                show this help",
+            "",
+            "If no key option is given, the key is read from " + KEY_ENVIRONMENT_VARIABLE
+                    + " and the new key from " + NEW_KEY_ENVIRONMENT_VARIABLE + ".");
+
+    private FileEncryptorCli() {
+    }
+
+    /**
+     * Main method of the command line tool.
+     *
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs one command.
+     *
+     * @param args command line arguments
+     * @return the process exit code
+     */
+    static int run(String[] args) {
+        Arguments arguments;
+        try {
+            arguments = Arguments.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println("Run with --help for usage.");
+            return EXIT_USAGE;
+        }
+
+        if (arguments.help) {
+            System.out.println(USAGE);
+            return EXIT_OK;
+        }
+        if (arguments.calibrate) {
+            System.out.print(CipherCalibration.run());
+            System.out.println("Fastest: " + CipherCalibration.selectedSuite());
+            return EXIT_OK;
+        }
+
+        try {
+            SecretKey key = FileEncryptor.generateKey(arguments.readKey());
+            SecretKey newKey = arguments.rekey ? FileEncryptor.generateKey(arguments.readNewKey()) : null;
+            EncryptionOptions options = EncryptionOptions.defaults()
+                    .parallelism(arguments.threads)
+                    .compression(arguments.compress)
+                    .cipherSuite(arguments.cipherSuite(CipherSuite.AES_GCM))
+                    .resumable(arguments.resume);
+            if (arguments.chunkSize > 0) {
+                options.chunkSize(arguments.chunkSize);
+            }
+
+            if (arguments.pack || arguments.list || arguments.unpack) {
+                return runArchive(arguments, key, options);
+            }
+
+            if (arguments.inputs.isEmpty()) {
+                if (arguments.verify) {
+                    FileEncryptor.decryptStream(new FileInputStream(FileDescriptor.in), OutputStream.nullOutputStream(),
+                            key, options);
+                    System.out.println("OK");
+                } else {
+                    processStream(arguments, key, options);
+                }
+                return EXIT_OK;
+            }
+
+            boolean failed = false;
+            for (String input : arguments.inputs) {
+                try {
+                    if (arguments.rekey) {
+                        rekeyPath(Paths.get(input), key, newKey, options);
+                    } else {
+                        processPath(Paths.get(input), arguments, key, options);
+                    }
+                } catch (Exception e) {
+                    System.err.println(input + ": " + e.getMessage());
+                    failed = true;
+                }
+            }
+            return failed ? EXIT_FAILURE : EXIT_OK;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            return EXIT_USAGE;
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            return EXIT_FAILURE;
+        }
+    }
+
+    private static void processStream(Arguments arguments, SecretKey key, EncryptionOptions options)
+            throws Exception {
+        InputStream in = new FileInputStream(FileDescriptor.in);
+        if (arguments.output == null || arguments.output.equals(STANDARD_STREAM)) {
+            transfer(arguments.encrypt, in, new FileOutputStream(FileDescriptor.out), key, options);
+            return;
+        }
+
+        Path outputFile = Paths.get(arguments.output);
+        try (OutputStream out = Files.newOutputStream(outputFile)) {
+            transfer(arguments.encrypt, in, out, key, options);
+        } catch (Exception e) {
+            Files.deleteIfExists(outputFile);
+            throw e;
+        }
+    }
+
+    private static void processPath(Path input, Arguments arguments, SecretKey key, EncryptionOptions options)
+            throws Exception {
+        if (Files.isDirectory(input)) {
+            if (arguments.incremental) {
+                throw new IllegalArgumentException("--incremental works on files, not folders");
+            }
+            BatchResult result;
+            if (arguments.verify) {
+                result = FileEncryptor.verifyDirectory(input, key, options);
+            } else if (arguments.encrypt) {
+                result = FileEncryptor.encryptDirectory(input, key, options);
+            } else {
+                result = FileEncryptor.decryptDirectory(input, key, options);
+            }
+            report(input, result);
+            return;
+        }
+
+        if (arguments.verify) {
+            FileEncryptor.verifyFile(input, key, options);
+            System.out.println(input + ": OK");
+            return;
+        }
+
+        if (STANDARD_STREAM.equals(arguments.output)) {
+            try (InputStream in = Files.newInputStream(input)) {
+                transfer(arguments.encrypt, in, new FileOutputStream(FileDescriptor.out), key, options);
+            }
+            return;
+        }
+
+        Path output;
+        if (arguments.output != null) {
+            output = Paths.get(arguments.output);
+        } else if (arguments.encrypt) {
+            output = FileEncryptor.encryptedPathFor(input);
+        } else {
+            output = FileEncryptor.decryptedPathFor(input);
+        }
+
+        if (arguments.incremental) {
+            System.err.println(input + ": " + FileEncryptor.encryptIncremental(input, output, key, options));
+        } else if (arguments.encrypt) {
+            FileEncryptor.encryptFile(input, output, key, options);
+        } else {
+            FileEncryptor.decryptFile(input, output, key, options);
+        }
+    }
+
+    private static void rekeyPath(Path input, SecretKey key, SecretKey newKey, EncryptionOptions options)
+            throws Exception {
+        if (Files.isDirectory(input)) {
+            report(input, FileEncryptor.rekeyDirectory(input, key, newKey, options));
+            return;
+        }
+        FileEncryptor.rekeyFile(input, key, newKey, options);
+        System.out.println(input + ": rekeyed");
+    }
+
+    private static int runArchive(Arguments arguments, SecretKey key, EncryptionOptions options) throws Exception {
+        Path input = Paths.get(arguments.inputs.get(0));
+        if (arguments.pack) {
+            Path archive = arguments.output != null ? Paths.get(arguments.output)
+                    : FileEncryptor.archivePathFor(input);
+            System.err.println(archive + ": " + FileEncryptor.createArchive(input, archive, key, options));
+            return EXIT_OK;
+        }
+
+        if (arguments.list) {
+            for (ArchiveEntry entry : FileEncryptor.listArchive(input, key)) {
+                System.out.printf("%12d  %s%n", entry.getSize(), entry.getName());
+            }
+            return EXIT_OK;
+        }
+
+        Path directory = arguments.output != null ? Paths.get(arguments.output) : unpackDirectoryFor(input);
+        List<String> names = arguments.inputs.subList(1, arguments.inputs.size());
+        if (names.isEmpty()) {
+            report(input, FileEncryptor.extractArchive(input, directory, key, options));
+        } else {
+            report(input, FileEncryptor.extractArchiveEntries(input, names, directory, key, options));
+        }
+        return EXIT_OK;
+    }
+
+    private static Path unpackDirectoryFor(Path archive) {
+        try {
+            return FileEncryptor.extractedPathFor(archive);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(e.getMessage() + "; use --output", e);
+        }
+    }
+
+    private static void report(Path input, BatchResult result) throws Exception {
+        System.err.println(input + ": " + result);
+        for (Map.Entry<Path, Exception> failure : result.getFailures().entrySet()) {
+            System.err.println(failure.getKey() + ": " + failure.getValue().getMessage());
+        }
+        if (result.hasFailures()) {
+            throw new Exception(result.getFailures().size() + " file(s) failed");
+        }
+    }
+
+    private static void transfer(boolean encrypt, InputStream in, OutputStream out, SecretKey key,
+            EncryptionOptions options) throws Exception {
+        if (encrypt) {
+            FileEncryptor.encryptStream(in, out, key, options);
+        } else {
+            FileEncryptor.decryptStream(in, out, key, options);
+        }
+    }
+
+    /**
+     * Parsed command line.
+     */
+    private static final class Arguments {
+
+        boolean help;
+        boolean encrypt;
+        boolean verify;
+        boolean rekey;
+        boolean pack;
+        boolean list;
+        boolean unpack;
+        boolean calibrate;
+        String key;
+        Path keyFile;
+        String newKey;
+        Path newKeyFile;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunkSize;
+        String cipher;
+        boolean compress;
+        boolean incremental;
+        boolean resume;
+        String output;
+        final List<String> inputs = new ArrayList<>();
+
+        static Arguments parse(String[] args) {
+            Arguments arguments = new Arguments();
+            if (args.length == 0) {
+                throw new IllegalArgumentException("Missing command, expected encrypt, decrypt, verify, rekey, "
+                        + "pack, list, unpack or calibrate");
+            }
+
+            switch (args[0]) {
+                case "encrypt":
+                    arguments.encrypt = true;
+                    break;
+                case "decrypt":
+                    arguments.encrypt = false;
+                    break;
+                case "verify":
+                    arguments.verify = true;
+                    break;
+                case "rekey":
+                    arguments.rekey = true;
+                    break;
+                case "pack":
+                    arguments.pack = true;
+                    break;
+                case "list":
+                    arguments.list = true;
+                    break;
+                case "unpack":
+                    arguments.unpack = true;
+                    break;
+                case "calibrate":
+                    arguments.calibrate = true;
+                    break;
+                case "-h":
+                case "--help":
+                    arguments.help = true;
+                    return arguments;
+                default:
+                    throw new IllegalArgumentException("Unknown command: " + args[0]);
+            }
+
+            for (int i = 1; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "-h":
+                    case "--help":
+                        arguments.help = true;
+                        break;
+                    case "-k":
+                    case "--key":
+                        arguments.key = value(args, ++i, arg);
+                        break;
+                    case "--key-file":
+                        arguments.keyFile = Paths.get(value(args, ++i, arg));
+                        break;
+                    case "--new-key":
+                        arguments.newKey = value(args, ++i, arg);
+                        break;
+                    case "--new-key-file":
+                        arguments.newKeyFile = Paths.get(value(args, ++i, arg));
+                        break;
+                    case "--threads":
+                        arguments.threads = positiveInt(value(args, ++i, arg), arg);
+                        break;
+                    case "--chunk-size":
+                        arguments.chunkSize = positiveInt(value(args, ++i, arg), arg);
+                        break;
+                    case "--cipher":
+                        arguments.cipher = value(args, ++i, arg);
+                        if (!arguments.cipher.equalsIgnoreCase(CALIBRATED_SUITE)) {
+                            CipherSuite.fromName(arguments.cipher);
+                        }
+                        break;
+                    case "-z":
+                    case "--compress":
+                        arguments.compress = true;
+                        break;
+                    case "-i":
+                    case "--incremental":
+                        arguments.incremental = true;
+                        break;
+                    case "-r":
+                    case "--resume":
+                        arguments.resume = true;
+                        break;
+                    case "-o":
+                    case "--output":
+                        arguments.output = value(args, ++i, arg);
+                        break;
+                    default:
+                        if (arg.startsWith("-") && !arg.equals(STANDARD_STREAM)) {
+                            throw new IllegalArgumentException("Unknown option: " + arg);
+                        }
+                        arguments.inputs.add(arg);
+                }
+            }
+
+            // A lone "-" means standard input, same as giving no files
+            if (arguments.inputs.size() == 1 && arguments.inputs.get(0).equals(STANDARD_STREAM)) {
+                arguments.inputs.clear();
+            } else if (arguments.inputs.contains(STANDARD_STREAM)) {
+                throw new IllegalArgumentException("Standard input cannot be combined with other inputs");
+            }
+            if (arguments.output != null && arguments.verify) {
+                throw new IllegalArgumentException("verify writes no output; --output cannot be used with it");
+            }
+            if (arguments.output != null && arguments.inputs.size() > 1 && !arguments.unpack) {
+                throw new IllegalArgumentException("--output can only be used with a single input");
+            }
+            if (arguments.incremental && (!arguments.encrypt || arguments.verify || arguments.compress)) {
+                throw new IllegalArgumentException("--incremental only applies to encrypt, without --compress");
+            }
+            if (arguments.incremental && (arguments.inputs.isEmpty() || STANDARD_STREAM.equals(arguments.output))) {
+                throw new IllegalArgumentException("--incremental needs input and output files, not standard streams");
+            }
+            if (arguments.resume && (!arguments.encrypt || arguments.verify || arguments.compress
+                    || arguments.incremental)) {
+                throw new IllegalArgumentException("--resume only applies to encrypt, without --compress "
+                        + "or --incremental");
+            }
+            if (arguments.resume && (arguments.inputs.isEmpty() || STANDARD_STREAM.equals(arguments.output))) {
+                throw new IllegalArgumentException("--resume needs input and output files, not standard streams");
+            }
+            if (arguments.rekey && (arguments.inputs.isEmpty() || arguments.output != null
+                    || arguments.compress || arguments.incremental)) {
+                throw new IllegalArgumentException("rekey changes files in place; give files or folders, "
+                        + "without --output, --compress or --incremental");
+            }
+            if ((arguments.pack || arguments.list) && arguments.inputs.size() != 1) {
+                throw new IllegalArgumentException(args[0] + " takes exactly one "
+                        + (arguments.pack ? "folder" : "archive"));
+            }
+            if (arguments.unpack && arguments.inputs.isEmpty()) {
+                throw new IllegalArgumentException("unpack needs an archive");
+            }
+            if ((arguments.pack || arguments.list || arguments.unpack)
+                    && (arguments.compress || arguments.incremental || STANDARD_STREAM.equals(arguments.output))) {
+                throw new IllegalArgumentException(args[0] + " works on files; --compress, --incremental "
+                        + "and standard output cannot be used with it");
+            }
+            if (arguments.list && arguments.output != null) {
+                throw new IllegalArgumentException("list writes no output; --output cannot be used with it");
+            }
+            if (arguments.calibrate && !arguments.inputs.isEmpty()) {
+                throw new IllegalArgumentException("calibrate takes no inputs");
+            }
+            if (arguments.cipher != null && !arguments.encrypt && !arguments.pack) {
+                throw new IllegalArgumentException("--cipher only applies to encrypt and pack; "
+                        + "decryption uses the suite recorded in each file");
+            }
+            if (!arguments.rekey && (arguments.newKey != null || arguments.newKeyFile != null)) {
+                throw new IllegalArgumentException("--new-key and --new-key-file only apply to rekey");
+            }
+            if (arguments.key != null && arguments.keyFile != null) {
+                throw new IllegalArgumentException("Use either --key or --key-file, not both");
+            }
+            if (arguments.newKey != null && arguments.newKeyFile != null) {
+                throw new IllegalArgumentException("Use either --new-key or --new-key-file, not both");
+            }
+            return arguments;
+        }
+
+        /**
+         * Resolves --cipher, calibrating first if it is auto.
+         *
+         * @param defaultSuite the suite to use without --cipher
+         * @return the suite for new files
+         */
+        CipherSuite cipherSuite(CipherSuite defaultSuite) {
+            if (cipher == null) {
+                return defaultSuite;
+            }
+            if (cipher.equalsIgnoreCase(CALIBRATED_SUITE)) {
+                return CipherCalibration.run().getFastest().getSuite();
+            }
+            return CipherSuite.fromName(cipher);
+        }
+
+        /**
+         * @return the secret key from the command line, key file or environment
+         */
+        String readKey() throws Exception {
+            return readSecret(key, keyFile, KEY_ENVIRONMENT_VARIABLE, "secret key", "--key, --key-file");
+        }
+
+        /**
+         * @return the key to change to for rekey, from the command line, key file or environment
+         */
+        String readNewKey() throws Exception {
+            return readSecret(newKey, newKeyFile, NEW_KEY_ENVIRONMENT_VARIABLE, "new key",
+                    "--new-key, --new-key-file");
+        }
+
+        private static String readSecret(String value, Path file, String environmentVariable, String name,
+                String options) throws Exception {
+            String secret = value;
+            if (file != null) {
+                List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+                secret = lines.isEmpty() ? "" : lines.get(0);
+            } else if (secret == null) {
+                secret = System.getenv(environmentVariable);
+            }
+
+            if (secret == null || secret.isEmpty()) {
+                throw new IllegalArgumentException("No " + name + " given. Use " + options + " or "
+                        + environmentVariable);
+            }
+            return secret;
+        }
+
+        private static String value(String[] args, int index, String option) {
+            if (index >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            return args[index];
+        }
+
+        private static int positiveInt(String value, String option) {
+            try {
+                int number = Integer.parseInt(value);
+                if (number > 0) {
+                    return number;
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException(option + " must be a positive number: " + value);
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package com.fileencryptor;
+
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+import javafx.fxml.FXML;
+import javafx.scene.control.Alert;
+import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.PasswordField;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.control.TextField;
+import javafx.stage.DirectoryChooser;
+import javafx.stage.FileChooser;
+import javafx.stage.Stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Controller class for the File Encryptor application.
+ * Handles user interactions and connects the UI with the encryption logic.
+ */
+public class FileEncryptorController {
+
+    @FXML private TextField filePathField;
+    @FXML private PasswordField secretKeyField;
+    @FXML private CheckBox compressCheckBox;
+    @FXML private CheckBox resumableCheckBox;
+    @FXML private Label statusLabel;
+    @FXML private ProgressBar progressBar;
+    @FXML private Button cancelButton;
+    @FXML private Button resumeButton;
+
+    private File selectedFile;
+    private CryptoTask currentTask;
+
+    // Runs one operation at a time off the UI thread; daemon so it never blocks exit
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "file-encryptor-task");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Handles the browse button click event.
+     * Opens a file chooser dialog to select a file for encryption or decryption.
+     */
+    @FXML
+    private void handleBrowseButton() {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Select File");
+        
+        // Set initial directory to user's home directory
+        fileChooser.setInitialDirectory(new File(System.getProperty("user.home")));
+        
+        // Get the window from any control in the UI
+        Stage stage = (Stage) filePathField.getScene().getWindow();
+        
+        // Show the file chooser dialog
+        selectedFile = fileChooser.showOpenDialog(stage);
+        
+        if (selectedFile != null) {
+            filePathField.setText(selectedFile.getAbsolutePath());
+            statusLabel.setText("File selected: " + selectedFile.getName());
+            updateResumeButton();
+        }
+    }
+
+    /**
+     * Handles the folder button click event.
+     * Opens a directory chooser so every file in a folder can be processed at once.
+     */
+    @FXML
+    private void handleBrowseFolderButton() {
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        directoryChooser.setTitle("Select Folder");
+        directoryChooser.setInitialDirectory(new File(System.getProperty("user.home")));
+        
+        Stage stage = (Stage) filePathField.getScene().getWindow();
+        File selectedDirectory = directoryChooser.showDialog(stage);
+        
+        if (selectedDirectory != null) {
+            selectedFile = selectedDirectory;
+            filePathField.setText(selectedDirectory.getAbsolutePath());
+            statusLabel.setText("Folder selected: " + selectedDirectory.getName());
+            updateResumeButton();
+        }
+    }
+
+    /**
+     * Handles the encrypt button click event.
+     * Encrypts the selected file using the entered secret key. Any interrupted
+     * encryption of the same file is discarded and the file is encrypted from the start.
+     */
+    @FXML
+    private void handleEncryptButton() {
+        startEncryption(false);
+    }
+
+    /**
+     * Handles the resume button click event.
+     * Continues an interrupted encryption of the selected file after the part
+     * that was already committed to disk.
+     */
+    @FXML
+    private void handleResumeButton() {
+        startEncryption(true);
+    }
+
+    /**
+     * Encrypts the selected file or folder. Single files are encrypted
+     * resumably if asked to, so a run interrupted by a crash can be continued
+     * with Resume; a cancelled run is removed either way.
+     *
+     * @param resume true to continue an interrupted run, false to start over
+     */
+    private void startEncryption(boolean resume) {
+        if (!validateInputs()) {
+            return;
+        }
+        
+        String secretKey = secretKeyField.getText();
+        boolean compress = compressCheckBox.isSelected();
+        boolean resumable = resume || resumableCheckBox.isSelected();
+        
+        CryptoTask task = new CryptoTask() {
+            @Override
+            protected Void call() throws Exception {
+                try {
+                    updateProgress(0, 1.0);
+                    
+                    if (selectedFile.isDirectory()) {
+                        updateMessage("Encrypting folder...");
+                        BatchResult result = FileEncryptor.encryptDirectory(selectedFile.getAbsolutePath(),
+                                secretKey, options("Encrypting").compression(compress));
+                        updateProgress(1.0, 1.0);
+                        updateMessage("Encrypted " + result);
+                        reportBatchFailures("Encryption", result);
+                        return null;
+                    }
+                    
+                    updateMessage(resume ? "Resuming encryption..." : "Starting encryption...");
+                    
+                    // Create output file path by adding .encrypted extension
+                    File outputFile = new File(selectedFile.getAbsolutePath() + ".encrypted");
+                    if (!resume) {
+                        FileEncryptor.discardResumable(outputFile.getAbsolutePath());
+                    }
+                    
+                    // Perform encryption; a resumable run is never compressed
+                    FileEncryptor.encrypt(selectedFile.getAbsolutePath(), 
+                                          outputFile.getAbsolutePath(), 
+                                          secretKey,
+                                          options("Encrypting").compression(compress).resumable(resumable));
+                    
+                    updateProgress(1.0, 1.0);
+                    updateMessage("File encrypted successfully: " + outputFile.getName());
+                } catch (CancellationException e) {
+                    throw e;
+                } catch (Exception e) {
+                    updateProgress(0, 1.0);
+                    updateMessage("Error: " + e.getMessage());
+                    throw e;
+                }
+                return null;
+            }
+        };
+        
+        runTask(task, "Encryption");
+    }
+
+    /**
+     * Handles the decrypt button click event.
+     * Decrypts the selected file using the entered secret key.
+     */
+    @FXML
+    private void handleDecryptButton() {
+        if (!validateInputs()) {
+            return;
+        }
+        
+        String secretKey = secretKeyField.getText();
+        
+        CryptoTask task = new CryptoTask() {
+            @Override
+            protected Void call() throws Exception {
+                try {
+                    updateProgress(0, 1.0);
+                    
+                    if (selectedFile.isDirectory()) {
+                        updateMessage("Decrypting folder...");
+                        BatchResult result = FileEncryptor.decryptDirectory(selectedFile.getAbsolutePath(),
+                                secretKey, options("Decrypting"));
+                        updateProgress(1.0, 1.0);
+                        updateMessage("Decrypted " + result);
+                        reportBatchFailures("Decryption", result);
+                        return null;
+                    }
+                    
+                    updateMessage("Starting decryption...");
+                    
+                    String outputPath = selectedFile.getAbsolutePath();
+                    // If file ends with .encrypted, remove it for the output file
+                    if (outputPath.endsWith(".encrypted")) {
+                        outputPath = outputPath.substring(0, outputPath.length() - ".encrypted".length());
+                    } else {
+                        // Otherwise add .decrypted suffix
+                        outputPath = outputPath + ".decrypted";
+                    }
+                    
+                    File outputFile = new File(outputPath);
+                    
+                    // Perform decryption
+                    FileEncryptor.decrypt(selectedFile.getAbsolutePath(), 
+                                          outputFile.getAbsolutePath(), 
+                                          secretKey,
+                                          options("Decrypting"));
+                    
+                    updateProgress(1.0, 1.0);
+                    updateMessage("File decrypted successfully: " + outputFile.getName());
+                } catch (CancellationException e) {
+                    throw e;
+                } catch (Exception e) {
+                    updateProgress(0, 1.0);
+                    updateMessage("Error: " + e.getMessage());
+                    throw e;
+                }
+                return null;
+            }
+        };
+        
+        runTask(task, "Decryption");
+    }
+
+    /**
+     * Handles the verify button click event.
+     * Checks that the selected file, or every encrypted file in the selected
+     * folder, is intact and matches the entered key. No decrypted copy is written.
+     */
+    @FXML
+    private void handleVerifyButton() {
+        if (!validateInputs()) {
+            return;
+        }
+        
+        String secretKey = secretKeyField.getText();
+        
+        CryptoTask task = new CryptoTask() {
+            @Override
+            protected Void call() throws Exception {
+                try {
+                    updateProgress(0, 1.0);
+                    
+                    if (selectedFile.isDirectory()) {
+                        updateMessage("Verifying folder...");
+                        BatchResult result = FileEncryptor.verifyDirectory(selectedFile.getAbsolutePath(),
+                                secretKey, options("Verifying"));
+                        updateProgress(1.0, 1.0);
+                        updateMessage("Verified " + result);
+                        reportBatchFailures("Verification", result);
+                        return null;
+                    }
+                    
+                    updateMessage("Starting verification...");
+                    FileEncryptor.verify(selectedFile.getAbsolutePath(), secretKey, options("Verifying"));
+                    
+                    updateProgress(1.0, 1.0);
+                    updateMessage("File is intact and matches the key: " + selectedFile.getName());
+                } catch (CancellationException e) {
+                    throw e;
+                } catch (Exception e) {
+                    updateProgress(0, 1.0);
+                    updateMessage("Error: " + e.getMessage());
+                    throw e;
+                }
+                return null;
+            }
+        };
+        
+        runTask(task, "Verification");
+    }
+
+    /**
+     * Handles the cancel button click event.
+     * Stops the running operation; its partial output is removed, except for
+     * the committed part of a file encryption, which can be resumed.
+     */
+    @FXML
+    private void handleCancelButton() {
+        if (currentTask != null) {
+            currentTask.cancel();
+        }
+    }
+
+    /**
+     * Binds the progress bar and status label to a task and runs it in the background.
+     *
+     * @param task the task to run
+     * @param operation "Encryption", "Decryption" or "Verification", used in error titles
+     */
+    private void runTask(CryptoTask task, String operation) {
+        // Bind UI components to task properties
+        progressBar.progressProperty().bind(task.progressProperty());
+        statusLabel.textProperty().bind(task.messageProperty());
+        currentTask = task;
+        cancelButton.setDisable(false);
+        resumeButton.setDisable(true);
+        
+        // Handle task completion
+        task.setOnSucceeded(e -> {
+            // Unbind properties
+            finishTask();
+        });
+        
+        task.setOnFailed(e -> {
+            finishTask();
+            showErrorAlert(operation + " Failed", task.getException().getMessage());
+        });
+        
+        task.setOnCancelled(e -> {
+            finishTask();
+            progressBar.setProgress(0);
+            statusLabel.setText(operation + " cancelled");
+        });
+        
+        // Run the task in a background thread
+        executor.execute(task);
+    }
+
+    private void finishTask() {
+        progressBar.progressProperty().unbind();
+        statusLabel.textProperty().unbind();
+        currentTask = null;
+        cancelButton.setDisable(true);
+        updateResumeButton();
+    }
+
+    /**
+     * Enables the resume button, showing how far the run got, if the selected
+     * file has an interrupted encryption that can be continued.
+     */
+    private void updateResumeButton() {
+        long position = -1;
+        if (selectedFile != null && selectedFile.isFile()) {
+            try {
+                position = FileEncryptor.resumablePosition(selectedFile.getAbsolutePath(),
+                        selectedFile.getAbsolutePath() + ".encrypted");
+            } catch (IOException e) {
+                // Nothing that can be resumed
+            }
+        }
+        
+        resumeButton.setDisable(position < 0);
+        resumeButton.setText(position < 0 ? "Resume"
+                : String.format("Resume (%d%%)", position * 100 / Math.max(selectedFile.length(), 1)));
+    }
+
+    /**
+     * Shows the files that failed in a folder operation, if any.
+     *
+     * @param operation "Encryption", "Decryption" or "Verification"
+     * @param result the outcome of the batch
+     */
+    private void reportBatchFailures(String operation, BatchResult result) {
+        if (!result.hasFailures()) {
+            return;
+        }
+        
+        StringBuilder message = new StringBuilder();
+        int shown = 0;
+        for (Map.Entry<Path, Exception> failure : result.getFailures().entrySet()) {
+            if (shown++ == 10) {
+                message.append("... and ").append(result.getFailures().size() - 10).append(" more");
+                break;
+            }
+            message.append(failure.getKey().getFileName()).append(": ")
+                   .append(failure.getValue().getMessage()).append('\n');
+        }
+        showErrorAlert(operation + " Failed For " + result.getFailures().size() + " Files", message.toString());
+    }
+
+    /**
+     * Validates user inputs before encryption or decryption.
+     * 
+     * @return true if inputs are valid, false otherwise
+     */
+    private boolean validateInputs() {
+        if (selectedFile == null || !selectedFile.exists()) {
+            showErrorAlert("File Error", "Please select a valid file first.");
+            return false;
+        }
+        
+        if (secretKeyField.getText().trim().isEmpty()) {
+            showErrorAlert("Key Error", "Please enter a secret key.");
+            return false;
+        }
+        
+        if (secretKeyField.getText().length() < 8) {
+            showErrorAlert("Key Error", "Secret key must be at least 8 characters long.");
+            return false;
+        }
+        
+        return true;
+    }
+
+    /**
+     * Shows an error alert with the specified title and message.
+     * 
+     * @param title the title of the alert
+     * @param message the content message of the alert
+     */
+    private void showErrorAlert(String title, String message) {
+        Platform.runLater(() -> {
+            Alert alert = new Alert(Alert.AlertType.ERROR);
+            alert.setTitle(title);
+            alert.setHeaderText(null);
+            alert.setContentText(message);
+            alert.showAndWait();
+        });
+    }
+
+    /**
+     * Background task that reports real bytes processed and can be stopped
+     * through the core API's cancellation token.
+     */
+    private abstract static class CryptoTask extends Task<Void> {
+
+        private final CancellationToken cancellationToken = new CancellationToken();
+
+        /**
+         * @param action "Encrypting", "Decrypting" or "Verifying", shown with the percentage
+         * @return options wired to this task's progress and cancellation
+         */
+        EncryptionOptions options(String action) {
+            return EncryptionOptions.defaults()
+                    .cancellationToken(cancellationToken)
+                    .progressListener((bytesProcessed, totalBytes) -> {
+                        updateProgress(bytesProcessed, Math.max(totalBytes, 1));
+                        updateMessage(String.format("%s... %d%%", action,
+                                totalBytes == 0 ? 100 : bytesProcessed * 100 / totalBytes));
+                    });
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancellationToken.cancel();
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+}
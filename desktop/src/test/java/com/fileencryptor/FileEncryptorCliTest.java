@@ -0,0 +1,186 @@
+package com.fileencryptor;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The command line tool in pipe mode. Each test starts it as its own process
+ * with only the core and CLI classes on the class path, the way a shell
+ * pipeline would run it, so it also shows that the tool never needs JavaFX.
+ */
+class FileEncryptorCliTest {
+
+    private static final String KEY = "correct horse";
+    private static final int SIZE = 3 * 1024 * 1024 + 17;
+
+    private static byte[] data;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void createData() {
+        data = new byte[SIZE];
+        new Random(SIZE).nextBytes(data);
+    }
+
+    @Test
+    void pipeRoundTrips() throws Exception {
+        Result encrypted = cli(data, KEY, "encrypt");
+        assertEquals(0, encrypted.exitCode, encrypted.errors);
+        assertFalse(Arrays.equals(data, encrypted.output));
+
+        Result decrypted = cli(encrypted.output, KEY, "decrypt", "-");
+        assertEquals(0, decrypted.exitCode, decrypted.errors);
+        assertArrayEquals(data, decrypted.output);
+    }
+
+    @Test
+    void pipeOutputIsTheLibraryFormat() throws Exception {
+        Result encrypted = cli(data, KEY, "encrypt", "--compress", "--chunk-size", "65536");
+        assertEquals(0, encrypted.exitCode, encrypted.errors);
+
+        SecretKey key = FileEncryptor.generateKey(KEY);
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        FileEncryptor.decryptStream(new ByteArrayInputStream(encrypted.output), decrypted, key,
+                EncryptionOptions.defaults());
+        assertArrayEquals(data, decrypted.toByteArray());
+    }
+
+    @Test
+    void standardInputCanBeWrittenToAFile() throws Exception {
+        Path output = directory.resolve("piped.encrypted");
+
+        Result encrypted = cli(data, KEY, "encrypt", "--output", output.toString());
+
+        assertEquals(0, encrypted.exitCode, encrypted.errors);
+        assertEquals(0, encrypted.output.length);
+        Path decrypted = directory.resolve("piped");
+        FileEncryptor.decryptFile(output, decrypted, FileEncryptor.generateKey(KEY), EncryptionOptions.defaults());
+        assertArrayEquals(data, Files.readAllBytes(decrypted));
+    }
+
+    @Test
+    void verifyReadsStandardInput() throws Exception {
+        byte[] encrypted = cli(data, KEY, "encrypt").output;
+
+        Result intact = cli(encrypted, KEY, "verify");
+        assertEquals(0, intact.exitCode, intact.errors);
+        assertEquals("OK", new String(intact.output, StandardCharsets.UTF_8).trim());
+
+        encrypted[encrypted.length / 2] ^= 0x01;
+        Result tampered = cli(encrypted, KEY, "verify");
+        assertEquals(1, tampered.exitCode);
+        assertEquals(0, tampered.output.length);
+    }
+
+    @Test
+    void wrongKeyFails() throws Exception {
+        byte[] encrypted = cli(data, KEY, "encrypt").output;
+
+        Result decrypted = cli(encrypted, "battery staple", "decrypt");
+
+        assertEquals(1, decrypted.exitCode);
+        assertTrue(decrypted.errors.startsWith("Error:"), decrypted.errors);
+    }
+
+    @Test
+    void missingKeyIsAUsageError() throws Exception {
+        Result result = cli(data, null, "encrypt");
+
+        assertEquals(2, result.exitCode);
+        assertEquals(0, result.output.length);
+        assertTrue(result.errors.contains(FileEncryptorCli.KEY_ENVIRONMENT_VARIABLE), result.errors);
+    }
+
+    @Test
+    void pipeModeRejectsOptionsThatNeedFiles() {
+        assertEquals(2, FileEncryptorCli.run(new String[]{"encrypt", "--resume"}));
+        assertEquals(2, FileEncryptorCli.run(new String[]{"encrypt", "--incremental"}));
+        assertEquals(2, FileEncryptorCli.run(new String[]{"encrypt", "-", "other"}));
+        assertEquals(2, FileEncryptorCli.run(new String[]{"verify", "--output", "out"}));
+    }
+
+    /**
+     * Runs the tool with the input on standard input and collects what it writes.
+     *
+     * @param key the value of the key environment variable, or null to leave it unset
+     */
+    private static Result cli(byte[] input, String key, String... args) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(classPathOf(FileEncryptorCli.class) + File.pathSeparator + classPathOf(FileEncryptor.class));
+        command.add(FileEncryptorCli.class.getName());
+        command.addAll(Arrays.asList(args));
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.environment().remove(FileEncryptorCli.KEY_ENVIRONMENT_VARIABLE);
+        if (key != null) {
+            builder.environment().put(FileEncryptorCli.KEY_ENVIRONMENT_VARIABLE, key);
+        }
+        Process process = builder.start();
+
+        CompletableFuture<byte[]> output = CompletableFuture.supplyAsync(() -> readAll(process.getInputStream()));
+        CompletableFuture<byte[]> errors = CompletableFuture.supplyAsync(() -> readAll(process.getErrorStream()));
+        try (OutputStream in = process.getOutputStream()) {
+            in.write(input);
+        } catch (IOException e) {
+            // The tool may exit before reading all of its input, for example on a usage error
+        }
+        if (!process.waitFor(60, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+            throw new AssertionError("CLI did not finish: " + String.join(" ", args));
+        }
+        return new Result(process.exitValue(), output.get(), new String(errors.get(), StandardCharsets.UTF_8));
+    }
+
+    private static String classPathOf(Class<?> type) throws Exception {
+        return Paths.get(type.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+    }
+
+    private static byte[] readAll(InputStream in) {
+        try (InputStream stream = in) {
+            return stream.readAllBytes();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Result {
+
+        final int exitCode;
+        final byte[] output;
+        final String errors;
+
+        Result(int exitCode, byte[] output, String errors) {
+            this.exitCode = exitCode;
+            this.output = output;
+            this.errors = errors;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.fileencryptor.loadtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples the used heap of this JVM, which runs both the application and the
+ * load generator. The load generator streams request and response bodies,
+ * so nearly all of the heap is the application's.
+ */
+final class HeapSampler implements AutoCloseable {
+
+    private static final long INTERVAL_MILLIS = 20;
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final AtomicLong peak = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    HeapSampler() {
+        thread = new Thread(this::sample, "heap-sampler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Forgets the peak so far, for example at the end of the warm-up.
+     */
+    void reset() {
+        peak.set(0);
+    }
+
+    /**
+     * @return the most heap in use at any sample since the last reset, in bytes
+     */
+    long peak() {
+        return peak.get();
+    }
+
+    /**
+     * @return the heap limit of this JVM in bytes, or -1 if there is none
+     */
+    long max() {
+        return memory.getHeapMemoryUsage().getMax();
+    }
+
+    private void sample() {
+        while (running) {
+            long used = memory.getHeapMemoryUsage().getUsed();
+            peak.accumulateAndGet(used, Math::max);
+            try {
+                Thread.sleep(INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+    }
+}
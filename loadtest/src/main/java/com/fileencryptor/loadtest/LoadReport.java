@@ -0,0 +1,143 @@
+package com.fileencryptor.loadtest;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Results of a load test run: per-operation and overall throughput, latency
+ * percentiles and error rate, and the peak heap. Results can be saved as a
+ * properties file and compared with a saved baseline.
+ */
+final class LoadReport {
+
+    static final String TOTAL = "total";
+
+    private static final String[] COLUMNS = {"requestsPerSecond", "megabytesPerSecond", "p50", "p95", "p99",
+            "errorRate"};
+
+    private final String description;
+    private final Map<String, OperationStats.Summary> operations;
+    private final long peakHeap;
+    private final long maxHeap;
+
+    /**
+     * @param description the settings of the run, printed and saved with the results
+     * @param operations summaries by operation name, including {@link #TOTAL}
+     * @param peakHeap the most heap in use during the measured period, in bytes
+     * @param maxHeap the heap limit in bytes
+     */
+    LoadReport(String description, Map<String, OperationStats.Summary> operations, long peakHeap, long maxHeap) {
+        this.description = description;
+        this.operations = operations;
+        this.peakHeap = peakHeap;
+        this.maxHeap = maxHeap;
+    }
+
+    void print(PrintStream out) {
+        out.println(description);
+        out.printf("%-9s %9s %7s %9s %9s %9s %9s %9s%n",
+                "", "requests", "errors", "req/s", "MB/s", "p50 ms", "p95 ms", "p99 ms");
+        for (Map.Entry<String, OperationStats.Summary> entry : operations.entrySet()) {
+            OperationStats.Summary summary = entry.getValue();
+            out.printf("%-9s %9d %7d %9.1f %9.1f %9.1f %9.1f %9.1f%n", entry.getKey(),
+                    summary.successes() + summary.failures(), summary.failures(), summary.requestsPerSecond(),
+                    summary.megabytesPerSecond(), summary.latencyMillis(50), summary.latencyMillis(95),
+                    summary.latencyMillis(99));
+        }
+
+        OperationStats.Summary total = operations.get(TOTAL);
+        out.printf("Error rate %.2f%%", total.errorRate() * 100);
+        if (!total.errors().isEmpty()) {
+            out.print(" " + total.errors());
+        }
+        out.printf(", peak heap %.1f MB of %.1f MB%n", peakHeap / (1024.0 * 1024.0), maxHeap / (1024.0 * 1024.0));
+    }
+
+    void save(Path file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("description", description);
+        properties.setProperty("peakHeapBytes", Long.toString(peakHeap));
+        for (Map.Entry<String, OperationStats.Summary> entry : operations.entrySet()) {
+            double[] values = values(entry.getValue());
+            for (int i = 0; i < COLUMNS.length; i++) {
+                properties.setProperty(entry.getKey() + "." + COLUMNS[i], Double.toString(values[i]));
+            }
+        }
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            properties.store(out, "File Encryptor load test results");
+        }
+    }
+
+    /**
+     * Prints how this run differs from a saved one.
+     *
+     * @param file a file written by {@link #save}
+     * @param maxRegression the allowed loss in percent, or a negative value to only print the differences
+     * @param out where to print
+     * @return true if the run is within the allowed loss, or no limit was given
+     * @throws IOException if the baseline cannot be read
+     */
+    boolean compare(Path file, double maxRegression, PrintStream out) throws IOException {
+        Properties baseline = new Properties();
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            baseline.load(in);
+        }
+
+        out.println("Compared with " + file + " (" + baseline.getProperty("description", "no description") + ")");
+        out.printf("%-9s %14s %14s %14s %14s%n", "", "req/s", "p95 ms", "p99 ms", "error rate");
+        boolean passed = true;
+        for (Map.Entry<String, OperationStats.Summary> entry : operations.entrySet()) {
+            String name = entry.getKey();
+            if (baseline.getProperty(name + ".requestsPerSecond") == null) {
+                continue;
+            }
+            OperationStats.Summary summary = entry.getValue();
+            double throughputChange = change(summary.requestsPerSecond(), baseline, name + ".requestsPerSecond");
+            double p95Change = change(summary.latencyMillis(95), baseline, name + ".p95");
+            double p99Change = change(summary.latencyMillis(99), baseline, name + ".p99");
+            double baselineErrors = Double.parseDouble(baseline.getProperty(name + ".errorRate", "0"));
+            out.printf("%-9s %+13.1f%% %+13.1f%% %+13.1f%% %6.2f%% -> %.2f%%%n", name, throughputChange, p95Change,
+                    p99Change, baselineErrors * 100, summary.errorRate() * 100);
+
+            if (maxRegression >= 0 && (throughputChange < -maxRegression || p95Change > maxRegression
+                    || summary.errorRate() > baselineErrors)) {
+                passed = false;
+            }
+        }
+
+        long baselineHeap = Long.parseLong(baseline.getProperty("peakHeapBytes", "0"));
+        if (baselineHeap > 0) {
+            out.printf("Peak heap %+.1f%%%n", (peakHeap - baselineHeap) * 100.0 / baselineHeap);
+        }
+        if (maxRegression >= 0) {
+            out.println(passed ? "Within " + maxRegression + "% of the baseline"
+                    : "Regressed by more than " + maxRegression + "% against the baseline");
+        }
+        return passed;
+    }
+
+    private static double change(double value, Properties baseline, String key) {
+        double previous = Double.parseDouble(baseline.getProperty(key));
+        return previous == 0 ? 0 : (value - previous) * 100 / previous;
+    }
+
+    private static double[] values(OperationStats.Summary summary) {
+        return new double[] {summary.requestsPerSecond(), summary.megabytesPerSecond(), summary.latencyMillis(50),
+                summary.latencyMillis(95), summary.latencyMillis(99), summary.errorRate()};
+    }
+
+    /**
+     * @return an empty map that keeps operations in the order they are added
+     */
+    static Map<String, OperationStats.Summary> newOperations() {
+        return new LinkedHashMap<>();
+    }
+}
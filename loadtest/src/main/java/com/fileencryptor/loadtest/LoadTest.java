@@ -0,0 +1,261 @@
+package com.fileencryptor.loadtest;
+
+import com.fileencryptor.web.FileEncryptorWebApplication;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Starts the web application on a free localhost port and drives concurrent
+ * multipart /encrypt and /decrypt requests against it, then reports
+ * throughput, latency percentiles, error rate and peak heap.
+ *
+ * Each worker sends one request at a time, so the concurrency is the number
+ * of requests in flight. Files of every configured size are written once
+ * before the run and encrypted once through the application, so decrypt
+ * requests upload real encrypted files. Requests and responses are streamed
+ * and every response is read to the end, so a request's latency includes
+ * the whole download. Requests sent during the warm-up are not counted.
+ *
+ * Run from Maven after {@code mvn install}:
+ * <pre>
+ * mvn -pl loadtest exec:exec -Dloadtest.args="--concurrency=16 --duration=60s --save=baseline.properties"
+ * </pre>
+ */
+public final class LoadTest {
+
+    static final String ENCRYPT = "encrypt";
+    static final String DECRYPT = "decrypt";
+
+    private static final String SECRET_KEY = "load-test-secret-key";
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(10);
+
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_REGRESSION = 1;
+    private static final int EXIT_USAGE = 2;
+
+    private final LoadTestConfig config;
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .build();
+    private final Map<String, OperationStats> stats = new HashMap<>();
+    private final Map<Long, MultipartBody> plainBodies = new HashMap<>();
+    private final Map<Long, MultipartBody> encryptedBodies = new HashMap<>();
+    private URI baseUri;
+
+    private LoadTest(LoadTestConfig config) {
+        this.config = config;
+        stats.put(ENCRYPT, new OperationStats());
+        stats.put(DECRYPT, new OperationStats());
+    }
+
+    /**
+     * Main method of the load test.
+     *
+     * @param args --name=value options, see {@link LoadTestConfig#USAGE}
+     */
+    public static void main(String[] args) throws Exception {
+        LoadTestConfig config;
+        try {
+            config = LoadTestConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println(LoadTestConfig.USAGE);
+            System.exit(EXIT_USAGE);
+            return;
+        }
+        if (config.help) {
+            System.out.println(LoadTestConfig.USAGE);
+            return;
+        }
+        System.exit(new LoadTest(config).run());
+    }
+
+    private int run() throws Exception {
+        Path directory = Files.createTempDirectory("file-encryptor-loadtest-");
+        ConfigurableApplicationContext application = startApplication();
+        try (HeapSampler heap = new HeapSampler()) {
+            prepareFiles(directory);
+
+            long warmupEnd = System.nanoTime() + config.warmup.toNanos();
+            long end = warmupEnd + config.duration.toNanos();
+            ExecutorService workers = Executors.newFixedThreadPool(config.concurrency);
+            try {
+                List<Future<?>> running = new ArrayList<>();
+                for (int i = 0; i < config.concurrency; i++) {
+                    Random random = new Random(config.seed + i);
+                    running.add(workers.submit(() -> {
+                        work(random, warmupEnd, end);
+                        return null;
+                    }));
+                }
+                sleepUntil(warmupEnd);
+                heap.reset();
+                for (Future<?> worker : running) {
+                    worker.get();
+                }
+            } finally {
+                workers.shutdownNow();
+            }
+
+            // Requests in flight at the end still count, so the period runs until the last one finished
+            long elapsed = System.nanoTime() - warmupEnd;
+            Map<String, OperationStats.Summary> operations = LoadReport.newOperations();
+            for (String operation : config.mix.values()) {
+                operations.put(operation, stats.get(operation).summarize(elapsed));
+            }
+            operations.put(LoadReport.TOTAL,
+                    OperationStats.combine(operations.values().toArray(new OperationStats.Summary[0])));
+
+            LoadReport report = new LoadReport(describe(), operations, heap.peak(), heap.max());
+            report.print(System.out);
+            if (config.save != null) {
+                report.save(config.save);
+                System.out.println("Results saved to " + config.save);
+            }
+            if (config.baseline != null && !report.compare(config.baseline, config.maxRegression, System.out)) {
+                return EXIT_REGRESSION;
+            }
+            return EXIT_OK;
+        } finally {
+            application.close();
+            deleteRecursively(directory);
+        }
+    }
+
+    private ConfigurableApplicationContext startApplication() {
+        List<String> arguments = new ArrayList<>();
+        arguments.add("--server.port=0");
+        arguments.add("--spring.main.banner-mode=off");
+        arguments.add("--spring.main.log-startup-info=false");
+        arguments.add("--logging.level.root=WARN");
+        // Tomcat stops before the application's executor threads do, and would warn about each of them
+        arguments.add("--logging.level.org.apache.catalina.loader.WebappClassLoaderBase=ERROR");
+        arguments.addAll(config.applicationArguments);
+
+        ConfigurableApplicationContext context = SpringApplication.run(FileEncryptorWebApplication.class,
+                arguments.toArray(new String[0]));
+        int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+        baseUri = URI.create("http://localhost:" + port + "/");
+        return context;
+    }
+
+    /**
+     * Writes a random file of every size and encrypts each once through the application.
+     */
+    private void prepareFiles(Path directory) throws Exception {
+        for (long size : config.sizes.values()) {
+            Path plain = directory.resolve(LoadTestConfig.formatSize(size) + ".bin");
+            writeRandomFile(plain, size);
+            plainBodies.put(size, new MultipartBody(SECRET_KEY, plain));
+
+            if (config.mix.values().contains(DECRYPT)) {
+                Path encrypted = directory.resolve(plain.getFileName() + ".encrypted");
+                HttpResponse<Path> response = client.send(request(ENCRYPT, plainBodies.get(size)),
+                        HttpResponse.BodyHandlers.ofFile(encrypted));
+                if (response.statusCode() != 200) {
+                    throw new IOException("Could not prepare a " + LoadTestConfig.formatSize(size)
+                            + " encrypted file: HTTP " + response.statusCode());
+                }
+                encryptedBodies.put(size, new MultipartBody(SECRET_KEY, encrypted));
+            }
+        }
+    }
+
+    private void work(Random random, long warmupEnd, long end) {
+        while (true) {
+            long start = System.nanoTime();
+            if (start >= end) {
+                return;
+            }
+            String operation = config.mix.pick(random);
+            long size = config.sizes.pick(random);
+            MultipartBody body = (operation.equals(ENCRYPT) ? plainBodies : encryptedBodies).get(size);
+            boolean counted = start >= warmupEnd;
+
+            try {
+                HttpResponse<Void> response = client.send(request(operation, body),
+                        HttpResponse.BodyHandlers.discarding());
+                long latency = System.nanoTime() - start;
+                if (!counted) {
+                    continue;
+                }
+                if (response.statusCode() == 200) {
+                    stats.get(operation).success(latency, body.fileSize());
+                } else {
+                    stats.get(operation).failure("HTTP " + response.statusCode());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                if (counted) {
+                    stats.get(operation).failure(e.getClass().getSimpleName());
+                }
+            }
+        }
+    }
+
+    private HttpRequest request(String operation, MultipartBody body) {
+        return HttpRequest.newBuilder(baseUri.resolve(operation))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", body.contentType())
+                .POST(body.publisher())
+                .build();
+    }
+
+    private String describe() {
+        return String.format("%d workers, %d s measured after %d s warm-up, sizes %s, mix %s",
+                config.concurrency, config.duration.toSeconds(), config.warmup.toSeconds(),
+                config.sizes.describe(LoadTestConfig::formatSize), config.mix.describe(operation -> operation))
+                + (config.applicationArguments.isEmpty() ? "" : ", " + String.join(" ", config.applicationArguments));
+    }
+
+    private static void writeRandomFile(Path file, long size) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += buffer.length) {
+                ThreadLocalRandom.current().nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        }
+    }
+
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        long remaining = deadline - System.nanoTime();
+        if (remaining > 0) {
+            Thread.sleep(remaining / 1_000_000, (int) (remaining % 1_000_000));
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (var paths = Files.walk(directory)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    // Left for the operating system to clean up with the temp directory
+                }
+            });
+        }
+    }
+}
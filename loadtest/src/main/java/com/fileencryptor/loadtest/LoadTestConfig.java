@@ -0,0 +1,213 @@
+package com.fileencryptor.loadtest;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Options of a load test run, parsed from {@code --name=value} arguments.
+ * Arguments the load test does not know are passed on to the application,
+ * so its properties can be changed per run, for example
+ * {@code --encryptor.executor.threads=4}.
+ */
+final class LoadTestConfig {
+
+    static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: mvn -pl loadtest exec:exec -Dloadtest.args=\"[options] [--application.property=value...]\"",
+            "",
+            "Options:",
+            "  --concurrency=<n>        requests in flight at any time (default: 8)",
+            "  --duration=<time>        how long to measure, such as 30s or 2m (default: 30s)",
+            "  --warmup=<time>          load before measuring starts, not counted (default: 5s)",
+            "  --sizes=<size:weight,..> file-size distribution (default: 4KB:50,256KB:30,4MB:15,32MB:5)",
+            "  --mix=<op:weight,..>     share of encrypt and decrypt requests (default: encrypt:50,decrypt:50)",
+            "  --seed=<n>               seed for the request sequence (default: 1)",
+            "  --save=<file>            write the results to a file, to use as a baseline later",
+            "  --baseline=<file>        compare the results with a file written by --save",
+            "  --max-regression=<pct>   with --baseline, fail if throughput drops or p95 latency rises by more",
+            "                           than this, or the error rate rises",
+            "  --help                   show this help",
+            "",
+            "Other --name=value arguments are passed to the application.");
+
+    int concurrency = 8;
+    Duration duration = Duration.ofSeconds(30);
+    Duration warmup = Duration.ofSeconds(5);
+    WeightedChoice<Long> sizes = parseSizes("4KB:50,256KB:30,4MB:15,32MB:5");
+    WeightedChoice<String> mix = parseMix("encrypt:50,decrypt:50");
+    long seed = 1;
+    Path save;
+    Path baseline;
+    double maxRegression = -1;
+    boolean help;
+    final List<String> applicationArguments = new ArrayList<>();
+
+    static LoadTestConfig parse(String[] args) {
+        LoadTestConfig config = new LoadTestConfig();
+        for (String arg : args) {
+            if (arg.equals("--help") || arg.equals("-h")) {
+                config.help = true;
+                continue;
+            }
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            switch (name) {
+                case "concurrency":
+                    config.concurrency = positiveInt(value, name);
+                    break;
+                case "duration":
+                    config.duration = parseDuration(value);
+                    break;
+                case "warmup":
+                    config.warmup = parseDuration(value);
+                    break;
+                case "sizes":
+                    config.sizes = parseSizes(value);
+                    break;
+                case "mix":
+                    config.mix = parseMix(value);
+                    break;
+                case "seed":
+                    config.seed = Long.parseLong(value);
+                    break;
+                case "save":
+                    config.save = Paths.get(value);
+                    break;
+                case "baseline":
+                    config.baseline = Paths.get(value);
+                    break;
+                case "max-regression":
+                    config.maxRegression = Double.parseDouble(value);
+                    if (config.maxRegression < 0) {
+                        throw new IllegalArgumentException("--max-regression must not be negative");
+                    }
+                    break;
+                default:
+                    config.applicationArguments.add(arg);
+            }
+        }
+
+        if (config.duration.isZero()) {
+            throw new IllegalArgumentException("--duration must be longer than zero");
+        }
+        if (config.maxRegression >= 0 && config.baseline == null) {
+            throw new IllegalArgumentException("--max-regression needs --baseline");
+        }
+        return config;
+    }
+
+    /**
+     * @param value a duration such as 500ms, 30s, 2m or 1h
+     */
+    static Duration parseDuration(String value) {
+        String text = value.trim().toLowerCase(Locale.ROOT);
+        try {
+            if (text.endsWith("ms")) {
+                return Duration.ofMillis(Long.parseLong(text.substring(0, text.length() - 2)));
+            } else if (text.endsWith("s")) {
+                return Duration.ofSeconds(Long.parseLong(text.substring(0, text.length() - 1)));
+            } else if (text.endsWith("m")) {
+                return Duration.ofMinutes(Long.parseLong(text.substring(0, text.length() - 1)));
+            } else if (text.endsWith("h")) {
+                return Duration.ofHours(Long.parseLong(text.substring(0, text.length() - 1)));
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid duration: " + value + ", expected for example 30s or 2m");
+    }
+
+    /**
+     * @param value a size such as 512, 4KB, 1MB or 1GB
+     */
+    static long parseSize(String value) {
+        String text = value.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+        if (text.endsWith("KB")) {
+            unit = 1024;
+        } else if (text.endsWith("MB")) {
+            unit = 1024 * 1024;
+        } else if (text.endsWith("GB")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit > 1) {
+            text = text.substring(0, text.length() - 2);
+        }
+        try {
+            long size = Long.parseLong(text) * unit;
+            if (size >= 0) {
+                return size;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid size: " + value);
+    }
+
+    static String formatSize(long size) {
+        if (size >= 1024 * 1024 && size % (1024 * 1024) == 0) {
+            return size / (1024 * 1024) + "MB";
+        } else if (size >= 1024 && size % 1024 == 0) {
+            return size / 1024 + "KB";
+        }
+        return Long.toString(size);
+    }
+
+    private static WeightedChoice<Long> parseSizes(String value) {
+        WeightedChoice<Long> sizes = new WeightedChoice<>();
+        for (String[] entry : weightedEntries(value, "--sizes")) {
+            sizes.add(parseSize(entry[0]), positiveInt(entry[1], "--sizes weight"));
+        }
+        return sizes;
+    }
+
+    private static WeightedChoice<String> parseMix(String value) {
+        WeightedChoice<String> mix = new WeightedChoice<>();
+        for (String[] entry : weightedEntries(value, "--mix")) {
+            String operation = entry[0].trim().toLowerCase(Locale.ROOT);
+            if (!operation.equals(LoadTest.ENCRYPT) && !operation.equals(LoadTest.DECRYPT)) {
+                throw new IllegalArgumentException("--mix operations are encrypt and decrypt, got " + entry[0]);
+            }
+            int weight = Integer.parseInt(entry[1].trim());
+            if (weight > 0) {
+                mix.add(operation, weight);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("--mix needs at least one operation with a positive weight");
+        }
+        return mix;
+    }
+
+    private static List<String[]> weightedEntries(String value, String option) {
+        List<String[]> entries = new ArrayList<>();
+        for (String part : value.split(",")) {
+            String[] entry = part.split(":");
+            if (entry.length != 2) {
+                throw new IllegalArgumentException(option + " expects value:weight pairs separated by commas, got "
+                        + part);
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static int positiveInt(String value, String option) {
+        try {
+            int number = Integer.parseInt(value.trim());
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(option + " must be a positive number: " + value);
+    }
+}
@@ -0,0 +1,63 @@
+package com.fileencryptor.loadtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+
+/**
+ * A multipart/form-data request body with a secret key and a file, in the
+ * shape of the upload form. The file is streamed from disk, so large uploads
+ * do not take up heap in the load generator.
+ */
+final class MultipartBody {
+
+    private final String boundary = "loadtest-" + UUID.randomUUID();
+    private final byte[] head;
+    private final byte[] tail;
+    private final Path file;
+    private final long length;
+
+    MultipartBody(String secretKey, Path file) throws IOException {
+        this.file = file;
+        this.head = ("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"secretKey\"\r\n\r\n"
+                + secretKey + "\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"" + file.getFileName() + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        this.tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        this.length = head.length + Files.size(file) + tail.length;
+    }
+
+    String contentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    /**
+     * @return a publisher that can be sent any number of times, each time reading the file again
+     */
+    HttpRequest.BodyPublisher publisher() {
+        HttpRequest.BodyPublisher stream = HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                return new SequenceInputStream(new ByteArrayInputStream(head),
+                        new SequenceInputStream(Files.newInputStream(file), new ByteArrayInputStream(tail)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return HttpRequest.BodyPublishers.fromPublisher(stream, length);
+    }
+
+    /**
+     * @return the size of the file being uploaded
+     */
+    long fileSize() {
+        return length - head.length - tail.length;
+    }
+}
@@ -0,0 +1,127 @@
+package com.fileencryptor.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latencies and outcomes of the requests of one operation, recorded by all
+ * workers. Every latency is kept, so percentiles are exact.
+ */
+final class OperationStats {
+
+    private long[] latencies = new long[1024];
+    private int requests;
+    private long bytes;
+    private final Map<String, Integer> errors = new TreeMap<>();
+
+    /**
+     * @param latencyNanos time from sending the request until the whole response was read
+     * @param size the size of the uploaded file
+     */
+    synchronized void success(long latencyNanos, long size) {
+        if (requests == latencies.length) {
+            latencies = Arrays.copyOf(latencies, requests * 2);
+        }
+        latencies[requests++] = latencyNanos;
+        bytes += size;
+    }
+
+    /**
+     * @param reason the HTTP status, or the exception type if there was no response
+     */
+    synchronized void failure(String reason) {
+        errors.merge(reason, 1, Integer::sum);
+    }
+
+    /**
+     * @return a copy of the figures so far, with the latencies sorted
+     */
+    synchronized Summary summarize(long elapsedNanos) {
+        long[] sorted = Arrays.copyOf(latencies, requests);
+        Arrays.sort(sorted);
+        return new Summary(sorted, bytes, new TreeMap<>(errors), elapsedNanos);
+    }
+
+    /**
+     * Merges the summaries of several operations.
+     */
+    static Summary combine(Summary... summaries) {
+        long[] all = new long[0];
+        long bytes = 0;
+        Map<String, Integer> errors = new TreeMap<>();
+        long elapsed = 0;
+        for (Summary summary : summaries) {
+            long[] merged = Arrays.copyOf(all, all.length + summary.latencies.length);
+            System.arraycopy(summary.latencies, 0, merged, all.length, summary.latencies.length);
+            all = merged;
+            bytes += summary.bytes;
+            summary.errors.forEach((reason, count) -> errors.merge(reason, count, Integer::sum));
+            elapsed = Math.max(elapsed, summary.elapsedNanos);
+        }
+        Arrays.sort(all);
+        return new Summary(all, bytes, errors, elapsed);
+    }
+
+    /**
+     * Figures of one operation over the measured period.
+     */
+    static final class Summary {
+
+        private final long[] latencies;
+        private final long bytes;
+        private final Map<String, Integer> errors;
+        private final long elapsedNanos;
+
+        Summary(long[] latencies, long bytes, Map<String, Integer> errors, long elapsedNanos) {
+            this.latencies = latencies;
+            this.bytes = bytes;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        int successes() {
+            return latencies.length;
+        }
+
+        int failures() {
+            return errors.values().stream().mapToInt(Integer::intValue).sum();
+        }
+
+        /**
+         * @return failed requests by HTTP status or exception type
+         */
+        Map<String, Integer> errors() {
+            return errors;
+        }
+
+        double errorRate() {
+            int total = successes() + failures();
+            return total == 0 ? 0 : (double) failures() / total;
+        }
+
+        double requestsPerSecond() {
+            return successes() / seconds();
+        }
+
+        double megabytesPerSecond() {
+            return bytes / (1024.0 * 1024.0) / seconds();
+        }
+
+        /**
+         * @param percentile such as 50, 95 or 99
+         * @return the latency in milliseconds that this share of the successful requests stayed within
+         */
+        double latencyMillis(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * latencies.length);
+            return latencies[Math.max(0, rank - 1)] / 1_000_000.0;
+        }
+
+        private double seconds() {
+            return elapsedNanos / 1_000_000_000.0;
+        }
+    }
+}
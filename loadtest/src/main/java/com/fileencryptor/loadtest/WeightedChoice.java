@@ -0,0 +1,58 @@
+package com.fileencryptor.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Picks values at random in proportion to their weights.
+ *
+ * @param <T> the type of the values
+ */
+final class WeightedChoice<T> {
+
+    private final List<T> values = new ArrayList<>();
+    private final List<Integer> weights = new ArrayList<>();
+    private int totalWeight;
+
+    void add(T value, int weight) {
+        values.add(value);
+        weights.add(weight);
+        totalWeight += weight;
+    }
+
+    boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    /**
+     * @return every value, in the order they were added
+     */
+    List<T> values() {
+        return values;
+    }
+
+    T pick(Random random) {
+        int point = random.nextInt(totalWeight);
+        for (int i = 0; i < values.size(); i++) {
+            point -= weights.get(i);
+            if (point < 0) {
+                return values.get(i);
+            }
+        }
+        throw new IllegalStateException("Weights changed while picking");
+    }
+
+    /**
+     * @param format turns a value into text
+     * @return the values and weights as value:weight pairs
+     */
+    String describe(Function<T, String> format) {
+        List<String> pairs = new ArrayList<>();
+        for (int i = 0; i < values.size(); i++) {
+            pairs.add(format.apply(values.get(i)) + ":" + weights.get(i));
+        }
+        return String.join(",", pairs);
+    }
+}
@@ -1,6 +1,14 @@
 package com.fileencryptor.web.controller;
 
+import com.fileencryptor.web.service.CryptoExecutor;
+import com.fileencryptor.web.service.EncryptionJobs;
+import com.fileencryptor.web.service.EncryptionMetrics;
 import com.fileencryptor.web.service.EncryptionService;
+import com.fileencryptor.IncrementalEncryptor;
+import com.fileencryptor.web.service.MemoryBudget;
+import com.fileencryptor.web.service.UploadSessions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -10,22 +18,67 @@ import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Controller for handling file encryption and decryption requests.
+ * Uploaded files are never loaded into memory; results are streamed back to the client.
+ *
+ * Key derivation and cipher work run on the bounded {@link CryptoExecutor}.
+ * The request thread only validates the input and queues the work, and the
+ * response completes asynchronously once the result is ready. An encryption
+ * only derives its key there and then encrypts straight into the response. When the queue
+ * is full the request is turned away with 503 and a Retry-After header.
+ * Each request also holds a share of the server's {@link MemoryBudget} from
+ * the moment it starts working until its download has been sent.
+ *
+ * Large files can instead be sent as a resumable chunked upload under
+ * {@code /uploads}: the client starts an upload, PUTs numbered chunks in any
+ * order (retrying or resuming as needed, see {@link UploadSessions}) and then
+ * completes it to download the encrypted file.
+ *
+ * Clients that cannot hold a request open for the whole operation, such as
+ * those behind a load balancer with a short timeout, can submit a background
+ * job under {@code /jobs} instead: the request returns a job id as soon as the
+ * upload has been received, and the result is downloaded separately once the
+ * job has finished (see {@link EncryptionJobs}).
  */
 @Controller
 public class FileEncryptorController {
 
+    private static final Logger log = LoggerFactory.getLogger(FileEncryptorController.class);
+
     private final EncryptionService encryptionService;
+    private final CryptoExecutor cryptoExecutor;
+    private final MemoryBudget memoryBudget;
+    private final UploadSessions uploadSessions;
+    private final EncryptionJobs encryptionJobs;
 
     @Autowired
-    public FileEncryptorController(EncryptionService encryptionService) {
+    public FileEncryptorController(EncryptionService encryptionService, CryptoExecutor cryptoExecutor,
+                                   MemoryBudget memoryBudget, UploadSessions uploadSessions,
+                                   EncryptionJobs encryptionJobs) {
         this.encryptionService = encryptionService;
+        this.cryptoExecutor = cryptoExecutor;
+        this.memoryBudget = memoryBudget;
+        this.uploadSessions = uploadSessions;
+        this.encryptionJobs = encryptionJobs;
     }
 
     @GetMapping("/")
@@ -35,89 +88,562 @@ public class FileEncryptorController {
 
     @PostMapping("/encrypt")
     @ResponseBody
-    public ResponseEntity<?> encryptFile(@RequestParam("file") MultipartFile file,
-                                      @RequestParam("secretKey") String secretKey) {
-        try {
-            if (file.isEmpty()) {
-                return createErrorResponse("Please select a file to encrypt");
-            }
-            
-            if (secretKey.isEmpty() || secretKey.length() < 8) {
-                return createErrorResponse("Secret key must be at least 8 characters long");
-            }
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> encryptFile(@RequestParam("file") MultipartFile file,
+                                                                               @RequestParam("secretKey") String secretKey) {
+        if (file.isEmpty()) {
+            throw badRequest("Please select a file to encrypt");
+        }
 
-            byte[] encryptedContent = encryptionService.encryptFile(file, secretKey);
-            
-            String originalFilename = file.getOriginalFilename();
-            String encryptedFilename = originalFilename != null ? originalFilename + ".encrypted" : "encrypted_file";
-            
+        if (secretKey.isEmpty() || secretKey.length() < 8) {
+            throw badRequest("Secret key must be at least 8 characters long");
+        }
+
+        String encryptedFilename = encryptedName(file.getOriginalFilename());
+
+        // Admit the request and derive the key on the crypto pool, then encrypt straight
+        // into the response. A download cut short by a failure does not decrypt, because
+        // the last chunk is authenticated as the last one
+        return submit(reservation -> {
+            EncryptionService.Encryption encryption;
+            try {
+                encryption = encryptionService.prepareEncryption(secretKey);
+            } catch (Exception e) {
+                log.error("Encryption failed", e);
+                throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
+                        "Encryption failed: " + e.getMessage());
+            }
             return ResponseEntity
                     .ok()
                     .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + encryptedFilename + "\"")
                     .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .body(encryptedContent);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return createErrorResponse("Encryption failed: " + e.getMessage());
-        }
+                    .body(encryptAndRelease(file, encryption, reservation));
+        });
     }
 
     @PostMapping("/decrypt")
     @ResponseBody
-    public ResponseEntity<?> decryptFile(@RequestParam("file") MultipartFile file,
-                                      @RequestParam("secretKey") String secretKey) {
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> decryptFile(@RequestParam("file") MultipartFile file,
+                                                                               @RequestParam("secretKey") String secretKey) {
+        if (file.isEmpty()) {
+            throw badRequest("Please select a file to decrypt");
+        }
+
+        if (secretKey.isEmpty() || secretKey.length() < 8) {
+            throw badRequest("Secret key must be at least 8 characters long");
+        }
+
+        // Check file extension - optional warning
+        String originalFilename = file.getOriginalFilename();
+        if (originalFilename != null && !originalFilename.endsWith(".encrypted")) {
+            // This is just a warning log - we still attempt to decrypt
+            log.warn("File doesn't have .encrypted extension: {}", originalFilename);
+        }
+
+        String decryptedFilename = decryptedName(originalFilename);
+
+        return submit(reservation -> decrypt(file, secretKey, decryptedFilename, reservation));
+    }
+
+    /**
+     * Starts a chunked upload. The response tells the client the chunk size and
+     * how many chunks to send.
+     */
+    @PostMapping("/uploads")
+    @ResponseBody
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> startUpload(@RequestParam("fileName") String fileName,
+                                                                             @RequestParam("size") long size,
+                                                                             @RequestParam("secretKey") String secretKey) {
+        if (secretKey.isEmpty() || secretKey.length() < 8) {
+            throw badRequest("Secret key must be at least 8 characters long");
+        }
+
+        // Key derivation runs on the crypto pool like any other request
+        return submitWork(() -> {
+            UploadSessions.Session session;
+            try {
+                session = uploadSessions.start(fileName, size, secretKey);
+            } catch (RejectedExecutionException e) {
+                throw serverBusy();
+            } catch (IllegalArgumentException e) {
+                throw badRequest(e.getMessage());
+            } catch (Exception e) {
+                log.error("Could not start upload", e);
+                throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
+                        "Upload could not be started: " + e.getMessage());
+            }
+            return ResponseEntity.status(HttpStatus.CREATED).body(uploadStatus(session));
+        });
+    }
+
+    /**
+     * Reports which chunks an upload still needs, so an interrupted client can resume.
+     */
+    @GetMapping("/uploads/{id}")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> getUpload(@PathVariable("id") String id) {
+        return ResponseEntity.ok(uploadStatus(session(id)));
+    }
+
+    /**
+     * Receives one chunk of an upload. The body is read on the request thread,
+     * then encrypted on the crypto pool and written to its place in the
+     * upload's file. Sending a chunk again replaces it.
+     */
+    @PutMapping("/uploads/{id}/chunks/{index}")
+    @ResponseBody
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> uploadChunk(@PathVariable("id") String id,
+                                                                             @PathVariable("index") long index,
+                                                                             HttpServletRequest request) {
+        UploadSessions.Session session = session(id);
+        IncrementalEncryptor encryptor = session.getEncryptor();
+
+        int length;
+        try {
+            length = encryptor.chunkLength(index);
+        } catch (IllegalArgumentException e) {
+            throw badRequest(e.getMessage());
+        }
+        long declared = request.getContentLengthLong();
+        if (declared >= 0 && declared != length) {
+            throw badRequest("Chunk " + index + " must be " + length + " bytes, got " + declared);
+        }
+
+        // The chunk and its encrypted copy are held until it has been written
+        MemoryBudget.Reservation reservation = reserve(2L * length);
         try {
-            if (file.isEmpty()) {
-                return createErrorResponse("Please select a file to decrypt");
+            byte[] chunk = readChunk(request, length);
+            return submitWork(() -> {
+                try {
+                    encryptionService.encryptChunk(encryptor, index, chunk, length);
+                } catch (IllegalArgumentException e) {
+                    throw badRequest(e.getMessage());
+                } catch (Exception e) {
+                    log.error("Could not store chunk {} of upload {}", index, id, e);
+                    throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
+                            "Chunk could not be stored: " + e.getMessage());
+                } finally {
+                    reservation.close();
+                }
+                return ResponseEntity.ok(uploadStatus(session));
+            });
+        } catch (RuntimeException e) {
+            reservation.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Finishes an upload whose chunks have all arrived and downloads the encrypted file.
+     */
+    @PostMapping("/uploads/{id}/complete")
+    @ResponseBody
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> completeUpload(@PathVariable("id") String id) {
+        session(id);
+        return submit(reservation -> {
+            UploadSessions.Session session;
+            try {
+                session = uploadSessions.finish(id);
+            } catch (IllegalStateException e) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
             }
-            
-            if (secretKey.isEmpty() || secretKey.length() < 8) {
-                return createErrorResponse("Secret key must be at least 8 characters long");
+            if (session == null) {
+                throw uploadNotFound();
             }
-            
-            // Check file extension - optional warning
-            String originalFilename = file.getOriginalFilename();
-            if (originalFilename != null && !originalFilename.endsWith(".encrypted")) {
-                // This is just a warning log - we still attempt to decrypt
-                System.out.println("Warning: File doesn't have .encrypted extension: " + originalFilename);
+            Path encryptedFile = session.getFile();
+            try {
+                ResponseEntity<StreamingResponseBody> response =
+                        download(encryptedFile, session.getFileName() + ".encrypted", reservation);
+                encryptedFile = null; // now owned by the response body
+                return response;
+            } finally {
+                deleteQuietly(encryptedFile);
             }
+        });
+    }
 
-            byte[] decryptedContent = encryptionService.decryptFile(file.getBytes(), secretKey);
-            
-            String decryptedFilename;
-            
-            if (originalFilename != null && originalFilename.endsWith(".encrypted")) {
-                decryptedFilename = originalFilename.substring(0, originalFilename.length() - 10);
-            } else {
-                decryptedFilename = originalFilename != null ? originalFilename + ".decrypted" : "decrypted_file";
+    /**
+     * Cancels an upload and deletes what has been received so far.
+     */
+    @DeleteMapping("/uploads/{id}")
+    @ResponseBody
+    public ResponseEntity<Void> abortUpload(@PathVariable("id") String id) {
+        if (!uploadSessions.abort(id)) {
+            throw uploadNotFound();
+        }
+        return ResponseEntity.noContent().build();
+    }
+
+    /**
+     * Queues an encryption or decryption job and returns its id straight away.
+     * The upload is copied on the request thread; the work runs in the background.
+     */
+    @PostMapping("/jobs")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> submitJob(@RequestParam("file") MultipartFile file,
+                                                         @RequestParam("secretKey") String secretKey,
+                                                         @RequestParam(value = "operation", defaultValue = "encrypt")
+                                                         String operation) {
+        String resultName;
+        if (EncryptionMetrics.ENCRYPT.equals(operation)) {
+            resultName = encryptedName(file.getOriginalFilename());
+        } else if (EncryptionMetrics.DECRYPT.equals(operation)) {
+            resultName = decryptedName(file.getOriginalFilename());
+        } else {
+            throw badRequest("Operation must be encrypt or decrypt");
+        }
+
+        if (file.isEmpty()) {
+            throw badRequest("Please select a file to " + operation);
+        }
+
+        if (secretKey.isEmpty() || secretKey.length() < 8) {
+            throw badRequest("Secret key must be at least 8 characters long");
+        }
+
+        EncryptionJobs.Job job;
+        try {
+            job = encryptionJobs.submit(operation, file, secretKey, resultName);
+        } catch (RejectedExecutionException e) {
+            throw serverBusy();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw serverBusy();
+        } catch (IOException e) {
+            log.error("Could not queue job", e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
+                    "Job could not be queued: " + e.getMessage());
+        }
+        return ResponseEntity.accepted()
+                .location(URI.create("/jobs/" + job.getId()))
+                .body(jobStatus(job));
+    }
+
+    /**
+     * Reports a job's state and progress.
+     */
+    @GetMapping("/jobs/{id}")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> getJob(@PathVariable("id") String id) {
+        return ResponseEntity.ok(jobStatus(job(id)));
+    }
+
+    /**
+     * Downloads a finished job's result. The result stays in the store, so it
+     * can be downloaded again until it expires or the job is deleted.
+     */
+    @GetMapping("/jobs/{id}/result")
+    @ResponseBody
+    public ResponseEntity<StreamingResponseBody> getJobResult(@PathVariable("id") String id) {
+        EncryptionJobs.Job job = job(id);
+        if (job.getState() == EncryptionJobs.State.FAILED) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, job.getError());
+        }
+        if (job.getState() != EncryptionJobs.State.SUCCEEDED) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Job has not finished yet");
+        }
+        Path result = job.getResult();
+        if (result == null) {
+            throw jobNotFound();
+        }
+
+        // Open the file now, so that evicting the result during the download does not cut it short
+        InputStream in;
+        try {
+            in = Files.newInputStream(result);
+        } catch (NoSuchFileException e) {
+            throw jobNotFound();
+        } catch (IOException e) {
+            log.error("Could not read result of job {}", id, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
+                    "Result could not be read: " + e.getMessage());
+        }
+        StreamingResponseBody body = outputStream -> {
+            try (InputStream input = in) {
+                input.transferTo(outputStream);
             }
-            
-            return ResponseEntity
-                    .ok()
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + decryptedFilename + "\"")
-                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .body(decryptedContent);
+        };
+        return ResponseEntity
+                .ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + job.getResultName() + "\"")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .contentLength(job.getResultSize())
+                .body(body);
+    }
+
+    /**
+     * Deletes a job and its result, stopping it if it is still running.
+     */
+    @DeleteMapping("/jobs/{id}")
+    @ResponseBody
+    public ResponseEntity<Void> deleteJob(@PathVariable("id") String id) {
+        if (!encryptionJobs.delete(id)) {
+            throw jobNotFound();
+        }
+        return ResponseEntity.noContent().build();
+    }
+
+    private EncryptionJobs.Job job(String id) {
+        EncryptionJobs.Job job = encryptionJobs.get(id);
+        if (job == null) {
+            throw jobNotFound();
+        }
+        return job;
+    }
+
+    private Map<String, Object> jobStatus(EncryptionJobs.Job job) {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("id", job.getId());
+        status.put("operation", job.getOperation());
+        status.put("state", job.getState());
+        status.put("fileName", job.getResultName());
+        status.put("size", job.getTotalBytes());
+        status.put("processedBytes", job.getProcessedBytes());
+        if (job.getState() == EncryptionJobs.State.SUCCEEDED) {
+            status.put("resultSize", job.getResultSize());
+            status.put("resultUrl", "/jobs/" + job.getId() + "/result");
+        } else if (job.getState() == EncryptionJobs.State.FAILED) {
+            status.put("error", job.getError());
+        }
+        return status;
+    }
+
+    private ResponseStatusException jobNotFound() {
+        return new ResponseStatusException(HttpStatus.NOT_FOUND, "Job not found. Its result may have expired; please submit it again.");
+    }
+
+    private static String encryptedName(String originalFilename) {
+        return originalFilename != null ? originalFilename + ".encrypted" : "encrypted_file";
+    }
+
+    private static String decryptedName(String originalFilename) {
+        if (originalFilename != null && originalFilename.endsWith(".encrypted")) {
+            return originalFilename.substring(0, originalFilename.length() - 10);
+        }
+        return originalFilename != null ? originalFilename + ".decrypted" : "decrypted_file";
+    }
+
+    private UploadSessions.Session session(String id) {
+        UploadSessions.Session session = uploadSessions.get(id);
+        if (session == null) {
+            throw uploadNotFound();
+        }
+        return session;
+    }
+
+    private Map<String, Object> uploadStatus(UploadSessions.Session session) {
+        IncrementalEncryptor encryptor = session.getEncryptor();
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("id", session.getId());
+        status.put("fileName", session.getFileName());
+        status.put("size", encryptor.getPlaintextLength());
+        status.put("chunkSize", encryptor.getChunkSize());
+        status.put("chunkCount", encryptor.getChunkCount());
+        status.put("receivedChunks", encryptor.getReceivedCount());
+        status.put("nextChunk", encryptor.nextMissingChunk());
+        status.put("complete", encryptor.isComplete());
+        return status;
+    }
+
+    /**
+     * Reads a request body that must be exactly length bytes long.
+     */
+    private byte[] readChunk(HttpServletRequest request, int length) {
+        byte[] chunk = new byte[length];
+        try (InputStream body = request.getInputStream()) {
+            int read = body.readNBytes(chunk, 0, length);
+            if (read < length || body.read() != -1) {
+                throw badRequest("Chunk must be exactly " + length + " bytes");
+            }
+        } catch (IOException e) {
+            throw badRequest("Chunk could not be read: " + e.getMessage());
+        }
+        return chunk;
+    }
+
+    private MemoryBudget.Reservation reserve(long bytes) {
+        try {
+            return memoryBudget.reserve(bytes);
+        } catch (RejectedExecutionException e) {
+            throw serverBusy();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw serverBusy();
+        }
+    }
+
+    private ResponseStatusException uploadNotFound() {
+        return new ResponseStatusException(HttpStatus.NOT_FOUND, "Upload not found. It may have expired; please start again.");
+    }
+
+    /**
+     * Decrypts an upload into a temporary file and returns the download for it.
+     * Runs on the crypto pool.
+     */
+    private ResponseEntity<StreamingResponseBody> decrypt(MultipartFile file, String secretKey,
+                                                          String decryptedFilename,
+                                                          MemoryBudget.Reservation reservation) {
+        Path decryptedFile = null;
+        try {
+            // A tampered chunk is only found partway through, and a legacy CBC file is only
+            // checked at its last block, so decrypt to disk first and only start the
+            // download once the whole file checked out
+            decryptedFile = Files.createTempFile("fileencryptor-", ".decrypted");
+            try (InputStream inputStream = file.getInputStream();
+                 OutputStream outputStream = Files.newOutputStream(decryptedFile)) {
+                encryptionService.decryptFile(inputStream, outputStream, secretKey);
+            }
+
+            ResponseEntity<StreamingResponseBody> response = download(decryptedFile, decryptedFilename, reservation);
+            decryptedFile = null; // now owned by the response body
+            return response;
         } catch (SecurityException e) {
             // This catches our specific security exceptions with user-friendly messages
-            return createErrorResponse(e.getMessage());
+            throw badRequest(e.getMessage());
         } catch (IllegalArgumentException e) {
             // This catches validation errors
-            return createErrorResponse(e.getMessage());
+            throw badRequest(e.getMessage());
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Decryption failed", e);
             // For other exceptions, provide a more generic message
             String errorMsg = e.getMessage();
             if (errorMsg != null && errorMsg.contains("padding")) {
-                return createErrorResponse("Decryption failed: The file could not be decrypted with the provided key. Please check your secret key and ensure you're decrypting a valid encrypted file.");
+                throw badRequest("Decryption failed: The file could not be decrypted with the provided key. Please check your secret key and ensure you're decrypting a valid encrypted file.");
             } else {
-                return createErrorResponse("Decryption failed: " + errorMsg);
+                throw badRequest("Decryption failed: " + errorMsg);
+            }
+        } finally {
+            deleteQuietly(decryptedFile);
+        }
+    }
+
+    /**
+     * Queues work on the crypto pool, or rejects the request if the pool is saturated.
+     * When the work starts it takes the request's share of the memory budget, or
+     * rejects the request at once if it is not free, so crypto threads never sit
+     * waiting for memory while the queue fills behind them. The work passes the
+     * reservation on to its download, or it is released if the work fails.
+     */
+    private CompletableFuture<ResponseEntity<StreamingResponseBody>> submit(ReservedWork work) {
+        return submitWork(() -> {
+            MemoryBudget.Reservation reservation;
+            try {
+                reservation = memoryBudget.tryReserve(EncryptionService.REQUEST_FOOTPRINT);
+            } catch (RejectedExecutionException e) {
+                throw serverBusy();
+            }
+
+            try {
+                return work.run(reservation);
+            } catch (Exception | Error e) {
+                reservation.close();
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Queues work on the crypto pool, or rejects the request if the pool is saturated.
+     */
+    private <T> CompletableFuture<T> submitWork(Callable<T> work) {
+        try {
+            return cryptoExecutor.submit(work);
+        } catch (RejectedExecutionException e) {
+            throw serverBusy();
+        }
+    }
+
+    private ResponseStatusException serverBusy() {
+        return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                "The server is busy. Please try again in a few seconds.");
+    }
+
+    private ResponseEntity<StreamingResponseBody> download(Path file, String filename,
+                                                           MemoryBudget.Reservation reservation) throws IOException {
+        return ResponseEntity
+                .ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .contentLength(Files.size(file))
+                .body(streamAndDelete(file, reservation));
+    }
+
+    /**
+     * Streams a temporary file to the client, then removes it and gives back
+     * the request's memory reservation.
+     */
+    private StreamingResponseBody streamAndDelete(Path file, MemoryBudget.Reservation reservation) {
+        return outputStream -> {
+            try {
+                Files.copy(file, outputStream);
+            } finally {
+                deleteQuietly(file);
+                reservation.close();
+            }
+        };
+    }
+
+    /**
+     * Encrypts an upload into the response, then gives back the request's
+     * memory reservation.
+     */
+    private StreamingResponseBody encryptAndRelease(MultipartFile file, EncryptionService.Encryption encryption,
+                                                    MemoryBudget.Reservation reservation) {
+        return outputStream -> {
+            try (EncryptionService.Encryption running = encryption;
+                 InputStream inputStream = file.getInputStream()) {
+                running.encrypt(inputStream, outputStream);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                log.error("Encryption failed", e);
+                throw new IOException("Encryption failed: " + e.getMessage(), e);
+            } finally {
+                reservation.close();
             }
+        };
+    }
+
+    private void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Could not delete temporary file {}", file, e);
         }
     }
 
-    private ResponseEntity<Map<String, String>> createErrorResponse(String message) {
+    /**
+     * Turns rejected requests into the JSON error body the front end expects.
+     * Requests refused because the server is busy also carry a Retry-After header.
+     */
+    @ExceptionHandler(ResponseStatusException.class)
+    @ResponseBody
+    public ResponseEntity<Map<String, String>> handleRejectedRequest(ResponseStatusException e) {
+        HttpHeaders headers = new HttpHeaders();
+        if (e.getStatus() == HttpStatus.SERVICE_UNAVAILABLE) {
+            headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(cryptoExecutor.getRetryAfter().getSeconds()));
+        }
+        return createErrorResponse(e.getStatus(), headers, e.getReason());
+    }
+
+    /**
+     * Work that runs on the crypto pool while holding a memory reservation.
+     */
+    @FunctionalInterface
+    private interface ReservedWork {
+        ResponseEntity<StreamingResponseBody> run(MemoryBudget.Reservation reservation) throws Exception;
+    }
+
+    private ResponseStatusException badRequest(String message) {
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST, message);
+    }
+
+    private ResponseEntity<Map<String, String>> createErrorResponse(HttpStatus status, HttpHeaders headers,
+                                                                    String message) {
         Map<String, String> response = new HashMap<>();
         response.put("error", message);
-        return new ResponseEntity<>(response, HttpStatus.BAD_REQUEST);
+        return new ResponseEntity<>(response, headers, status);
     }
-}
\ No newline at end of file
+}
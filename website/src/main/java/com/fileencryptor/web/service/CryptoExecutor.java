@@ -0,0 +1,101 @@
+package com.fileencryptor.web.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded thread pool for key derivation and cipher work.
+ *
+ * Request threads hand their work to this pool and are released straight
+ * away, so a burst of uploads cannot occupy every servlet thread with
+ * PBKDF2. The queue has a fixed capacity; once it is full new work is
+ * rejected immediately rather than waiting, and callers answer with
+ * 503 Service Unavailable and a Retry-After hint.
+ */
+@Component
+public class CryptoExecutor implements DisposableBean {
+
+    private final ThreadPoolExecutor executor;
+    private final Duration retryAfter;
+    private final Counter rejected;
+
+    public CryptoExecutor(@Value("${encryptor.executor.threads:0}") int threads,
+                          @Value("${encryptor.executor.queue-capacity:32}") int queueCapacity,
+                          @Value("${encryptor.executor.retry-after:5s}") Duration retryAfter,
+                          MeterRegistry registry) {
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new CryptoThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.retryAfter = retryAfter;
+
+        new ExecutorServiceMetrics(executor, "crypto", Tags.empty()).bindTo(registry);
+        this.rejected = Counter.builder("encryptor.rejected")
+                .description("Requests turned away because the crypto queue was full")
+                .register(registry);
+    }
+
+    /**
+     * Queues a task.
+     *
+     * @param task the work to run
+     * @param <T> the result type
+     * @return a future completed with the task's result or the exception it threw
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * @return how long rejected clients should wait before retrying
+     */
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    private static final class CryptoThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "crypto-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package com.fileencryptor.web.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background encryption and decryption jobs and the store that keeps their results.
+ *
+ * Submitting a job copies the upload to a temporary file and queues the work
+ * on the {@link CryptoExecutor}, so the request returns as soon as the upload
+ * has been received. Clients poll the job for progress and download the result
+ * when it is ready. Results stay on local disk until their time to live has
+ * passed or, when the store grows past its size limit, until they are the
+ * oldest ones left; the most recent result is never evicted for size.
+ */
+@Component
+public class EncryptionJobs implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(EncryptionJobs.class);
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED
+    }
+
+    private final EncryptionService encryptionService;
+    private final CryptoExecutor cryptoExecutor;
+    private final MemoryBudget memoryBudget;
+    private final Duration ttl;
+    private final long maxStoreSize;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final ScheduledExecutorService sweeper;
+    private final Counter expired;
+    private final Counter evicted;
+
+    public EncryptionJobs(EncryptionService encryptionService, CryptoExecutor cryptoExecutor,
+                          MemoryBudget memoryBudget,
+                          @Value("${encryptor.jobs.ttl:1h}") Duration ttl,
+                          @Value("${encryptor.jobs.max-store-size:2GB}") DataSize maxStoreSize,
+                          MeterRegistry registry) {
+        this.encryptionService = encryptionService;
+        this.cryptoExecutor = cryptoExecutor;
+        this.memoryBudget = memoryBudget;
+        this.ttl = ttl;
+        this.maxStoreSize = maxStoreSize.toBytes();
+
+        long sweepMillis = Math.max(1000, Math.min(ttl.toMillis() / 2, 60_000));
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "job-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::expireOld, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+
+        Gauge.builder("encryptor.jobs.stored", storedBytes, AtomicLong::get)
+                .description("Disk used by finished job results")
+                .baseUnit(BaseUnits.BYTES)
+                .register(registry);
+        Gauge.builder("encryptor.jobs.pending", jobs, EncryptionJobs::countPending)
+                .description("Jobs queued or running")
+                .register(registry);
+        this.expired = Counter.builder("encryptor.jobs.removed")
+                .description("Finished jobs removed from the store")
+                .tag("reason", "ttl")
+                .register(registry);
+        this.evicted = Counter.builder("encryptor.jobs.removed")
+                .description("Finished jobs removed from the store")
+                .tag("reason", "size")
+                .register(registry);
+    }
+
+    /**
+     * Queues a job. The upload is copied first, since the request's own copy
+     * is deleted when the request ends. The job's working memory is reserved
+     * here, on the request thread, and held until the job ends, so a queued
+     * job never waits for memory on a crypto thread.
+     *
+     * @param operation  {@link EncryptionMetrics#ENCRYPT} or {@link EncryptionMetrics#DECRYPT}
+     * @param upload     the file to process
+     * @param secretKey  the secret key
+     * @param resultName the file name to offer the result under
+     * @return the queued job
+     * @throws RejectedExecutionException if the crypto queue is full or the memory budget stays used up
+     * @throws IOException if the upload cannot be copied
+     * @throws InterruptedException if interrupted while waiting for memory
+     */
+    public Job submit(String operation, MultipartFile upload, String secretKey, String resultName)
+            throws IOException, InterruptedException {
+        Path input = Files.createTempFile("fileencryptor-job-", ".input");
+        MemoryBudget.Reservation reservation = null;
+        try {
+            upload.transferTo(input);
+            reservation = memoryBudget.reserve(EncryptionService.REQUEST_FOOTPRINT);
+            Job job = new Job(UUID.randomUUID().toString(), operation, resultName, Files.size(input));
+            jobs.put(job.id, job);
+            MemoryBudget.Reservation held = reservation;
+            try {
+                cryptoExecutor.submit(() -> {
+                    run(job, input, secretKey, held);
+                    return null;
+                });
+            } catch (RejectedExecutionException e) {
+                jobs.remove(job.id);
+                throw e;
+            }
+            return job;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            if (reservation != null) {
+                reservation.close();
+            }
+            Files.deleteIfExists(input);
+            throw e;
+        }
+    }
+
+    /**
+     * @param id the job id
+     * @return the job, or null if it does not exist or its result has been removed
+     */
+    public Job get(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Removes a job. A job that is still running is stopped and its partial
+     * result discarded.
+     *
+     * @param id the job id
+     * @return true if the job existed
+     */
+    public boolean delete(String id) {
+        Job job = jobs.remove(id);
+        if (job == null) {
+            return false;
+        }
+        discard(job);
+        return true;
+    }
+
+    /**
+     * Runs a job on the crypto pool and gives its memory back when it ends.
+     */
+    private void run(Job job, Path input, String secretKey, MemoryBudget.Reservation reservation) {
+        Path output = null;
+        try {
+            job.state = State.RUNNING;
+            output = Files.createTempFile("fileencryptor-job-", ".result");
+            try (InputStream in = job.track(Files.newInputStream(input));
+                 OutputStream out = Files.newOutputStream(output)) {
+                if (EncryptionMetrics.ENCRYPT.equals(job.operation)) {
+                    encryptionService.encryptFile(in, out, secretKey);
+                } else {
+                    encryptionService.decryptFile(in, out, secretKey);
+                }
+            }
+            if (store(job, output)) {
+                output = null; // now owned by the store
+            }
+        } catch (CancellationException e) {
+            // Deleted while running; nothing to report
+        } catch (SecurityException | IllegalArgumentException e) {
+            job.fail(e.getMessage());
+        } catch (Exception e) {
+            log.error("Job {} failed", job.id, e);
+            job.fail((EncryptionMetrics.ENCRYPT.equals(job.operation) ? "Encryption" : "Decryption")
+                    + " failed: " + e.getMessage());
+        } finally {
+            reservation.close();
+            deleteQuietly(input);
+            deleteQuietly(output);
+        }
+    }
+
+    /**
+     * Records a finished result and evicts older ones if the store is over its size limit.
+     *
+     * @return false if the job was deleted in the meantime
+     */
+    private boolean store(Job job, Path result) throws IOException {
+        long size = Files.size(result);
+        synchronized (job) {
+            if (job.deleted) {
+                return false;
+            }
+            job.result = result;
+            job.resultSize = size;
+            job.finished(State.SUCCEEDED);
+        }
+        storedBytes.addAndGet(size);
+
+        while (storedBytes.get() > maxStoreSize) {
+            Job oldest = jobs.values().stream()
+                    .filter(candidate -> candidate != job && candidate.result != null)
+                    .min(Comparator.comparingLong(candidate -> candidate.finishedAt))
+                    .orElse(null);
+            if (oldest == null) {
+                break;
+            }
+            if (jobs.remove(oldest.id, oldest)) {
+                log.info("Evicting result of job {} to stay within the store size", oldest.id);
+                discard(oldest);
+                evicted.increment();
+            }
+        }
+        return true;
+    }
+
+    private void expireOld() {
+        long cutoff = System.nanoTime() - ttl.toNanos();
+        jobs.values().removeIf(job -> {
+            if (job.finishedAt == 0 || job.finishedAt - cutoff >= 0) {
+                return false;
+            }
+            discard(job);
+            expired.increment();
+            return true;
+        });
+    }
+
+    private void discard(Job job) {
+        Path result;
+        synchronized (job) {
+            job.deleted = true;
+            result = job.result;
+            job.result = null;
+        }
+        if (result != null) {
+            storedBytes.addAndGet(-job.resultSize);
+            deleteQuietly(result);
+        }
+    }
+
+    private static double countPending(Map<String, Job> jobs) {
+        return jobs.values().stream().filter(job -> job.finishedAt == 0).count();
+    }
+
+    private void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Could not delete temporary file {}", file, e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        sweeper.shutdownNow();
+        jobs.values().forEach(this::discard);
+        jobs.clear();
+    }
+
+    /**
+     * One job. Its state is updated by the worker and read by status requests.
+     */
+    public static final class Job {
+
+        private final String id;
+        private final String operation;
+        private final String resultName;
+        private final long totalBytes;
+        private final AtomicLong processedBytes = new AtomicLong();
+        private volatile State state = State.QUEUED;
+        private volatile String error;
+        private volatile long finishedAt;
+        private volatile boolean deleted;
+        private volatile Path result;
+        private volatile long resultSize;
+
+        private Job(String id, String operation, String resultName, long totalBytes) {
+            this.id = id;
+            this.operation = operation;
+            this.resultName = resultName;
+            this.totalBytes = totalBytes;
+        }
+
+        /**
+         * Counts bytes read from the input, and stops the job once it has been deleted.
+         */
+        private InputStream track(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (deleted) {
+                        throw new CancellationException("Job was deleted");
+                    }
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        processedBytes.addAndGet(n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        private void fail(String message) {
+            error = message;
+            finished(State.FAILED);
+        }
+
+        private void finished(State finalState) {
+            state = finalState;
+            finishedAt = System.nanoTime();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getResultName() {
+            return resultName;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return the failure message, or null unless the job failed
+         */
+        public String getError() {
+            return error;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public long getProcessedBytes() {
+            return processedBytes.get();
+        }
+
+        /**
+         * @return the result file, or null unless the job succeeded and the result is still stored
+         */
+        public Path getResult() {
+            return result;
+        }
+
+        public long getResultSize() {
+            return resultSize;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.fileencryptor.web.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import org.springframework.stereotype.Component;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Micrometer instrumentation for {@link EncryptionService}.
+ *
+ * Each operation records how long it spent deriving the key, inside the
+ * cipher and waiting on I/O as separate phases of the {@code encryptor.phase}
+ * timer, counts the bytes it read and wrote, and is counted in the
+ * {@code encryptor.operations.in.flight} gauge while it runs. Failures are
+ * counted by cause so bad keys can be told apart from malformed uploads.
+ */
+@Component
+public class EncryptionMetrics {
+
+    public static final String ENCRYPT = "encrypt";
+    public static final String DECRYPT = "decrypt";
+    public static final String UPLOAD = "upload";
+
+    /** Failure causes used as the {@code cause} tag. */
+    public static final String BAD_KEY = "bad_key";
+    public static final String INVALID_FORMAT = "invalid_format";
+    public static final String ERROR = "error";
+
+    private final MeterRegistry registry;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public EncryptionMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        Gauge.builder("encryptor.operations.in.flight", inFlight, AtomicInteger::get)
+                .description("Encryption and decryption operations currently running")
+                .register(registry);
+    }
+
+    /**
+     * Starts measuring one operation. Close the returned handle when the
+     * operation ends, whether or not it succeeded.
+     *
+     * @param operation {@link #ENCRYPT}, {@link #DECRYPT} or {@link #UPLOAD}
+     * @return the handle that collects the operation's measurements
+     */
+    public Operation start(String operation) {
+        inFlight.incrementAndGet();
+        return new Operation(operation);
+    }
+
+    /**
+     * Measurements of a single operation, published when it is closed.
+     * Only used by one thread at a time: the thread running the operation,
+     * which may hand it on to another, for example to write the response.
+     */
+    public final class Operation implements AutoCloseable {
+
+        private final String operation;
+        private long kdfNanos;
+        private long cipherNanos;
+        private long ioNanos;
+        private long bytesIn;
+        private long bytesOut;
+
+        private Operation(String operation) {
+            this.operation = operation;
+        }
+
+        void kdf(long nanos) {
+            kdfNanos += nanos;
+        }
+
+        void cipher(long nanos) {
+            cipherNanos += nanos;
+        }
+
+        void io(long nanos) {
+            ioNanos += nanos;
+        }
+
+        void read(long bytes) {
+            bytesIn += bytes;
+        }
+
+        void written(long bytes) {
+            bytesOut += bytes;
+        }
+
+        /**
+         * @return I/O time recorded so far
+         */
+        long getIoNanos() {
+            return ioNanos;
+        }
+
+        /**
+         * Wraps the upload so time spent reading it and the bytes read are recorded.
+         */
+        InputStream meter(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    long start = System.nanoTime();
+                    int n = super.read(b, off, len);
+                    Operation.this.io(System.nanoTime() - start);
+                    if (n > 0) {
+                        Operation.this.read(n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        /**
+         * Wraps the result so time spent writing it and the bytes written are recorded.
+         */
+        OutputStream meter(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    long start = System.nanoTime();
+                    out.write(b, off, len);
+                    Operation.this.io(System.nanoTime() - start);
+                    written(len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    long start = System.nanoTime();
+                    out.flush();
+                    Operation.this.io(System.nanoTime() - start);
+                }
+            };
+        }
+
+        /**
+         * @param cause {@link #BAD_KEY}, {@link #INVALID_FORMAT} or {@link #ERROR}
+         */
+        void failed(String cause) {
+            Counter.builder("encryptor.failures")
+                    .description("Failed operations by cause")
+                    .tag("operation", operation)
+                    .tag("cause", cause)
+                    .register(registry)
+                    .increment();
+        }
+
+        @Override
+        public void close() {
+            inFlight.decrementAndGet();
+            phase("kdf").record(kdfNanos, TimeUnit.NANOSECONDS);
+            phase("cipher").record(cipherNanos, TimeUnit.NANOSECONDS);
+            phase("io").record(ioNanos, TimeUnit.NANOSECONDS);
+            bytes("encryptor.input", "Bytes read from uploads").increment(bytesIn);
+            bytes("encryptor.output", "Bytes written to responses").increment(bytesOut);
+        }
+
+        private Timer phase(String phase) {
+            return Timer.builder("encryptor.phase")
+                    .description("Time spent per phase of an operation")
+                    .tag("operation", operation)
+                    .tag("phase", phase)
+                    .register(registry);
+        }
+
+        private Counter bytes(String name, String description) {
+            return Counter.builder(name)
+                    .description(description)
+                    .baseUnit(BaseUnits.BYTES)
+                    .tag("operation", operation)
+                    .register(registry);
+        }
+    }
+}
@@ -1,176 +1,383 @@
 package com.fileencryptor.web.service;
 
+import com.fileencryptor.CipherCalibration;
+import com.fileencryptor.CipherSuite;
+import com.fileencryptor.DerivedKeyCache;
+import com.fileencryptor.EncryptionOptions;
+import com.fileencryptor.FileEncryptor;
+import com.fileencryptor.IncrementalEncryptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
 
-import javax.crypto.Cipher;
+import javax.crypto.BadPaddingException;
 import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
 
 /**
- * Service for encrypting and decrypting files using AES.
+ * Service for encrypting and decrypting files with the shared
+ * file-encryptor-core engine, so uploads use the same format and code as
+ * the desktop application. Data is streamed through the cipher in
+ * fixed-size chunks, so memory use does not grow with the size of the file.
  */
 @Service
 public class EncryptionService {
 
-    private static final String ALGORITHM = "AES";
-    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
-    private static final byte[] SALT = {
-            (byte) 0x43, (byte) 0x76, (byte) 0x95, (byte) 0xc7,
-            (byte) 0x5b, (byte) 0xd7, (byte) 0x45, (byte) 0x17
-    };
+    private static final int IV_LENGTH = 16;
+    private static final int BUFFER_SIZE = 64 * 1024; // 64KB buffer size
+    private static final int FORMAT_CHECK_LENGTH = 100;
 
     /**
-     * Encrypts a file using AES encryption.
+     * Heap held by one request while it runs: the chunk being read and its
+     * encrypted or decrypted copy, the read-ahead buffer used when decrypting,
+     * the compression sample or buffer, and a margin for the download copy
+     * buffer and cipher state. Holds because {@link #options()} processes
+     * every request on one thread, without parallel chunks or pipelining.
+     */
+    public static final long REQUEST_FOOTPRINT = 5L * BUFFER_SIZE;
+
+    /** Value of encryptor.cipher.suite that picks the fastest suite at startup. */
+    private static final String CALIBRATED_SUITE = "auto";
+
+    private final boolean compression;
+    private final CipherSuite cipherSuite;
+    private final EncryptionMetrics metrics;
+
+    public EncryptionService(@Value("${encryptor.key-cache.enabled:false}") boolean keyCacheEnabled,
+                             @Value("${encryptor.key-cache.max-entries:64}") int keyCacheMaxEntries,
+                             @Value("${encryptor.key-cache.ttl:10m}") Duration keyCacheTtl,
+                             @Value("${encryptor.compression.enabled:true}") boolean compression,
+                             @Value("${encryptor.cipher.suite:auto}") String cipherSuite,
+                             EncryptionMetrics metrics) {
+        if (keyCacheEnabled) {
+            FileEncryptor.enableKeyCache(keyCacheMaxEntries, keyCacheTtl);
+        } else {
+            FileEncryptor.disableKeyCache();
+        }
+        if (CALIBRATED_SUITE.equalsIgnoreCase(cipherSuite)) {
+            this.cipherSuite = null;
+            CipherCalibration.runInBackground();
+        } else {
+            this.cipherSuite = CipherSuite.fromName(cipherSuite);
+        }
+        this.compression = compression;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the derived-key cache with its hit and miss counters, or null if caching is disabled
+     */
+    public DerivedKeyCache getKeyCache() {
+        return FileEncryptor.getKeyCache();
+    }
+
+    /**
+     * Encrypts a stream into the chunked format, compressing it first
+     * when compression is enabled and the start of the upload compresses well.
      *
-     * @param file      the file to encrypt
-     * @param secretKey the secret key for encryption
-     * @return encrypted file bytes
+     * @param inputStream  the plaintext to encrypt
+     * @param outputStream where the encrypted bytes are written
+     * @param secretKey    the secret key for encryption
      * @throws Exception if encryption fails
+     * @throws CancellationException if the input stream stopped the encryption on purpose; not counted as a failure
      */
-    public byte[] encryptFile(MultipartFile file, String secretKey) throws Exception {
-        // Generate key from password
-        SecretKey key = generateKey(secretKey);
+    public void encryptFile(InputStream inputStream, OutputStream outputStream, String secretKey) throws Exception {
+        try (Encryption encryption = prepareEncryption(secretKey)) {
+            encryption.encrypt(inputStream, outputStream);
+        }
+    }
 
-        // Generate IV
-        byte[] iv = new byte[16];
-        SecureRandom random = new SecureRandom();
-        random.nextBytes(iv);
-        IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
+    /**
+     * Derives the key for an encryption without encrypting anything yet, so
+     * that the key derivation can run on the crypto pool and the cipher work
+     * later, in whichever thread writes the response.
+     *
+     * @param secretKey the secret key for encryption
+     * @return the encryption; close it once it has run, or if it never will
+     * @throws Exception if key derivation fails
+     */
+    public Encryption prepareEncryption(String secretKey) throws Exception {
+        EncryptionMetrics.Operation operation = metrics.start(EncryptionMetrics.ENCRYPT);
+        try {
+            return new Encryption(generateKey(secretKey, operation), operation);
+        } catch (Exception e) {
+            operation.failed(EncryptionMetrics.ERROR);
+            operation.close();
+            throw e;
+        }
+    }
 
-        // Initialize cipher with IV
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        cipher.init(Cipher.ENCRYPT_MODE, key, ivParameterSpec);
+    /**
+     * An encryption whose key has been derived. It is measured as one
+     * operation from the key derivation until it is closed.
+     */
+    public final class Encryption implements AutoCloseable {
 
-        // Process the file
-        byte[] fileContent = file.getBytes();
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        private final SecretKey key;
+        private final EncryptionMetrics.Operation operation;
 
-        // Write the IV to the beginning of the output
-        outputStream.write(iv);
+        private Encryption(SecretKey key, EncryptionMetrics.Operation operation) {
+            this.key = key;
+            this.operation = operation;
+        }
 
-        // Encrypt and write data
-        byte[] encryptedContent = cipher.doFinal(fileContent);
-        outputStream.write(encryptedContent);
+        /**
+         * Encrypts a stream into the chunked format, compressing it first
+         * when compression is enabled and the start of the upload compresses well.
+         *
+         * @param inputStream  the plaintext to encrypt
+         * @param outputStream where the encrypted bytes are written
+         * @throws Exception if encryption fails
+         * @throws CancellationException if the input stream stopped the encryption on purpose; not counted as a failure
+         */
+        public void encrypt(InputStream inputStream, OutputStream outputStream) throws Exception {
+            try {
+                // Encrypt and write data chunk by chunk
+                long start = System.nanoTime();
+                FileEncryptor.encryptStream(operation.meter(inputStream), operation.meter(outputStream), key, options());
+                operation.cipher(System.nanoTime() - start - operation.getIoNanos());
+            } catch (CancellationException e) {
+                throw e; // Stopped on purpose, for example by deleting its job; not a failure
+            } catch (Exception e) {
+                operation.failed(EncryptionMetrics.ERROR);
+                throw e;
+            }
+        }
 
-        return outputStream.toByteArray();
+        @Override
+        public void close() {
+            operation.close();
+        }
     }
 
     /**
-     * Decrypts a file using AES decryption.
+     * Decrypts a stream in the chunked format, or in the AES/CBC format written
+     * by earlier versions. Chunks are written as soon as they authenticate and a
+     * wrong CBC key is only detected at the end, so callers should write to a
+     * temporary location and discard it if this method throws.
      *
-     * @param encryptedFileContent encrypted file content
-     * @param secretKey           the secret key for decryption
-     * @return decrypted file bytes
+     * @param encryptedInput encrypted content
+     * @param outputStream   where the decrypted bytes are written
+     * @param secretKey      the secret key for decryption
      * @throws Exception if decryption fails
+     * @throws CancellationException if the input stream stopped the decryption on purpose; not counted as a failure
      */
-    public byte[] decryptFile(byte[] encryptedFileContent, String secretKey) throws Exception {
+    public void decryptFile(InputStream encryptedInput, OutputStream outputStream, String secretKey) throws Exception {
+        try (EncryptionMetrics.Operation operation = metrics.start(EncryptionMetrics.DECRYPT)) {
+            decryptFile(encryptedInput, outputStream, secretKey, operation);
+        }
+    }
+
+    private void decryptFile(InputStream encryptedInput, OutputStream outputStream, String secretKey,
+                             EncryptionMetrics.Operation operation) throws Exception {
         try {
+            BufferedInputStream inputStream = new BufferedInputStream(operation.meter(encryptedInput), BUFFER_SIZE);
+
+            // Look at the start of the file without consuming it
+            byte[] head = new byte[FORMAT_CHECK_LENGTH];
+            inputStream.mark(FORMAT_CHECK_LENGTH);
+            int headLength = readFully(inputStream, head);
+            inputStream.reset();
+
             // Check if file is too small to be a valid encrypted file
-            if (encryptedFileContent.length <= 16) {
+            if (headLength <= IV_LENGTH) {
                 throw new IllegalArgumentException("Invalid encrypted file: file is too small to contain the required IV");
             }
-            
-            // Basic format check - this isn't foolproof but can catch some obvious issues
-            boolean seemsValid = true;
-            try {
-                // Check if the first 16 bytes (the IV) contain some non-zero values
-                // A proper IV should be random data
-                boolean allZero = true;
-                for (int i = 0; i < 16; i++) {
-                    if (encryptedFileContent[i] != 0) {
-                        allZero = false;
-                        break;
-                    }
-                }
-                
-                if (allZero) {
-                    seemsValid = false;
-                }
-                
-                // Check if the file appears to be text rather than encrypted data
-                // This is a basic heuristic - encrypted data should appear random
-                int textChars = 0;
-                for (int i = 16; i < Math.min(encryptedFileContent.length, 100); i++) {
-                    byte b = encryptedFileContent[i];
-                    // If character is a printable ASCII character
-                    if ((b >= 32 && b <= 126) || b == 9 || b == 10 || b == 13) {
-                        textChars++;
-                    }
-                }
-                
-                // If more than 90% are printable ASCII, it's likely not encrypted
-                if (textChars > (Math.min(encryptedFileContent.length, 100) - 16) * 0.9) {
-                    seemsValid = false;
-                }
-            } catch (Exception e) {
-                // Ignore exceptions in the format check
-            }
-            
-            if (!seemsValid) {
+
+            if (!FileEncryptor.isChunkedFormat(head, headLength) && !seemsEncrypted(head, headLength)) {
                 throw new IllegalArgumentException("This file doesn't appear to be a valid encrypted file. Please check that you're trying to decrypt a file that was encrypted with this application.");
             }
-            
+
             // Generate key from password
-            SecretKey key = generateKey(secretKey);
-    
-            // Read IV from the beginning of the file
-            byte[] iv = new byte[16];
-            System.arraycopy(encryptedFileContent, 0, iv, 0, 16);
-            IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-    
-            // Initialize cipher for decryption
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-            cipher.init(Cipher.DECRYPT_MODE, key, ivParameterSpec);
-    
-            // Process the file content (skipping the IV)
-            byte[] encryptedContent = new byte[encryptedFileContent.length - 16];
-            System.arraycopy(encryptedFileContent, 16, encryptedContent, 0, encryptedContent.length);
-    
-            // Decrypt
+            SecretKey key = generateKey(secretKey, operation);
+
+            // Decrypt the rest of the stream
+            long ioBefore = operation.getIoNanos();
+            long start = System.nanoTime();
             try {
-                return cipher.doFinal(encryptedContent);
-            } catch (javax.crypto.BadPaddingException e) {
-                throw new SecurityException("Decryption failed: Incorrect key or the file is not an encrypted file. Please check your secret key and try again.");
+                FileEncryptor.decryptStream(inputStream, operation.meter(outputStream), key, options());
+            } catch (Exception e) {
+                if (hasCause(e, BadPaddingException.class)) {
+                    throw new SecurityException("Decryption failed: Incorrect key or the file is not an encrypted file. Please check your secret key and try again.");
+                }
+                throw e;
+            } finally {
+                operation.cipher(System.nanoTime() - start - (operation.getIoNanos() - ioBefore));
             }
+        } catch (CancellationException e) {
+            throw e; // Stopped on purpose, for example by deleting its job; not a failure
         } catch (SecurityException e) {
+            operation.failed(EncryptionMetrics.BAD_KEY);
             throw e; // Rethrow security exceptions as they're already properly formatted
         } catch (IllegalArgumentException e) {
+            operation.failed(EncryptionMetrics.INVALID_FORMAT);
             throw e; // Rethrow validation exceptions as they're already properly formatted
         } catch (Exception e) {
-            throw new Exception("Decryption failed: " + e.getMessage());
+            operation.failed(EncryptionMetrics.ERROR);
+            String message = e.getMessage();
+            if (message != null && message.startsWith("Decryption failed")) {
+                throw e;
+            }
+            throw new Exception("Decryption failed: " + message);
+        }
+    }
+
+    /**
+     * Derives the key for a chunked upload and creates the file its chunks are
+     * encrypted into.
+     *
+     * @param encryptedFile the file to create
+     * @param size         the size of the file being uploaded
+     * @param chunkSize    the size of each uploaded chunk
+     * @param secretKey    the secret key for encryption
+     * @return the encryptor that receives the chunks
+     * @throws Exception if key derivation fails or the file cannot be created
+     */
+    public IncrementalEncryptor startUpload(Path encryptedFile, long size, int chunkSize, String secretKey)
+            throws Exception {
+        try (EncryptionMetrics.Operation operation = metrics.start(EncryptionMetrics.UPLOAD)) {
+            try {
+                SecretKey key = generateKey(secretKey, operation);
+                return IncrementalEncryptor.create(encryptedFile, key, size, chunkSize,
+                        options().getCipherSuite());
+            } catch (IllegalArgumentException e) {
+                operation.failed(EncryptionMetrics.INVALID_FORMAT);
+                throw e;
+            } catch (Exception e) {
+                operation.failed(EncryptionMetrics.ERROR);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Encrypts one uploaded chunk into its place in the upload's file.
+     *
+     * @param upload the upload's encryptor
+     * @param index  the chunk index
+     * @param data   holds the chunk
+     * @param length the chunk's size
+     * @throws Exception if the chunk has the wrong size or cannot be written
+     */
+    public void encryptChunk(IncrementalEncryptor upload, long index, byte[] data, int length) throws Exception {
+        try (EncryptionMetrics.Operation operation = metrics.start(EncryptionMetrics.UPLOAD)) {
+            try {
+                long start = System.nanoTime();
+                upload.writeChunk(index, data, length);
+                operation.cipher(System.nanoTime() - start);
+                operation.read(length);
+                operation.written(upload.encryptedChunkLength(index));
+            } catch (IllegalArgumentException e) {
+                operation.failed(EncryptionMetrics.INVALID_FORMAT);
+                throw e;
+            } catch (Exception e) {
+                operation.failed(EncryptionMetrics.ERROR);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Options for one request. Requests already run in parallel on the crypto
+     * pool, so each one is processed on its own thread, in chunks the size of
+     * the I/O buffer. Files in the legacy format are not pipelined either,
+     * which keeps them within {@link #REQUEST_FOOTPRINT} and keeps the
+     * request's measurements on that one thread.
+     */
+    private EncryptionOptions options() {
+        return EncryptionOptions.defaults()
+                .parallelism(1)
+                .pipelineDepth(0)
+                .chunkSize(BUFFER_SIZE)
+                .bufferSize(BUFFER_SIZE)
+                .compression(compression)
+                .cipherSuite(cipherSuite);
+    }
+
+    private static boolean hasCause(Throwable e, Class<? extends Throwable> type) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Basic format check - this isn't foolproof but can catch some obvious issues.
+     *
+     * @param head   the first bytes of the file
+     * @param length how many bytes of head are valid
+     * @return false if the data clearly isn't ciphertext
+     */
+    private boolean seemsEncrypted(byte[] head, int length) {
+        // Check if the first 16 bytes (the IV) contain some non-zero values
+        // A proper IV should be random data
+        boolean allZero = true;
+        for (int i = 0; i < IV_LENGTH; i++) {
+            if (head[i] != 0) {
+                allZero = false;
+                break;
+            }
+        }
+
+        if (allZero) {
+            return false;
+        }
+
+        // Check if the file appears to be text rather than encrypted data
+        // This is a basic heuristic - encrypted data should appear random
+        int textChars = 0;
+        for (int i = IV_LENGTH; i < length; i++) {
+            byte b = head[i];
+            // If character is a printable ASCII character
+            if ((b >= 32 && b <= 126) || b == 9 || b == 10 || b == 13) {
+                textChars++;
+            }
+        }
+
+        // If more than 90% are printable ASCII, it's likely not encrypted
+        return textChars <= (length - IV_LENGTH) * 0.9;
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends.
+     *
+     * @return the number of bytes read
+     */
+    private int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int bytesRead = inputStream.read(buffer, total, buffer.length - total);
+            if (bytesRead == -1) {
+                break;
+            }
+            total += bytesRead;
         }
+        return total;
     }
 
     /**
-     * Generates an AES key from the provided secret key string.
+     * Generates an AES key and records how long that took.
      *
      * @param secretKey the secret key as a string
+     * @param operation receives the key derivation time
      * @return the generated SecretKey
-     * @throws NoSuchAlgorithmException if the algorithm is not available
-     * @throws InvalidKeySpecException  if the key specification is invalid
+     * @throws GeneralSecurityException if key derivation fails
      */
-    private SecretKey generateKey(String secretKey)
-            throws NoSuchAlgorithmException, InvalidKeySpecException {
+    private SecretKey generateKey(String secretKey, EncryptionMetrics.Operation operation)
+            throws GeneralSecurityException {
+        long start = System.nanoTime();
         try {
-            // PBKDF2 key derivation
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-            KeySpec spec = new PBEKeySpec(secretKey.toCharArray(), SALT, 65536, 256);
-            byte[] keyBytes = factory.generateSecret(spec).getEncoded();
-            return new SecretKeySpec(keyBytes, ALGORITHM);
-        } catch (NoSuchAlgorithmException e) {
-            throw new NoSuchAlgorithmException("The encryption algorithm is not available: " + e.getMessage());
-        } catch (InvalidKeySpecException e) {
-            throw new InvalidKeySpecException("Invalid key specification: " + e.getMessage());
+            return FileEncryptor.generateKey(secretKey);
+        } finally {
+            operation.kdf(System.nanoTime() - start);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,124 @@
+package com.fileencryptor.web.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Server-wide budget for heap held by requests in progress.
+ *
+ * Every request reserves its expected footprint before it starts working and
+ * gives it back when its response has been sent; a background job reserves
+ * when it is queued and gives it back when it ends. When the budget is used up,
+ * new requests wait for up to the configured time and are then rejected,
+ * so a burst of uploads is slowed down instead of exhausting the heap.
+ * Work that already holds a crypto thread takes its share with
+ * {@link #tryReserve} instead, so it never keeps the thread waiting.
+ * Space is counted in kilobytes, which lets the budget exceed 2GB.
+ */
+@Component
+public class MemoryBudget {
+
+    private static final long UNIT = 1024;
+
+    private final Semaphore available;
+    private final int capacityUnits;
+    private final Duration maxWait;
+
+    public MemoryBudget(@Value("${encryptor.memory.budget:64MB}") DataSize budget,
+                        @Value("${encryptor.memory.max-wait:10s}") Duration maxWait,
+                        MeterRegistry registry) {
+        this.capacityUnits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, budget.toBytes() / UNIT));
+        this.available = new Semaphore(capacityUnits, true);
+        this.maxWait = maxWait;
+
+        Gauge.builder("encryptor.memory.reserved", this, MemoryBudget::getReservedBytes)
+                .description("Heap reserved by requests in progress")
+                .baseUnit(BaseUnits.BYTES)
+                .register(registry);
+        Gauge.builder("encryptor.memory.budget", this, MemoryBudget::getCapacityBytes)
+                .description("Heap that requests in progress may reserve in total")
+                .baseUnit(BaseUnits.BYTES)
+                .register(registry);
+    }
+
+    /**
+     * Reserves space, waiting up to the configured time for it to become free.
+     * A request larger than the whole budget reserves all of it, so it can
+     * still run once nothing else does.
+     *
+     * @param bytes the expected footprint
+     * @return the reservation; close it to give the space back
+     * @throws RejectedExecutionException if the space did not become free in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Reservation reserve(long bytes) throws InterruptedException {
+        int units = units(bytes);
+        if (!available.tryAcquire(units, maxWait.toMillis(), TimeUnit.MILLISECONDS)) {
+            throw new RejectedExecutionException("Memory budget exhausted");
+        }
+        return new Reservation(units);
+    }
+
+    /**
+     * Reserves space if it is free right now, without waiting.
+     *
+     * @param bytes the expected footprint
+     * @return the reservation; close it to give the space back
+     * @throws RejectedExecutionException if the space is not free
+     */
+    public Reservation tryReserve(long bytes) {
+        int units = units(bytes);
+        if (!available.tryAcquire(units)) {
+            throw new RejectedExecutionException("Memory budget exhausted");
+        }
+        return new Reservation(units);
+    }
+
+    private int units(long bytes) {
+        return (int) Math.min(capacityUnits, Math.max(1, (bytes + UNIT - 1) / UNIT));
+    }
+
+    /**
+     * @return bytes currently reserved
+     */
+    public long getReservedBytes() {
+        return (capacityUnits - (long) available.availablePermits()) * UNIT;
+    }
+
+    /**
+     * @return the total budget in bytes
+     */
+    public long getCapacityBytes() {
+        return capacityUnits * UNIT;
+    }
+
+    /**
+     * Space held by one request. Closing it more than once has no further effect.
+     */
+    public final class Reservation implements AutoCloseable {
+
+        private final int units;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Reservation(int units) {
+            this.units = units;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                available.release(units);
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.fileencryptor.web.service;
+
+import com.fileencryptor.IncrementalEncryptor;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunked uploads in progress.
+ *
+ * A client starts an upload with the file's size, sends the file as numbered
+ * chunks and then collects the encrypted result. Every chunk is encrypted as
+ * soon as it arrives into a temporary file, so an upload holds no heap between
+ * requests and a client that lost its connection can ask which chunks are
+ * missing and carry on. Uploads that see no request for the idle timeout are
+ * abandoned: a background sweep deletes their files.
+ */
+@Component
+public class UploadSessions implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadSessions.class);
+
+    private final EncryptionService encryptionService;
+    private final int chunkSize;
+    private final long maxSize;
+    private final int maxSessions;
+    private final Duration idleTimeout;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+
+    public UploadSessions(EncryptionService encryptionService,
+                          @Value("${encryptor.uploads.chunk-size:1MB}") DataSize chunkSize,
+                          @Value("${encryptor.uploads.max-size:16GB}") DataSize maxSize,
+                          @Value("${encryptor.uploads.max-sessions:64}") int maxSessions,
+                          @Value("${encryptor.uploads.idle-timeout:30m}") Duration idleTimeout,
+                          MeterRegistry registry) {
+        if (chunkSize.toKilobytes() < 4 || chunkSize.toMegabytes() > 64) {
+            throw new IllegalArgumentException("encryptor.uploads.chunk-size must be between 4KB and 64MB");
+        }
+        this.encryptionService = encryptionService;
+        this.chunkSize = (int) chunkSize.toBytes();
+        this.maxSize = maxSize.toBytes();
+        this.maxSessions = maxSessions;
+        this.idleTimeout = idleTimeout;
+
+        long sweepMillis = Math.max(1000, Math.min(idleTimeout.toMillis() / 2, 60_000));
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upload-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::expireIdle, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+
+        Gauge.builder("encryptor.uploads.active", sessions, Map::size)
+                .description("Chunked uploads in progress")
+                .register(registry);
+    }
+
+    /**
+     * Starts an upload. Derives the key, so call it on the crypto pool.
+     *
+     * @param fileName  the name of the file being uploaded
+     * @param size      the size of the file being uploaded
+     * @param secretKey the secret key for encryption
+     * @return the new session
+     * @throws RejectedExecutionException if too many uploads are in progress
+     * @throws IllegalArgumentException if the size is out of range
+     * @throws Exception if the key cannot be derived or the temporary file cannot be created
+     */
+    public Session start(String fileName, long size, String secretKey) throws Exception {
+        if (size < 0 || size > maxSize) {
+            throw new IllegalArgumentException("File size must be between 0 and " + maxSize + " bytes");
+        }
+        if (sessions.size() >= maxSessions) {
+            throw new RejectedExecutionException("Too many uploads in progress");
+        }
+
+        Path file = Files.createTempFile("fileencryptor-upload-", ".encrypted");
+        try {
+            IncrementalEncryptor encryptor = encryptionService.startUpload(file, size, chunkSize, secretKey);
+            Session session = new Session(UUID.randomUUID().toString(), fileName, file, encryptor);
+            sessions.put(session.id, session);
+            return session;
+        } catch (Exception e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    /**
+     * @param id the session id
+     * @return the session, or null if it does not exist or has expired
+     */
+    public Session get(String id) {
+        Session session = sessions.get(id);
+        if (session != null) {
+            session.touch();
+        }
+        return session;
+    }
+
+    /**
+     * Ends a complete upload. The caller takes over the encrypted file.
+     *
+     * @param id the session id
+     * @return the session, or null if it does not exist or has expired
+     * @throws IllegalStateException if chunks are still missing; the session is kept
+     * @throws IOException if the file cannot be closed
+     */
+    public Session finish(String id) throws IOException {
+        Session session = sessions.get(id);
+        if (session == null) {
+            return null;
+        }
+        if (!session.encryptor.isComplete()) {
+            throw new IllegalStateException("Upload is incomplete: chunk " + session.encryptor.nextMissingChunk()
+                    + " has not been received");
+        }
+        if (!sessions.remove(id, session)) {
+            return null;
+        }
+        session.encryptor.close();
+        return session;
+    }
+
+    /**
+     * Cancels an upload and deletes its file.
+     *
+     * @param id the session id
+     * @return true if the session existed
+     */
+    public boolean abort(String id) {
+        Session session = sessions.remove(id);
+        if (session == null) {
+            return false;
+        }
+        discard(session);
+        return true;
+    }
+
+    private void expireIdle() {
+        long cutoff = System.nanoTime() - idleTimeout.toNanos();
+        sessions.values().removeIf(session -> {
+            if (session.lastAccess - cutoff >= 0) {
+                return false;
+            }
+            log.info("Discarding abandoned upload {}", session.id);
+            discard(session);
+            return true;
+        });
+    }
+
+    private void discard(Session session) {
+        try {
+            session.encryptor.close();
+            Files.deleteIfExists(session.file);
+        } catch (IOException e) {
+            log.warn("Could not delete upload file {}", session.file, e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        sweeper.shutdownNow();
+        sessions.values().forEach(this::discard);
+        sessions.clear();
+    }
+
+    /**
+     * One upload in progress.
+     */
+    public static final class Session {
+
+        private final String id;
+        private final String fileName;
+        private final Path file;
+        private final IncrementalEncryptor encryptor;
+        private volatile long lastAccess = System.nanoTime();
+
+        private Session(String id, String fileName, Path file, IncrementalEncryptor encryptor) {
+            this.id = id;
+            this.fileName = fileName;
+            this.file = file;
+            this.encryptor = encryptor;
+        }
+
+        private void touch() {
+            lastAccess = System.nanoTime();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * @return the encrypted file; only complete once every chunk has been received
+         */
+        public Path getFile() {
+            return file;
+        }
+
+        public IncrementalEncryptor getEncryptor() {
+            return encryptor;
+        }
+    }
+}
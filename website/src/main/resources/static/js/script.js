@@ -12,6 +12,10 @@ document.addEventListener('DOMContentLoaded', function() {
     const loadingOverlay = document.getElementById('loading');
     const notification = document.getElementById('notification');
 
+    // Files above this size are encrypted through a resumable chunked upload
+    const CHUNKED_UPLOAD_THRESHOLD = 64 * 1024 * 1024;
+    const MAX_CHUNK_ATTEMPTS = 5;
+
     // Update filename display when a file is selected for encryption
     encryptFileInput.addEventListener('change', function() {
         if (this.files.length > 0) {
@@ -42,6 +46,12 @@ document.addEventListener('DOMContentLoaded', function() {
             return;
         }
         
+        const file = encryptFileInput.files[0];
+        if (file.size > CHUNKED_UPLOAD_THRESHOLD) {
+            uploadInChunks(file, document.getElementById('encrypt-key').value);
+            return;
+        }
+
         const formData = new FormData(encryptForm);
         processFile('/encrypt', formData);
     });
@@ -100,7 +110,8 @@ document.addEventListener('DOMContentLoaded', function() {
             return false;
         }
         
-        const maxSizeMB = 10;
+        // Encryption of large files uses chunked uploads, which allow larger files
+        const maxSizeMB = formType === 'encrypt' ? 16384 : 4096;
         if (fileInput.files[0].size > maxSizeMB * 1024 * 1024) {
             showNotification(`File size must be less than ${maxSizeMB}MB`, 'error');
             return false;
@@ -114,6 +125,102 @@ document.addEventListener('DOMContentLoaded', function() {
         return true;
     }
 
+    /**
+     * Encrypt a large file by uploading it in chunks. A chunk that fails is
+     * retried with a growing delay; after a retry the server is asked which
+     * chunk it needs next, so an interrupted upload resumes where it stopped.
+     * @param {File} file - The file to encrypt
+     * @param {string} secretKey - The secret key
+     */
+    async function uploadInChunks(file, secretKey) {
+        showLoading(true);
+        let upload = null;
+
+        try {
+            upload = await uploadRequest('/uploads', {
+                method: 'POST',
+                body: new URLSearchParams({ fileName: file.name, size: file.size, secretKey: secretKey })
+            }).then(response => response.json());
+
+            let next = upload.nextChunk;
+            let attempts = 0;
+            while (next >= 0) {
+                const start = next * upload.chunkSize;
+                try {
+                    const status = await uploadRequest(`/uploads/${upload.id}/chunks/${next}`, {
+                        method: 'PUT',
+                        headers: { 'Content-Type': 'application/octet-stream' },
+                        body: file.slice(start, start + upload.chunkSize)
+                    }).then(response => response.json());
+                    attempts = 0;
+                    next = status.nextChunk;
+                    showNotification(`Uploading... ${Math.floor(status.receivedChunks * 100 / upload.chunkCount)}%`, 'success');
+                } catch (error) {
+                    if (error.status === 404 || ++attempts >= MAX_CHUNK_ATTEMPTS) {
+                        throw error;
+                    }
+                    await new Promise(resolve => setTimeout(resolve, 1000 * attempts));
+                    // Ask the server where to carry on; the connection may have dropped mid-chunk
+                    const status = await uploadRequest(`/uploads/${upload.id}`, { method: 'GET' })
+                        .then(response => response.json());
+                    next = status.nextChunk;
+                }
+            }
+
+            const response = await uploadRequest(`/uploads/${upload.id}/complete`, { method: 'POST' });
+            upload = null;
+            const blob = await response.blob();
+            saveBlob(blob, file.name + '.encrypted');
+
+            encryptForm.reset();
+            encryptFilename.textContent = 'Choose file to encrypt';
+            encryptFilename.style.color = '';
+            showNotification('File encrypted successfully!', 'success');
+        } catch (error) {
+            console.error('Error:', error);
+            if (upload) {
+                fetch(`/uploads/${upload.id}`, { method: 'DELETE' }).catch(() => {});
+            }
+            showNotification('Encryption failed: ' + (error.message || 'An error occurred'), 'error');
+        } finally {
+            showLoading(false);
+        }
+    }
+
+    /**
+     * Send a request of the chunked upload protocol and reject on an error status
+     * @param {string} url - The API endpoint
+     * @param {Object} options - fetch options
+     * @returns {Promise<Response>} - The successful response
+     */
+    function uploadRequest(url, options) {
+        return fetch(url, options).then(response => {
+            if (response.ok) {
+                return response;
+            }
+            return response.json().catch(() => ({})).then(data => {
+                const error = new Error(data.error || `Request failed with status ${response.status}`);
+                error.status = response.status;
+                throw error;
+            });
+        });
+    }
+
+    /**
+     * Offer a blob to the user as a download
+     * @param {Blob} blob - The file content
+     * @param {string} filename - The suggested file name
+     */
+    function saveBlob(blob, filename) {
+        const url = window.URL.createObjectURL(blob);
+        const a = document.createElement('a');
+        a.href = url;
+        a.download = filename;
+        document.body.appendChild(a);
+        a.click();
+        a.remove();
+    }
+
     /**
      * Process file for encryption or decryption
      * @param {string} url - The API endpoint
@@ -161,13 +268,7 @@ document.addEventListener('DOMContentLoaded', function() {
                 }
                 
                 // Create download link and trigger click
-                const url = window.URL.createObjectURL(blob);
-                const a = document.createElement('a');
-                a.href = url;
-                a.download = filename;
-                document.body.appendChild(a);
-                a.click();
-                a.remove();
+                saveBlob(blob, filename);
                 
                 // Clear the file input and secret key for security
                 if (isDecryption) {
@@ -0,0 +1,147 @@
+package com.fileencryptor.web.controller;
+
+import com.fileencryptor.web.service.CryptoExecutor;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Admission control on the crypto pool: once its one thread is busy and its
+ * one queue slot taken, requests that need it are refused at once with 503
+ * and a Retry-After header, and are served again as soon as it drains.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "encryptor.cipher.suite=AES-GCM",
+        "encryptor.executor.threads=1",
+        "encryptor.executor.queue-capacity=1",
+        "encryptor.executor.retry-after=7s"})
+class AdmissionControlTest {
+
+    private static final String KEY = "correct horse";
+
+    @Autowired
+    private TestRestTemplate rest;
+
+    @Autowired
+    private CryptoExecutor cryptoExecutor;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<CompletableFuture<?>> occupying = new ArrayList<>();
+
+    @AfterEach
+    void releasePool() throws Exception {
+        release.countDown();
+        for (CompletableFuture<?> task : occupying) {
+            task.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void fullQueueIsRefusedWithRetryAfter() throws Exception {
+        double rejected = registry.get("encryptor.rejected").counter().count();
+        occupyThread();
+        occupy();
+
+        for (String path : new String[]{"/encrypt", "/decrypt"}) {
+            ResponseEntity<String> response = post(path);
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode(), path);
+            assertEquals("7", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+            assertTrue(response.getBody().contains("busy"), response.getBody());
+        }
+        ResponseEntity<String> upload = rest.postForEntity("/uploads?fileName=a&size=10&secretKey=" + KEY, null,
+                String.class);
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, upload.getStatusCode());
+        assertEquals(rejected + 3, registry.get("encryptor.rejected").counter().count());
+
+        releasePool();
+        assertEquals(HttpStatus.OK, post("/encrypt").getStatusCode());
+    }
+
+    @Test
+    void requestsWithinCapacityAreServed() {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(HttpStatus.OK, post("/encrypt").getStatusCode());
+        }
+    }
+
+    @Test
+    void executorCompletesFuturesWithTheTaskOutcome() throws Exception {
+        assertEquals("done", cryptoExecutor.submit(() -> "done").get(10, TimeUnit.SECONDS));
+
+        IllegalStateException failure = new IllegalStateException("broken");
+        ExecutionException thrown = assertThrows(ExecutionException.class, () -> cryptoExecutor.submit(() -> {
+            throw failure;
+        }).get(10, TimeUnit.SECONDS));
+        assertSame(failure, thrown.getCause());
+    }
+
+    @Test
+    void executorRejectsWorkBeyondItsQueue() throws Exception {
+        occupyThread();
+        occupy();
+
+        assertThrows(RejectedExecutionException.class, () -> cryptoExecutor.submit(() -> null));
+    }
+
+    /**
+     * Takes the pool's thread until the pool is released, and returns once
+     * the thread has picked the task up, so the queue slot is free again.
+     */
+    private void occupyThread() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        occupying.add(cryptoExecutor.submit(() -> {
+            started.countDown();
+            return release.await(30, TimeUnit.SECONDS);
+        }));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Takes the queue slot until the pool is released; the thread must already be taken.
+     */
+    private void occupy() {
+        occupying.add(cryptoExecutor.submit(() -> release.await(30, TimeUnit.SECONDS)));
+    }
+
+    private ResponseEntity<String> post(String path) {
+        MultiValueMap<String, Object> form = new LinkedMultiValueMap<>();
+        form.add("file", new ByteArrayResource("some plain text".getBytes(StandardCharsets.US_ASCII)) {
+            @Override
+            public String getFilename() {
+                return "notes.txt";
+            }
+        });
+        form.add("secretKey", KEY);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+        return rest.postForEntity(path, new HttpEntity<>(form, headers), String.class);
+    }
+}
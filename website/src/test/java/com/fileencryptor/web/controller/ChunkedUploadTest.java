@@ -0,0 +1,202 @@
+package com.fileencryptor.web.controller;
+
+import com.fileencryptor.EncryptionOptions;
+import com.fileencryptor.FileEncryptor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Chunked uploads: chunks may arrive in any order and be sent again, the
+ * status says which one is missing next, and the completed upload downloads
+ * as a file in the core library's format. Chunks of the wrong size,
+ * incomplete uploads and uploads beyond the configured limits are refused.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "encryptor.cipher.suite=AES-GCM",
+        "encryptor.uploads.chunk-size=4KB",
+        "encryptor.uploads.max-size=100KB",
+        "encryptor.uploads.max-sessions=3"})
+class ChunkedUploadTest {
+
+    private static final String KEY = "correct horse";
+    private static final int CHUNK_SIZE = 4096;
+    private static final ParameterizedTypeReference<Map<String, Object>> STATUS =
+            new ParameterizedTypeReference<Map<String, Object>>() {
+            };
+
+    @Autowired
+    private TestRestTemplate rest;
+
+    private final List<String> started = new ArrayList<>();
+
+    @AfterEach
+    void abortUploads() {
+        // Frees the session slots for the next test; finished uploads are already gone
+        started.forEach(id -> rest.delete("/uploads/" + id));
+    }
+
+    @Test
+    void chunksInAnyOrderRoundTrip() throws Exception {
+        byte[] data = randomBytes(3 * CHUNK_SIZE + 100);
+        Map<String, Object> upload = start("report.pdf", data.length).getBody();
+        String id = (String) upload.get("id");
+        assertEquals(CHUNK_SIZE, upload.get("chunkSize"));
+        assertEquals(4, upload.get("chunkCount"));
+        assertEquals(0, upload.get("nextChunk"));
+
+        for (int index : new int[]{2, 0, 3}) {
+            assertEquals(HttpStatus.OK, putChunk(id, index, chunk(data, index)).getStatusCode());
+        }
+        Map<String, Object> status = rest.exchange("/uploads/" + id, HttpMethod.GET, null, STATUS).getBody();
+        assertEquals(3, status.get("receivedChunks"));
+        assertEquals(1, status.get("nextChunk"));
+        assertEquals(false, status.get("complete"));
+
+        Map<String, Object> last = putChunk(id, 1, chunk(data, 1)).getBody();
+        assertEquals(true, last.get("complete"));
+
+        ResponseEntity<byte[]> encrypted = complete(id);
+        assertEquals(HttpStatus.OK, encrypted.getStatusCode());
+        assertTrue(encrypted.getHeaders().getFirst(HttpHeaders.CONTENT_DISPOSITION)
+                .contains("\"report.pdf.encrypted\""));
+        assertArrayEquals(data, decrypt(encrypted.getBody()));
+        assertEquals(HttpStatus.NOT_FOUND, rest.getForEntity("/uploads/" + id, String.class).getStatusCode());
+    }
+
+    @Test
+    void chunkSentAgainReplacesTheFirst() throws Exception {
+        byte[] data = randomBytes(CHUNK_SIZE + 1);
+        String id = (String) start("data.bin", data.length).getBody().get("id");
+
+        putChunk(id, 0, new byte[CHUNK_SIZE]);
+        putChunk(id, 1, chunk(data, 1));
+        putChunk(id, 0, chunk(data, 0));
+
+        assertArrayEquals(data, decrypt(complete(id).getBody()));
+    }
+
+    @Test
+    void emptyFileIsOneEmptyChunk() throws Exception {
+        Map<String, Object> upload = start("empty", 0).getBody();
+        String id = (String) upload.get("id");
+        assertEquals(1, upload.get("chunkCount"));
+
+        assertEquals(HttpStatus.OK, putChunk(id, 0, new byte[0]).getStatusCode());
+
+        assertArrayEquals(new byte[0], decrypt(complete(id).getBody()));
+    }
+
+    @Test
+    void incompleteUploadCannotBeCompleted() {
+        byte[] data = randomBytes(2 * CHUNK_SIZE);
+        String id = (String) start("data.bin", data.length).getBody().get("id");
+        putChunk(id, 1, chunk(data, 1));
+
+        assertEquals(HttpStatus.CONFLICT, complete(id).getStatusCode());
+        assertEquals(HttpStatus.OK, rest.getForEntity("/uploads/" + id, String.class).getStatusCode());
+    }
+
+    @Test
+    void chunksOfTheWrongSizeOrIndexAreRefused() {
+        byte[] data = randomBytes(CHUNK_SIZE + 10);
+        String id = (String) start("data.bin", data.length).getBody().get("id");
+
+        assertEquals(HttpStatus.BAD_REQUEST, putChunk(id, 0, new byte[CHUNK_SIZE - 1]).getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, putChunk(id, 1, new byte[CHUNK_SIZE]).getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, putChunk(id, 2, new byte[10]).getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, putChunk(id, -1, new byte[10]).getStatusCode());
+
+        Map<String, Object> status = rest.exchange("/uploads/" + id, HttpMethod.GET, null, STATUS).getBody();
+        assertEquals(0, status.get("receivedChunks"));
+    }
+
+    @Test
+    void abortedUploadIsGone() {
+        byte[] data = randomBytes(CHUNK_SIZE);
+        String id = (String) start("data.bin", data.length).getBody().get("id");
+
+        ResponseEntity<Void> aborted = rest.exchange("/uploads/" + id, HttpMethod.DELETE, null, Void.class);
+
+        assertEquals(HttpStatus.NO_CONTENT, aborted.getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND, rest.getForEntity("/uploads/" + id, String.class).getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND, putChunk(id, 0, data).getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND, complete(id).getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND,
+                rest.exchange("/uploads/" + id, HttpMethod.DELETE, null, Void.class).getStatusCode());
+    }
+
+    @Test
+    void uploadsBeyondTheLimitsAreRefused() {
+        assertEquals(HttpStatus.BAD_REQUEST, start("big", 100 * 1024 + 1).getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, start("negative", -1).getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, rest.postForEntity("/uploads?fileName=a&size=10&secretKey=short", null,
+                String.class).getStatusCode());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(HttpStatus.CREATED, start("data.bin", 10).getStatusCode());
+        }
+        ResponseEntity<Map<String, Object>> refused = start("data.bin", 10);
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, refused.getStatusCode());
+        assertEquals("5", refused.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+    }
+
+    private ResponseEntity<Map<String, Object>> start(String fileName, long size) {
+        ResponseEntity<Map<String, Object>> response = rest.exchange(
+                "/uploads?fileName={name}&size={size}&secretKey={key}", HttpMethod.POST, null, STATUS,
+                fileName, size, KEY);
+        if (response.getStatusCode() == HttpStatus.CREATED) {
+            started.add((String) response.getBody().get("id"));
+        }
+        return response;
+    }
+
+    private ResponseEntity<Map<String, Object>> putChunk(String id, long index, byte[] chunk) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        return rest.exchange("/uploads/" + id + "/chunks/" + index, HttpMethod.PUT, new HttpEntity<>(chunk, headers),
+                STATUS);
+    }
+
+    private ResponseEntity<byte[]> complete(String id) {
+        return rest.postForEntity("/uploads/" + id + "/complete", null, byte[].class);
+    }
+
+    private static byte[] chunk(byte[] data, int index) {
+        return Arrays.copyOfRange(data, index * CHUNK_SIZE, Math.min(data.length, (index + 1) * CHUNK_SIZE));
+    }
+
+    private static byte[] decrypt(byte[] encrypted) throws Exception {
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        FileEncryptor.decryptStream(new ByteArrayInputStream(encrypted), decrypted, FileEncryptor.generateKey(KEY),
+                EncryptionOptions.defaults());
+        return decrypted.toByteArray();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
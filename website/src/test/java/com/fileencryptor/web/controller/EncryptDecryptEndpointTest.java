@@ -0,0 +1,156 @@
+package com.fileencryptor.web.controller;
+
+import com.fileencryptor.EncryptionOptions;
+import com.fileencryptor.FileEncryptor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The /encrypt and /decrypt endpoints over HTTP: uploads round trip, the
+ * encrypted download is streamed in the format of the core library, files in
+ * the original CBC format still decrypt, and bad uploads are refused with a
+ * JSON error.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = "encryptor.cipher.suite=AES-GCM")
+class EncryptDecryptEndpointTest {
+
+    private static final String KEY = "correct horse";
+    private static final int SIZE = 3 * 1024 * 1024 + 17;
+
+    @Autowired
+    private TestRestTemplate rest;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void uploadRoundTrips() {
+        byte[] data = randomBytes(SIZE);
+
+        ResponseEntity<byte[]> encrypted = post("/encrypt", data, "report.pdf", KEY);
+        assertEquals(HttpStatus.OK, encrypted.getStatusCode());
+        assertTrue(encrypted.getHeaders().getFirst(HttpHeaders.CONTENT_DISPOSITION)
+                .contains("\"report.pdf.encrypted\""));
+
+        ResponseEntity<byte[]> decrypted = post("/decrypt", encrypted.getBody(), "report.pdf.encrypted", KEY);
+        assertEquals(HttpStatus.OK, decrypted.getStatusCode());
+        assertTrue(decrypted.getHeaders().getFirst(HttpHeaders.CONTENT_DISPOSITION).contains("\"report.pdf\""));
+        assertArrayEquals(data, decrypted.getBody());
+    }
+
+    @Test
+    void encryptionIsStreamedInTheLibraryFormat() throws Exception {
+        byte[] data = randomBytes(SIZE);
+
+        ResponseEntity<byte[]> encrypted = post("/encrypt", data, "data.bin", KEY);
+
+        // Written as it is encrypted, so its length is not known up front
+        assertEquals(-1, encrypted.getHeaders().getContentLength());
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        FileEncryptor.decryptStream(new ByteArrayInputStream(encrypted.getBody()), decrypted,
+                FileEncryptor.generateKey(KEY), EncryptionOptions.defaults());
+        assertArrayEquals(data, decrypted.toByteArray());
+    }
+
+    @Test
+    void filesFromTheDesktopApplicationDecrypt() throws Exception {
+        byte[] data = randomBytes(100_000);
+        Path plain = directory.resolve("plain");
+        Files.write(plain, data);
+
+        for (boolean legacyFormat : new boolean[]{false, true}) {
+            Path encrypted = directory.resolve("plain.encrypted");
+            FileEncryptor.encryptFile(plain, encrypted, FileEncryptor.generateKey(KEY),
+                    EncryptionOptions.defaults().legacyFormat(legacyFormat));
+
+            ResponseEntity<byte[]> decrypted = post("/decrypt", Files.readAllBytes(encrypted), "plain.encrypted", KEY);
+
+            assertEquals(HttpStatus.OK, decrypted.getStatusCode(), "legacy " + legacyFormat);
+            assertArrayEquals(data, decrypted.getBody());
+        }
+    }
+
+    @Test
+    void wrongKeyIsRefused() {
+        byte[] encrypted = post("/encrypt", randomBytes(10_000), "data.bin", KEY).getBody();
+
+        ResponseEntity<byte[]> decrypted = post("/decrypt", encrypted, "data.bin.encrypted", "battery staple");
+
+        assertError(HttpStatus.BAD_REQUEST, decrypted);
+    }
+
+    @Test
+    void tamperedFileIsRefused() {
+        byte[] encrypted = post("/encrypt", randomBytes(200_000), "data.bin", KEY).getBody();
+        encrypted[encrypted.length / 2] ^= 0x01;
+
+        ResponseEntity<byte[]> decrypted = post("/decrypt", encrypted, "data.bin.encrypted", KEY);
+
+        assertError(HttpStatus.BAD_REQUEST, decrypted);
+    }
+
+    @Test
+    void fileThatIsNotEncryptedIsRefused() {
+        byte[] text = "Just some notes, nothing encrypted here at all, really just plain text."
+                .repeat(4).getBytes(StandardCharsets.US_ASCII);
+
+        assertError(HttpStatus.BAD_REQUEST, post("/decrypt", text, "notes.txt", KEY));
+    }
+
+    @Test
+    void emptyFilesAndShortKeysAreRefused() {
+        assertError(HttpStatus.BAD_REQUEST, post("/encrypt", new byte[0], "empty", KEY));
+        assertError(HttpStatus.BAD_REQUEST, post("/decrypt", new byte[0], "empty.encrypted", KEY));
+        assertError(HttpStatus.BAD_REQUEST, post("/encrypt", randomBytes(100), "data.bin", "short"));
+        assertError(HttpStatus.BAD_REQUEST, post("/decrypt", randomBytes(100), "data.bin.encrypted", "short"));
+    }
+
+    private ResponseEntity<byte[]> post(String path, byte[] file, String fileName, String secretKey) {
+        MultiValueMap<String, Object> form = new LinkedMultiValueMap<>();
+        form.add("file", new ByteArrayResource(file) {
+            @Override
+            public String getFilename() {
+                return fileName;
+            }
+        });
+        form.add("secretKey", secretKey);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+        return rest.postForEntity(path, new HttpEntity<>(form, headers), byte[].class);
+    }
+
+    private static void assertError(HttpStatus status, ResponseEntity<byte[]> response) {
+        assertEquals(status, response.getStatusCode());
+        String body = new String(response.getBody(), StandardCharsets.UTF_8);
+        assertTrue(body.startsWith("{\"error\":"), body);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,230 @@
+package com.fileencryptor.web.controller;
+
+import com.fileencryptor.EncryptionOptions;
+import com.fileencryptor.FileEncryptor;
+import com.fileencryptor.web.service.MemoryBudget;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Background jobs: a submitted job is accepted at once, runs to a result that
+ * can be downloaded separately, and reports why it failed otherwise. Results
+ * are evicted oldest first once the store is over its size limit, and jobs
+ * are refused while the memory budget is used up.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "encryptor.cipher.suite=AES-GCM",
+        "encryptor.jobs.max-store-size=100KB",
+        "encryptor.memory.max-wait=200ms"})
+class JobsTest {
+
+    private static final String KEY = "correct horse";
+    private static final ParameterizedTypeReference<Map<String, Object>> STATUS =
+            new ParameterizedTypeReference<Map<String, Object>>() {
+            };
+
+    @Autowired
+    private TestRestTemplate rest;
+
+    @Autowired
+    private MemoryBudget memoryBudget;
+
+    private final List<String> submitted = new ArrayList<>();
+    private MemoryBudget.Reservation everything;
+
+    @AfterEach
+    void deleteJobs() {
+        if (everything != null) {
+            everything.close();
+        }
+        // Keeps the results of one test from being evicted by the next
+        submitted.forEach(id -> rest.delete("/jobs/" + id));
+    }
+
+    @Test
+    void encryptJobRunsToADownloadableResult() throws Exception {
+        byte[] data = randomBytes(50_000);
+
+        ResponseEntity<Map<String, Object>> accepted = submit("report.pdf", data, KEY, "encrypt");
+
+        assertEquals(HttpStatus.ACCEPTED, accepted.getStatusCode());
+        String id = (String) accepted.getBody().get("id");
+        assertEquals("/jobs/" + id, accepted.getHeaders().getLocation().getPath());
+        assertEquals("encrypt", accepted.getBody().get("operation"));
+        assertEquals("report.pdf.encrypted", accepted.getBody().get("fileName"));
+        assertEquals(data.length, accepted.getBody().get("size"));
+
+        Map<String, Object> finished = awaitFinished(id);
+        assertEquals("SUCCEEDED", finished.get("state"));
+        assertEquals(data.length, finished.get("processedBytes"));
+        assertEquals("/jobs/" + id + "/result", finished.get("resultUrl"));
+
+        ResponseEntity<byte[]> result = rest.getForEntity("/jobs/" + id + "/result", byte[].class);
+        assertEquals(HttpStatus.OK, result.getStatusCode());
+        assertEquals(((Number) finished.get("resultSize")).longValue(), result.getHeaders().getContentLength());
+        assertTrue(result.getHeaders().getFirst(HttpHeaders.CONTENT_DISPOSITION)
+                .contains("\"report.pdf.encrypted\""));
+        assertArrayEquals(data, decrypt(result.getBody()));
+
+        // The result stays until it expires or the job is deleted
+        assertEquals(HttpStatus.OK, rest.getForEntity("/jobs/" + id + "/result", byte[].class).getStatusCode());
+    }
+
+    @Test
+    void decryptJobRestoresTheFile() throws Exception {
+        byte[] data = randomBytes(20_000);
+        String encryptId = (String) submit("notes.txt", data, KEY, "encrypt").getBody().get("id");
+        awaitFinished(encryptId);
+        byte[] encrypted = rest.getForObject("/jobs/" + encryptId + "/result", byte[].class);
+
+        ResponseEntity<Map<String, Object>> accepted = submit("notes.txt.encrypted", encrypted, KEY, "decrypt");
+        assertEquals("notes.txt", accepted.getBody().get("fileName"));
+        String id = (String) accepted.getBody().get("id");
+
+        assertEquals("SUCCEEDED", awaitFinished(id).get("state"));
+        assertArrayEquals(data, rest.getForObject("/jobs/" + id + "/result", byte[].class));
+    }
+
+    @Test
+    void failedJobReportsItsError() throws Exception {
+        String encryptId = (String) submit("notes.txt", randomBytes(10_000), KEY, "encrypt").getBody().get("id");
+        awaitFinished(encryptId);
+        byte[] encrypted = rest.getForObject("/jobs/" + encryptId + "/result", byte[].class);
+
+        String id = (String) submit("notes.txt.encrypted", encrypted, "battery staple", "decrypt").getBody().get("id");
+
+        Map<String, Object> finished = awaitFinished(id);
+        assertEquals("FAILED", finished.get("state"));
+        assertNotNull(finished.get("error"));
+        ResponseEntity<String> result = rest.getForEntity("/jobs/" + id + "/result", String.class);
+        assertEquals(HttpStatus.CONFLICT, result.getStatusCode());
+        assertTrue(result.getBody().contains("\"error\""), result.getBody());
+    }
+
+    @Test
+    void deletedJobIsGone() throws Exception {
+        String id = (String) submit("data.bin", randomBytes(10_000), KEY, "encrypt").getBody().get("id");
+        awaitFinished(id);
+
+        ResponseEntity<Void> deleted = rest.exchange("/jobs/" + id, HttpMethod.DELETE, null, Void.class);
+
+        assertEquals(HttpStatus.NO_CONTENT, deleted.getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND, rest.getForEntity("/jobs/" + id, String.class).getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND, rest.getForEntity("/jobs/" + id + "/result", String.class).getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND,
+                rest.exchange("/jobs/" + id, HttpMethod.DELETE, null, Void.class).getStatusCode());
+    }
+
+    @Test
+    void oldestResultIsEvictedWhenTheStoreIsFull() throws Exception {
+        String first = (String) submit("first.bin", randomBytes(60_000), KEY, "encrypt").getBody().get("id");
+        awaitFinished(first);
+        String second = (String) submit("second.bin", randomBytes(60_001), KEY, "encrypt").getBody().get("id");
+        awaitFinished(second);
+
+        assertEquals(HttpStatus.NOT_FOUND, rest.getForEntity("/jobs/" + first, String.class).getStatusCode());
+        assertEquals(HttpStatus.OK, rest.getForEntity("/jobs/" + second + "/result", byte[].class).getStatusCode());
+    }
+
+    @Test
+    void invalidJobsAreRefused() {
+        assertEquals(HttpStatus.BAD_REQUEST, submit("data.bin", randomBytes(100), KEY, "compress").getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, submit("data.bin", new byte[0], KEY, "encrypt").getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, submit("data.bin", randomBytes(100), "short", "encrypt").getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND, rest.getForEntity("/jobs/no-such-job", String.class).getStatusCode());
+    }
+
+    @Test
+    void exhaustedBudgetIsRefusedWithRetryAfter() throws Exception {
+        everything = memoryBudget.tryReserve(memoryBudget.getCapacityBytes());
+
+        long start = System.nanoTime();
+        ResponseEntity<Map<String, Object>> refused = submit("data.bin", randomBytes(1000), KEY, "encrypt");
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, refused.getStatusCode());
+        assertTrue(System.nanoTime() - start >= 200_000_000L);
+        assertEquals("5", refused.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+
+        everything.close();
+        String id = (String) submit("data.bin", randomBytes(1000), KEY, "encrypt").getBody().get("id");
+        assertEquals("SUCCEEDED", awaitFinished(id).get("state"));
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (memoryBudget.getReservedBytes() != 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, memoryBudget.getReservedBytes());
+    }
+
+    private Map<String, Object> awaitFinished(String id) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (true) {
+            Map<String, Object> status = rest.exchange("/jobs/" + id, HttpMethod.GET, null, STATUS).getBody();
+            Object state = status.get("state");
+            if ("SUCCEEDED".equals(state) || "FAILED".equals(state)) {
+                return status;
+            }
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Job " + id + " did not finish in time: " + status);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private ResponseEntity<Map<String, Object>> submit(String fileName, byte[] file, String secretKey,
+                                                       String operation) {
+        MultiValueMap<String, Object> form = new LinkedMultiValueMap<>();
+        form.add("file", new ByteArrayResource(file) {
+            @Override
+            public String getFilename() {
+                return fileName;
+            }
+        });
+        form.add("secretKey", secretKey);
+        form.add("operation", operation);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+        ResponseEntity<Map<String, Object>> response = rest.exchange("/jobs", HttpMethod.POST,
+                new HttpEntity<>(form, headers), STATUS);
+        if (response.getStatusCode() == HttpStatus.ACCEPTED) {
+            submitted.add((String) response.getBody().get("id"));
+        }
+        return response;
+    }
+
+    private static byte[] decrypt(byte[] encrypted) throws Exception {
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        FileEncryptor.decryptStream(new ByteArrayInputStream(encrypted), decrypted, FileEncryptor.generateKey(KEY),
+                EncryptionOptions.defaults());
+        return decrypted.toByteArray();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,125 @@
+package com.fileencryptor.web.controller;
+
+import com.fileencryptor.web.service.MemoryBudget;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The memory budget in front of the endpoints: while it is used up, requests
+ * that would hold buffers are refused with 503 and a Retry-After header, and
+ * a finished request gives its share back.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "encryptor.cipher.suite=AES-GCM",
+        "encryptor.memory.budget=1MB",
+        "encryptor.memory.max-wait=200ms",
+        "encryptor.uploads.chunk-size=64KB"})
+class MemoryBudgetAdmissionTest {
+
+    private static final String KEY = "correct horse";
+
+    @Autowired
+    private TestRestTemplate rest;
+
+    @Autowired
+    private MemoryBudget memoryBudget;
+
+    private MemoryBudget.Reservation everything;
+
+    @AfterEach
+    void giveBack() {
+        if (everything != null) {
+            everything.close();
+        }
+    }
+
+    @Test
+    void exhaustedBudgetIsRefusedWithRetryAfter() {
+        everything = memoryBudget.tryReserve(memoryBudget.getCapacityBytes());
+
+        for (String path : new String[]{"/encrypt", "/decrypt"}) {
+            ResponseEntity<String> response = post(path, randomBytes(1000));
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode(), path);
+            assertEquals("5", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        }
+
+        everything.close();
+        assertEquals(HttpStatus.OK, post("/encrypt", randomBytes(1000)).getStatusCode());
+    }
+
+    @Test
+    void uploadedChunkWaitsForSpaceThenGivesUp() {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> upload = rest.postForObject("/uploads?fileName=a&size=1000&secretKey=" + KEY, null,
+                Map.class);
+        everything = memoryBudget.tryReserve(memoryBudget.getCapacityBytes());
+
+        long start = System.nanoTime();
+        ResponseEntity<String> refused = putChunk(upload.get("id"), randomBytes(1000));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, refused.getStatusCode());
+        assertTrue(System.nanoTime() - start >= 200_000_000L);
+        assertEquals("5", refused.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+
+        everything.close();
+        assertEquals(HttpStatus.OK, putChunk(upload.get("id"), randomBytes(1000)).getStatusCode());
+    }
+
+    @Test
+    void finishedRequestsGiveTheirShareBack() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(HttpStatus.OK, post("/encrypt", randomBytes(200_000)).getStatusCode());
+        }
+
+        // The share is given back after the last byte of the response has been written
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (memoryBudget.getReservedBytes() != 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, memoryBudget.getReservedBytes());
+    }
+
+    private ResponseEntity<String> putChunk(Object uploadId, byte[] chunk) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        return rest.exchange("/uploads/" + uploadId + "/chunks/0", HttpMethod.PUT, new HttpEntity<>(chunk, headers),
+                String.class);
+    }
+
+    private ResponseEntity<String> post(String path, byte[] file) {
+        MultiValueMap<String, Object> form = new LinkedMultiValueMap<>();
+        form.add("file", new ByteArrayResource(file) {
+            @Override
+            public String getFilename() {
+                return "data.bin";
+            }
+        });
+        form.add("secretKey", KEY);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+        return rest.postForEntity(path, new HttpEntity<>(form, headers), String.class);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
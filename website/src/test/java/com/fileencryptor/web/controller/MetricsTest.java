@@ -0,0 +1,163 @@
+package com.fileencryptor.web.controller;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Metrics of the web service: every operation is timed by phase and counts
+ * its bytes, failures are counted by cause, and Actuator serves it all in
+ * Prometheus format. Tests turn metrics export off unless asked, hence
+ * {@link AutoConfigureMetrics}. Each test compares the meters before and after
+ * its own requests, so the order of the tests does not matter.
+ */
+@AutoConfigureMetrics
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = "encryptor.cipher.suite=AES-GCM")
+class MetricsTest {
+
+    private static final String KEY = "correct horse";
+
+    @Autowired
+    private TestRestTemplate rest;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Test
+    void encryptionIsMeasuredByPhase() throws Exception {
+        byte[] data = randomBytes(300_000);
+        long kdf = phaseCount("encrypt", "kdf");
+        long cipher = phaseCount("encrypt", "cipher");
+        long io = phaseCount("encrypt", "io");
+        double input = bytes("encryptor.input", "encrypt");
+        double output = bytes("encryptor.output", "encrypt");
+
+        ResponseEntity<byte[]> encrypted = post("/encrypt", data, KEY);
+        assertEquals(HttpStatus.OK, encrypted.getStatusCode());
+
+        // The operation is recorded once the response body has been written, which the client may see first
+        await(() -> phaseCount("encrypt", "kdf") == kdf + 1);
+        assertEquals(cipher + 1, phaseCount("encrypt", "cipher"));
+        assertEquals(io + 1, phaseCount("encrypt", "io"));
+        assertEquals(input + data.length, bytes("encryptor.input", "encrypt"));
+        assertEquals(output + encrypted.getBody().length, bytes("encryptor.output", "encrypt"));
+        assertEquals(0, registry.get("encryptor.operations.in.flight").gauge().value());
+    }
+
+    @Test
+    void decryptionIsMeasuredByPhase() throws Exception {
+        byte[] encrypted = post("/encrypt", randomBytes(100_000), KEY).getBody();
+        long kdf = phaseCount("decrypt", "kdf");
+        double input = bytes("encryptor.input", "decrypt");
+
+        assertEquals(HttpStatus.OK, post("/decrypt", encrypted, KEY).getStatusCode());
+
+        await(() -> phaseCount("decrypt", "kdf") == kdf + 1);
+        assertEquals(input + encrypted.length, bytes("encryptor.input", "decrypt"));
+    }
+
+    @Test
+    void failuresAreCountedByCause() {
+        byte[] encrypted = post("/encrypt", randomBytes(10_000), KEY).getBody();
+        double badKey = failures("bad_key");
+        double invalidFormat = failures("invalid_format");
+
+        assertEquals(HttpStatus.BAD_REQUEST, post("/decrypt", encrypted, "battery staple").getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, post("/decrypt", "not encrypted at all".repeat(10)
+                .getBytes(StandardCharsets.US_ASCII), KEY).getStatusCode());
+
+        assertEquals(badKey + 1, failures("bad_key"));
+        assertEquals(invalidFormat + 1, failures("invalid_format"));
+    }
+
+    @Test
+    void prometheusEndpointServesTheMeters() {
+        post("/encrypt", randomBytes(1000), KEY);
+
+        ResponseEntity<String> scrape = rest.getForEntity("/actuator/prometheus", String.class);
+
+        assertEquals(HttpStatus.OK, scrape.getStatusCode());
+        String text = scrape.getBody();
+        for (String meter : new String[]{"encryptor_phase_seconds_bucket{", "http_server_requests_seconds_bucket{",
+                "encryptor_operations_in_flight{", "encryptor_memory_budget_bytes{", "encryptor_rejected_total{",
+                "executor_queued_tasks{"}) {
+            assertTrue(text.contains(meter), meter);
+        }
+        assertTrue(text.contains("application=\"file-encryptor-web\""));
+        assertTrue(text.contains("name=\"crypto\""));
+    }
+
+    @Test
+    void healthIsServed() {
+        ResponseEntity<String> health = rest.getForEntity("/actuator/health", String.class);
+
+        assertEquals(HttpStatus.OK, health.getStatusCode());
+        assertTrue(health.getBody().contains("\"UP\""), health.getBody());
+    }
+
+    private long phaseCount(String operation, String phase) {
+        Timer timer = registry.find("encryptor.phase").tags("operation", operation, "phase", phase).timer();
+        return timer != null ? timer.count() : 0;
+    }
+
+    private double bytes(String name, String operation) {
+        Counter counter = registry.find(name).tags("operation", operation).counter();
+        return counter != null ? counter.count() : 0;
+    }
+
+    private double failures(String cause) {
+        Counter counter = registry.find("encryptor.failures").tags("operation", "decrypt", "cause", cause).counter();
+        return counter != null ? counter.count() : 0;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Meters were not updated in time");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private ResponseEntity<byte[]> post(String path, byte[] file, String secretKey) {
+        MultiValueMap<String, Object> form = new LinkedMultiValueMap<>();
+        form.add("file", new ByteArrayResource(file) {
+            @Override
+            public String getFilename() {
+                return "data.bin";
+            }
+        });
+        form.add("secretKey", secretKey);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+        return rest.postForEntity(path, new HttpEntity<>(form, headers), byte[].class);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
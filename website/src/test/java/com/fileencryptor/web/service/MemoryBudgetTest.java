@@ -0,0 +1,101 @@
+package com.fileencryptor.web.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The server-wide memory budget: reservations are counted in whole
+ * kilobytes, waiting reservations give up after the configured time, and
+ * closing a reservation gives its space back exactly once.
+ */
+class MemoryBudgetTest {
+
+    private static final long KB = 1024;
+    private static final Duration MAX_WAIT = Duration.ofMillis(200);
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final MemoryBudget budget = new MemoryBudget(DataSize.ofKilobytes(100), MAX_WAIT, registry);
+
+    @Test
+    void reservationsAreCountedInWholeKilobytes() throws Exception {
+        MemoryBudget.Reservation first = budget.reserve(1);
+        MemoryBudget.Reservation second = budget.tryReserve(10 * KB + 1);
+
+        assertEquals(12 * KB, budget.getReservedBytes());
+        assertEquals(12 * KB, registry.get("encryptor.memory.reserved").gauge().value());
+        assertEquals(100 * KB, registry.get("encryptor.memory.budget").gauge().value());
+
+        first.close();
+        second.close();
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    @Test
+    void closingTwiceGivesBackOnce() throws Exception {
+        MemoryBudget.Reservation held = budget.reserve(50 * KB);
+        MemoryBudget.Reservation reservation = budget.reserve(10 * KB);
+
+        reservation.close();
+        reservation.close();
+
+        assertEquals(50 * KB, budget.getReservedBytes());
+        held.close();
+    }
+
+    @Test
+    void tryReserveDoesNotWait() {
+        budget.tryReserve(90 * KB);
+
+        long start = System.nanoTime();
+        assertThrows(RejectedExecutionException.class, () -> budget.tryReserve(20 * KB));
+        assertTrue(System.nanoTime() - start < MAX_WAIT.toNanos());
+        assertEquals(90 * KB, budget.getReservedBytes());
+    }
+
+    @Test
+    void reserveGivesUpAfterTheMaximumWait() {
+        budget.tryReserve(90 * KB);
+
+        long start = System.nanoTime();
+        assertThrows(RejectedExecutionException.class, () -> budget.reserve(20 * KB));
+        assertTrue(System.nanoTime() - start >= MAX_WAIT.toNanos());
+        assertEquals(90 * KB, budget.getReservedBytes());
+    }
+
+    @Test
+    void reserveWaitsForSpaceToBeGivenBack() throws Exception {
+        MemoryBudget.Reservation held = budget.tryReserve(90 * KB);
+
+        CompletableFuture<MemoryBudget.Reservation> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return budget.reserve(20 * KB);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(MAX_WAIT.toMillis() / 4);
+        held.close();
+
+        waiting.get(MAX_WAIT.toMillis(), TimeUnit.MILLISECONDS).close();
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    @Test
+    void requestLargerThanTheBudgetTakesAllOfIt() throws Exception {
+        try (MemoryBudget.Reservation reservation = budget.reserve(1024 * KB)) {
+            assertEquals(100 * KB, budget.getReservedBytes());
+            assertThrows(RejectedExecutionException.class, () -> budget.tryReserve(1));
+        }
+        assertEquals(0, budget.getReservedBytes());
+    }
+}